@@ -19,11 +19,13 @@ import com.alibaba.rocketmq.broker.client.*;
 import com.alibaba.rocketmq.broker.client.net.Broker2Client;
 import com.alibaba.rocketmq.broker.client.rebalance.RebalanceLockManager;
 import com.alibaba.rocketmq.broker.filtersrv.FilterServerManager;
+import com.alibaba.rocketmq.broker.longpolling.NotifyMessageArrivingListener;
 import com.alibaba.rocketmq.broker.longpolling.PullRequestHoldService;
 import com.alibaba.rocketmq.broker.mqtrace.ConsumeMessageHook;
 import com.alibaba.rocketmq.broker.mqtrace.SendMessageHook;
 import com.alibaba.rocketmq.broker.offset.ConsumerOffsetManager;
 import com.alibaba.rocketmq.broker.out.BrokerOuterAPI;
+import com.alibaba.rocketmq.broker.pagecache.PullResultCache;
 import com.alibaba.rocketmq.broker.processor.*;
 import com.alibaba.rocketmq.broker.slave.SlaveSynchronize;
 import com.alibaba.rocketmq.broker.stats.BrokerStats;
@@ -124,6 +126,9 @@ public class BrokerController {
 
     private final BrokerStatsManager brokerStatsManager;
 
+    // 拉消息结果缓存
+    private final PullResultCache pullResultCache;
+
 
     public BrokerController(//
             final BrokerConfig brokerConfig, //
@@ -162,6 +167,7 @@ public class BrokerController {
                 new LinkedBlockingQueue<Runnable>(this.brokerConfig.getPullThreadPoolQueueCapacity());
 
         this.brokerStatsManager = new BrokerStatsManager(this);
+        this.pullResultCache = new PullResultCache(this);
     }
 
 
@@ -180,6 +186,8 @@ public class BrokerController {
         if (result) {
             try {
                 this.messageStore = new DefaultMessageStore(this.messageStoreConfig);
+                // 消息分发到Consume Queue后直接唤醒长轮询，长轮询开关在通知时检查
+                this.messageStore.setMessageArrivingListener(new NotifyMessageArrivingListener(this));
             }
             catch (IOException e) {
                 result = false;
@@ -261,6 +269,19 @@ public class BrokerController {
                 }
             }, 10, 60, TimeUnit.MINUTES);
 
+            // 定时清理过期的拉消息结果缓存
+            this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BrokerController.this.pullResultCache.cleanExpiredWindow();
+                    }
+                    catch (Exception e) {
+                        log.error("schedule cleanExpiredWindow error.", e);
+                    }
+                }
+            }, 1000 * 10, 1000 * 10, TimeUnit.MILLISECONDS);
+
             // 先获取Name Server地址
             if (this.brokerConfig.getNamesrvAddr() != null) {
                 this.brokerOuterAPI.updateNameServerAddressList(this.brokerConfig.getNamesrvAddr());
@@ -337,8 +358,12 @@ public class BrokerController {
             this.sendMessageExecutor);
         this.remotingServer.registerProcessor(RequestCode.SEND_MESSAGE_V2, sendProcessor,
             this.sendMessageExecutor);
+        this.remotingServer.registerProcessor(RequestCode.SEND_BATCH_MESSAGE, sendProcessor,
+            this.sendMessageExecutor);
         this.remotingServer.registerProcessor(RequestCode.CONSUMER_SEND_MSG_BACK, sendProcessor,
             this.sendMessageExecutor);
+        this.remotingServer.registerProcessor(RequestCode.CONSUMER_SEND_MSG_BACK_BATCH, sendProcessor,
+            this.sendMessageExecutor);
 
         /**
          * PullMessageProcessor
@@ -599,7 +624,9 @@ public class BrokerController {
             this.brokerConfig.getBrokerId(), //
             this.getHAServerAddr(), //
             topicConfigWrapper,//
-            this.filterServerManager.buildNewFilterServerList()//
+            this.filterServerManager.buildNewFilterServerList(),//
+            this.brokerConfig.isRegisterBrokerDeltaEnable(),//
+            this.brokerConfig.isCompressedRegister()//
             );
 
         if (registerBrokerResult != null) {
@@ -745,6 +772,11 @@ public class BrokerController {
     }
 
 
+    public PullResultCache getPullResultCache() {
+        return pullResultCache;
+    }
+
+
     private void printMasterAndSlaveDiff() {
         long diff = this.messageStore.slaveFallBehindMuch();
 
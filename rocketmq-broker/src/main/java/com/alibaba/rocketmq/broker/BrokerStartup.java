@@ -198,6 +198,13 @@ public class BrokerStartup {
                 break;
             }
 
+            // 独立CommitLog不参与主备同步，只允许没有Slave的异步Master使用
+            if (messageStoreConfig.getCommitLogIsolatedTopics().trim().length() > 0
+                    && BrokerRole.ASYNC_MASTER != messageStoreConfig.getBrokerRole()) {
+                System.out.println("commitLogIsolatedTopics is only supported by ASYNC_MASTER without slave");
+                System.exit(-3);
+            }
+
             // Master监听Slave请求的端口，默认为服务端口+1
             messageStoreConfig.setHaListenPort(nettyServerConfig.getListenPort() + 1);
 
@@ -17,6 +17,8 @@ package com.alibaba.rocketmq.broker.client;
 
 import io.netty.channel.Channel;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 import com.alibaba.rocketmq.remoting.protocol.LanguageCode;
 
 
@@ -25,6 +27,10 @@ import com.alibaba.rocketmq.remoting.protocol.LanguageCode;
  * @since 2013-7-26
  */
 public class ClientChannelInfo {
+    // 被扫描线程判定为过期后的时间戳，之后心跳不能再刷新
+    private static final long ExpiredTimestamp = -1;
+    private static final AtomicLongFieldUpdater<ClientChannelInfo> LastUpdateTimestampUpdater =
+            AtomicLongFieldUpdater.newUpdater(ClientChannelInfo.class, "lastUpdateTimestamp");
     private final Channel channel;
     private final String clientId;
     private final LanguageCode language;
@@ -75,6 +81,33 @@ public class ClientChannelInfo {
     }
 
 
+    /**
+     * 心跳刷新时间戳，已被判定为过期时返回false，需要重新注册
+     */
+    public boolean refreshLastUpdateTimestamp(final long timestamp) {
+        for (;;) {
+            final long current = this.lastUpdateTimestamp;
+            if (ExpiredTimestamp == current) {
+                return false;
+            }
+
+            if (LastUpdateTimestampUpdater.compareAndSet(this, current, timestamp)) {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * 时间戳早于expiredBefore且未被心跳刷新时标记为过期，返回是否标记成功
+     */
+    public boolean markExpired(final long expiredBefore) {
+        final long current = this.lastUpdateTimestamp;
+        return current != ExpiredTimestamp && current < expiredBefore
+                && LastUpdateTimestampUpdater.compareAndSet(this, current, ExpiredTimestamp);
+    }
+
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -47,6 +47,9 @@ public class ConsumerGroupInfo {
             new ConcurrentHashMap<String, SubscriptionData>();
     private final ConcurrentHashMap<Channel, ClientChannelInfo> channelInfoTable =
             new ConcurrentHashMap<Channel, ClientChannelInfo>(16);
+    // 按ClientId索引连接，与channelInfoTable同时更新
+    private final ConcurrentHashMap<String/* clientId */, ClientChannelInfo> clientIdTable =
+            new ConcurrentHashMap<String, ClientChannelInfo>(16);
     private volatile ConsumeType consumeType;
     private volatile MessageModel messageModel;
     private volatile ConsumeFromWhere consumeFromWhere;
@@ -63,15 +66,7 @@ public class ConsumerGroupInfo {
 
 
     public ClientChannelInfo findChannel(final String clientId) {
-        Iterator<Entry<Channel, ClientChannelInfo>> it = this.channelInfoTable.entrySet().iterator();
-        while (it.hasNext()) {
-            Entry<Channel, ClientChannelInfo> next = it.next();
-            if (next.getValue().getClientId().equals(clientId)) {
-                return next.getValue();
-            }
-        }
-
-        return null;
+        return this.clientIdTable.get(clientId);
     }
 
 
@@ -112,6 +107,7 @@ public class ConsumerGroupInfo {
     public void unregisterChannel(final ClientChannelInfo clientChannelInfo) {
         ClientChannelInfo old = this.channelInfoTable.remove(clientChannelInfo.getChannel());
         if (old != null) {
+            this.clientIdTable.remove(old.getClientId(), old);
             log.info("unregister a consumer[{}] from consumerGroupInfo {}", this.groupName, old.toString());
         }
     }
@@ -120,6 +116,7 @@ public class ConsumerGroupInfo {
     public boolean doChannelCloseEvent(final String remoteAddr, final Channel channel) {
         final ClientChannelInfo info = this.channelInfoTable.remove(channel);
         if (info != null) {
+            this.clientIdTable.remove(info.getClientId(), info);
             log.warn(
                 "NETTY EVENT: remove not active channel[{}] from ConsumerGroupInfo groupChannelTable, consumer group: {}",
                 info.toString(), groupName);
@@ -130,6 +127,19 @@ public class ConsumerGroupInfo {
     }
 
 
+    /**
+     * 删除已标记为过期的连接，期间已被替换为新连接时不删除
+     */
+    public boolean removeExpiredChannel(final ClientChannelInfo info) {
+        if (this.channelInfoTable.remove(info.getChannel(), info)) {
+            this.clientIdTable.remove(info.getClientId(), info);
+            return true;
+        }
+
+        return false;
+    }
+
+
     /**
      * 返回值表示是否发生变更
      */
@@ -143,6 +153,7 @@ public class ConsumerGroupInfo {
         ClientChannelInfo infoOld = this.channelInfoTable.get(infoNew.getChannel());
         if (null == infoOld) {
             ClientChannelInfo prev = this.channelInfoTable.put(infoNew.getChannel(), infoNew);
+            this.clientIdTable.put(infoNew.getClientId(), infoNew);
             if (null == prev) {
                 log.info("new consumer connected, group: {} {} {} channel: {}", this.groupName, consumeType,
                     messageModel, infoNew.toString());
@@ -159,6 +170,8 @@ public class ConsumerGroupInfo {
                     infoOld.toString(),//
                     infoNew.toString());
                 this.channelInfoTable.put(infoNew.getChannel(), infoNew);
+                this.clientIdTable.remove(infoOld.getClientId(), infoOld);
+                this.clientIdTable.put(infoNew.getClientId(), infoNew);
             }
         }
 
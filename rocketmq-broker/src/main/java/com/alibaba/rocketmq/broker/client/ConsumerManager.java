@@ -22,6 +22,9 @@ import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,7 +39,8 @@ import com.alibaba.rocketmq.remoting.common.RemotingUtil;
 
 
 /**
- * Consumer连接、订阅关系管理
+ * Consumer连接、订阅关系管理<br>
+ * 已注册连接的心跳不加锁；新增连接及删除Consumer组时，按组名加分段锁
  * 
  * @author shijia.wxr<vintage.wang@gmail.com>
  * @since 2013-7-26
@@ -48,10 +52,26 @@ public class ConsumerManager {
 
     private final ConsumerIdsChangeListener consumerIdsChangeListener;
     private static final long ChannelExpiredTimeout = 1000 * 120;
+    private static final long LockTimeoutMillis = 3000;
+    // 分段锁数目
+    private static final int LockStripeNums = 32;
+    // 每次扫描最多检查的连接数，未扫描的部分下次继续
+    private static final int ScanChannelNumsPerRound = 20000;
+    private final Lock[] groupLocks = new Lock[LockStripeNums];
+    // 增量扫描的位置，只在扫描线程中访问
+    private Iterator<Entry<String, ConsumerGroupInfo>> scanIterator;
 
 
     public ConsumerManager(final ConsumerIdsChangeListener consumerIdsChangeListener) {
         this.consumerIdsChangeListener = consumerIdsChangeListener;
+        for (int i = 0; i < this.groupLocks.length; i++) {
+            this.groupLocks[i] = new ReentrantLock();
+        }
+    }
+
+
+    private Lock groupLock(final String group) {
+        return this.groupLocks[(group.hashCode() & Integer.MAX_VALUE) % LockStripeNums];
     }
 
 
@@ -97,14 +117,7 @@ public class ConsumerManager {
             ConsumerGroupInfo info = next.getValue();
             boolean removed = info.doChannelCloseEvent(remoteAddr, channel);
             if (removed) {
-                if (info.getChannelInfoTable().isEmpty()) {
-                    ConsumerGroupInfo remove = this.consumerTable.remove(next.getKey());
-                    if (remove != null) {
-                        log.info("ungister consumer ok, no any connection, and remove consumer group, {}",
-                            next.getKey());
-                    }
-                }
-
+                this.removeGroupIfEmpty(next.getKey(), info);
                 this.consumerIdsChangeListener.consumerIdsChanged(next.getKey(), info.getAllChannel());
             }
         }
@@ -118,15 +131,48 @@ public class ConsumerManager {
             ConsumeType consumeType, MessageModel messageModel, ConsumeFromWhere consumeFromWhere,
             final Set<SubscriptionData> subList) {
         ConsumerGroupInfo consumerGroupInfo = this.consumerTable.get(group);
-        if (null == consumerGroupInfo) {
-            ConsumerGroupInfo tmp = new ConsumerGroupInfo(group, consumeType, messageModel, consumeFromWhere);
-            ConsumerGroupInfo prev = this.consumerTable.putIfAbsent(group, tmp);
-            consumerGroupInfo = prev != null ? prev : tmp;
+        ClientChannelInfo clientChannelInfoFound =
+                consumerGroupInfo != null ? consumerGroupInfo.getChannelInfoTable().get(
+                    clientChannelInfo.getChannel()) : null;
+        boolean r1 = false;
+        // 已注册的连接只更新时间戳，不加锁；已被扫描线程判定为过期的连接，加锁重新注册
+        if (clientChannelInfoFound != null
+                && clientChannelInfoFound.refreshLastUpdateTimestamp(System.currentTimeMillis())) {
+            r1 =
+                    consumerGroupInfo.updateChannel(clientChannelInfo, consumeType, messageModel,
+                        consumeFromWhere);
+        }
+        else {
+            final Lock lock = this.groupLock(group);
+            try {
+                if (lock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    try {
+                        consumerGroupInfo = this.consumerTable.get(group);
+                        if (null == consumerGroupInfo) {
+                            consumerGroupInfo =
+                                    new ConsumerGroupInfo(group, consumeType, messageModel, consumeFromWhere);
+                            this.consumerTable.put(group, consumerGroupInfo);
+                        }
+
+                        r1 =
+                                consumerGroupInfo.updateChannel(clientChannelInfo, consumeType, messageModel,
+                                    consumeFromWhere);
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                }
+                else {
+                    log.warn("ConsumerManager registerConsumer lock timeout");
+                    return false;
+                }
+            }
+            catch (InterruptedException e) {
+                log.error("", e);
+                return false;
+            }
         }
 
-        boolean r1 =
-                consumerGroupInfo.updateChannel(clientChannelInfo, consumeType, messageModel,
-                    consumeFromWhere);
         boolean r2 = consumerGroupInfo.updateSubscription(subList);
 
         if (r1 || r2) {
@@ -141,21 +187,81 @@ public class ConsumerManager {
         ConsumerGroupInfo consumerGroupInfo = this.consumerTable.get(group);
         if (null != consumerGroupInfo) {
             consumerGroupInfo.unregisterChannel(clientChannelInfo);
-            if (consumerGroupInfo.getChannelInfoTable().isEmpty()) {
-                ConsumerGroupInfo remove = this.consumerTable.remove(group);
-                if (remove != null) {
-                    log.info("ungister consumer ok, no any connection, and remove consumer group, {}", group);
+            this.removeGroupIfEmpty(group, consumerGroupInfo);
+            this.consumerIdsChangeListener.consumerIdsChanged(group, consumerGroupInfo.getAllChannel());
+        }
+    }
+
+
+    /**
+     * 加锁后再次检查时间戳，标记为过期后删除，期间刷新过心跳的连接不删除<br>
+     * 心跳发现连接已标记为过期时加同一把锁重新注册，此时连接已经删除
+     */
+    private boolean removeExpiredChannel(final String group, final ConsumerGroupInfo consumerGroupInfo,
+            final ClientChannelInfo info, final long now) {
+        final Lock lock = this.groupLock(group);
+        try {
+            if (lock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                try {
+                    if (info.markExpired(now - ChannelExpiredTimeout)) {
+                        return consumerGroupInfo.removeExpiredChannel(info);
+                    }
+                }
+                finally {
+                    lock.unlock();
                 }
             }
-            this.consumerIdsChangeListener.consumerIdsChanged(group, consumerGroupInfo.getAllChannel());
+            else {
+                log.warn("ConsumerManager removeExpiredChannel lock timeout");
+            }
+        }
+        catch (InterruptedException e) {
+            log.error("", e);
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 新增连接与删除Consumer组使用同一把锁，防止新连接加入已删除的组
+     */
+    private boolean removeGroupIfEmpty(final String group, final ConsumerGroupInfo consumerGroupInfo) {
+        final Lock lock = this.groupLock(group);
+        try {
+            if (lock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                try {
+                    if (consumerGroupInfo.getChannelInfoTable().isEmpty()
+                            && this.consumerTable.remove(group, consumerGroupInfo)) {
+                        log.info("ungister consumer ok, no any connection, and remove consumer group, {}", group);
+                        return true;
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+            else {
+                log.warn("ConsumerManager removeGroupIfEmpty lock timeout");
+            }
+        }
+        catch (InterruptedException e) {
+            log.error("", e);
         }
+
+        return false;
     }
 
 
     public void scanNotActiveChannel() {
-        Iterator<Entry<String, ConsumerGroupInfo>> it = this.consumerTable.entrySet().iterator();
-        while (it.hasNext()) {
-            Entry<String, ConsumerGroupInfo> next = it.next();
+        if (null == this.scanIterator) {
+            this.scanIterator = this.consumerTable.entrySet().iterator();
+        }
+
+        int scanChannelNums = 0;
+        final long now = System.currentTimeMillis();
+        while (scanChannelNums < ScanChannelNumsPerRound && this.scanIterator.hasNext()) {
+            Entry<String, ConsumerGroupInfo> next = this.scanIterator.next();
             String group = next.getKey();
             ConsumerGroupInfo consumerGroupInfo = next.getValue();
             ConcurrentHashMap<Channel, ClientChannelInfo> channelInfoTable =
@@ -165,23 +271,29 @@ public class ConsumerManager {
             while (itChannel.hasNext()) {
                 Entry<Channel, ClientChannelInfo> nextChannel = itChannel.next();
                 ClientChannelInfo clientChannelInfo = nextChannel.getValue();
-                long diff = System.currentTimeMillis() - clientChannelInfo.getLastUpdateTimestamp();
-                if (diff > ChannelExpiredTimeout) {
+                scanChannelNums++;
+
+                long diff = now - clientChannelInfo.getLastUpdateTimestamp();
+                if (diff > ChannelExpiredTimeout
+                        && this.removeExpiredChannel(group, consumerGroupInfo, clientChannelInfo, now)) {
                     log.warn(
                         "SCAN: remove expired channel from ConsumerManager consumerTable. channel={}, consumerGroup={}",
                         RemotingHelper.parseChannelRemoteAddr(clientChannelInfo.getChannel()), group);
                     RemotingUtil.closeChannel(clientChannelInfo.getChannel());
-                    itChannel.remove();
                 }
             }
 
-            if (channelInfoTable.isEmpty()) {
+            if (channelInfoTable.isEmpty() && this.removeGroupIfEmpty(group, consumerGroupInfo)) {
                 log.warn(
                     "SCAN: remove expired channel from ConsumerManager consumerTable, all clear, consumerGroup={}",
                     group);
-                it.remove();
             }
         }
+
+        // 一轮扫描结束，下次从头开始
+        if (!this.scanIterator.hasNext()) {
+            this.scanIterator = null;
+        }
     }
 
 
@@ -17,10 +17,10 @@ package com.alibaba.rocketmq.broker.client;
 
 import io.netty.channel.Channel;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -34,7 +34,8 @@ import com.alibaba.rocketmq.remoting.common.RemotingUtil;
 
 
 /**
- * 管理Producer组及各个Producer连接
+ * 管理Producer组及各个Producer连接<br>
+ * 已注册连接的心跳只更新时间戳，不加锁；新增连接及删除Producer组时，按组名加分段锁
  * 
  * @author shijia.wxr<vintage.wang@gmail.com>
  * @since 2013-7-26
@@ -43,119 +44,122 @@ public class ProducerManager {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BrokerLoggerName);
     private static final long LockTimeoutMillis = 3000;
     private static final long ChannelExpiredTimeout = 1000 * 120;
-    private final Lock groupChannelLock = new ReentrantLock();
-    private final HashMap<String /* group name */, HashMap<Channel, ClientChannelInfo>> groupChannelTable =
-            new HashMap<String, HashMap<Channel, ClientChannelInfo>>();
+    // 分段锁数目
+    private static final int LockStripeNums = 32;
+    // 每次扫描最多检查的连接数，未扫描的部分下次继续
+    private static final int ScanChannelNumsPerRound = 20000;
+    private final Lock[] groupLocks = new Lock[LockStripeNums];
+    private final ConcurrentHashMap<String /* group name */, ConcurrentHashMap<Channel, ClientChannelInfo>> groupChannelTable =
+            new ConcurrentHashMap<String, ConcurrentHashMap<Channel, ClientChannelInfo>>(1024);
+    // 增量扫描的位置，只在扫描线程中访问
+    private Iterator<Entry<String, ConcurrentHashMap<Channel, ClientChannelInfo>>> scanIterator;
 
 
     public ProducerManager() {
+        for (int i = 0; i < this.groupLocks.length; i++) {
+            this.groupLocks[i] = new ReentrantLock();
+        }
     }
 
 
-    public HashMap<String, HashMap<Channel, ClientChannelInfo>> getGroupChannelTable() {
+    public ConcurrentHashMap<String, ConcurrentHashMap<Channel, ClientChannelInfo>> getGroupChannelTable() {
         return groupChannelTable;
     }
 
 
+    private Lock groupLock(final String group) {
+        return this.groupLocks[(group.hashCode() & Integer.MAX_VALUE) % LockStripeNums];
+    }
+
+
     public void scanNotActiveChannel() {
-        try {
-            if (this.groupChannelLock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
-                try {
-                    for (final Map.Entry<String, HashMap<Channel, ClientChannelInfo>> entry : this.groupChannelTable
-                        .entrySet()) {
-                        final String group = entry.getKey();
-                        final HashMap<Channel, ClientChannelInfo> chlMap = entry.getValue();
-
-                        Iterator<Entry<Channel, ClientChannelInfo>> it = chlMap.entrySet().iterator();
-                        while (it.hasNext()) {
-                            Entry<Channel, ClientChannelInfo> item = it.next();
-                            // final Integer id = item.getKey();
-                            final ClientChannelInfo info = item.getValue();
-
-                            long diff = System.currentTimeMillis() - info.getLastUpdateTimestamp();
-                            if (diff > ChannelExpiredTimeout) {
-                                it.remove();
-                                log.warn(
-                                    "SCAN: remove expired channel[{}] from ProducerManager groupChannelTable, producer group name: {}",
-                                    RemotingHelper.parseChannelRemoteAddr(info.getChannel()), group);
-                                RemotingUtil.closeChannel(info.getChannel());
-                            }
-                        }
-                    }
-                }
-                finally {
-                    this.groupChannelLock.unlock();
+        if (null == this.scanIterator) {
+            this.scanIterator = this.groupChannelTable.entrySet().iterator();
+        }
+
+        int scanChannelNums = 0;
+        final long now = System.currentTimeMillis();
+        while (scanChannelNums < ScanChannelNumsPerRound && this.scanIterator.hasNext()) {
+            final Map.Entry<String, ConcurrentHashMap<Channel, ClientChannelInfo>> entry = this.scanIterator.next();
+            final String group = entry.getKey();
+            final ConcurrentHashMap<Channel, ClientChannelInfo> chlMap = entry.getValue();
+
+            Iterator<Entry<Channel, ClientChannelInfo>> it = chlMap.entrySet().iterator();
+            while (it.hasNext()) {
+                Entry<Channel, ClientChannelInfo> item = it.next();
+                final ClientChannelInfo info = item.getValue();
+                scanChannelNums++;
+
+                long diff = now - info.getLastUpdateTimestamp();
+                if (diff > ChannelExpiredTimeout && this.removeExpiredChannel(group, chlMap, info, now)) {
+                    log.warn(
+                        "SCAN: remove expired channel[{}] from ProducerManager groupChannelTable, producer group name: {}",
+                        RemotingHelper.parseChannelRemoteAddr(info.getChannel()), group);
+                    RemotingUtil.closeChannel(info.getChannel());
                 }
             }
-            else {
-                log.warn("ProducerManager scanNotActiveChannel lock timeout");
-            }
+
+            this.removeGroupIfEmpty(group);
         }
-        catch (InterruptedException e) {
-            log.error("", e);
+
+        // 一轮扫描结束，下次从头开始
+        if (!this.scanIterator.hasNext()) {
+            this.scanIterator = null;
         }
     }
 
 
     public void doChannelCloseEvent(final String remoteAddr, final Channel channel) {
         if (channel != null) {
-            try {
-                if (this.groupChannelLock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
-                    try {
-                        for (final Map.Entry<String, HashMap<Channel, ClientChannelInfo>> entry : this.groupChannelTable
-                            .entrySet()) {
-                            final String group = entry.getKey();
-                            final HashMap<Channel, ClientChannelInfo> clientChannelInfoTable =
-                                    entry.getValue();
-                            final ClientChannelInfo clientChannelInfo =
-                                    clientChannelInfoTable.remove(channel);
-                            if (clientChannelInfo != null) {
-                                log.info(
-                                    "NETTY EVENT: remove channel[{}][{}] from ProducerManager groupChannelTable, producer group: {}",
-                                    clientChannelInfo.toString(), remoteAddr, group);
-                            }
-                        }
-                    }
-                    finally {
-                        this.groupChannelLock.unlock();
-                    }
-                }
-                else {
-                    log.warn("ProducerManager doChannelCloseEvent lock timeout");
+            for (final Map.Entry<String, ConcurrentHashMap<Channel, ClientChannelInfo>> entry : this.groupChannelTable
+                .entrySet()) {
+                final String group = entry.getKey();
+                final ClientChannelInfo clientChannelInfo = entry.getValue().remove(channel);
+                if (clientChannelInfo != null) {
+                    log.info(
+                        "NETTY EVENT: remove channel[{}][{}] from ProducerManager groupChannelTable, producer group: {}",
+                        clientChannelInfo.toString(), remoteAddr, group);
+                    this.removeGroupIfEmpty(group);
                 }
             }
-            catch (InterruptedException e) {
-                log.error("", e);
-            }
         }
     }
 
 
     public void registerProducer(final String group, final ClientChannelInfo clientChannelInfo) {
-        try {
-            ClientChannelInfo clientChannelInfoFound = null;
+        // 已注册的连接只更新时间戳
+        ConcurrentHashMap<Channel, ClientChannelInfo> channelTable = this.groupChannelTable.get(group);
+        if (channelTable != null) {
+            ClientChannelInfo clientChannelInfoFound = channelTable.get(clientChannelInfo.getChannel());
+            // 已被扫描线程判定为过期的连接，加锁重新注册
+            if (clientChannelInfoFound != null
+                    && clientChannelInfoFound.refreshLastUpdateTimestamp(System.currentTimeMillis())) {
+                return;
+            }
+        }
 
-            if (this.groupChannelLock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        final Lock lock = this.groupLock(group);
+        try {
+            if (lock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
                 try {
-                    HashMap<Channel, ClientChannelInfo> channelTable = this.groupChannelTable.get(group);
+                    channelTable = this.groupChannelTable.get(group);
                     if (null == channelTable) {
-                        channelTable = new HashMap<Channel, ClientChannelInfo>();
+                        channelTable = new ConcurrentHashMap<Channel, ClientChannelInfo>();
                         this.groupChannelTable.put(group, channelTable);
                     }
 
-                    clientChannelInfoFound = channelTable.get(clientChannelInfo.getChannel());
-                    if (null == clientChannelInfoFound) {
-                        channelTable.put(clientChannelInfo.getChannel(), clientChannelInfo);
+                    ClientChannelInfo prev =
+                            channelTable.putIfAbsent(clientChannelInfo.getChannel(), clientChannelInfo);
+                    if (null == prev) {
                         log.info("new producer connected, group: {} channel: {}", group,
                             clientChannelInfo.toString());
                     }
+                    else {
+                        prev.setLastUpdateTimestamp(System.currentTimeMillis());
+                    }
                 }
                 finally {
-                    this.groupChannelLock.unlock();
-                }
-
-                if (clientChannelInfoFound != null) {
-                    clientChannelInfoFound.setLastUpdateTimestamp(System.currentTimeMillis());
+                    lock.unlock();
                 }
             }
             else {
@@ -169,29 +173,70 @@ public class ProducerManager {
 
 
     public void unregisterProducer(final String group, final ClientChannelInfo clientChannelInfo) {
+        ConcurrentHashMap<Channel, ClientChannelInfo> channelTable = this.groupChannelTable.get(group);
+        if (null != channelTable && !channelTable.isEmpty()) {
+            ClientChannelInfo old = channelTable.remove(clientChannelInfo.getChannel());
+            if (old != null) {
+                log.info("unregister a producer[{}] from groupChannelTable {}", group,
+                    clientChannelInfo.toString());
+            }
+
+            this.removeGroupIfEmpty(group);
+        }
+    }
+
+
+    /**
+     * 加锁后再次检查时间戳，标记为过期后删除，期间刷新过心跳的连接不删除<br>
+     * 心跳发现连接已标记为过期时加同一把锁重新注册，此时连接已经删除
+     */
+    private boolean removeExpiredChannel(final String group,
+            final ConcurrentHashMap<Channel, ClientChannelInfo> channelTable, final ClientChannelInfo info,
+            final long now) {
+        final Lock lock = this.groupLock(group);
+        try {
+            if (lock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                try {
+                    if (info.markExpired(now - ChannelExpiredTimeout)) {
+                        return channelTable.remove(info.getChannel(), info);
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+            else {
+                log.warn("ProducerManager removeExpiredChannel lock timeout");
+            }
+        }
+        catch (InterruptedException e) {
+            log.error("", e);
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 新增连接与删除Producer组使用同一把锁，防止新连接加入已删除的组
+     */
+    private void removeGroupIfEmpty(final String group) {
+        final Lock lock = this.groupLock(group);
         try {
-            if (this.groupChannelLock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            if (lock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
                 try {
-                    HashMap<Channel, ClientChannelInfo> channelTable = this.groupChannelTable.get(group);
-                    if (null != channelTable && !channelTable.isEmpty()) {
-                        ClientChannelInfo old = channelTable.remove(clientChannelInfo.getChannel());
-                        if (old != null) {
-                            log.info("unregister a producer[{}] from groupChannelTable {}", group,
-                                clientChannelInfo.toString());
-                        }
-
-                        if (channelTable.isEmpty()) {
-                            this.groupChannelTable.remove(group);
-                            log.info("unregister a producer group[{}] from groupChannelTable", group);
-                        }
+                    ConcurrentHashMap<Channel, ClientChannelInfo> channelTable = this.groupChannelTable.get(group);
+                    if (channelTable != null && channelTable.isEmpty()) {
+                        this.groupChannelTable.remove(group);
+                        log.info("unregister a producer group[{}] from groupChannelTable", group);
                     }
                 }
                 finally {
-                    this.groupChannelLock.unlock();
+                    lock.unlock();
                 }
             }
             else {
-                log.warn("ProducerManager unregisterProducer lock timeout");
+                log.warn("ProducerManager removeGroupIfEmpty lock timeout");
             }
         }
         catch (InterruptedException e) {
@@ -16,6 +16,7 @@
 package com.alibaba.rocketmq.broker.longpolling;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 
@@ -30,6 +31,14 @@ public class ManyPullRequest {
 
 
     public synchronized void addPullRequest(final PullRequest pullRequest) {
+        // 清理已经超时唤醒的请求，防止空闲队列上的请求堆积
+        Iterator<PullRequest> it = this.pullRequestList.iterator();
+        while (it.hasNext()) {
+            if (it.next().isCompleted()) {
+                it.remove();
+            }
+        }
+
         this.pullRequestList.add(pullRequest);
     }
 
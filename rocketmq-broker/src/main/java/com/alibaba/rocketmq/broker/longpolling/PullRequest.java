@@ -17,6 +17,8 @@ package com.alibaba.rocketmq.broker.longpolling;
 
 import io.netty.channel.Channel;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
 
 
@@ -32,6 +34,8 @@ public class PullRequest {
     private final long timeoutMillis;
     private final long suspendTimestamp;
     private final long pullFromThisOffset;
+    // 是否已被唤醒，消息到达和超时只能有一个生效
+    private final AtomicBoolean completed = new AtomicBoolean(false);
 
 
     public PullRequest(RemotingCommand requestCommand, Channel clientChannel, long timeoutMillis,
@@ -67,4 +71,22 @@ public class PullRequest {
     public long getPullFromThisOffset() {
         return pullFromThisOffset;
     }
+
+
+    public long getDeadline() {
+        return this.suspendTimestamp + this.timeoutMillis;
+    }
+
+
+    public boolean isCompleted() {
+        return this.completed.get();
+    }
+
+
+    /**
+     * 标记为已唤醒，返回false表示已经被其他线程唤醒
+     */
+    public boolean tryComplete() {
+        return this.completed.compareAndSet(false, true);
+    }
 }
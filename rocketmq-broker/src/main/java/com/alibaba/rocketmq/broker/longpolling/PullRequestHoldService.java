@@ -16,8 +16,11 @@
 package com.alibaba.rocketmq.broker.longpolling;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,56 +32,139 @@ import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
 
 
 /**
- * 拉消息请求管理，如果拉不到消息，则在这里Hold住，等待消息到来
+ * 拉消息请求管理，如果拉不到消息，则在这里Hold住，等待消息到来<br>
+ * 消息分发到Consume Queue时直接唤醒，超时由时间轮处理
  * 
  * @author shijia.wxr<vintage.wang@gmail.com>
  * @since 2013-7-26
  */
 public class PullRequestHoldService extends ServiceThread {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BrokerLoggerName);
-    private static final String TOPIC_QUEUEID_SEPARATOR = "@";
-
-    private ConcurrentHashMap<String/* topic@queueid */, ManyPullRequest> pullRequestTable =
-            new ConcurrentHashMap<String, ManyPullRequest>(1024);
+    // 时间轮每一格的时间跨度
+    private static final long WheelTickMillis = 50;
+    // 时间轮的格数，必须是2的幂
+    private static final int WheelSize = 1024;
+
+    // topic -> queueId -> Hold住的请求
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, ManyPullRequest>> pullRequestTable =
+            new ConcurrentHashMap<String, ConcurrentHashMap<Integer, ManyPullRequest>>(1024);
+
+    // 超时时间轮，按超时时间所在的格存放请求
+    private final List<ConcurrentLinkedQueue<PullRequest>> timeoutWheel =
+            new ArrayList<ConcurrentLinkedQueue<PullRequest>>(WheelSize);
+    // 时间轮已经处理到的格
+    private volatile long currentTick = System.currentTimeMillis() / WheelTickMillis;
+    // 上次检查Hold请求的时间，未开启长轮询时使用
+    private long lastCheckHoldTimestamp = 0;
 
     private final BrokerController brokerController;
 
 
     public PullRequestHoldService(final BrokerController brokerController) {
         this.brokerController = brokerController;
+        for (int i = 0; i < WheelSize; i++) {
+            this.timeoutWheel.add(new ConcurrentLinkedQueue<PullRequest>());
+        }
     }
 
 
-    private String buildKey(final String topic, final int queueId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(topic);
-        sb.append(TOPIC_QUEUEID_SEPARATOR);
-        sb.append(queueId);
-        return sb.toString();
-    }
-
+    private ManyPullRequest findManyPullRequest(final String topic, final int queueId) {
+        ConcurrentHashMap<Integer, ManyPullRequest> map = this.pullRequestTable.get(topic);
+        if (null == map) {
+            map = new ConcurrentHashMap<Integer, ManyPullRequest>(32);
+            ConcurrentHashMap<Integer, ManyPullRequest> prev = this.pullRequestTable.putIfAbsent(topic, map);
+            if (prev != null) {
+                map = prev;
+            }
+        }
 
-    public void suspendPullRequest(final String topic, final int queueId, final PullRequest pullRequest) {
-        String key = this.buildKey(topic, queueId);
-        ManyPullRequest mpr = this.pullRequestTable.get(key);
+        ManyPullRequest mpr = map.get(queueId);
         if (null == mpr) {
             mpr = new ManyPullRequest();
-            ManyPullRequest prev = this.pullRequestTable.putIfAbsent(key, mpr);
+            ManyPullRequest prev = map.putIfAbsent(queueId, mpr);
             if (prev != null) {
                 mpr = prev;
             }
         }
 
-        mpr.addPullRequest(pullRequest);
+        return mpr;
+    }
+
+
+    public void suspendPullRequest(final String topic, final int queueId, final PullRequest pullRequest) {
+        this.findManyPullRequest(topic, queueId).addPullRequest(pullRequest);
+        this.addTimeout(pullRequest);
+
+        // 拉消息与挂起之间可能有消息到达，挂起后再检查一次
+        final long offset = this.brokerController.getMessageStore().getMaxOffsetInQuque(topic, queueId);
+        if (offset > pullRequest.getPullFromThisOffset()) {
+            this.notifyMessageArriving(topic, queueId, offset);
+        }
+    }
+
+
+    private void addTimeout(final PullRequest pullRequest) {
+        // 已经处理过的格不能再放入，否则要等一圈才能超时
+        final long tick = Math.max(this.deadlineTick(pullRequest), this.currentTick + 1);
+        this.timeoutWheel.get((int) (tick & (WheelSize - 1))).offer(pullRequest);
+
+        // 放入时这一格恰好被处理完，直接检查超时
+        if (this.currentTick >= tick) {
+            this.expireSlot(tick);
+        }
     }
 
 
+    /**
+     * 超时时间向上取整到格，保证不会提前超时
+     */
+    private long deadlineTick(final PullRequest pullRequest) {
+        return (pullRequest.getDeadline() + WheelTickMillis - 1) / WheelTickMillis;
+    }
+
+
+    private void expireSlot(final long tick) {
+        Iterator<PullRequest> it = this.timeoutWheel.get((int) (tick & (WheelSize - 1))).iterator();
+        while (it.hasNext()) {
+            PullRequest request = it.next();
+            if (request.isCompleted()) {
+                it.remove();
+            }
+            // 超时时间在更后面的圈，继续保留
+            else if (this.deadlineTick(request) <= tick) {
+                it.remove();
+                if (request.tryComplete()) {
+                    this.wakeupPullRequest(request);
+                }
+            }
+        }
+    }
+
+
+    private void checkTimeout() {
+        final long nowTick = System.currentTimeMillis() / WheelTickMillis;
+        long tick = this.currentTick;
+        // 停顿超过一圈时，每一格只需处理一次
+        if (nowTick - tick > WheelSize) {
+            tick = nowTick - WheelSize;
+        }
+
+        while (tick < nowTick) {
+            tick++;
+            this.currentTick = tick;
+            this.expireSlot(tick);
+        }
+    }
+
+
+    /**
+     * 未开启长轮询时，没有消息到达通知，定时检查各队列是否有新消息
+     */
     private void checkHoldRequest() {
-        for (String key : this.pullRequestTable.keySet()) {
-            String[] kArray = key.split(TOPIC_QUEUEID_SEPARATOR);
-            if (kArray != null && 2 == kArray.length) {
-                String topic = kArray[0];
-                int queueId = Integer.parseInt(kArray[1]);
+        for (Entry<String, ConcurrentHashMap<Integer, ManyPullRequest>> entry : this.pullRequestTable
+            .entrySet()) {
+            String topic = entry.getKey();
+            for (Integer queueId : entry.getValue().keySet()) {
                 final long offset =
                         this.brokerController.getMessageStore().getMaxOffsetInQuque(topic, queueId);
                 this.notifyMessageArriving(topic, queueId, offset);
@@ -87,9 +173,27 @@ public class PullRequestHoldService extends ServiceThread {
     }
 
 
+    private void wakeupPullRequest(final PullRequest request) {
+        try {
+            this.brokerController.getPullMessageProcessor().excuteRequestWhenWakeup(
+                request.getClientChannel(), request.getRequestCommand());
+        }
+        catch (RemotingCommandException e) {
+            log.error("", e);
+        }
+    }
+
+
+    /**
+     * 消息分发到Consume Queue后调用，在分发线程中执行，只做查表和提交任务
+     */
     public void notifyMessageArriving(final String topic, final int queueId, final long maxOffset) {
-        String key = this.buildKey(topic, queueId);
-        ManyPullRequest mpr = this.pullRequestTable.get(key);
+        ConcurrentHashMap<Integer, ManyPullRequest> map = this.pullRequestTable.get(topic);
+        if (null == map) {
+            return;
+        }
+
+        ManyPullRequest mpr = map.get(queueId);
         if (mpr != null) {
             List<PullRequest> requestList = mpr.cloneListAndClear();
             if (requestList != null) {
@@ -98,46 +202,16 @@ public class PullRequestHoldService extends ServiceThread {
                 for (PullRequest request : requestList) {
                     // 查看是否offset OK
                     if (maxOffset > request.getPullFromThisOffset()) {
-                        try {
-                            this.brokerController.getPullMessageProcessor().excuteRequestWhenWakeup(
-                                request.getClientChannel(), request.getRequestCommand());
-                        }
-                        catch (RemotingCommandException e) {
-                            log.error("", e);
+                        if (request.tryComplete()) {
+                            this.wakeupPullRequest(request);
                         }
                         continue;
                     }
-                    // 尝试取最新Offset
-                    else {
-                        final long newestOffset =
-                                this.brokerController.getMessageStore().getMaxOffsetInQuque(topic, queueId);
-                        if (newestOffset > request.getPullFromThisOffset()) {
-                            try {
-                                this.brokerController.getPullMessageProcessor().excuteRequestWhenWakeup(
-                                    request.getClientChannel(), request.getRequestCommand());
-                            }
-                            catch (RemotingCommandException e) {
-                                log.error("", e);
-                            }
-                            continue;
-                        }
-                    }
 
-                    // 查看是否超时
-                    if (System.currentTimeMillis() >= (request.getSuspendTimestamp() + request
-                        .getTimeoutMillis())) {
-                        try {
-                            this.brokerController.getPullMessageProcessor().excuteRequestWhenWakeup(
-                                request.getClientChannel(), request.getRequestCommand());
-                        }
-                        catch (RemotingCommandException e) {
-                            log.error("", e);
-                        }
-                        continue;
+                    // 当前不满足要求，重新放回Hold列表中，已超时的丢弃
+                    if (!request.isCompleted()) {
+                        replayList.add(request);
                     }
-
-                    // 当前不满足要求，重新放回Hold列表中
-                    replayList.add(request);
                 }
 
                 if (!replayList.isEmpty()) {
@@ -153,8 +227,14 @@ public class PullRequestHoldService extends ServiceThread {
         log.info(this.getServiceName() + " service started");
         while (!this.isStoped()) {
             try {
-                this.waitForRunning(1000);
-                this.checkHoldRequest();
+                this.waitForRunning(WheelTickMillis);
+                this.checkTimeout();
+
+                if (!this.brokerController.getBrokerConfig().isLongPollingEnable()
+                        && System.currentTimeMillis() - this.lastCheckHoldTimestamp >= 1000) {
+                    this.lastCheckHoldTimestamp = System.currentTimeMillis();
+                    this.checkHoldRequest();
+                }
             }
             catch (Exception e) {
                 log.warn(this.getServiceName() + " service has exception. ", e);
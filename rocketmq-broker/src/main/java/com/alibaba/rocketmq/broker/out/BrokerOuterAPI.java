@@ -15,14 +15,25 @@
  */
 package com.alibaba.rocketmq.broker.out;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.alibaba.rocketmq.client.exception.MQBrokerException;
+import com.alibaba.rocketmq.common.DataVersion;
 import com.alibaba.rocketmq.common.MixAll;
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
+import com.alibaba.rocketmq.common.TopicConfig;
+import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.namesrv.RegisterBrokerResult;
 import com.alibaba.rocketmq.common.namesrv.TopAddressing;
@@ -55,9 +66,16 @@ import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
  */
 public class BrokerOuterAPI {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BrokerLoggerName);
+    private static final long RegisterTimeoutMillis = 3000;
     private final RemotingClient remotingClient;
     private final TopAddressing topAddressing = new TopAddressing(MixAll.WS_ADDR);
     private String nameSrvAddr = null;
+    // 并行向各Name Server注册
+    private final ExecutorService registerBrokerExecutor = Executors.newFixedThreadPool(4,
+        new ThreadFactoryImpl("BrokerOuterAPI_RegisterBroker_"));
+    // 各Name Server上次注册成功的Topic配置，用于计算增量
+    private final ConcurrentHashMap<String, TopicConfigSerializeWrapper> registeredTopicConfigTable =
+            new ConcurrentHashMap<String, TopicConfigSerializeWrapper>();
 
 
     public BrokerOuterAPI(final NettyClientConfig nettyClientConfig, RPCHook rpcHook) {
@@ -78,6 +96,7 @@ public class BrokerOuterAPI {
 
     public void shutdown() {
         this.remotingClient.shutdown();
+        this.registerBrokerExecutor.shutdown();
     }
 
 
@@ -113,6 +132,11 @@ public class BrokerOuterAPI {
     }
 
 
+    /**
+     * @param baseDataVersion
+     *            增量注册的基准版本，全量注册为null
+     * @return 增量注册的基准版本与Name Server不一致时返回null
+     */
     private RegisterBrokerResult registerBroker(//
             final String namesrvAddr,//
             final String clusterName,// 1
@@ -121,24 +145,33 @@ public class BrokerOuterAPI {
             final long brokerId,// 4
             final String haServerAddr,// 5
             final TopicConfigSerializeWrapper topicConfigWrapper, // 6
-            final List<String> filterServerList // 7
+            final List<String> filterServerList, // 7
+            final DataVersion baseDataVersion, // 8
+            final boolean compressed // 9
     ) throws RemotingCommandException, MQBrokerException, RemotingConnectException,
-            RemotingSendRequestException, RemotingTimeoutException, InterruptedException {
+            RemotingSendRequestException, RemotingTimeoutException, InterruptedException, IOException {
         RegisterBrokerRequestHeader requestHeader = new RegisterBrokerRequestHeader();
         requestHeader.setBrokerAddr(brokerAddr);
         requestHeader.setBrokerId(brokerId);
         requestHeader.setBrokerName(brokerName);
         requestHeader.setClusterName(clusterName);
         requestHeader.setHaServerAddr(haServerAddr);
+        requestHeader.setCompressed(compressed);
         RemotingCommand request =
                 RemotingCommand.createRequestCommand(RequestCode.REGISTER_BROKER, requestHeader);
 
         RegisterBrokerBody requestBody = new RegisterBrokerBody();
         requestBody.setTopicConfigSerializeWrapper(topicConfigWrapper);
         requestBody.setFilterServerList(filterServerList);
-        request.setBody(requestBody.encode());
+        requestBody.setBaseDataVersion(baseDataVersion);
+        byte[] body = requestBody.encode();
+        if (compressed) {
+            body = UtilAll.compress(body, 5);
+        }
+        request.setBody(body);
 
-        RemotingCommand response = this.remotingClient.invokeSync(namesrvAddr, request, 3000);
+        RemotingCommand response =
+                this.remotingClient.invokeSync(namesrvAddr, request, RegisterTimeoutMillis);
         assert response != null;
         switch (response.getCode()) {
         case ResponseCode.SUCCESS: {
@@ -150,6 +183,8 @@ public class BrokerOuterAPI {
             result.setHaServerAddr(responseHeader.getHaServerAddr());
             return result;
         }
+        case ResponseCode.REGISTER_BROKER_NEED_FULL:
+            return null;
         default:
             break;
         }
@@ -158,6 +193,12 @@ public class BrokerOuterAPI {
     }
 
 
+    /**
+     * 向所有Name Server并行注册
+     * 
+     * @param deltaRegister
+     *            是否增量注册，Name Server已有最新配置时只发送心跳
+     */
     public RegisterBrokerResult registerBrokerAll(//
             final String clusterName,// 1
             final String brokerAddr,// 2
@@ -165,30 +206,132 @@ public class BrokerOuterAPI {
             final long brokerId,// 4
             final String haServerAddr,// 5
             final TopicConfigSerializeWrapper topicConfigWrapper,// 6
-            final List<String> filterServerList // 7
+            final List<String> filterServerList, // 7
+            final boolean deltaRegister, // 8
+            final boolean compressed // 9
     ) {
-        RegisterBrokerResult registerBrokerResult = null;
+        final AtomicReference<RegisterBrokerResult> registerBrokerResult =
+                new AtomicReference<RegisterBrokerResult>();
 
         List<String> nameServerAddressList = this.remotingClient.getNameServerAddressList();
-        if (nameServerAddressList != null) {
-            for (String namesrvAddr : nameServerAddressList) {
-                try {
-                    RegisterBrokerResult result =
-                            this.registerBroker(namesrvAddr, clusterName, brokerAddr, brokerName, brokerId,
-                                haServerAddr, topicConfigWrapper, filterServerList);
-                    if (result != null) {
-                        registerBrokerResult = result;
+        if (nameServerAddressList != null && !nameServerAddressList.isEmpty()) {
+            // 清除已经下线的Name Server
+            this.registeredTopicConfigTable.keySet().retainAll(nameServerAddressList);
+
+            final TopicConfigSerializeWrapper snapshot =
+                    deltaRegister ? this.buildTopicConfigSnapshot(topicConfigWrapper) : null;
+            final CountDownLatch countDownLatch = new CountDownLatch(nameServerAddressList.size());
+            for (final String namesrvAddr : nameServerAddressList) {
+                this.registerBrokerExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            RegisterBrokerResult result = null;
+                            if (snapshot != null) {
+                                result =
+                                        BrokerOuterAPI.this.registerBrokerDelta(namesrvAddr, clusterName,
+                                            brokerAddr, brokerName, brokerId, haServerAddr, snapshot,
+                                            filterServerList, compressed);
+                            }
+                            else {
+                                result =
+                                        BrokerOuterAPI.this.registerBroker(namesrvAddr, clusterName,
+                                            brokerAddr, brokerName, brokerId, haServerAddr,
+                                            topicConfigWrapper, filterServerList, null, compressed);
+                            }
+
+                            if (result != null) {
+                                registerBrokerResult.set(result);
+                            }
+
+                            log.info("register broker to name server {} OK", namesrvAddr);
+                        }
+                        catch (Exception e) {
+                            log.warn("registerBroker Exception, " + namesrvAddr, e);
+                        }
+                        finally {
+                            countDownLatch.countDown();
+                        }
                     }
+                });
+            }
 
-                    log.info("register broker to name server {} OK", namesrvAddr);
-                }
-                catch (Exception e) {
-                    log.warn("registerBroker Exception, " + namesrvAddr, e);
+            try {
+                // 增量注册失败时会再全量注册一次
+                countDownLatch.await(RegisterTimeoutMillis * 2, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                log.warn("registerBrokerAll interrupted", e);
+            }
+        }
+
+        return registerBrokerResult.get();
+    }
+
+
+    /**
+     * Name Server已有上次注册的配置时，只发送变化的Topic，没有变化即为心跳；否则全量注册
+     */
+    private RegisterBrokerResult registerBrokerDelta(//
+            final String namesrvAddr,//
+            final String clusterName,// 1
+            final String brokerAddr,// 2
+            final String brokerName,// 3
+            final long brokerId,// 4
+            final String haServerAddr,// 5
+            final TopicConfigSerializeWrapper snapshot,// 6
+            final List<String> filterServerList, // 7
+            final boolean compressed // 8
+    ) throws RemotingCommandException, MQBrokerException, RemotingConnectException,
+            RemotingSendRequestException, RemotingTimeoutException, InterruptedException, IOException {
+        TopicConfigSerializeWrapper registered = this.registeredTopicConfigTable.get(namesrvAddr);
+        if (registered != null) {
+            TopicConfigSerializeWrapper delta = new TopicConfigSerializeWrapper();
+            delta.setDataVersion(snapshot.getDataVersion());
+            for (TopicConfig topicConfig : snapshot.getTopicConfigTable().values()) {
+                if (!topicConfig.equals(registered.getTopicConfigTable().get(topicConfig.getTopicName()))) {
+                    delta.getTopicConfigTable().put(topicConfig.getTopicName(), topicConfig);
                 }
             }
+
+            RegisterBrokerResult result =
+                    this.registerBroker(namesrvAddr, clusterName, brokerAddr, brokerName, brokerId,
+                        haServerAddr, delta, filterServerList, registered.getDataVersion(), compressed);
+            if (result != null) {
+                this.registeredTopicConfigTable.put(namesrvAddr, snapshot);
+                return result;
+            }
+
+            log.info("the data version of name server {} is not matched, register all topics", namesrvAddr);
+        }
+
+        RegisterBrokerResult result =
+                this.registerBroker(namesrvAddr, clusterName, brokerAddr, brokerName, brokerId, haServerAddr,
+                    snapshot, filterServerList, null, compressed);
+        this.registeredTopicConfigTable.put(namesrvAddr, snapshot);
+        return result;
+    }
+
+
+    /**
+     * 复制Topic配置，用于和下次注册时的配置比较
+     */
+    private TopicConfigSerializeWrapper buildTopicConfigSnapshot(
+            final TopicConfigSerializeWrapper topicConfigWrapper) {
+        TopicConfigSerializeWrapper snapshot = new TopicConfigSerializeWrapper();
+        DataVersion dataVersion = new DataVersion();
+        dataVersion.assignNewOne(topicConfigWrapper.getDataVersion());
+        snapshot.setDataVersion(dataVersion);
+        for (TopicConfig topicConfig : topicConfigWrapper.getTopicConfigTable().values()) {
+            TopicConfig copy =
+                    new TopicConfig(topicConfig.getTopicName(), topicConfig.getReadQueueNums(),
+                        topicConfig.getWriteQueueNums(), topicConfig.getPerm());
+            copy.setTopicFilterType(topicConfig.getTopicFilterType());
+            copy.setTopicSysFlag(topicConfig.getTopicSysFlag());
+            snapshot.getTopicConfigTable().put(copy.getTopicName(), copy);
         }
 
-        return registerBrokerResult;
+        return snapshot;
     }
 
 
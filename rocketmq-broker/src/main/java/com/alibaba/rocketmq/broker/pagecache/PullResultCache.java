@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.broker.pagecache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.alibaba.rocketmq.broker.BrokerController;
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import com.alibaba.rocketmq.store.GetMessageResult;
+import com.alibaba.rocketmq.store.GetMessageStatus;
+import com.alibaba.rocketmq.store.MapedFile;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+
+
+/**
+ * 拉消息结果缓存，多个订阅组拉取同一队列的相同位置时，共享一次Consume Queue扫描、过滤及CommitLog切片<br>
+ * 缓存不持有文件引用，命中时重新引用文件，文件已被删除则按未命中处理
+ */
+public class PullResultCache {
+    private final BrokerController brokerController;
+    private final ConcurrentHashMap<PullResultKey, PullResultWindow> pullResultTable =
+            new ConcurrentHashMap<PullResultKey, PullResultWindow>(1024);
+
+
+    public PullResultCache(final BrokerController brokerController) {
+        this.brokerController = brokerController;
+    }
+
+
+    public GetMessageResult getMessage(final String topic, final int queueId, final long offset,
+            final int maxMsgNums, final SubscriptionData subscriptionData) {
+        if (!this.brokerController.getBrokerConfig().isPullResultCacheEnable()) {
+            return this.brokerController.getMessageStore().getMessage(topic, queueId, offset, maxMsgNums,
+                subscriptionData);
+        }
+
+        final PullResultKey key = new PullResultKey(topic, queueId, offset, maxMsgNums, subscriptionData);
+        PullResultWindow window = this.pullResultTable.get(key);
+        if (window != null && this.isWindowValid(key, window)) {
+            GetMessageResult result = window.buildGetMessageResult();
+            if (result != null) {
+                this.brokerController.getBrokerStatsManager().incPullCacheHitNums();
+                return result;
+            }
+        }
+
+        this.brokerController.getBrokerStatsManager().incPullCacheMissNums();
+        GetMessageResult result =
+                this.brokerController.getMessageStore().getMessage(topic, queueId, offset, maxMsgNums,
+                    subscriptionData);
+        final int maxSize = this.brokerController.getBrokerConfig().getPullResultCacheMaxSize();
+        if (result != null && result.getStatus() == GetMessageStatus.FOUND
+                && this.pullResultTable.size() < maxSize) {
+            window = PullResultWindow.create(result, System.currentTimeMillis()
+                    + this.brokerController.getBrokerConfig().getPullResultCacheExpireMillis());
+            if (window != null) {
+                this.pullResultTable.put(key, window);
+            }
+        }
+
+        return result;
+    }
+
+
+    private boolean isWindowValid(final PullResultKey key, final PullResultWindow window) {
+        if (window.expireTimestamp <= System.currentTimeMillis()) {
+            return false;
+        }
+
+        // 扫描到队列末尾的窗口，队列有新消息后重新扫描，防止消费者一直拿到较短的结果
+        if (window.nextBeginOffset >= window.maxOffset) {
+            return window.maxOffset == this.brokerController.getMessageStore().getMaxOffsetInQuque(
+                key.topic, key.queueId);
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 定时清理过期的缓存
+     */
+    public void cleanExpiredWindow() {
+        final long now = System.currentTimeMillis();
+        Iterator<PullResultWindow> it = this.pullResultTable.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expireTimestamp <= now) {
+                it.remove();
+            }
+        }
+    }
+
+
+    public int size() {
+        return this.pullResultTable.size();
+    }
+
+
+    static class PullResultKey {
+        private final String topic;
+        private final int queueId;
+        private final long offset;
+        private final int maxMsgNums;
+        // 过滤条件完全由订阅表达式决定
+        private final String filter;
+
+
+        public PullResultKey(final String topic, final int queueId, final long offset, final int maxMsgNums,
+                final SubscriptionData subscriptionData) {
+            this.topic = topic;
+            this.queueId = queueId;
+            this.offset = offset;
+            this.maxMsgNums = maxMsgNums;
+            if (null == subscriptionData) {
+                this.filter = "";
+            }
+            else {
+                this.filter = subscriptionData.isClassFilterMode() + "@" + subscriptionData.getSubString();
+            }
+        }
+
+
+        @Override
+        public int hashCode() {
+            int result = this.topic.hashCode();
+            result = 31 * result + this.queueId;
+            result = 31 * result + (int) (this.offset ^ (this.offset >>> 32));
+            result = 31 * result + this.maxMsgNums;
+            result = 31 * result + this.filter.hashCode();
+            return result;
+        }
+
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof PullResultKey))
+                return false;
+            PullResultKey other = (PullResultKey) obj;
+            return this.offset == other.offset && this.queueId == other.queueId
+                    && this.maxMsgNums == other.maxMsgNums && this.topic.equals(other.topic)
+                    && this.filter.equals(other.filter);
+        }
+    }
+
+
+    static class PullResultWindow {
+        private final long expireTimestamp;
+        private final GetMessageStatus status;
+        private final long nextBeginOffset;
+        private final long minOffset;
+        private final long maxOffset;
+        private final boolean suggestPullingFromSlave;
+        // 每条消息的位置及数据，数据是未读过的副本
+        private final long[] startOffsets;
+        private final ByteBuffer[] buffers;
+        private final int[] sizes;
+        private final MapedFile[] mapedFiles;
+
+
+        private PullResultWindow(final GetMessageResult result, final long expireTimestamp) {
+            final int count = result.getMessageCount();
+            this.expireTimestamp = expireTimestamp;
+            this.status = result.getStatus();
+            this.nextBeginOffset = result.getNextBeginOffset();
+            this.minOffset = result.getMinOffset();
+            this.maxOffset = result.getMaxOffset();
+            this.suggestPullingFromSlave = result.isSuggestPullingFromSlave();
+            this.startOffsets = new long[count];
+            this.buffers = new ByteBuffer[count];
+            this.sizes = new int[count];
+            this.mapedFiles = new MapedFile[count];
+        }
+
+
+        /**
+         * 在结果发给消费者之前调用，冷存储中的数据不缓存
+         */
+        public static PullResultWindow create(final GetMessageResult result, final long expireTimestamp) {
+            PullResultWindow window = new PullResultWindow(result, expireTimestamp);
+            List<SelectMapedBufferResult> list = result.getMessageMapedList();
+            for (int i = 0; i < list.size(); i++) {
+                SelectMapedBufferResult select = list.get(i);
+                if (null == select.getMapedFile()) {
+                    return null;
+                }
+
+                window.startOffsets[i] = select.getStartOffset();
+                window.buffers[i] = select.getByteBuffer().duplicate();
+                window.sizes[i] = select.getSize();
+                window.mapedFiles[i] = select.getMapedFile();
+            }
+
+            return window;
+        }
+
+
+        /**
+         * 重新引用文件并复制数据视图，文件不可用时返回null
+         */
+        public GetMessageResult buildGetMessageResult() {
+            GetMessageResult result = new GetMessageResult();
+            for (int i = 0; i < this.buffers.length; i++) {
+                if (!this.mapedFiles[i].hold()) {
+                    result.release();
+                    return null;
+                }
+
+                result.addMessage(new SelectMapedBufferResult(this.startOffsets[i], this.buffers[i]
+                    .duplicate(), this.sizes[i], this.mapedFiles[i]));
+            }
+
+            result.setStatus(this.status);
+            result.setNextBeginOffset(this.nextBeginOffset);
+            result.setMinOffset(this.minOffset);
+            result.setMaxOffset(this.maxOffset);
+            result.setSuggestPullingFromSlave(this.suggestPullingFromSlave);
+            return result;
+        }
+    }
+}
@@ -58,6 +58,7 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -418,7 +419,7 @@ public class AdminBrokerProcessor implements NettyRequestProcessor {
                     .decodeCommandCustomHeader(GetProducerConnectionListRequestHeader.class);
 
         ProducerConnection bodydata = new ProducerConnection();
-        HashMap<Channel, ClientChannelInfo> channelInfoHashMap =
+        ConcurrentHashMap<Channel, ClientChannelInfo> channelInfoHashMap =
                 this.brokerController.getProducerManager().getGroupChannelTable()
                     .get(requestHeader.getProducerGroup());
         if (channelInfoHashMap != null) {
@@ -973,6 +974,13 @@ public class AdminBrokerProcessor implements NettyRequestProcessor {
         runtimeInfo.put("sendThreadPoolQueueCapacity",
             String.valueOf(this.brokerController.getBrokerConfig().getSendThreadPoolQueueCapacity()));
 
+        runtimeInfo.put("pullResultCacheHitNums",
+            String.valueOf(this.brokerController.getBrokerStatsManager().getPullCacheHitNums()));
+        runtimeInfo.put("pullResultCacheMissNums",
+            String.valueOf(this.brokerController.getBrokerStatsManager().getPullCacheMissNums()));
+        runtimeInfo.put("pullResultCacheSize",
+            String.valueOf(this.brokerController.getPullResultCache().size()));
+
         return runtimeInfo;
     }
 
@@ -293,8 +293,9 @@ public class PullMessageProcessor implements NettyRequestProcessor {
             }
         }
 
+        // 多个订阅组拉取同一位置时，共享缓存的拉取结果
         final GetMessageResult getMessageResult =
-                this.brokerController.getMessageStore().getMessage(requestHeader.getTopic(),
+                this.brokerController.getPullResultCache().getMessage(requestHeader.getTopic(),
                     requestHeader.getQueueId(), requestHeader.getQueueOffset(),
                     requestHeader.getMaxMsgNums(), subscriptionData);
 
@@ -28,12 +28,16 @@ import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.constant.PermName;
 import com.alibaba.rocketmq.common.help.FAQUrl;
+import com.alibaba.rocketmq.common.message.Message;
 import com.alibaba.rocketmq.common.message.MessageAccessor;
 import com.alibaba.rocketmq.common.message.MessageConst;
 import com.alibaba.rocketmq.common.message.MessageDecoder;
 import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.protocol.RequestCode;
 import com.alibaba.rocketmq.common.protocol.ResponseCode;
+import com.alibaba.rocketmq.common.protocol.body.ConsumerSendMsgBackBatchRequestBody;
+import com.alibaba.rocketmq.common.protocol.body.ConsumerSendMsgBackBatchResponseBody;
+import com.alibaba.rocketmq.common.protocol.body.ConsumerSendMsgBackEntry;
 import com.alibaba.rocketmq.common.protocol.header.ConsumerSendMsgBackRequestHeader;
 import com.alibaba.rocketmq.common.protocol.header.SendMessageRequestHeader;
 import com.alibaba.rocketmq.common.protocol.header.SendMessageRequestHeaderV2;
@@ -45,8 +49,11 @@ import com.alibaba.rocketmq.remoting.common.RemotingHelper;
 import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
 import com.alibaba.rocketmq.remoting.netty.NettyRequestProcessor;
 import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
+import com.alibaba.rocketmq.store.MessageExtBatch;
 import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageCallback;
 import com.alibaba.rocketmq.store.PutMessageResult;
+import com.alibaba.rocketmq.store.PutMessageStatus;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
@@ -54,6 +61,8 @@ import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -89,6 +98,7 @@ public class SendMessageProcessor implements NettyRequestProcessor {
         SendMessageRequestHeaderV2 requestHeaderV2 = null;
 
         switch (request.getCode()) {
+        case RequestCode.SEND_BATCH_MESSAGE:
         case RequestCode.SEND_MESSAGE_V2:
             requestHeaderV2 =
                     (SendMessageRequestHeaderV2) request
@@ -119,13 +129,15 @@ public class SendMessageProcessor implements NettyRequestProcessor {
 
             final RemotingCommand response = this.sendMessage(ctx, request, mqtraceContext, requestHeader);
 
-            // 消息轨迹：记录发送成功的消息
-            if (this.hasSendMessageHook()) {
+            // 消息轨迹：记录发送成功的消息，异步发送在存储回调中记录
+            if (this.hasSendMessageHook() && (response != null || !this.isAsyncSend(request))) {
                 this.executeSendMessageHookAfter(response, mqtraceContext);
             }
             return response;
         case RequestCode.CONSUMER_SEND_MSG_BACK:
             return this.consumerSendMsgBack(ctx, request);
+        case RequestCode.CONSUMER_SEND_MSG_BACK_BATCH:
+            return this.consumerSendMsgBackBatch(ctx, request);
         default:
             break;
         }
@@ -156,15 +168,200 @@ public class SendMessageProcessor implements NettyRequestProcessor {
             this.executeConsumeMessageHookAfter(context);
         }
 
+        SubscriptionGroupConfig subscriptionGroupConfig =
+                this.checkSendMsgBack(requestHeader.getGroup(), requestHeader.isUnitMode(), response);
+        if (null == subscriptionGroupConfig) {
+            return response;
+        }
+
+        // 如果重试队列数目为0，则直接丢弃消息
+        if (subscriptionGroupConfig.getRetryQueueNums() <= 0) {
+            response.setCode(ResponseCode.SUCCESS);
+            response.setRemark(null);
+            return response;
+        }
+
+        MessageExtBrokerInner msgInner =
+                this.buildSendBackMessage(requestHeader.getGroup(), subscriptionGroupConfig,
+                    requestHeader.getOffset(), requestHeader.getDelayLevel(), response);
+        if (null == msgInner) {
+            return response;
+        }
+
+        PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessage(msgInner);
+        if (putMessageResult != null) {
+            switch (putMessageResult.getPutMessageStatus()) {
+            case PUT_OK:
+                // 统计失败重试的Topic
+                this.brokerController.getBrokerStatsManager().incSendBackNums(requestHeader.getGroup(),
+                    msgInner.getProperty(MessageConst.PROPERTY_RETRY_TOPIC));
+
+                response.setCode(ResponseCode.SUCCESS);
+                response.setRemark(null);
+
+                return response;
+            default:
+                break;
+            }
+
+            response.setCode(ResponseCode.SYSTEM_ERROR);
+            response.setRemark(putMessageResult.getPutMessageStatus().name());
+            return response;
+        }
+
+        response.setCode(ResponseCode.SYSTEM_ERROR);
+        response.setRemark("putMessageResult is null");
+        return response;
+    }
+
+
+    /**
+     * 批量发回消费失败的消息，发往同一队列且延时级别相同的消息一次写入CommitLog<br>
+     * 返回发回成功的消息偏移量，失败的消息由客户端逐条重试
+     */
+    private RemotingCommand consumerSendMsgBackBatch(final ChannelHandlerContext ctx,
+            final RemotingCommand request) throws RemotingCommandException {
+        final RemotingCommand response = RemotingCommand.createResponseCommand(null);
+        if (null == request.getBody()) {
+            response.setCode(ResponseCode.SYSTEM_ERROR);
+            response.setRemark("the request body is null");
+            return response;
+        }
+
+        final ConsumerSendMsgBackBatchRequestBody requestBody =
+                ConsumerSendMsgBackBatchRequestBody.decode(request.getBody(),
+                    ConsumerSendMsgBackBatchRequestBody.class);
+        final String group = requestBody.getConsumerGroup();
+
+        // 消息轨迹：按原Topic记录消费失败的消息
+        if (this.hasConsumeMessageHook()) {
+            Map<String, Map<String, Long>> messageIdsTable = new HashMap<String, Map<String, Long>>();
+            for (ConsumerSendMsgBackEntry entry : requestBody.getEntryList()) {
+                if (UtilAll.isBlank(entry.getOriginMsgId())) {
+                    continue;
+                }
+
+                Map<String, Long> messageIds = messageIdsTable.get(entry.getOriginTopic());
+                if (null == messageIds) {
+                    messageIds = new HashMap<String, Long>();
+                    messageIdsTable.put(entry.getOriginTopic(), messageIds);
+                }
+                messageIds.put(entry.getOriginMsgId(), entry.getOffset());
+            }
+
+            for (Map.Entry<String, Map<String, Long>> next : messageIdsTable.entrySet()) {
+                ConsumeMessageContext context = new ConsumeMessageContext();
+                context.setConsumerGroup(group);
+                context.setTopic(next.getKey());
+                context.setClientHost(RemotingHelper.parseChannelRemoteAddr(ctx.channel()));
+                context.setSuccess(false);
+                context.setStatus(ConsumeConcurrentlyStatus.RECONSUME_LATER.toString());
+                context.setMessageIds(next.getValue());
+                this.executeConsumeMessageHookAfter(context);
+            }
+        }
+
+        SubscriptionGroupConfig subscriptionGroupConfig =
+                this.checkSendMsgBack(group, requestBody.isUnitMode(), response);
+        if (null == subscriptionGroupConfig) {
+            return response;
+        }
+
+        final ConsumerSendMsgBackBatchResponseBody responseBody = new ConsumerSendMsgBackBatchResponseBody();
+
+        // 如果重试队列数目为0，则直接丢弃消息
+        if (subscriptionGroupConfig.getRetryQueueNums() <= 0) {
+            for (ConsumerSendMsgBackEntry entry : requestBody.getEntryList()) {
+                responseBody.getSendBackOKOffsetSet().add(entry.getOffset());
+            }
+
+            response.setBody(responseBody.encode());
+            response.setCode(ResponseCode.SUCCESS);
+            response.setRemark(null);
+            return response;
+        }
+
+        // 按目标Topic及延时级别分组，同一组的消息写入同一队列
+        Map<String, MessageExtBatch> batchTable = new HashMap<String, MessageExtBatch>();
+        Map<String, List<Long>> offsetTable = new HashMap<String, List<Long>>();
+        for (ConsumerSendMsgBackEntry entry : requestBody.getEntryList()) {
+            MessageExtBrokerInner msgInner =
+                    this.buildSendBackMessage(group, subscriptionGroupConfig, entry.getOffset(),
+                        entry.getDelayLevel(), response);
+            if (null == msgInner) {
+                log.warn("consumerSendMsgBackBatch build message failed, " + response.getRemark());
+                continue;
+            }
+
+            // 指定了投递时间的消息不能批量写入，单独写入
+            String key = msgInner.getTopic() + "@" + msgInner.getDelayTimeLevel();
+            if (msgInner.getDeliverTime() > 0) {
+                key = "#" + entry.getOffset();
+            }
+
+            MessageExtBatch messageExtBatch = batchTable.get(key);
+            if (null == messageExtBatch) {
+                messageExtBatch = new MessageExtBatch();
+                messageExtBatch.setTopic(msgInner.getTopic());
+                messageExtBatch.setQueueId(msgInner.getQueueId());
+                messageExtBatch.setBornTimestamp(msgInner.getBornTimestamp());
+                messageExtBatch.setBornHost(msgInner.getBornHost());
+                messageExtBatch.setStoreHost(this.getStoreHost());
+                messageExtBatch.setWaitStoreMsgOK(false);
+                batchTable.put(key, messageExtBatch);
+                offsetTable.put(key, new ArrayList<Long>());
+            }
+
+            msgInner.setQueueId(messageExtBatch.getQueueId());
+            messageExtBatch.addMessage(msgInner);
+            offsetTable.get(key).add(entry.getOffset());
+        }
+
+        for (Map.Entry<String, MessageExtBatch> next : batchTable.entrySet()) {
+            final List<MessageExtBrokerInner> messages = next.getValue().getMessages();
+            PutMessageResult putMessageResult = null;
+            if (messages.size() == 1) {
+                putMessageResult = this.brokerController.getMessageStore().putMessage(messages.get(0));
+            }
+            else {
+                putMessageResult = this.brokerController.getMessageStore().putMessages(next.getValue());
+            }
+
+            if (putMessageResult != null
+                    && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+                responseBody.getSendBackOKOffsetSet().addAll(offsetTable.get(next.getKey()));
+                // 统计失败重试的Topic
+                for (MessageExtBrokerInner msgInner : messages) {
+                    this.brokerController.getBrokerStatsManager().incSendBackNums(group,
+                        msgInner.getProperty(MessageConst.PROPERTY_RETRY_TOPIC));
+                }
+            }
+            else {
+                log.warn("consumerSendMsgBackBatch put messages failed, group: " + group + " topic: "
+                        + next.getValue().getTopic() + " result: " + putMessageResult);
+            }
+        }
+
+        response.setBody(responseBody.encode());
+        response.setCode(ResponseCode.SUCCESS);
+        response.setRemark(null);
+        return response;
+    }
+
+
+    /**
+     * 检查订阅组及Broker权限，并创建重试队列，检查失败时返回null
+     */
+    private SubscriptionGroupConfig checkSendMsgBack(final String group, final boolean unitMode,
+            final RemotingCommand response) {
         // 确保订阅组存在
         SubscriptionGroupConfig subscriptionGroupConfig =
-                this.brokerController.getSubscriptionGroupManager().findSubscriptionGroupConfig(
-                    requestHeader.getGroup());
+                this.brokerController.getSubscriptionGroupManager().findSubscriptionGroupConfig(group);
         if (null == subscriptionGroupConfig) {
             response.setCode(ResponseCode.SUBSCRIPTION_GROUP_NOT_EXIST);
-            response.setRemark("subscription group not exist, " + requestHeader.getGroup() + " "
+            response.setRemark("subscription group not exist, " + group + " "
                     + FAQUrl.suggestTodo(FAQUrl.SUBSCRIPTION_GROUP_NOT_EXIST));
-            return response;
+            return null;
         }
 
         // 检查Broker权限
@@ -172,23 +369,19 @@ public class SendMessageProcessor implements NettyRequestProcessor {
             response.setCode(ResponseCode.NO_PERMISSION);
             response.setRemark("the broker[" + this.brokerController.getBrokerConfig().getBrokerIP1()
                     + "] sending message is forbidden");
-            return response;
+            return null;
         }
 
-        // 如果重试队列数目为0，则直接丢弃消息
+        // 重试队列数目为0，由调用方丢弃消息
         if (subscriptionGroupConfig.getRetryQueueNums() <= 0) {
-            response.setCode(ResponseCode.SUCCESS);
-            response.setRemark(null);
-            return response;
+            return subscriptionGroupConfig;
         }
 
-        String newTopic = MixAll.getRetryTopic(requestHeader.getGroup());
-        int queueIdInt =
-                Math.abs(this.random.nextInt() % 99999999) % subscriptionGroupConfig.getRetryQueueNums();
+        String newTopic = MixAll.getRetryTopic(group);
 
         // 如果是单元化模式，则对 topic 进行设置
         int topicSysFlag = 0;
-        if (requestHeader.isUnitMode()) {
+        if (unitMode) {
             topicSysFlag = TopicSysFlag.buildSysFlag(false, true);
         }
 
@@ -201,24 +394,37 @@ public class SendMessageProcessor implements NettyRequestProcessor {
         if (null == topicConfig) {
             response.setCode(ResponseCode.SYSTEM_ERROR);
             response.setRemark("topic[" + newTopic + "] not exist");
-            return response;
+            return null;
         }
 
         // 检查topic权限
         if (!PermName.isWriteable(topicConfig.getPerm())) {
             response.setCode(ResponseCode.NO_PERMISSION);
             response.setRemark(String.format("the topic[%s] sending message is forbidden", newTopic));
-            return response;
+            return null;
         }
 
+        return subscriptionGroupConfig;
+    }
+
+
+    /**
+     * 查询原消息并构造发往重试队列或死信队列的消息，失败时返回null
+     */
+    private MessageExtBrokerInner buildSendBackMessage(final String group,
+            final SubscriptionGroupConfig subscriptionGroupConfig, final long offset,
+            final int requestDelayLevel, final RemotingCommand response) {
+        String newTopic = MixAll.getRetryTopic(group);
+        int queueIdInt =
+                Math.abs(this.random.nextInt() % 99999999) % subscriptionGroupConfig.getRetryQueueNums();
+
         // 查询消息，这里如果堆积消息过多，会访问磁盘
         // 另外如果频繁调用，是否会引起gc问题，需要关注 TODO
-        MessageExt msgExt =
-                this.brokerController.getMessageStore().lookMessageByOffset(requestHeader.getOffset());
+        MessageExt msgExt = this.brokerController.getMessageStore().lookMessageByOffset(offset);
         if (null == msgExt) {
             response.setCode(ResponseCode.SYSTEM_ERROR);
-            response.setRemark("look message by offset failed, " + requestHeader.getOffset());
-            return response;
+            response.setRemark("look message by offset failed, " + offset);
+            return null;
         }
 
         // 构造消息
@@ -229,15 +435,15 @@ public class SendMessageProcessor implements NettyRequestProcessor {
         msgExt.setWaitStoreMsgOK(false);
 
         // 客户端自动决定定时级别
-        int delayLevel = requestHeader.getDelayLevel();
+        int delayLevel = requestDelayLevel;
 
         // 死信消息处理
         if (msgExt.getReconsumeTimes() >= subscriptionGroupConfig.getRetryMaxTimes()//
                 || delayLevel < 0) {
-            newTopic = MixAll.getDLQTopic(requestHeader.getGroup());
+            newTopic = MixAll.getDLQTopic(group);
             queueIdInt = Math.abs(this.random.nextInt() % 99999999) % DLQ_NUMS_PER_GROUP;
 
-            topicConfig =
+            TopicConfig topicConfig =
                     this.brokerController.getTopicConfigManager().createTopicInSendMessageBackMethod(
                         newTopic, //
                         DLQ_NUMS_PER_GROUP,//
@@ -246,7 +452,7 @@ public class SendMessageProcessor implements NettyRequestProcessor {
             if (null == topicConfig) {
                 response.setCode(ResponseCode.SYSTEM_ERROR);
                 response.setRemark("topic[" + newTopic + "] not exist");
-                return response;
+                return null;
             }
         }
         // 继续重试
@@ -278,36 +484,7 @@ public class SendMessageProcessor implements NettyRequestProcessor {
         MessageAccessor.setOriginMessageId(msgInner, UtilAll.isBlank(originMsgId) ? msgExt.getMsgId()
                 : originMsgId);
 
-        PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessage(msgInner);
-        if (putMessageResult != null) {
-            switch (putMessageResult.getPutMessageStatus()) {
-            case PUT_OK:
-                // 统计失败重试的Topic
-                String backTopic = msgExt.getTopic();
-                String correctTopic = msgExt.getProperty(MessageConst.PROPERTY_RETRY_TOPIC);
-                if (correctTopic != null) {
-                    backTopic = correctTopic;
-                }
-
-                this.brokerController.getBrokerStatsManager().incSendBackNums(requestHeader.getGroup(),
-                    backTopic);
-
-                response.setCode(ResponseCode.SUCCESS);
-                response.setRemark(null);
-
-                return response;
-            default:
-                break;
-            }
-
-            response.setCode(ResponseCode.SYSTEM_ERROR);
-            response.setRemark(putMessageResult.getPutMessageStatus().name());
-            return response;
-        }
-
-        response.setCode(ResponseCode.SYSTEM_ERROR);
-        response.setRemark("putMessageResult is null");
-        return response;
+        return msgInner;
     }
 
 
@@ -445,7 +622,7 @@ public class SendMessageProcessor implements NettyRequestProcessor {
             sysFlag |= MessageSysFlag.MultiTagsFlag;
         }
 
-        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        final MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
         msgInner.setTopic(requestHeader.getTopic());
         msgInner.setBody(body);
         msgInner.setFlag(requestHeader.getFlag());
@@ -474,7 +651,162 @@ public class SendMessageProcessor implements NettyRequestProcessor {
             }
         }
 
+        // 检查定时消息的投递时间
+        if (!this.isDeliverTimeLegal(msgInner, response)) {
+            return response;
+        }
+
+        // 批量消息
+        if (RequestCode.SEND_BATCH_MESSAGE == request.getCode()) {
+            return this.sendBatchMessage(ctx, request, mqtraceContext, requestHeader, response, responseHeader,
+                topicConfig, queueIdInt, sysFlag);
+        }
+
+        // 异步存储，在回调中应答，不阻塞发送线程
+        if (this.isAsyncSend(request)) {
+            final int queueIdAsync = queueIdInt;
+            this.brokerController.getMessageStore().asyncPutMessage(msgInner, new PutMessageCallback() {
+                @Override
+                public void operationComplete(PutMessageResult putMessageResult) {
+                    RemotingCommand result =
+                            SendMessageProcessor.this.handlePutMessageResult(putMessageResult, ctx, request,
+                                mqtraceContext, requestHeader, response, responseHeader, msgInner,
+                                queueIdAsync);
+                    // 失败的应答也需要自己返回
+                    if (result != null && !request.isOnewayRPC()) {
+                        SendMessageProcessor.this.writeResponse(ctx, request, result);
+                    }
+
+                    // 消息轨迹：记录发送成功的消息
+                    if (SendMessageProcessor.this.hasSendMessageHook()) {
+                        SendMessageProcessor.this.executeSendMessageHookAfter(result, mqtraceContext);
+                    }
+                }
+            });
+            return null;
+        }
+
         PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessage(msgInner);
+        return this.handlePutMessageResult(putMessageResult, ctx, request, mqtraceContext, requestHeader,
+            response, responseHeader, msgInner, queueIdInt);
+    }
+
+
+    /**
+     * 批量消息共享Topic、队列等属性，由存储层在一次加锁内连续写入
+     */
+    private RemotingCommand sendBatchMessage(final ChannelHandlerContext ctx,//
+            final RemotingCommand request,//
+            final SendMessageContext mqtraceContext,//
+            final SendMessageRequestHeader requestHeader,//
+            final RemotingCommand response,//
+            final SendMessageResponseHeader responseHeader,//
+            final TopicConfig topicConfig,//
+            final int queueIdInt,//
+            final int sysFlag) {
+        // 重试消息不支持批量发送
+        if (requestHeader.getTopic().startsWith(MixAll.RETRY_GROUP_TOPIC_PREFIX)) {
+            response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+            response.setRemark("batch request does not support retry group " + requestHeader.getTopic());
+            return response;
+        }
+
+        List<Message> messages = null;
+        try {
+            messages = MessageDecoder.decodeMessages(ByteBuffer.wrap(request.getBody()));
+        }
+        catch (Exception e) {
+            log.warn("decode batch message failed, producer: " + ctx.channel().remoteAddress(), e);
+        }
+
+        if (null == messages || messages.isEmpty()) {
+            response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+            response.setRemark("the batch message is illegal, decode failed or empty.");
+            return response;
+        }
+
+        final SocketAddress bornHost = ctx.channel().remoteAddress();
+        final int reconsumeTimes =
+                requestHeader.getReconsumeTimes() == null ? 0 : requestHeader.getReconsumeTimes();
+        final MessageExtBatch messageExtBatch = new MessageExtBatch(messages.size());
+        messageExtBatch.setTopic(requestHeader.getTopic());
+        MessageAccessor.setProperties(messageExtBatch,
+            MessageDecoder.string2messageProperties(requestHeader.getProperties()));
+        messageExtBatch.setPropertiesString(requestHeader.getProperties());
+        messageExtBatch.setQueueId(queueIdInt);
+        messageExtBatch.setSysFlag(sysFlag);
+        messageExtBatch.setBornTimestamp(requestHeader.getBornTimestamp());
+        messageExtBatch.setBornHost(bornHost);
+        messageExtBatch.setStoreHost(this.getStoreHost());
+        messageExtBatch.setReconsumeTimes(reconsumeTimes);
+
+        for (Message message : messages) {
+            if (!this.isDeliverTimeLegal(message, response)) {
+                return response;
+            }
+
+            MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+            msgInner.setTopic(requestHeader.getTopic());
+            msgInner.setBody(message.getBody());
+            msgInner.setFlag(message.getFlag());
+            MessageAccessor.setProperties(msgInner, message.getProperties());
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(message.getProperties()));
+            msgInner.setTagsCode(MessageExtBrokerInner.tagsString2tagsCode(topicConfig.getTopicFilterType(),
+                msgInner.getTags()));
+            msgInner.setQueueId(queueIdInt);
+            msgInner.setSysFlag(sysFlag);
+            msgInner.setBornTimestamp(requestHeader.getBornTimestamp());
+            msgInner.setBornHost(bornHost);
+            msgInner.setStoreHost(this.getStoreHost());
+            msgInner.setReconsumeTimes(reconsumeTimes);
+            messageExtBatch.addMessage(msgInner);
+        }
+
+        PutMessageResult putMessageResult =
+                this.brokerController.getMessageStore().putMessages(messageExtBatch);
+        return this.handlePutMessageResult(putMessageResult, ctx, request, mqtraceContext, requestHeader,
+            response, responseHeader, messageExtBatch, queueIdInt);
+    }
+
+
+    /**
+     * 客户端指定的投递时间必须是数字，否则返回MESSAGE_ILLEGAL
+     */
+    private boolean isDeliverTimeLegal(final Message msg, final RemotingCommand response) {
+        String deliverTime = msg.getProperty(MessageConst.PROPERTY_DELIVER_TIME);
+        if (deliverTime != null) {
+            try {
+                Long.parseLong(deliverTime);
+            }
+            catch (NumberFormatException e) {
+                response.setCode(ResponseCode.MESSAGE_ILLEGAL);
+                response.setRemark("the deliver time of message is illegal, " + deliverTime);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 批量消息暂只支持同步存储
+     */
+    private boolean isAsyncSend(final RemotingCommand request) {
+        return this.brokerController.getBrokerConfig().isAsyncSendEnable()
+                && request.getCode() != RequestCode.SEND_BATCH_MESSAGE;
+    }
+
+
+    private RemotingCommand handlePutMessageResult(final PutMessageResult putMessageResult,//
+            final ChannelHandlerContext ctx,//
+            final RemotingCommand request,//
+            final SendMessageContext mqtraceContext,//
+            final SendMessageRequestHeader requestHeader,//
+            final RemotingCommand response,//
+            final SendMessageResponseHeader responseHeader,//
+            final MessageExtBrokerInner msgInner,//
+            final int queueIdInt) {
         if (putMessageResult != null) {
             boolean sendOK = false;
 
@@ -523,10 +855,11 @@ public class SendMessageProcessor implements NettyRequestProcessor {
 
             if (sendOK) {
                 // 统计
-                this.brokerController.getBrokerStatsManager().incTopicPutNums(msgInner.getTopic());
+                final int msgNum = putMessageResult.getAppendMessageResult().getMsgNum();
+                this.brokerController.getBrokerStatsManager().incTopicPutNums(msgInner.getTopic(), msgNum, 1);
                 this.brokerController.getBrokerStatsManager().incTopicPutSize(msgInner.getTopic(),
                     putMessageResult.getAppendMessageResult().getWroteBytes());
-                this.brokerController.getBrokerStatsManager().incBrokerPutNums();
+                this.brokerController.getBrokerStatsManager().incBrokerPutNums(msgNum);
 
                 response.setRemark(null);
 
@@ -536,20 +869,7 @@ public class SendMessageProcessor implements NettyRequestProcessor {
 
                 // 直接返回
                 if (!request.isOnewayRPC()) {
-                    try {
-                        ctx.writeAndFlush(response);
-                    }
-                    catch (Throwable e) {
-                        log.error("SendMessageProcessor process request over, but response failed", e);
-                        log.error(request.toString());
-                        log.error(response.toString());
-                    }
-                }
-
-                if (this.brokerController.getBrokerConfig().isLongPollingEnable()) {
-                    this.brokerController.getPullRequestHoldService().notifyMessageArriving(
-                        requestHeader.getTopic(), queueIdInt,
-                        putMessageResult.getAppendMessageResult().getLogicsOffset() + 1);
+                    this.writeResponse(ctx, request, response);
                 }
 
                 // 消息轨迹：记录发送成功的消息
@@ -570,6 +890,19 @@ public class SendMessageProcessor implements NettyRequestProcessor {
     }
 
 
+    private void writeResponse(final ChannelHandlerContext ctx, final RemotingCommand request,
+            final RemotingCommand response) {
+        try {
+            ctx.writeAndFlush(response);
+        }
+        catch (Throwable e) {
+            log.error("SendMessageProcessor process request over, but response failed", e);
+            log.error(request.toString());
+            log.error(response.toString());
+        }
+    }
+
+
     public SocketAddress getStoreHost() {
         return storeHost;
     }
@@ -25,6 +25,8 @@ public class BrokerStatsManager {
     public static final String SNDBCK_PUT_NUMS = "SNDBCK_PUT_NUMS";
     public static final String BROKER_PUT_NUMS = "BROKER_PUT_NUMS";
     public static final String BROKER_GET_NUMS = "BROKER_GET_NUMS";
+    public static final String PULL_CACHE_HIT_NUMS = "PULL_CACHE_HIT_NUMS";
+    public static final String PULL_CACHE_MISS_NUMS = "PULL_CACHE_MISS_NUMS";
 
     // Topic Put Nums
     private final StatsItemSet topicPutNums = new StatsItemSet(TOPIC_PUT_NUMS, this.scheduledExecutorService,
@@ -48,6 +50,12 @@ public class BrokerStatsManager {
     // Broker Get Nums
     private final StatsItem brokerGetNums;
 
+    // Pull Result Cache Hit Nums
+    private final StatsItem pullCacheHitNums;
+
+    // Pull Result Cache Miss Nums
+    private final StatsItem pullCacheMissNums;
+
     // Topic@ConsumerGroup sendback Nums
     private final StatsItemSet sndbckPutNums = new StatsItemSet(SNDBCK_PUT_NUMS,
         this.scheduledExecutorService, log);
@@ -61,12 +69,22 @@ public class BrokerStatsManager {
         // Broker Get Nums
         this.brokerGetNums = new StatsItem(BROKER_GET_NUMS, //
             brokerController.getBrokerConfig().getBrokerClusterName(), this.scheduledExecutorService, log);
+
+        // Pull Result Cache Hit Nums
+        this.pullCacheHitNums = new StatsItem(PULL_CACHE_HIT_NUMS, //
+            brokerController.getBrokerConfig().getBrokerClusterName(), this.scheduledExecutorService, log);
+
+        // Pull Result Cache Miss Nums
+        this.pullCacheMissNums = new StatsItem(PULL_CACHE_MISS_NUMS, //
+            brokerController.getBrokerConfig().getBrokerClusterName(), this.scheduledExecutorService, log);
     }
 
 
     public void start() {
         this.brokerPutNums.init();
         this.brokerGetNums.init();
+        this.pullCacheHitNums.init();
+        this.pullCacheMissNums.init();
     }
 
 
@@ -80,6 +98,11 @@ public class BrokerStatsManager {
     }
 
 
+    public void incTopicPutNums(final String topic, final int num, final int times) {
+        this.topicPutNums.addValue(topic, num, times);
+    }
+
+
     public void incTopicPutSize(final String topic, final int size) {
         this.topicPutSize.addValue(topic, size, 1);
     }
@@ -100,11 +123,36 @@ public class BrokerStatsManager {
     }
 
 
+    public void incBrokerPutNums(final int incValue) {
+        this.brokerPutNums.getValue().addAndGet(incValue);
+    }
+
+
     public void incBrokerGetNums(final int incValue) {
         this.brokerGetNums.getValue().addAndGet(incValue);
     }
 
 
+    public void incPullCacheHitNums() {
+        this.pullCacheHitNums.getValue().incrementAndGet();
+    }
+
+
+    public void incPullCacheMissNums() {
+        this.pullCacheMissNums.getValue().incrementAndGet();
+    }
+
+
+    public long getPullCacheHitNums() {
+        return this.pullCacheHitNums.getValue().get();
+    }
+
+
+    public long getPullCacheMissNums() {
+        return this.pullCacheMissNums.getValue().get();
+    }
+
+
     public void incSendBackNums(final String group, final String topic) {
         this.sndbckPutNums.addValue(topic + "@" + group, 1, 1);
     }
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.broker.longpolling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.Channel;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.alibaba.rocketmq.broker.BrokerController;
+import com.alibaba.rocketmq.broker.processor.PullMessageProcessor;
+import com.alibaba.rocketmq.common.BrokerConfig;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.remoting.netty.NettyClientConfig;
+import com.alibaba.rocketmq.remoting.netty.NettyServerConfig;
+import com.alibaba.rocketmq.remoting.protocol.RemotingCommand;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.MessageStore;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * 长轮询唤醒测试
+ */
+public class PullRequestHoldServiceTest {
+    private static final String Topic = "TopicTest";
+
+
+    /**
+     * 启动时未开启长轮询，运行中打开后，Hold住的请求由消息分发直接唤醒
+     */
+    @Test
+    public void test_wakeup_by_dispatch() throws Exception {
+        final String storePath =
+                System.getProperty("java.io.tmpdir") + File.separator + "PullRequestHoldServiceTest";
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setLongPollingEnable(false);
+
+        final CountDownLatch wakeupLatch = new CountDownLatch(1);
+        BrokerController brokerController = new BrokerController(//
+            brokerConfig, //
+            new NettyServerConfig(), //
+            new NettyClientConfig(), //
+            messageStoreConfig) {
+            private final PullMessageProcessor pullMessageProcessor = new PullMessageProcessor(this) {
+                @Override
+                public void excuteRequestWhenWakeup(final Channel channel, final RemotingCommand request) {
+                    wakeupLatch.countDown();
+                }
+            };
+
+
+            @Override
+            public PullMessageProcessor getPullMessageProcessor() {
+                return this.pullMessageProcessor;
+            }
+        };
+        assertTrue(brokerController.initialize());
+
+        MessageStore messageStore = brokerController.getMessageStore();
+        PullRequestHoldService pullRequestHoldService = brokerController.getPullRequestHoldService();
+        messageStore.start();
+        pullRequestHoldService.start();
+
+        // 运行中打开长轮询，不再定时检查Hold住的请求
+        brokerConfig.setLongPollingEnable(true);
+
+        PullRequest pullRequest = new PullRequest(null, null, 30000, System.currentTimeMillis(), 0);
+        pullRequestHoldService.suspendPullRequest(Topic, 0, pullRequest);
+        assertEquals(1, wakeupLatch.getCount());
+
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setTopic(Topic);
+        msgInner.setQueueId(0);
+        msgInner.setBody("Hello".getBytes());
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+        msgInner.setBornTimestamp(System.currentTimeMillis());
+        msgInner.setBornHost(new InetSocketAddress("127.0.0.1", 8123));
+        msgInner.setStoreHost(new InetSocketAddress("127.0.0.1", 8123));
+        assertTrue(messageStore.putMessage(msgInner).isOk());
+
+        // 远早于超时时间被唤醒
+        assertTrue(wakeupLatch.await(5000, TimeUnit.MILLISECONDS));
+        assertTrue(pullRequest.isCompleted());
+
+        pullRequestHoldService.shutdown();
+        messageStore.shutdown();
+        messageStore.destroy();
+    }
+}
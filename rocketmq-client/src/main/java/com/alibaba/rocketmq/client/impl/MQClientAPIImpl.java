@@ -35,6 +35,7 @@ import com.alibaba.rocketmq.common.admin.OffsetWrapper;
 import com.alibaba.rocketmq.common.admin.TopicOffset;
 import com.alibaba.rocketmq.common.admin.TopicStatsTable;
 import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageBatch;
 import com.alibaba.rocketmq.common.message.MessageDecoder;
 import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.message.MessageQueue;
@@ -283,7 +284,12 @@ public class MQClientAPIImpl {
         }
 
         RemotingCommand request = null;
-        if (sendSmartMsg) {
+        if (msg instanceof MessageBatch) {
+            SendMessageRequestHeaderV2 requestHeaderV2 =
+                    SendMessageRequestHeaderV2.createSendMessageRequestHeaderV2(requestHeader);
+            request = RemotingCommand.createRequestCommand(RequestCode.SEND_BATCH_MESSAGE, requestHeaderV2);
+        }
+        else if (sendSmartMsg) {
             SendMessageRequestHeaderV2 requestHeaderV2 =
                     SendMessageRequestHeaderV2.createSendMessageRequestHeaderV2(requestHeader);
             request = RemotingCommand.createRequestCommand(RequestCode.SEND_MESSAGE_V2, requestHeaderV2);
@@ -1052,6 +1058,43 @@ public class MQClientAPIImpl {
     }
 
 
+    /**
+     * 批量将失败的消息发回Broker，返回发回成功的消息物理偏移量
+     */
+    public Set<Long> consumerSendMessageBackBatch(//
+            final String addr,//
+            final ConsumerSendMsgBackBatchRequestBody requestBody,//
+            final long timeoutMillis) throws RemotingException, MQBrokerException, InterruptedException {
+        // 添加虚拟运行环境相关的projectGroupPrefix
+        if (!UtilAll.isBlank(projectGroupPrefix)) {
+            requestBody.setConsumerGroup(VirtualEnvUtil.buildWithProjectGroup(requestBody.getConsumerGroup(),
+                projectGroupPrefix));
+            for (ConsumerSendMsgBackEntry entry : requestBody.getEntryList()) {
+                entry.setOriginTopic(VirtualEnvUtil.buildWithProjectGroup(entry.getOriginTopic(),
+                    projectGroupPrefix));
+            }
+        }
+
+        RemotingCommand request =
+                RemotingCommand.createRequestCommand(RequestCode.CONSUMER_SEND_MSG_BACK_BATCH, null);
+
+        request.setBody(requestBody.encode());
+        RemotingCommand response = this.remotingClient.invokeSync(addr, request, timeoutMillis);
+        switch (response.getCode()) {
+        case ResponseCode.SUCCESS: {
+            ConsumerSendMsgBackBatchResponseBody responseBody =
+                    ConsumerSendMsgBackBatchResponseBody.decode(response.getBody(),
+                        ConsumerSendMsgBackBatchResponseBody.class);
+            return responseBody.getSendBackOKOffsetSet();
+        }
+        default:
+            break;
+        }
+
+        throw new MQBrokerException(response.getCode(), response.getRemark());
+    }
+
+
     public Set<MessageQueue> lockBatchMQ(//
             final String addr,//
             final LockBatchRequestBody requestBody,//
@@ -220,6 +220,17 @@ public class ConsumeMessageConcurrentlyService implements ConsumeMessageService
     }
 
 
+    /**
+     * 批量发回消费失败的消息，返回发回失败的消息
+     */
+    public List<MessageExt> sendMessageBackBatch(final List<MessageExt> msgs,
+            final ConsumeConcurrentlyContext context) {
+        // 如果用户没有设置，服务器会根据重试次数自动叠加延时时间
+        int delayLevel = context.getDelayLevelWhenNextConsume();
+        return this.defaultMQPushConsumerImpl.sendMessageBackBatch(msgs, delayLevel);
+    }
+
+
     public void processConsumeResult(//
             final ConsumeConcurrentlyStatus status, //
             final ConsumeConcurrentlyContext context, //
@@ -265,12 +276,23 @@ public class ConsumeMessageConcurrentlyService implements ConsumeMessageService
         case CLUSTERING:
             // 处理消费失败的消息，直接发回到Broker
             List<MessageExt> msgBackFailed = new ArrayList<MessageExt>(consumeRequest.getMsgs().size());
-            for (int i = ackIndex + 1; i < consumeRequest.getMsgs().size(); i++) {
-                MessageExt msg = consumeRequest.getMsgs().get(i);
-                boolean result = this.sendMessageBack(msg, context);
-                if (!result) {
+            // 多条消息消费失败时批量发回，减少与Broker的交互次数
+            if (consumeRequest.getMsgs().size() - ackIndex - 1 > 1) {
+                List<MessageExt> msgBack =
+                        consumeRequest.getMsgs().subList(ackIndex + 1, consumeRequest.getMsgs().size());
+                msgBackFailed.addAll(this.sendMessageBackBatch(msgBack, context));
+                for (MessageExt msg : msgBackFailed) {
                     msg.setReconsumeTimes(msg.getReconsumeTimes() + 1);
-                    msgBackFailed.add(msg);
+                }
+            }
+            else {
+                for (int i = ackIndex + 1; i < consumeRequest.getMsgs().size(); i++) {
+                    MessageExt msg = consumeRequest.getMsgs().get(i);
+                    boolean result = this.sendMessageBack(msg, context);
+                    if (!result) {
+                        msg.setReconsumeTimes(msg.getReconsumeTimes() + 1);
+                        msgBackFailed.add(msg);
+                    }
                 }
             }
 
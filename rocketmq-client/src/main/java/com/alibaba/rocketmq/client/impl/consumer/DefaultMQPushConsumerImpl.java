@@ -46,6 +46,8 @@ import com.alibaba.rocketmq.common.help.FAQUrl;
 import com.alibaba.rocketmq.common.message.*;
 import com.alibaba.rocketmq.common.protocol.body.ConsumeStatus;
 import com.alibaba.rocketmq.common.protocol.body.ConsumerRunningInfo;
+import com.alibaba.rocketmq.common.protocol.body.ConsumerSendMsgBackBatchRequestBody;
+import com.alibaba.rocketmq.common.protocol.body.ConsumerSendMsgBackEntry;
 import com.alibaba.rocketmq.common.protocol.body.ProcessQueueInfo;
 import com.alibaba.rocketmq.common.protocol.body.QueueTimeSpan;
 import com.alibaba.rocketmq.common.protocol.heartbeat.ConsumeType;
@@ -55,7 +57,9 @@ import com.alibaba.rocketmq.common.protocol.route.BrokerData;
 import com.alibaba.rocketmq.common.protocol.route.TopicRouteData;
 import com.alibaba.rocketmq.common.sysflag.PullSysFlag;
 import com.alibaba.rocketmq.remoting.RPCHook;
+import com.alibaba.rocketmq.remoting.common.RemotingHelper;
 import com.alibaba.rocketmq.remoting.exception.RemotingException;
+import com.alibaba.rocketmq.remoting.protocol.RemotingSysResponseCode;
 import org.slf4j.Logger;
 
 import java.util.*;
@@ -80,6 +84,8 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
     private static final long BrokerSuspendMaxTimeMillis = 1000 * 15;
     // 长轮询模式，Consumer超时时间（必须要大于brokerSuspendMaxTimeMillis）
     private static final long ConsumerTimeoutMillisWhenSuspend = 1000 * 30;
+    // Broker不支持批量发回时，间隔多久再尝试批量发回，Broker升级后可以恢复
+    private static final long SendBackBatchRetryIntervalMillis = 1000 * 60 * 10;
     private final Logger log = ClientLogger.getLog();
     private final DefaultMQPushConsumer defaultMQPushConsumer;
     // Rebalance实现
@@ -104,6 +110,10 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
     // Consumer启动时间
     private final long consumerStartTimestamp = System.currentTimeMillis();
 
+    // 不支持批量发回的Broker，Broker地址 -> 拒绝时间
+    private final ConcurrentHashMap<String/* addr */, Long/* timestamp */> sendBackBatchUnsupportedTable =
+            new ConcurrentHashMap<String, Long>();
+
 
     public void registerFilterMessageHook(final FilterMessageHook hook) {
         this.filterMessageHookList.add(hook);
@@ -638,6 +648,95 @@ public class DefaultMQPushConsumerImpl implements MQConsumerInner {
     }
 
 
+    /**
+     * 按存储Broker批量发回失败的消息，批量发回失败的消息逐条发回，返回最终发回失败的消息<br>
+     * Broker不支持批量发回时记录下来，之后直接逐条发回
+     */
+    public List<MessageExt> sendMessageBackBatch(List<MessageExt> msgs, int delayLevel) {
+        Map<String, List<MessageExt>> addrTable = new HashMap<String, List<MessageExt>>();
+        for (MessageExt msg : msgs) {
+            String addr = RemotingHelper.parseSocketAddressAddr(msg.getStoreHost());
+            List<MessageExt> list = addrTable.get(addr);
+            if (null == list) {
+                list = new ArrayList<MessageExt>();
+                addrTable.put(addr, list);
+            }
+            list.add(msg);
+        }
+
+        List<MessageExt> msgBackFailed = new ArrayList<MessageExt>();
+        for (Entry<String, List<MessageExt>> next : addrTable.entrySet()) {
+            ConsumerSendMsgBackBatchRequestBody requestBody = new ConsumerSendMsgBackBatchRequestBody();
+            requestBody.setConsumerGroup(this.defaultMQPushConsumer.getConsumerGroup());
+            requestBody.setUnitMode(this.defaultMQPushConsumer.isUnitMode());
+            for (MessageExt msg : next.getValue()) {
+                ConsumerSendMsgBackEntry entry = new ConsumerSendMsgBackEntry();
+                entry.setOffset(msg.getCommitLogOffset());
+                entry.setDelayLevel(delayLevel);
+                entry.setOriginMsgId(msg.getMsgId());
+                entry.setOriginTopic(msg.getTopic());
+                requestBody.getEntryList().add(entry);
+            }
+
+            Set<Long> sendBackOKOffsetSet = null;
+            try {
+                if (this.isSendBackBatchSupported(next.getKey())) {
+                    sendBackOKOffsetSet =
+                            this.mQClientFactory.getMQClientAPIImpl().consumerSendMessageBackBatch(
+                                next.getKey(), requestBody, 3000);
+                }
+            }
+            catch (MQBrokerException e) {
+                if (RemotingSysResponseCode.REQUEST_CODE_NOT_SUPPORTED == e.getResponseCode()) {
+                    this.sendBackBatchUnsupportedTable.put(next.getKey(), System.currentTimeMillis());
+                    log.warn("sendMessageBackBatch not supported by broker {}, send back one by one",
+                        next.getKey());
+                }
+                else {
+                    log.warn("sendMessageBackBatch Exception, "
+                            + this.defaultMQPushConsumer.getConsumerGroup() + " " + next.getKey(), e);
+                }
+            }
+            catch (Exception e) {
+                log.warn("sendMessageBackBatch Exception, " + this.defaultMQPushConsumer.getConsumerGroup()
+                        + " " + next.getKey(), e);
+            }
+
+            for (MessageExt msg : next.getValue()) {
+                if (sendBackOKOffsetSet != null && sendBackOKOffsetSet.contains(msg.getCommitLogOffset())) {
+                    continue;
+                }
+
+                try {
+                    this.sendMessageBack(msg, delayLevel);
+                }
+                catch (Exception e) {
+                    log.error("sendMessageBack exception, group: "
+                            + this.defaultMQPushConsumer.getConsumerGroup() + " msg: " + msg.toString(), e);
+                    msgBackFailed.add(msg);
+                }
+            }
+        }
+
+        return msgBackFailed;
+    }
+
+
+    private boolean isSendBackBatchSupported(final String addr) {
+        Long timestamp = this.sendBackBatchUnsupportedTable.get(addr);
+        if (null == timestamp) {
+            return true;
+        }
+
+        if (System.currentTimeMillis() - timestamp < SendBackBatchRetryIntervalMillis) {
+            return false;
+        }
+
+        this.sendBackBatchUnsupportedTable.remove(addr, timestamp);
+        return true;
+    }
+
+
     public void shutdown() {
         switch (this.serviceState) {
         case CREATE_JUST:
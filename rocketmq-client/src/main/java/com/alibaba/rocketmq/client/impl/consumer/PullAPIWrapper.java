@@ -18,6 +18,7 @@ package com.alibaba.rocketmq.client.impl.consumer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -124,6 +125,17 @@ public class PullAPIWrapper {
     }
 
 
+    private boolean isPropertiesMatched(final SubscriptionData subscriptionData, final MessageExt msg) {
+        for (Map.Entry<String, String> entry : subscriptionData.getPropertiesMap().entrySet()) {
+            if (!entry.getValue().equals(msg.getProperty(entry.getKey()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
     /**
      * 对拉取结果进行处理，主要是消息反序列化
      * 
@@ -154,6 +166,15 @@ public class PullAPIWrapper {
                     }
                 }
             }
+            // Broker按位图过滤存在误判，按属性再精确过滤一次
+            else if (!subscriptionData.getPropertiesMap().isEmpty()) {
+                msgListFilterAgain = new ArrayList<MessageExt>(msgList.size());
+                for (MessageExt msg : msgList) {
+                    if (this.isPropertiesMatched(subscriptionData, msg)) {
+                        msgListFilterAgain.add(msg);
+                    }
+                }
+            }
 
             // 执行消息过滤的 FilterMessageHook
             if (this.hasHook()) {
@@ -751,6 +751,11 @@ public class DefaultMQProducerImpl implements MQProducerInner {
 
 
     private boolean tryToCompressMessage(final Message msg) {
+        // 批量消息的消息体包含多条消息，Broker需要逐条解析，不压缩
+        if (msg instanceof MessageBatch) {
+            return false;
+        }
+
         byte[] body = msg.getBody();
         if (body != null) {
             if (body.length >= this.defaultMQProducer.getCompressMsgBodyOverHowmuch()) {
@@ -17,16 +17,19 @@ package com.alibaba.rocketmq.client.producer;
 
 import com.alibaba.rocketmq.client.ClientConfig;
 import com.alibaba.rocketmq.client.QueryResult;
+import com.alibaba.rocketmq.client.Validators;
 import com.alibaba.rocketmq.client.exception.MQBrokerException;
 import com.alibaba.rocketmq.client.exception.MQClientException;
 import com.alibaba.rocketmq.client.impl.producer.DefaultMQProducerImpl;
 import com.alibaba.rocketmq.common.MixAll;
 import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.rocketmq.common.message.MessageBatch;
 import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.message.MessageQueue;
 import com.alibaba.rocketmq.remoting.RPCHook;
 import com.alibaba.rocketmq.remoting.exception.RemotingException;
 
+import java.util.Collection;
 import java.util.List;
 
 
@@ -186,6 +189,46 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
     }
 
 
+    @Override
+    public SendResult send(Collection<Message> msgs) throws MQClientException, RemotingException,
+            MQBrokerException, InterruptedException {
+        return this.defaultMQProducerImpl.send(this.batch(msgs));
+    }
+
+
+    @Override
+    public SendResult send(Collection<Message> msgs, MessageQueue mq) throws MQClientException,
+            RemotingException, MQBrokerException, InterruptedException {
+        return this.defaultMQProducerImpl.send(this.batch(msgs), mq);
+    }
+
+
+    /**
+     * 校验每条消息，并将所有消息序列化为批量消息的消息体
+     */
+    private MessageBatch batch(Collection<Message> msgs) throws MQClientException {
+        if (null == msgs || msgs.isEmpty()) {
+            throw new MQClientException("the message batch is null or empty", null);
+        }
+
+        MessageBatch msgBatch;
+        try {
+            msgBatch = MessageBatch.generateFromList(msgs);
+            for (Message message : msgBatch) {
+                Validators.checkMessage(message, this);
+            }
+            msgBatch.setBody(msgBatch.encode());
+        }
+        catch (MQClientException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new MQClientException("Failed to initiate the MessageBatch", e);
+        }
+        return msgBatch;
+    }
+
+
     @Override
     public void createTopic(String key, String newTopic, int queueNum) throws MQClientException {
         createTopic(key, newTopic, queueNum, 0);
@@ -15,6 +15,7 @@
  */
 package com.alibaba.rocketmq.client.producer;
 
+import java.util.Collection;
 import java.util.List;
 
 import com.alibaba.rocketmq.client.MQAdmin;
@@ -213,4 +214,37 @@ public interface MQProducer extends MQAdmin {
 
     public TransactionSendResult sendMessageInTransaction(final Message msg,
             final LocalTransactionExecuter tranExecuter, final Object arg) throws MQClientException;
+
+
+    /**
+     * 批量发送消息，同步调用，所有消息必须属于同一个Topic，不支持定时消息、事务消息<br>
+     * 所有消息写入同一个队列，序列化后的总大小不能超过maxMessageSize
+     * 
+     * @param msgs
+     *            消息集合
+     * @return 发送结果，msgId为以逗号分隔的所有消息ID，queueOffset为第一条消息的队列偏移量
+     * @throws MQClientException
+     * @throws RemotingException
+     * @throws MQBrokerException
+     * @throws InterruptedException
+     */
+    public SendResult send(final Collection<Message> msgs) throws MQClientException, RemotingException,
+            MQBrokerException, InterruptedException;
+
+
+    /**
+     * 向指定队列批量发送消息，同步调用
+     * 
+     * @param msgs
+     *            消息集合
+     * @param mq
+     *            队列
+     * @return 发送结果
+     * @throws MQClientException
+     * @throws RemotingException
+     * @throws MQBrokerException
+     * @throws InterruptedException
+     */
+    public SendResult send(final Collection<Message> msgs, final MessageQueue mq) throws MQClientException,
+            RemotingException, MQBrokerException, InterruptedException;
 }
@@ -84,6 +84,24 @@ public class BrokerConfig {
     // Consumer订阅消息时，Broker是否开启长轮询
     private boolean longPollingEnable = true;
 
+    // 是否异步处理发送消息请求，开启后同步刷盘、同步双写不再阻塞发送线程
+    private boolean asyncSendEnable = false;
+
+    // 是否缓存拉消息结果，多个订阅组拉取同一队列的相同位置时共享一次Consume Queue扫描
+    private boolean pullResultCacheEnable = false;
+
+    // 拉消息结果缓存的有效时间，单位毫秒
+    private int pullResultCacheExpireMillis = 3000;
+
+    // 拉消息结果缓存的最大条目数
+    private int pullResultCacheMaxSize = 10000;
+
+    // 向Name Server增量注册，Topic配置未变化时只发送心跳，需要Name Server支持
+    private boolean registerBrokerDeltaEnable = false;
+
+    // 压缩注册到Name Server的请求体，需要Name Server支持
+    private boolean compressedRegister = false;
+
 
     public static String localHostName() {
         try {
@@ -335,4 +353,64 @@ public class BrokerConfig {
     public void setLongPollingEnable(boolean longPollingEnable) {
         this.longPollingEnable = longPollingEnable;
     }
+
+
+    public boolean isAsyncSendEnable() {
+        return asyncSendEnable;
+    }
+
+
+    public void setAsyncSendEnable(boolean asyncSendEnable) {
+        this.asyncSendEnable = asyncSendEnable;
+    }
+
+
+    public boolean isPullResultCacheEnable() {
+        return pullResultCacheEnable;
+    }
+
+
+    public void setPullResultCacheEnable(boolean pullResultCacheEnable) {
+        this.pullResultCacheEnable = pullResultCacheEnable;
+    }
+
+
+    public int getPullResultCacheExpireMillis() {
+        return pullResultCacheExpireMillis;
+    }
+
+
+    public void setPullResultCacheExpireMillis(int pullResultCacheExpireMillis) {
+        this.pullResultCacheExpireMillis = pullResultCacheExpireMillis;
+    }
+
+
+    public int getPullResultCacheMaxSize() {
+        return pullResultCacheMaxSize;
+    }
+
+
+    public void setPullResultCacheMaxSize(int pullResultCacheMaxSize) {
+        this.pullResultCacheMaxSize = pullResultCacheMaxSize;
+    }
+
+
+    public boolean isRegisterBrokerDeltaEnable() {
+        return registerBrokerDeltaEnable;
+    }
+
+
+    public void setRegisterBrokerDeltaEnable(boolean registerBrokerDeltaEnable) {
+        this.registerBrokerDeltaEnable = registerBrokerDeltaEnable;
+    }
+
+
+    public boolean isCompressedRegister() {
+        return compressedRegister;
+    }
+
+
+    public void setCompressedRegister(boolean compressedRegister) {
+        this.compressedRegister = compressedRegister;
+    }
 }
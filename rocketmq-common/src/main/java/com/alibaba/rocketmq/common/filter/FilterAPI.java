@@ -66,6 +66,14 @@ public class FilterAPI {
     }
 
 
+    /**
+     * 按消息属性过滤，eg: a=1 && b=2
+     */
+    public static boolean isPropertyFilterMode(final String subString) {
+        return subString.contains("=");
+    }
+
+
     public static SubscriptionData buildSubscriptionData(final String consumerGroup, String topic,
             String subString) throws Exception {
         SubscriptionData subscriptionData = new SubscriptionData();
@@ -75,6 +83,23 @@ public class FilterAPI {
         if (null == subString || subString.equals(SubscriptionData.SUB_ALL) || subString.length() == 0) {
             subscriptionData.setSubString(SubscriptionData.SUB_ALL);
         }
+        // eg: a=1 && b=2，属性值中可能有'.'，要先于类过滤模式判断
+        else if (isPropertyFilterMode(subString)) {
+            String[] conditions = subString.split("&&");
+            for (String condition : conditions) {
+                int index = condition.indexOf('=');
+                if (index < 0) {
+                    throw new Exception("subString property condition error, " + condition);
+                }
+
+                String key = condition.substring(0, index).trim();
+                String value = condition.substring(index + 1).trim();
+                if (key.length() == 0) {
+                    throw new Exception("subString property condition error, " + condition);
+                }
+                subscriptionData.getPropertiesMap().put(key, value);
+            }
+        }
         // eg: com.taobao.abc.FilterClassName
         else if (isFilterClassMode(subString)) {
             // if (null == classFile(subString)) {
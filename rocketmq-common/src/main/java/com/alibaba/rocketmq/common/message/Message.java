@@ -177,6 +177,29 @@ public class Message implements Serializable {
     }
 
 
+    /**
+     * 投递时间不合法时按普通消息处理，返回0
+     */
+    public long getDeliverTime() {
+        String t = this.getProperty(MessageConst.PROPERTY_DELIVER_TIME);
+        if (t != null) {
+            try {
+                return Long.parseLong(t);
+            }
+            catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        return 0;
+    }
+
+
+    public void setDeliverTime(long deliverTime) {
+        this.putProperty(MessageConst.PROPERTY_DELIVER_TIME, String.valueOf(deliverTime));
+    }
+
+
     public boolean isWaitStoreMsgOK() {
         String result = this.getProperty(MessageConst.PROPERTY_WAIT_STORE_MSG_OK);
         if (null == result)
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.common.message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import com.alibaba.rocketmq.common.MixAll;
+
+
+/**
+ * 批量消息，一次RPC发送同一个Topic的多条消息，Broker在一次加锁内连续写入CommitLog<br>
+ * 不支持定时消息、事务消息及重试消息
+ */
+public class MessageBatch extends Message implements Iterable<Message> {
+    private static final long serialVersionUID = 621335151046335557L;
+    private final List<Message> messages;
+
+
+    private MessageBatch(List<Message> messages) {
+        this.messages = messages;
+    }
+
+
+    public static MessageBatch generateFromList(final Collection<Message> messages) {
+        if (null == messages || messages.isEmpty()) {
+            throw new IllegalArgumentException("the message batch is null or empty");
+        }
+
+        List<Message> messageList = new ArrayList<Message>(messages.size());
+        Message first = null;
+        for (Message message : messages) {
+            if (null == message) {
+                throw new IllegalArgumentException("the message in batch is null");
+            }
+            if (message.getDelayTimeLevel() > 0 || message.getDeliverTime() > 0) {
+                throw new UnsupportedOperationException("TimeDelayLevel is not supported for batching");
+            }
+            if (message.getTopic().startsWith(MixAll.RETRY_GROUP_TOPIC_PREFIX)) {
+                throw new UnsupportedOperationException("Retry Group is not supported for batching");
+            }
+            if (Boolean.parseBoolean(message.getProperty(MessageConst.PROPERTY_TRANSACTION_PREPARED))) {
+                throw new UnsupportedOperationException("Transaction message is not supported for batching");
+            }
+            if (first == null) {
+                first = message;
+            }
+            else {
+                if (!first.getTopic().equals(message.getTopic())) {
+                    throw new UnsupportedOperationException(
+                        "The topic of the messages in one batch should be the same");
+                }
+                if (first.isWaitStoreMsgOK() != message.isWaitStoreMsgOK()) {
+                    throw new UnsupportedOperationException(
+                        "The waitStoreMsgOK of the messages in one batch should be the same");
+                }
+            }
+            messageList.add(message);
+        }
+
+        MessageBatch messageBatch = new MessageBatch(messageList);
+        messageBatch.setTopic(first.getTopic());
+        messageBatch.setWaitStoreMsgOK(first.isWaitStoreMsgOK());
+        return messageBatch;
+    }
+
+
+    /**
+     * 序列化所有消息，作为请求的消息体
+     */
+    public byte[] encode() {
+        return MessageDecoder.encodeMessages(this.messages);
+    }
+
+
+    @Override
+    public Iterator<Message> iterator() {
+        return this.messages.iterator();
+    }
+
+
+    public int size() {
+        return this.messages.size();
+    }
+}
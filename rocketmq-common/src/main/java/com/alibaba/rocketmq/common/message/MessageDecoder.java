@@ -47,6 +47,7 @@ public class MessageDecoder {
      */
     public final static int MessageMagicCodePostion = 4;
     public final static int MessageFlagPostion = 16;
+    public final static int MessageQueueOffsetPostion = 20;
     public final static int MessagePhysicOffsetPostion = 28;
     public final static int MessageStoreTimestampPostion = 56;
 
@@ -241,6 +242,106 @@ public class MessageDecoder {
         return msgExts;
     }
 
+
+    /**
+     * 批量发送时单条消息的序列化，格式为：<br>
+     * TOTALSIZE(4) + MAGICCODE(4) + BODYCRC(4) + FLAG(4) + BODY(4 + N) + PROPERTIES(2 + N)
+     */
+    public static byte[] encodeMessage(final Message message) {
+        byte[] body = message.getBody();
+        int bodyLen = body == null ? 0 : body.length;
+        String properties = messageProperties2String(message.getProperties());
+        byte[] propertiesBytes = properties.getBytes(Charset.forName("UTF-8"));
+        int propertiesLength = propertiesBytes.length;
+
+        int storeSize = 4 // 1 TOTALSIZE
+                + 4 // 2 MAGICCODE
+                + 4 // 3 BODYCRC
+                + 4 // 4 FLAG
+                + 4 + bodyLen // 5 BODY
+                + 2 + propertiesLength; // 6 PROPERTIES
+        ByteBuffer byteBuffer = ByteBuffer.allocate(storeSize);
+        // 1 TOTALSIZE
+        byteBuffer.putInt(storeSize);
+        // 2 MAGICCODE，暂未使用
+        byteBuffer.putInt(0);
+        // 3 BODYCRC，暂未使用，由Broker计算
+        byteBuffer.putInt(0);
+        // 4 FLAG
+        byteBuffer.putInt(message.getFlag());
+        // 5 BODY
+        byteBuffer.putInt(bodyLen);
+        if (bodyLen > 0)
+            byteBuffer.put(body);
+        // 6 PROPERTIES
+        byteBuffer.putShort((short) propertiesLength);
+        byteBuffer.put(propertiesBytes);
+
+        return byteBuffer.array();
+    }
+
+
+    /**
+     * 批量发送，将多条消息连续序列化为一个消息体
+     */
+    public static byte[] encodeMessages(final List<Message> messages) {
+        List<byte[]> encodedMessages = new ArrayList<byte[]>(messages.size());
+        int allSize = 0;
+        for (Message message : messages) {
+            byte[] tmp = encodeMessage(message);
+            encodedMessages.add(tmp);
+            allSize += tmp.length;
+        }
+
+        byte[] allBytes = new byte[allSize];
+        int pos = 0;
+        for (byte[] bytes : encodedMessages) {
+            System.arraycopy(bytes, 0, allBytes, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        return allBytes;
+    }
+
+
+    /**
+     * 批量发送，解析encodeMessage序列化的单条消息，topic等公共字段由调用方填充
+     */
+    public static Message decodeMessage(final ByteBuffer byteBuffer) {
+        Message message = new Message();
+        // 1 TOTALSIZE
+        byteBuffer.getInt();
+        // 2 MAGICCODE
+        byteBuffer.getInt();
+        // 3 BODYCRC
+        byteBuffer.getInt();
+        // 4 FLAG
+        message.setFlag(byteBuffer.getInt());
+        // 5 BODY
+        int bodyLen = byteBuffer.getInt();
+        byte[] body = new byte[bodyLen];
+        byteBuffer.get(body);
+        message.setBody(body);
+        // 6 PROPERTIES
+        short propertiesLen = byteBuffer.getShort();
+        byte[] propertiesBytes = new byte[propertiesLen];
+        byteBuffer.get(propertiesBytes);
+        MessageAccessor.setProperties(message,
+            string2messageProperties(new String(propertiesBytes, Charset.forName("UTF-8"))));
+
+        return message;
+    }
+
+
+    public static List<Message> decodeMessages(final ByteBuffer byteBuffer) {
+        List<Message> messages = new ArrayList<Message>();
+        while (byteBuffer.hasRemaining()) {
+            messages.add(decodeMessage(byteBuffer));
+        }
+
+        return messages;
+    }
+
     /**
      * 序列化消息属性
      */
@@ -165,4 +165,10 @@ public class RequestCode {
 	// 获取含有单元化订阅组的非单元化 Topic 列表
     public static final int GET_HAS_UNIT_SUB_UNUNIT_TOPIC_LIST = 313;
 
+    // 批量发送消息，同一Topic的多条消息一次写入CommitLog
+    public static final int SEND_BATCH_MESSAGE = 314;
+
+    // Consumer将消费失败的多条消息一次发回服务器
+    public static final int CONSUMER_SEND_MSG_BACK_BATCH = 315;
+
 }
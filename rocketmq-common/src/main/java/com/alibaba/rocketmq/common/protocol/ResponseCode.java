@@ -56,4 +56,7 @@ public class ResponseCode extends RemotingSysResponseCode {
 
     // Consumer消费消息超时
     public static final int CONSUME_MSG_TIMEOUT = 207;
+
+    // Name Server 增量注册的基准版本不一致，Broker需要全量注册
+    public static final int REGISTER_BROKER_NEED_FULL = 208;
 }
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.common.protocol.body;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.alibaba.rocketmq.remoting.protocol.RemotingSerializable;
+
+
+/**
+ * 批量发回消费失败的消息，消息须存储在同一个Broker上
+ */
+public class ConsumerSendMsgBackBatchRequestBody extends RemotingSerializable {
+    private String consumerGroup;
+    private boolean unitMode = false;
+    private List<ConsumerSendMsgBackEntry> entryList = new ArrayList<ConsumerSendMsgBackEntry>();
+
+
+    public String getConsumerGroup() {
+        return consumerGroup;
+    }
+
+
+    public void setConsumerGroup(String consumerGroup) {
+        this.consumerGroup = consumerGroup;
+    }
+
+
+    public boolean isUnitMode() {
+        return unitMode;
+    }
+
+
+    public void setUnitMode(boolean unitMode) {
+        this.unitMode = unitMode;
+    }
+
+
+    public List<ConsumerSendMsgBackEntry> getEntryList() {
+        return entryList;
+    }
+
+
+    public void setEntryList(List<ConsumerSendMsgBackEntry> entryList) {
+        this.entryList = entryList;
+    }
+}
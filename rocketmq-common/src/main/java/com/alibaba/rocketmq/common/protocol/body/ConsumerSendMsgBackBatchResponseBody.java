@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.common.protocol.body;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.alibaba.rocketmq.remoting.protocol.RemotingSerializable;
+
+
+/**
+ * 批量发回消息的结果
+ */
+public class ConsumerSendMsgBackBatchResponseBody extends RemotingSerializable {
+    // 发回成功的消息物理偏移量集合
+    private Set<Long> sendBackOKOffsetSet = new HashSet<Long>();
+
+
+    public Set<Long> getSendBackOKOffsetSet() {
+        return sendBackOKOffsetSet;
+    }
+
+
+    public void setSendBackOKOffsetSet(Set<Long> sendBackOKOffsetSet) {
+        this.sendBackOKOffsetSet = sendBackOKOffsetSet;
+    }
+}
@@ -3,12 +3,15 @@ package com.alibaba.rocketmq.common.protocol.body;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.alibaba.rocketmq.common.DataVersion;
 import com.alibaba.rocketmq.remoting.protocol.RemotingSerializable;
 
 
 public class RegisterBrokerBody extends RemotingSerializable {
     private TopicConfigSerializeWrapper topicConfigSerializeWrapper = new TopicConfigSerializeWrapper();
     private List<String> filterServerList = new ArrayList<String>();
+    // 增量注册时为Broker上次注册成功的版本，只携带变化的Topic，全量注册时为null
+    private DataVersion baseDataVersion;
 
 
     public TopicConfigSerializeWrapper getTopicConfigSerializeWrapper() {
@@ -29,4 +32,14 @@ public class RegisterBrokerBody extends RemotingSerializable {
     public void setFilterServerList(List<String> filterServerList) {
         this.filterServerList = filterServerList;
     }
+
+
+    public DataVersion getBaseDataVersion() {
+        return baseDataVersion;
+    }
+
+
+    public void setBaseDataVersion(DataVersion baseDataVersion) {
+        this.baseDataVersion = baseDataVersion;
+    }
 }
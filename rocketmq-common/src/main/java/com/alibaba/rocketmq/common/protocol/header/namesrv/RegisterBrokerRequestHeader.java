@@ -5,6 +5,7 @@ package com.alibaba.rocketmq.common.protocol.header.namesrv;
 
 import com.alibaba.rocketmq.remoting.CommandCustomHeader;
 import com.alibaba.rocketmq.remoting.annotation.CFNotNull;
+import com.alibaba.rocketmq.remoting.annotation.CFNullable;
 import com.alibaba.rocketmq.remoting.exception.RemotingCommandException;
 
 
@@ -22,6 +23,9 @@ public class RegisterBrokerRequestHeader implements CommandCustomHeader {
     private String haServerAddr;
     @CFNotNull
     private Long brokerId;
+    // 请求体是否压缩
+    @CFNullable
+    private boolean compressed = false;
 
 
     @Override
@@ -77,4 +81,14 @@ public class RegisterBrokerRequestHeader implements CommandCustomHeader {
     public void setBrokerId(Long brokerId) {
         this.brokerId = brokerId;
     }
+
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
 }
@@ -3,7 +3,9 @@
  */
 package com.alibaba.rocketmq.common.protocol.heartbeat;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -17,6 +19,8 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
     private String subString;
     private Set<String> tagsSet = new HashSet<String>();
     private Set<Integer> codeSet = new HashSet<Integer>();
+    // 按消息属性过滤时，要求消息包含的全部属性
+    private Map<String, String> propertiesMap = new HashMap<String, String>();
     private long subVersion = System.currentTimeMillis();
 
 
@@ -82,6 +86,16 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
     }
 
 
+    public Map<String, String> getPropertiesMap() {
+        return propertiesMap;
+    }
+
+
+    public void setPropertiesMap(Map<String, String> propertiesMap) {
+        this.propertiesMap = propertiesMap;
+    }
+
+
     public boolean isClassFilterMode() {
         return classFilterMode;
     }
@@ -98,6 +112,7 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
         int result = 1;
         result = prime * result + (classFilterMode ? 1231 : 1237);
         result = prime * result + ((codeSet == null) ? 0 : codeSet.hashCode());
+        result = prime * result + ((propertiesMap == null) ? 0 : propertiesMap.hashCode());
         result = prime * result + ((subString == null) ? 0 : subString.hashCode());
         result = prime * result + ((tagsSet == null) ? 0 : tagsSet.hashCode());
         result = prime * result + ((topic == null) ? 0 : topic.hashCode());
@@ -122,6 +137,12 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
         }
         else if (!codeSet.equals(other.codeSet))
             return false;
+        if (propertiesMap == null) {
+            if (other.propertiesMap != null)
+                return false;
+        }
+        else if (!propertiesMap.equals(other.propertiesMap))
+            return false;
         if (subString == null) {
             if (other.subString != null)
                 return false;
@@ -149,8 +170,8 @@ public class SubscriptionData implements Comparable<SubscriptionData> {
     @Override
     public String toString() {
         return "SubscriptionData [classFilterMode=" + classFilterMode + ", topic=" + topic + ", subString="
-                + subString + ", tagsSet=" + tagsSet + ", codeSet=" + codeSet + ", subVersion=" + subVersion
-                + "]";
+                + subString + ", tagsSet=" + tagsSet + ", codeSet=" + codeSet + ", propertiesMap="
+                + propertiesMap + ", subVersion=" + subVersion + "]";
     }
 
 
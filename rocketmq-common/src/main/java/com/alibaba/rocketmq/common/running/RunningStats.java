@@ -21,4 +21,8 @@ public enum RunningStats {
     commitLogDiskRatio,
     consumeQueueDiskRatio,
     scheduleMessageOffset,
+    timerMessageOffset,
+    timerDeliverLag,
+    dispatchBehindBytes,
+    indexBehindBytes,
 }
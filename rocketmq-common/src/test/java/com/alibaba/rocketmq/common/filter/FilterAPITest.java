@@ -1,5 +1,9 @@
 package com.alibaba.rocketmq.common.filter;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
 import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
@@ -17,4 +21,16 @@ public class FilterAPITest {
                 FilterAPI.buildSubscriptionData("ConsumerGroup1", "TestTopic", "TAG1 || Tag2 || tag3");
         System.out.println(subscriptionData);
     }
+
+
+    @Test
+    public void testBuildSubscriptionDataByProperties() throws Exception {
+        SubscriptionData subscriptionData =
+                FilterAPI.buildSubscriptionData("ConsumerGroup1", "TestTopic", "city=hz && version = 1.0");
+        assertFalse(subscriptionData.isClassFilterMode());
+        assertTrue(subscriptionData.getTagsSet().isEmpty());
+        assertEquals(2, subscriptionData.getPropertiesMap().size());
+        assertEquals("hz", subscriptionData.getPropertiesMap().get("city"));
+        assertEquals("1.0", subscriptionData.getPropertiesMap().get("version"));
+    }
 }
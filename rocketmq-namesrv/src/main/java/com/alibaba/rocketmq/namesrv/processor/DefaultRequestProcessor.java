@@ -17,6 +17,7 @@ package com.alibaba.rocketmq.namesrv.processor;
 
 import com.alibaba.rocketmq.common.MQVersion;
 import com.alibaba.rocketmq.common.MQVersion.Version;
+import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.help.FAQUrl;
 import com.alibaba.rocketmq.common.namesrv.NamesrvUtil;
@@ -37,6 +38,7 @@ import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicLong;
 
 
@@ -132,7 +134,19 @@ public class DefaultRequestProcessor implements NettyRequestProcessor {
         RegisterBrokerBody registerBrokerBody = new RegisterBrokerBody();
 
         if (request.getBody() != null) {
-            registerBrokerBody = RegisterBrokerBody.decode(request.getBody(), RegisterBrokerBody.class);
+            byte[] body = request.getBody();
+            if (requestHeader.isCompressed()) {
+                try {
+                    body = UtilAll.uncompress(body);
+                }
+                catch (IOException e) {
+                    log.error("uncompress register broker body failed, " + requestHeader.getBrokerAddr(), e);
+                    response.setCode(ResponseCode.SYSTEM_ERROR);
+                    response.setRemark("uncompress register broker body failed");
+                    return response;
+                }
+            }
+            registerBrokerBody = RegisterBrokerBody.decode(body, RegisterBrokerBody.class);
         }
         else {
             registerBrokerBody.getTopicConfigSerializeWrapper().getDataVersion()
@@ -148,9 +162,18 @@ public class DefaultRequestProcessor implements NettyRequestProcessor {
             requestHeader.getHaServerAddr(),// 5
             registerBrokerBody.getTopicConfigSerializeWrapper(), // 6
             registerBrokerBody.getFilterServerList(),//
+            registerBrokerBody.getBaseDataVersion(),//
             ctx.channel()// 7
             );
 
+        // 增量注册的基准版本不一致
+        if (null == result) {
+            response.setCode(ResponseCode.REGISTER_BROKER_NEED_FULL);
+            response.setRemark("the data version of broker " + requestHeader.getBrokerAddr()
+                    + " is not matched, register all topics again");
+            return response;
+        }
+
         responseHeader.setHaServerAddr(result.getHaServerAddr());
         responseHeader.setMasterAddr(result.getMasterAddr());
 
@@ -120,12 +120,43 @@ public class RouteInfoManager {
             final TopicConfigSerializeWrapper topicConfigWrapper,// 6
             final List<String> filterServerList, // 7
             final Channel channel// 8
+    ) {
+        return this.registerBroker(clusterName, brokerAddr, brokerName, brokerId, haServerAddr,
+            topicConfigWrapper, filterServerList, null, channel);
+    }
+
+
+    /**
+     * 增量注册时只更新变化的Topic，要求Name Server持有的版本与Broker上次注册成功的版本一致
+     * 
+     * @param baseDataVersion
+     *            增量注册的基准版本，全量注册为null
+     * @return 如果是slave，则返回master的ha地址；增量注册的基准版本不一致时返回null
+     */
+    public RegisterBrokerResult registerBroker(//
+            final String clusterName,// 1
+            final String brokerAddr,// 2
+            final String brokerName,// 3
+            final long brokerId,// 4
+            final String haServerAddr,// 5
+            final TopicConfigSerializeWrapper topicConfigWrapper,// 6
+            final List<String> filterServerList, // 7
+            final DataVersion baseDataVersion, // 8
+            final Channel channel// 9
     ) {
         RegisterBrokerResult result = new RegisterBrokerResult();
         try {
             try {
                 this.lock.writeLock().lockInterruptibly();
 
+                // Name Server重启或者Broker已过期，需要全量注册
+                if (baseDataVersion != null) {
+                    BrokerLiveInfo prev = this.brokerLiveTable.get(brokerAddr);
+                    if (null == prev || !prev.getDataVersion().equals(baseDataVersion)) {
+                        return null;
+                    }
+                }
+
                 // 更新集群信息
                 Set<String> brokerNames = this.clusterAddrTable.get(clusterName);
                 if (null == brokerNames) {
@@ -154,7 +185,7 @@ public class RouteInfoManager {
                 if (null != topicConfigWrapper //
                         && MixAll.MASTER_ID == brokerId) {
                     if (this.isBrokerTopicConfigChanged(brokerAddr, topicConfigWrapper.getDataVersion())//
-                            || registerFirst) {
+                            || registerFirst || baseDataVersion != null) {
                         ConcurrentHashMap<String, TopicConfig> tcTable =
                                 topicConfigWrapper.getTopicConfigTable();
                         if (tcTable != null) {
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.research.broker;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alibaba.rocketmq.broker.client.ClientChannelInfo;
+import com.alibaba.rocketmq.broker.client.ConsumerIdsChangeListener;
+import com.alibaba.rocketmq.broker.client.ConsumerManager;
+import com.alibaba.rocketmq.broker.client.ProducerManager;
+import com.alibaba.rocketmq.common.consumer.ConsumeFromWhere;
+import com.alibaba.rocketmq.common.protocol.heartbeat.ConsumeType;
+import com.alibaba.rocketmq.common.protocol.heartbeat.MessageModel;
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import com.alibaba.rocketmq.remoting.protocol.LanguageCode;
+
+
+/**
+ * 模拟大量客户端同时发心跳，后台线程同时扫描过期连接、处理连接关闭，统计心跳TPS及最大耗时<br>
+ * 用法：ClientHeartbeatBenchmark [clientNums] [threadSize] [groupNums] [rounds]
+ */
+public class ClientHeartbeatBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int clientNums = args.length >= 1 ? Integer.parseInt(args[0]) : 50000;
+        final int threadSize = args.length >= 2 ? Integer.parseInt(args[1]) : 32;
+        final int groupNums = args.length >= 3 ? Integer.parseInt(args[2]) : 100;
+        final int rounds = args.length >= 4 ? Integer.parseInt(args[3]) : 20;
+
+        System.out.printf("clients: %d, threads: %d, groups: %d, rounds: %d%n", clientNums, threadSize,
+            groupNums, rounds);
+
+        final ProducerManager producerManager = new ProducerManager();
+        final ConsumerManager consumerManager = new ConsumerManager(new ConsumerIdsChangeListener() {
+            @Override
+            public void consumerIdsChanged(String group, List<Channel> channels) {
+            }
+        });
+
+        final ClientChannelInfo[] clients = new ClientChannelInfo[clientNums];
+        for (int i = 0; i < clientNums; i++) {
+            clients[i] =
+                    new ClientChannelInfo(new EmbeddedChannel(new ChannelInboundHandlerAdapter()),
+                        "127.0.0.1@" + i, LanguageCode.JAVA, 0);
+        }
+
+        final Set<SubscriptionData> subList = new HashSet<SubscriptionData>();
+        SubscriptionData subscriptionData = new SubscriptionData();
+        subscriptionData.setTopic("ClientHeartbeatBenchmark");
+        subscriptionData.setSubString("*");
+        subList.add(subscriptionData);
+
+        // 后台模拟ClientHousekeepingService
+        final Channel closedChannel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        final AtomicLong scanTotalCnt = new AtomicLong(0);
+        final AtomicLong scanMaxTime = new AtomicLong(0);
+        Thread housekeeping = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long begin = System.nanoTime();
+                    producerManager.scanNotActiveChannel();
+                    consumerManager.scanNotActiveChannel();
+                    producerManager.doChannelCloseEvent("127.0.0.1", closedChannel);
+                    consumerManager.doChannelCloseEvent("127.0.0.1", closedChannel);
+                    scanMaxTime.set(Math.max(scanMaxTime.get(), System.nanoTime() - begin));
+                    scanTotalCnt.incrementAndGet();
+
+                    try {
+                        Thread.sleep(10);
+                    }
+                    catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }, "ClientHeartbeatBenchmark_Housekeeping");
+        housekeeping.start();
+
+        final AtomicLong heartbeatTotalCnt = new AtomicLong(0);
+        final AtomicLong heartbeatMaxTime = new AtomicLong(0);
+        final CountDownLatch latch = new CountDownLatch(threadSize);
+        long beginTime = System.currentTimeMillis();
+        for (int i = 0; i < threadSize; i++) {
+            final int threadIndex = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long maxTime = 0;
+                    for (int r = 0; r < rounds; r++) {
+                        for (int k = threadIndex; k < clientNums; k += threadSize) {
+                            final String group = "ClientHeartbeatBenchmark_" + (k % groupNums);
+                            long begin = System.nanoTime();
+                            producerManager.registerProducer(group, clients[k]);
+                            consumerManager.registerConsumer(group, clients[k], ConsumeType.CONSUME_PASSIVELY,
+                                MessageModel.CLUSTERING, ConsumeFromWhere.CONSUME_FROM_LAST_OFFSET, subList);
+                            maxTime = Math.max(maxTime, System.nanoTime() - begin);
+                            heartbeatTotalCnt.incrementAndGet();
+                        }
+                    }
+
+                    synchronized (heartbeatMaxTime) {
+                        heartbeatMaxTime.set(Math.max(heartbeatMaxTime.get(), maxTime));
+                    }
+                    latch.countDown();
+                }
+            }, "ClientHeartbeatBenchmark_" + i).start();
+        }
+        latch.await();
+        long eclipseTime = Math.max(1, System.currentTimeMillis() - beginTime);
+
+        housekeeping.interrupt();
+        housekeeping.join();
+
+        System.out.printf("heartbeat tps: %10.0f max heartbeat time: %6.2fms%n", heartbeatTotalCnt.get()
+                * 1000.0 / eclipseTime, heartbeatMaxTime.get() / 1000000.0);
+        System.out.printf("housekeeping times: %d max housekeeping time: %6.2fms%n", scanTotalCnt.get(),
+            scanMaxTime.get() / 1000000.0);
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.research.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.QueryMessageResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * 对比开启、关闭索引Key过滤器时按Key查询消息的耗时<br>
+ * 每条消息一个唯一Key，索引分布在多个索引文件中，分别查询存在和不存在的Key<br>
+ * 用法：IndexQueryBenchmark [messages] [indexNumPerFile] [hashSlotNum] [queries]
+ */
+public class IndexQueryBenchmark {
+    private static final String Topic = "IndexQueryBenchmark";
+
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length >= 1 ? Integer.parseInt(args[0]) : 200000;
+        final int indexNum = args.length >= 2 ? Integer.parseInt(args[1]) : 20000;
+        final int hashSlotNum = args.length >= 3 ? Integer.parseInt(args[2]) : 5000;
+        final int queries = args.length >= 4 ? Integer.parseInt(args[3]) : 20000;
+
+        for (boolean keyFilter : new boolean[] { false, true }) {
+            final String storeDir =
+                    System.getProperty("java.io.tmpdir") + File.separator + "IndexQueryBenchmark_"
+                            + System.currentTimeMillis();
+            MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+            messageStoreConfig.setStorePathRootDir(storeDir);
+            messageStoreConfig.setStorePathCommitLog(storeDir + File.separator + "commitlog");
+            messageStoreConfig.setMaxIndexNum(indexNum);
+            messageStoreConfig.setMaxHashSlotNum(hashSlotNum);
+            messageStoreConfig.setMessageIndexKeyFilterEnable(keyFilter);
+
+            DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig);
+            if (!messageStore.load()) {
+                System.out.println("load store failed");
+                System.exit(-1);
+            }
+            messageStore.start();
+
+            final SocketAddress bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+            final SocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+            final byte[] body = new byte[128];
+            for (int i = 0; i < messages; i++) {
+                MessageExtBrokerInner msg = new MessageExtBrokerInner();
+                msg.setTopic(Topic);
+                msg.setQueueId(i % 8);
+                msg.setKeys("UniqKey" + i);
+                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+                msg.setBody(body);
+                msg.setBornTimestamp(System.currentTimeMillis());
+                msg.setBornHost(bornHost);
+                msg.setStoreHost(storeHost);
+                if (!messageStore.putMessage(msg).isOk()) {
+                    System.out.println("put message failed");
+                    System.exit(-1);
+                }
+            }
+
+            while (messageStore.indexBehindBytes() > 0) {
+                Thread.sleep(100);
+            }
+
+            for (boolean exist : new boolean[] { true, false }) {
+                Random random = new Random(0);
+                long[] costs = new long[queries];
+                long found = 0;
+                for (int i = 0; i < queries; i++) {
+                    int n = random.nextInt(messages);
+                    String key = "UniqKey" + (exist ? n : n + messages);
+                    long beginTime = System.nanoTime();
+                    QueryMessageResult result = messageStore.queryMessage(Topic, key, 32, 0, Long.MAX_VALUE);
+                    costs[i] = System.nanoTime() - beginTime;
+                    found += result.getMessageBufferList().size();
+                    result.release();
+                }
+
+                Arrays.sort(costs);
+                long total = 0;
+                for (long cost : costs) {
+                    total += cost;
+                }
+                System.out.printf("keyFilter=%-5s exist=%-5s found=%d avg(us): %d p99(us): %d%n", keyFilter,
+                    exist, found, total / queries / 1000, costs[(int) (queries * 0.99)] / 1000);
+            }
+
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+
+        System.exit(0);
+    }
+}
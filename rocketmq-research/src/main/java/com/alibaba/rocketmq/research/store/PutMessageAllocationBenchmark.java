@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.research.store;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * 统计发送线程每写入一条消息在堆上分配的字节数（bytes/op），依赖HotSpot的线程内存分配统计<br>
+ * 用法：PutMessageAllocationBenchmark [messageSize] [messages]
+ */
+public class PutMessageAllocationBenchmark {
+    private static final int QueueTotal = 16;
+
+
+    public static void main(String[] args) throws Exception {
+        final int messageSize = args.length >= 1 ? Integer.parseInt(args[0]) : 128;
+        final int messages = args.length >= 2 ? Integer.parseInt(args[1]) : 500000;
+
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            System.out.println("thread allocated memory not supported by this JVM");
+            System.exit(-1);
+        }
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        for (boolean encodeOutOfLock : new boolean[] { false, true }) {
+            final String storeDir =
+                    System.getProperty("java.io.tmpdir") + File.separator + "PutMessageAllocationBenchmark_"
+                            + encodeOutOfLock + "_" + System.currentTimeMillis();
+
+            MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+            messageStoreConfig.setStorePathRootDir(storeDir);
+            messageStoreConfig.setStorePathCommitLog(storeDir + File.separator + "commitlog");
+            messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024 * 256);
+            messageStoreConfig.setMessageIndexEnable(false);
+            messageStoreConfig.setEncodeMessageOutOfLock(encodeOutOfLock);
+
+            DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig);
+            if (!messageStore.load()) {
+                System.out.println("load store failed");
+                System.exit(-1);
+            }
+            messageStore.start();
+
+            // 消息对象复用，只统计存储层的分配
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic("PutMessageAllocationBenchmark");
+            msg.setTags("TagA");
+            msg.setKeys("Hello");
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            msg.setBody(new byte[messageSize]);
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            SocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+            msg.setStoreHost(storeHost);
+
+            // 预热
+            for (int i = 0; i < messages; i++) {
+                msg.setQueueId(i % QueueTotal);
+                messageStore.putMessage(msg);
+            }
+
+            final long threadId = Thread.currentThread().getId();
+            long okCnt = 0;
+            long beginBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < messages; i++) {
+                msg.setQueueId(i % QueueTotal);
+                PutMessageResult result = messageStore.putMessage(msg);
+                if (result != null && result.isOk()) {
+                    okCnt++;
+                }
+            }
+            long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - beginBytes;
+
+            System.out.printf("encodeOutOfLock=%-5s messages: %d ok: %d bytes/op: %.1f%n", encodeOutOfLock,
+                messages, okCnt, allocatedBytes / (double) messages);
+
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.research.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.PutMessageLockType;
+
+
+/**
+ * 对比不同写锁策略下，每个发送线程的写入TPS<br>
+ * 用法：PutMessageLockBenchmark [threadSize] [messageSize] [messagesPerThread]
+ */
+public class PutMessageLockBenchmark {
+    private static final int QueueTotal = 16;
+
+
+    public static void main(String[] args) throws Exception {
+        final int threadSize = args.length >= 1 ? Integer.parseInt(args[0]) : 64;
+        final int messageSize = args.length >= 2 ? Integer.parseInt(args[1]) : 128;
+        final int messagesPerThread = args.length >= 3 ? Integer.parseInt(args[2]) : 20000;
+
+        final byte[] body = new byte[messageSize];
+        final SocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        final SocketAddress bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+
+        System.out.printf("threads: %d, message size: %d, messages per thread: %d%n", threadSize,
+            messageSize, messagesPerThread);
+
+        for (PutMessageLockType lockType : PutMessageLockType.values()) {
+            for (boolean encodeOutOfLock : new boolean[] { false, true }) {
+                final String storeDir =
+                        System.getProperty("java.io.tmpdir") + File.separator + "PutMessageLockBenchmark_"
+                                + lockType + "_" + encodeOutOfLock + "_" + System.currentTimeMillis();
+
+                MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+                messageStoreConfig.setStorePathRootDir(storeDir);
+                messageStoreConfig.setStorePathCommitLog(storeDir + File.separator + "commitlog");
+                messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024 * 256);
+                messageStoreConfig.setMessageIndexEnable(false);
+                messageStoreConfig.setPutMessageLockType(lockType);
+                messageStoreConfig.setEncodeMessageOutOfLock(encodeOutOfLock);
+
+                final DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig);
+                if (!messageStore.load()) {
+                    System.out.println("load store failed");
+                    System.exit(-1);
+                }
+                messageStore.start();
+
+                final AtomicLong putTotalCnt = new AtomicLong(0);
+                final CountDownLatch latch = new CountDownLatch(threadSize);
+                long beginTime = System.currentTimeMillis();
+                for (int i = 0; i < threadSize; i++) {
+                    final int queueId = i % QueueTotal;
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int k = 0; k < messagesPerThread; k++) {
+                                MessageExtBrokerInner msg = new MessageExtBrokerInner();
+                                msg.setTopic("PutMessageLockBenchmark");
+                                msg.setTags("TagA");
+                                msg.setBody(body);
+                                msg.setQueueId(queueId);
+                                msg.setBornTimestamp(System.currentTimeMillis());
+                                msg.setBornHost(bornHost);
+                                msg.setStoreHost(storeHost);
+
+                                PutMessageResult result = messageStore.putMessage(msg);
+                                if (result != null && result.isOk()) {
+                                    putTotalCnt.incrementAndGet();
+                                }
+                            }
+                            latch.countDown();
+                        }
+                    }, "PutMessageLockBenchmark_" + i).start();
+                }
+                latch.await();
+                long eclipseTime = Math.max(1, System.currentTimeMillis() - beginTime);
+
+                double tps = putTotalCnt.get() * 1000.0 / eclipseTime;
+                System.out.printf("%-16s encodeOutOfLock=%-5s total tps: %10.0f per-thread tps: %8.0f%n",
+                    lockType, encodeOutOfLock, tps, tps / threadSize);
+
+                messageStore.shutdown();
+                messageStore.destroy();
+            }
+        }
+
+        System.exit(0);
+    }
+}
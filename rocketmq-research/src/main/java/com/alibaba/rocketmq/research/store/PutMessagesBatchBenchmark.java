@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.research.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBatch;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * 对比逐条写入与批量写入CommitLog的吞吐量，默认100字节消息体<br>
+ * 用法：PutMessagesBatchBenchmark [messageSize] [batchSize] [messages]
+ */
+public class PutMessagesBatchBenchmark {
+    private static final String Topic = "PutMessagesBatchBenchmark";
+
+
+    public static void main(String[] args) throws Exception {
+        final int messageSize = args.length >= 1 ? Integer.parseInt(args[0]) : 100;
+        final int batchSize = args.length >= 2 ? Integer.parseInt(args[1]) : 32;
+        final int messages = args.length >= 3 ? Integer.parseInt(args[2]) : 2000000;
+
+        final SocketAddress bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        final SocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+
+        for (int batch : new int[] { 1, batchSize }) {
+            final String storeDir =
+                    System.getProperty("java.io.tmpdir") + File.separator + "PutMessagesBatchBenchmark_" + batch
+                            + "_" + System.currentTimeMillis();
+
+            MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+            messageStoreConfig.setStorePathRootDir(storeDir);
+            messageStoreConfig.setStorePathCommitLog(storeDir + File.separator + "commitlog");
+            messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024 * 256);
+            messageStoreConfig.setMessageIndexEnable(false);
+
+            DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig);
+            if (!messageStore.load()) {
+                System.out.println("load store failed");
+                System.exit(-1);
+            }
+            messageStore.start();
+
+            long okCnt = 0;
+            long beginTime = System.currentTimeMillis();
+            for (int i = 0; i < messages; i += batch) {
+                boolean ok;
+                if (1 == batch) {
+                    ok = messageStore.putMessage(buildMessage(messageSize, bornHost, storeHost)).isOk();
+                }
+                else {
+                    MessageExtBatch messageExtBatch = new MessageExtBatch(batch);
+                    messageExtBatch.setTopic(Topic);
+                    messageExtBatch.setBornTimestamp(System.currentTimeMillis());
+                    messageExtBatch.setBornHost(bornHost);
+                    messageExtBatch.setStoreHost(storeHost);
+                    for (int k = 0; k < batch; k++) {
+                        messageExtBatch.addMessage(buildMessage(messageSize, bornHost, storeHost));
+                    }
+                    ok = messageStore.putMessages(messageExtBatch).isOk();
+                }
+
+                if (ok) {
+                    okCnt += batch;
+                }
+            }
+            long eclipseTime = Math.max(System.currentTimeMillis() - beginTime, 1);
+
+            System.out.printf("batch=%-4d messages: %d ok: %d eclipse(ms): %d tps: %d%n", batch, messages,
+                okCnt, eclipseTime, okCnt * 1000 / eclipseTime);
+
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+
+        System.exit(0);
+    }
+
+
+    private static MessageExtBrokerInner buildMessage(final int messageSize, final SocketAddress bornHost,
+            final SocketAddress storeHost) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(Topic);
+        msg.setTags("TagA");
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        msg.setBody(new byte[messageSize]);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setBornHost(bornHost);
+        msg.setStoreHost(storeHost);
+        return msg;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.research.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+
+
+/**
+ * 对比逐个文件恢复与并行恢复的启动耗时<br>
+ * 先写入一个合成的存储，再分别模拟正常关闭、异常关闭（删除Checkpoint，校验全部文件）后重启<br>
+ * 用法：RecoverBenchmark [messageSize] [fileSizeMB] [files] [topics] [recoverThreadNums]
+ */
+public class RecoverBenchmark {
+    private static final int QueueNumsPerTopic = 8;
+
+
+    public static void main(String[] args) throws Exception {
+        final int messageSize = args.length >= 1 ? Integer.parseInt(args[0]) : 1024;
+        final int fileSize = (args.length >= 2 ? Integer.parseInt(args[1]) : 64) * 1024 * 1024;
+        final int files = args.length >= 3 ? Integer.parseInt(args[2]) : 8;
+        final int topics = args.length >= 4 ? Integer.parseInt(args[3]) : 64;
+        final int recoverThreadNums =
+                args.length >= 5 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+        final String storeDir =
+                System.getProperty("java.io.tmpdir") + File.separator + "RecoverBenchmark_"
+                        + System.currentTimeMillis();
+
+        // 第一步，写入合成数据
+        MessageStoreConfig messageStoreConfig = buildMessageStoreConfig(storeDir, fileSize, false, 1);
+        DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig);
+        if (!messageStore.load()) {
+            System.out.println("load store failed");
+            System.exit(-1);
+        }
+        messageStore.start();
+
+        final SocketAddress bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        final SocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        final byte[] body = new byte[messageSize];
+        final long maxOffset = (long) fileSize * files;
+        long messages = 0;
+        while (messageStore.getMaxPhyOffset() < maxOffset) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic("RecoverBenchmark_" + (messages % topics));
+            msg.setQueueId((int) (messages / topics % QueueNumsPerTopic));
+            msg.setTags("TagA");
+            msg.setKeys("Key" + messages);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            msg.setBody(body);
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setBornHost(bornHost);
+            msg.setStoreHost(storeHost);
+            if (!messageStore.putMessage(msg).isOk()) {
+                System.out.println("put message failed");
+                System.exit(-1);
+            }
+            messages++;
+        }
+        messageStore.shutdown();
+        System.out.printf("store ready, messages: %d commitlog(MB): %d topics: %d%n", messages,
+            maxOffset / 1024 / 1024, topics);
+
+        // 第二步，分别以不同方式重启，统计load耗时
+        for (boolean abnormally : new boolean[] { false, true }) {
+            for (boolean parallel : new boolean[] { false, true }) {
+                if (abnormally) {
+                    // 删除Checkpoint，异常恢复时从第一个文件开始校验
+                    new File(StorePathConfigHelper.getStoreCheckpoint(storeDir)).delete();
+                    new File(StorePathConfigHelper.getAbortFile(storeDir)).createNewFile();
+                }
+
+                messageStoreConfig = buildMessageStoreConfig(storeDir, fileSize, parallel, recoverThreadNums);
+                messageStore = new DefaultMessageStore(messageStoreConfig);
+                long beginTime = System.currentTimeMillis();
+                boolean result = messageStore.load();
+                long eclipseTime = System.currentTimeMillis() - beginTime;
+
+                System.out.printf("abnormally=%-5s parallel=%-5s threads=%d load: %s eclipse(ms): %d%n",
+                    abnormally, parallel, parallel ? recoverThreadNums : 1, result, eclipseTime);
+
+                messageStore.start();
+                messageStore.shutdown();
+            }
+        }
+
+        messageStore.destroy();
+        System.exit(0);
+    }
+
+
+    private static MessageStoreConfig buildMessageStoreConfig(final String storeDir, final int fileSize,
+            final boolean parallel, final int recoverThreadNums) {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storeDir);
+        messageStoreConfig.setStorePathCommitLog(storeDir + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(fileSize);
+        messageStoreConfig.setMessageIndexEnable(false);
+        messageStoreConfig.setParallelRecoverEnable(parallel);
+        messageStoreConfig.setRecoverThreadNums(recoverThreadNums);
+        return messageStoreConfig;
+    }
+}
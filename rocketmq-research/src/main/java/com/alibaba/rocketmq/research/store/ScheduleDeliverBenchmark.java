@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.research.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.config.FlushDiskType;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * 对比逐条投递与批量投递到期延时消息的耗时，先写入一批5秒级别的延时消息，再统计全部投递完的延迟<br>
+ * 用法：ScheduleDeliverBenchmark [batchNums] [messages] [queueNums] [SYNC_FLUSH|ASYNC_FLUSH]
+ */
+public class ScheduleDeliverBenchmark {
+    private static final String Topic = "ScheduleDeliverBenchmark";
+
+
+    public static void main(String[] args) throws Exception {
+        final int batchNums = args.length >= 1 ? Integer.parseInt(args[0]) : 32;
+        final int messages = args.length >= 2 ? Integer.parseInt(args[1]) : 200000;
+        final int queueNums = args.length >= 3 ? Integer.parseInt(args[2]) : 4;
+        final FlushDiskType flushDiskType =
+                args.length >= 4 ? FlushDiskType.valueOf(args[3]) : FlushDiskType.ASYNC_FLUSH;
+
+        final SocketAddress bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        final SocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+
+        for (int batch : new int[] { 1, batchNums }) {
+            final String storeDir =
+                    System.getProperty("java.io.tmpdir") + File.separator + "ScheduleDeliverBenchmark_" + batch
+                            + "_" + System.currentTimeMillis();
+
+            MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+            messageStoreConfig.setStorePathRootDir(storeDir);
+            messageStoreConfig.setStorePathCommitLog(storeDir + File.separator + "commitlog");
+            messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024 * 256);
+            messageStoreConfig.setMessageIndexEnable(false);
+            messageStoreConfig.setFlushDiskType(flushDiskType);
+            messageStoreConfig.setMessageDelayLevel("5s");
+            messageStoreConfig.setScheduleDeliverBatchNums(batch);
+
+            DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig);
+            if (!messageStore.load()) {
+                System.out.println("load store failed");
+                System.exit(-1);
+            }
+            messageStore.start();
+
+            for (int i = 0; i < messages; i++) {
+                MessageExtBrokerInner msg = new MessageExtBrokerInner();
+                msg.setTopic(Topic);
+                msg.setTags("TagA");
+                msg.setQueueId(i % queueNums);
+                msg.setDelayTimeLevel(1);
+                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+                msg.setBody(new byte[100]);
+                msg.setBornTimestamp(System.currentTimeMillis());
+                msg.setBornHost(bornHost);
+                msg.setStoreHost(storeHost);
+                messageStore.putMessage(msg);
+            }
+
+            // 最后一条消息的投递时间
+            final long deliverTimestamp = System.currentTimeMillis() + 5000;
+            long delivered = 0;
+            while (delivered < messages) {
+                Thread.sleep(10);
+                delivered = 0;
+                for (int queueId = 0; queueId < queueNums; queueId++) {
+                    delivered += messageStore.getMaxOffsetInQuque(Topic, queueId);
+                }
+            }
+            long lag = System.currentTimeMillis() - deliverTimestamp;
+
+            System.out.printf("batch=%-4d messages: %d last deliver lag(ms): %d%n", batch, messages, lag);
+
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+
+        System.exit(0);
+    }
+}
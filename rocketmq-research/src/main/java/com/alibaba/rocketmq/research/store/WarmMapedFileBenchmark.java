@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.research.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * 对比CommitLog文件预热开关下的写入延迟，重点关注切换到新文件后的前几千条消息<br>
+ * 用法：WarmMapedFileBenchmark [messageSize] [fileSizeMB] [files]
+ */
+public class WarmMapedFileBenchmark {
+    private static final int QueueTotal = 16;
+    // 每个新文件统计前多少条消息
+    private static final int FirstWriteMessages = 2000;
+
+
+    public static void main(String[] args) throws Exception {
+        final int messageSize = args.length >= 1 ? Integer.parseInt(args[0]) : 1024;
+        final int fileSize = (args.length >= 2 ? Integer.parseInt(args[1]) : 64) * 1024 * 1024;
+        final int files = args.length >= 3 ? Integer.parseInt(args[2]) : 4;
+
+        for (boolean warm : new boolean[] { false, true }) {
+            final String storeDir =
+                    System.getProperty("java.io.tmpdir") + File.separator + "WarmMapedFileBenchmark_" + warm
+                            + "_" + System.currentTimeMillis();
+
+            MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+            messageStoreConfig.setStorePathRootDir(storeDir);
+            messageStoreConfig.setStorePathCommitLog(storeDir + File.separator + "commitlog");
+            messageStoreConfig.setMapedFileSizeCommitLog(fileSize);
+            messageStoreConfig.setMessageIndexEnable(false);
+            messageStoreConfig.setWarmMapedFileEnable(warm);
+
+            DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig);
+            if (!messageStore.load()) {
+                System.out.println("load store failed");
+                System.exit(-1);
+            }
+            messageStore.start();
+
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic("WarmMapedFileBenchmark");
+            msg.setTags("TagA");
+            msg.setKeys("Hello");
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            msg.setBody(new byte[messageSize]);
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            msg.setStoreHost(new InetSocketAddress(InetAddress.getLocalHost(), 8123));
+
+            long lastFileIndex = -1;
+            int writesInFile = 0;
+            long firstWriteTotal = 0;
+            long firstWriteCount = 0;
+            long firstWriteMax = 0;
+            long totalTime = 0;
+            long totalCount = 0;
+            long maxTime = 0;
+            long maxOffset = (long) fileSize * files;
+            for (int i = 0;; i++) {
+                msg.setQueueId(i % QueueTotal);
+                long begin = System.nanoTime();
+                PutMessageResult result = messageStore.putMessage(msg);
+                long eclipse = System.nanoTime() - begin;
+                if (result == null || !result.isOk()) {
+                    System.out.println("put message failed, " + result);
+                    break;
+                }
+
+                long offset = result.getAppendMessageResult().getWroteOffset();
+                if (offset >= maxOffset) {
+                    break;
+                }
+
+                long fileIndex = offset / fileSize;
+                if (fileIndex != lastFileIndex) {
+                    lastFileIndex = fileIndex;
+                    writesInFile = 0;
+                }
+
+                // 第一个文件由启动时创建，不计入
+                if (fileIndex > 0 && writesInFile++ < FirstWriteMessages) {
+                    firstWriteTotal += eclipse;
+                    firstWriteCount++;
+                    firstWriteMax = Math.max(firstWriteMax, eclipse);
+                }
+
+                totalTime += eclipse;
+                totalCount++;
+                maxTime = Math.max(maxTime, eclipse);
+            }
+
+            System.out.printf(
+                "warm=%-5s messages: %d avg(us): %.2f max(us): %d | first %d writes per new file avg(us): %.2f max(us): %d%n",
+                warm, totalCount, totalTime / 1000.0 / totalCount, maxTime / 1000, FirstWriteMessages,
+                firstWriteTotal / 1000.0 / Math.max(firstWriteCount, 1), firstWriteMax / 1000);
+            System.out.printf("warm=%-5s store stats warmMapedFileTimeMax(ms): %d putMessageNewFileTimeMax(us): %d%n",
+                warm, messageStore.getStoreStatsService().getWarmMapedFileTimeMax(), messageStore
+                    .getStoreStatsService().getPutMessageNewFileTimeMax());
+
+            messageStore.shutdown();
+            messageStore.destroy();
+        }
+
+        System.exit(0);
+    }
+}
@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import com.alibaba.rocketmq.common.ServiceThread;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 
 
 /**
@@ -43,6 +44,18 @@ public class AllocateMapedFileService extends ServiceThread {
     private PriorityBlockingQueue<AllocateRequest> requestQueue =
             new PriorityBlockingQueue<AllocateRequest>();
     private volatile boolean hasException = false;
+    // 为null时不做文件预热
+    private final DefaultMessageStore defaultMessageStore;
+
+
+    public AllocateMapedFileService() {
+        this(null);
+    }
+
+
+    public AllocateMapedFileService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
 
 
     public MapedFile putRequestAndReturnMapedFile(String nextFilePath, String nextNextFilePath, int fileSize) {
@@ -152,6 +165,15 @@ public class AllocateMapedFileService extends ServiceThread {
                             + " " + req.getFilePath() + " " + req.getFileSize());
                 }
 
+                // 预热CommitLog文件
+                if (this.isWarmMapedFileEnable(req.getFileSize())) {
+                    MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+                    long warmTime =
+                            mapedFile.warmMappedFile(config.getFlushDiskType(),
+                                config.getFlushLeastPagesWhenWarmMapedFile());
+                    this.defaultMessageStore.getStoreStatsService().setWarmMapedFileTimeMax(warmTime);
+                }
+
                 req.setMapedFile(mapedFile);
                 this.hasException = false;
             }
@@ -172,6 +194,15 @@ public class AllocateMapedFileService extends ServiceThread {
         return true;
     }
 
+    private boolean isWarmMapedFileEnable(final int fileSize) {
+        if (null == this.defaultMessageStore) {
+            return false;
+        }
+
+        MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+        return config.isWarmMapedFileEnable() && fileSize >= config.getMapedFileSizeCommitLog();
+    }
+
     class AllocateRequest implements Comparable<AllocateRequest> {
         // 文件全路径
         private String filePath;
@@ -15,6 +15,13 @@
  */
 package com.alibaba.rocketmq.store;
 
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+
+
 /**
  * 向物理队列写入消息返回结果
  * 
@@ -30,10 +37,16 @@ public class AppendMessageResult {
     private int wroteBytes;
     // 消息ID
     private String msgId;
+    // 存储主机地址，用于在锁外按需生成消息ID
+    private SocketAddress storeHost;
     // 消息存储时间
     private long storeTimestamp;
     // 写入逻辑队列的offset（递进1）
     private long logicsOffset;
+    // 写入的消息条数，批量写入时大于1
+    private int msgNum = 1;
+    // 批量写入时每条消息的物理偏移量，用于生成消息ID
+    private long[] msgOffsets;
 
 
     public AppendMessageResult(AppendMessageStatus status) {
@@ -52,6 +65,16 @@ public class AppendMessageResult {
     }
 
 
+    /**
+     * 消息ID在第一次获取时才生成，不占用写锁时间
+     */
+    public AppendMessageResult(AppendMessageStatus status, long wroteOffset, int wroteBytes,
+            SocketAddress storeHost, long storeTimestamp, long logicsOffset) {
+        this(status, wroteOffset, wroteBytes, (String) null, storeTimestamp, logicsOffset);
+        this.storeHost = storeHost;
+    }
+
+
     public boolean isOk() {
         return this.status == AppendMessageStatus.PUT_OK;
     }
@@ -87,7 +110,30 @@ public class AppendMessageResult {
     }
 
 
+    /**
+     * 批量写入时返回以逗号分隔的所有消息ID
+     */
     public String getMsgId() {
+        if (null == this.msgId && this.storeHost != null) {
+            ByteBuffer msgIdMemory = ByteBuffer.allocate(MessageDecoder.MSG_ID_LENGTH);
+            ByteBuffer hostHolder = MessageExt.SocketAddress2ByteBuffer(this.storeHost);
+            if (null == this.msgOffsets) {
+                this.msgId = MessageDecoder.createMessageId(msgIdMemory, hostHolder, this.wroteOffset);
+            }
+            else {
+                StringBuilder sb =
+                        new StringBuilder(this.msgOffsets.length * (MessageDecoder.MSG_ID_LENGTH * 2 + 1));
+                for (int i = 0; i < this.msgOffsets.length; i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    hostHolder.rewind();
+                    msgIdMemory.clear();
+                    sb.append(MessageDecoder.createMessageId(msgIdMemory, hostHolder, this.msgOffsets[i]));
+                }
+                this.msgId = sb.toString();
+            }
+        }
         return msgId;
     }
 
@@ -117,11 +163,31 @@ public class AppendMessageResult {
     }
 
 
+    public int getMsgNum() {
+        return msgNum;
+    }
+
+
+    public void setMsgNum(int msgNum) {
+        this.msgNum = msgNum;
+    }
+
+
+    public long[] getMsgOffsets() {
+        return msgOffsets;
+    }
+
+
+    public void setMsgOffsets(long[] msgOffsets) {
+        this.msgOffsets = msgOffsets;
+    }
+
+
     @Override
     public String toString() {
         return "AppendMessageResult [status=" + status + ", wroteOffset=" + wroteOffset + ", wroteBytes="
                 + wroteBytes + ", msgId=" + msgId + ", storeTimestamp=" + storeTimestamp + ", logicsOffset="
-                + logicsOffset + "]";
+                + logicsOffset + ", msgNum=" + msgNum + "]";
     }
 
 }
@@ -0,0 +1,675 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+
+
+/**
+ * 冷存储，保存从MapedFileQueue卸载下来的已写满文件，一般放在容量大、速度慢的磁盘上<br>
+ * 文件按块独立压缩，读取时只解压需要的块，解压后的块放在LRU缓存中，并异步预读后续的块<br>
+ * 文件格式 <Block 0> ... <Block N-1> <Block Offset * (N + 1)> <Footer>
+ */
+public class ColdFileStore {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 冷存储文件MAGIC CODE
+    private final static int ColdFileMagicCode = 0xC01DF11E;
+    // Footer <Index Position> <Block Nums> <Block Size> <Raw Size> <Magic Code>
+    private final static int FooterSize = 8 + 4 + 4 + 4 + 4;
+    // 正在写入的临时文件后缀
+    private final static String TmpFileSuffix = ".tmp";
+    // 冷存储目录
+    private final String storePath;
+    // 新文件每块的原始大小，已存在的文件以Footer中记录的为准
+    private final int blockSize;
+    // 压缩级别
+    private final int compressLevel;
+    // 最多缓存多少个解压后的块
+    private final int readCacheBlocks;
+    // 读取某块时，预读后续多少块
+    private final int readAheadBlocks;
+    // 各个文件，按起始Offset有序
+    private final List<ColdFile> coldFiles = new CopyOnWriteArrayList<ColdFile>();
+    // 解压后的块，<文件起始Offset, 块序号>
+    private final LinkedHashMap<BlockKey, byte[]> blockCache;
+    // 已提交预读的块，避免重复提交
+    private final ConcurrentHashMap<BlockKey, Boolean> readAheadPending =
+            new ConcurrentHashMap<BlockKey, Boolean>();
+    // 预读线程
+    private final ExecutorService readAheadExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryImpl(
+        "ColdFileReadAheadThread"));
+    // 卸载线程，压缩整个文件耗时较长，不能放在清理文件的线程中
+    private final ExecutorService offloadExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryImpl(
+        "ColdFileOffloadThread"));
+    // 正在卸载的文件，<文件起始Offset>
+    private final ConcurrentHashMap<Long, Boolean> offloadPending = new ConcurrentHashMap<Long, Boolean>();
+    // 卸载失败的文件，<文件起始Offset>
+    private final ConcurrentHashMap<Long, Boolean> offloadFailed = new ConcurrentHashMap<Long, Boolean>();
+
+
+    public ColdFileStore(final String storePath, final int blockSize, final int compressLevel,
+            final int readCacheBlocks, final int readAheadBlocks) {
+        this.storePath = storePath;
+        this.blockSize = blockSize;
+        this.compressLevel = compressLevel;
+        this.readCacheBlocks = readCacheBlocks;
+        this.readAheadBlocks = readAheadBlocks;
+        this.blockCache = new LinkedHashMap<BlockKey, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = -2960913389532958364L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<BlockKey, byte[]> eldest) {
+                return this.size() > ColdFileStore.this.readCacheBlocks;
+            }
+        };
+    }
+
+
+    public boolean load() {
+        File dir = new File(this.storePath);
+        MapedFile.ensureDirOK(this.storePath);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                // 上次卸载到一半的文件
+                if (file.getName().endsWith(TmpFileSuffix)) {
+                    log.info("delete unfinished cold file " + file.getPath() + " " + file.delete());
+                    continue;
+                }
+
+                if (!isColdFileName(file.getName())) {
+                    log.warn("skip unknown file in cold store, " + file.getPath());
+                    continue;
+                }
+
+                try {
+                    this.coldFiles.add(new ColdFile(file));
+                    log.info("load cold file " + file.getPath() + " OK");
+                }
+                catch (IOException e) {
+                    log.error("load cold file " + file.getPath() + " error", e);
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    private static boolean isColdFileName(final String fileName) {
+        if (fileName.length() != 20) {
+            return false;
+        }
+
+        for (int i = 0; i < fileName.length(); i++) {
+            if (!Character.isDigit(fileName.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    public void shutdown() {
+        this.readAheadExecutor.shutdown();
+        this.offloadExecutor.shutdown();
+        for (ColdFile coldFile : this.coldFiles) {
+            coldFile.close();
+        }
+    }
+
+
+    public void destroy() {
+        for (ColdFile coldFile : this.coldFiles) {
+            coldFile.close();
+            coldFile.getFile().delete();
+        }
+        this.coldFiles.clear();
+        this.clearBlockCache();
+
+        new File(this.storePath).delete();
+    }
+
+
+    /**
+     * 最小Offset，没有文件时返回-1
+     */
+    public long getMinOffset() {
+        if (!this.coldFiles.isEmpty()) {
+            try {
+                return this.coldFiles.get(0).getFileFromOffset();
+            }
+            catch (IndexOutOfBoundsException e) {
+                // 并发删除
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * 在卸载线程中卸载文件，清理线程据返回值决定能否删除原文件
+     *
+     * @return 已经卸载成功，或者卸载失败需要直接删除时返回true；正在卸载时返回false
+     */
+    public boolean offloadAsync(final MapedFile mapedFile) {
+        final Long fileFromOffset = mapedFile.getFileFromOffset();
+        if (this.findColdFile(fileFromOffset) != null) {
+            return true;
+        }
+
+        if (this.offloadFailed.remove(fileFromOffset) != null) {
+            log.warn("offload cold file failed, delete it directly, " + mapedFile.getFileName());
+            return true;
+        }
+
+        if (this.offloadPending.putIfAbsent(fileFromOffset, Boolean.TRUE) != null) {
+            return false;
+        }
+
+        try {
+            this.offloadExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!ColdFileStore.this.offload(mapedFile)) {
+                            ColdFileStore.this.offloadFailed.put(fileFromOffset, Boolean.TRUE);
+                        }
+                    }
+                    finally {
+                        ColdFileStore.this.offloadPending.remove(fileFromOffset);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // 已经关闭
+            this.offloadPending.remove(fileFromOffset);
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 压缩文件已写入的数据并保存到冷存储，文件已经卸载过时直接返回成功
+     *
+     * @return 是否卸载成功，失败时不能删除原文件
+     */
+    public boolean offload(final MapedFile mapedFile) {
+        if (this.findColdFile(mapedFile.getFileFromOffset()) != null) {
+            return true;
+        }
+
+        if (!mapedFile.hold()) {
+            log.warn("offload cold file, but hold failed, " + mapedFile.getFileName());
+            return false;
+        }
+
+        final long beginTime = System.currentTimeMillis();
+        final String fileName = UtilAll.offset2FileName(mapedFile.getFileFromOffset());
+        final File tmpFile = new File(this.storePath, fileName + TmpFileSuffix);
+        final File coldFile = new File(this.storePath, fileName);
+        final Deflater deflater = new Deflater(this.compressLevel);
+        RandomAccessFile randomAccessFile = null;
+        try {
+            MapedFile.ensureDirOK(this.storePath);
+            randomAccessFile = new RandomAccessFile(tmpFile, "rw");
+            randomAccessFile.setLength(0);
+            final FileChannel fileChannel = randomAccessFile.getChannel();
+
+            final ByteBuffer data = mapedFile.sliceByteBuffer();
+            final int rawSize = mapedFile.getWrotePostion();
+            final int blockNums = (rawSize + this.blockSize - 1) / this.blockSize;
+            final long[] blockOffsets = new long[blockNums + 1];
+            final byte[] input = new byte[this.blockSize];
+            final byte[] output = new byte[this.blockSize];
+
+            long position = 0;
+            for (int i = 0; i < blockNums; i++) {
+                int size = Math.min(this.blockSize, rawSize - i * this.blockSize);
+                data.position(i * this.blockSize);
+                data.get(input, 0, size);
+
+                deflater.reset();
+                deflater.setInput(input, 0, size);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(output);
+                    position += this.writeFully(fileChannel, ByteBuffer.wrap(output, 0, length), position);
+                }
+
+                blockOffsets[i + 1] = position;
+            }
+
+            ByteBuffer tail = ByteBuffer.allocate(8 * blockOffsets.length + FooterSize);
+            for (long blockOffset : blockOffsets) {
+                tail.putLong(blockOffset);
+            }
+            tail.putLong(position);
+            tail.putInt(blockNums);
+            tail.putInt(this.blockSize);
+            tail.putInt(rawSize);
+            tail.putInt(ColdFileMagicCode);
+            tail.flip();
+            this.writeFully(fileChannel, tail, position);
+
+            fileChannel.force(false);
+            randomAccessFile.close();
+            randomAccessFile = null;
+
+            // 保留原文件的修改时间，冷存储按此时间过期
+            tmpFile.setLastModified(mapedFile.getLastModifiedTimestamp());
+            if (!tmpFile.renameTo(coldFile)) {
+                log.error("offload cold file, rename " + tmpFile.getPath() + " failed");
+                return false;
+            }
+
+            this.addColdFile(new ColdFile(coldFile));
+
+            log.info("offload " + mapedFile.getFileName() + " to cold store OK, raw size " + rawSize
+                    + ", compressed size " + position + ", eclipse time(ms) "
+                    + (System.currentTimeMillis() - beginTime));
+            return true;
+        }
+        catch (IOException e) {
+            log.error("offload " + mapedFile.getFileName() + " to cold store exception", e);
+            tmpFile.delete();
+            return false;
+        }
+        finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                }
+                catch (IOException e) {
+                    log.error("", e);
+                }
+            }
+            deflater.end();
+            mapedFile.release();
+        }
+    }
+
+
+    /**
+     * 读取offset开始的size字节，数据不能跨文件
+     */
+    public SelectMapedBufferResult getData(final long offset, final int size) {
+        ColdFile coldFile = this.findColdFile(offset);
+        if (null == coldFile) {
+            return null;
+        }
+
+        int pos = (int) (offset - coldFile.getFileFromOffset());
+        if (pos + size > coldFile.getRawSize()) {
+            log.warn("read cold file out of range, offset: " + offset + " size: " + size);
+            return null;
+        }
+
+        try {
+            int blockIndex = pos / coldFile.getBlockSize();
+            int posInBlock = pos % coldFile.getBlockSize();
+            byte[] block = this.getBlock(coldFile, blockIndex);
+
+            // 不跨块时直接引用缓存中的块
+            ByteBuffer byteBuffer = null;
+            if (posInBlock + size <= block.length) {
+                byteBuffer = ByteBuffer.wrap(block, posInBlock, size).slice();
+            }
+            else {
+                byteBuffer = ByteBuffer.allocate(size);
+                while (byteBuffer.hasRemaining()) {
+                    int length = Math.min(byteBuffer.remaining(), block.length - posInBlock);
+                    byteBuffer.put(block, posInBlock, length);
+                    if (byteBuffer.hasRemaining()) {
+                        block = this.getBlock(coldFile, ++blockIndex);
+                        posInBlock = 0;
+                    }
+                }
+                byteBuffer.flip();
+            }
+
+            this.readAhead(coldFile, blockIndex);
+            return new SelectMapedBufferResult(offset, byteBuffer, size, null);
+        }
+        catch (Exception e) {
+            log.error("read cold file exception, offset: " + offset + " size: " + size, e);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 删除过期的文件
+     *
+     * @param cleanImmediately
+     *            磁盘空间不足时，不管是否过期都删除最早的文件
+     */
+    public int deleteExpiredFile(final long expiredTime, final boolean cleanImmediately) {
+        int deleteCount = 0;
+        for (ColdFile coldFile : this.coldFiles) {
+            long liveMaxTimestamp = coldFile.getFile().lastModified() + expiredTime;
+            if (System.currentTimeMillis() < liveMaxTimestamp && !(cleanImmediately && 0 == deleteCount)) {
+                break;
+            }
+
+            this.coldFiles.remove(coldFile);
+            coldFile.close();
+            boolean result = coldFile.getFile().delete();
+            log.info("delete expired cold file " + coldFile.getFile().getPath() + " " + result);
+            deleteCount++;
+        }
+
+        if (deleteCount > 0) {
+            this.clearBlockCache();
+        }
+
+        return deleteCount;
+    }
+
+
+    public String getStorePath() {
+        return storePath;
+    }
+
+
+    private ColdFile findColdFile(final long offset) {
+        for (ColdFile coldFile : this.coldFiles) {
+            if (offset >= coldFile.getFileFromOffset()
+                    && offset < coldFile.getFileFromOffset() + coldFile.getRawSize()) {
+                return coldFile;
+            }
+        }
+
+        return null;
+    }
+
+
+    private void addColdFile(final ColdFile coldFile) {
+        synchronized (this.coldFiles) {
+            int index = 0;
+            while (index < this.coldFiles.size()
+                    && this.coldFiles.get(index).getFileFromOffset() < coldFile.getFileFromOffset()) {
+                index++;
+            }
+            this.coldFiles.add(index, coldFile);
+        }
+    }
+
+
+    private void clearBlockCache() {
+        synchronized (this.blockCache) {
+            this.blockCache.clear();
+        }
+    }
+
+
+    private byte[] getBlock(final ColdFile coldFile, final int blockIndex) throws IOException,
+            DataFormatException {
+        BlockKey key = new BlockKey(coldFile.getFileFromOffset(), blockIndex);
+        byte[] block = null;
+        synchronized (this.blockCache) {
+            block = this.blockCache.get(key);
+        }
+
+        if (null == block) {
+            block = coldFile.readBlock(blockIndex);
+            synchronized (this.blockCache) {
+                this.blockCache.put(key, block);
+            }
+        }
+
+        return block;
+    }
+
+
+    /**
+     * 顺序读取时，提前解压后续的块
+     */
+    private void readAhead(final ColdFile coldFile, final int blockIndex) {
+        for (int i = 1; i <= this.readAheadBlocks && blockIndex + i < coldFile.getBlockNums(); i++) {
+            final BlockKey key = new BlockKey(coldFile.getFileFromOffset(), blockIndex + i);
+            synchronized (this.blockCache) {
+                if (this.blockCache.containsKey(key)) {
+                    continue;
+                }
+            }
+
+            if (this.readAheadPending.putIfAbsent(key, Boolean.TRUE) != null) {
+                continue;
+            }
+
+            try {
+                this.readAheadExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ColdFileStore.this.getBlock(coldFile, key.blockIndex);
+                        }
+                        catch (Exception e) {
+                            log.warn("read ahead cold file exception, " + coldFile.getFile().getPath(), e);
+                        }
+                        finally {
+                            ColdFileStore.this.readAheadPending.remove(key);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                // 已经关闭
+                this.readAheadPending.remove(key);
+                return;
+            }
+        }
+    }
+
+
+    private int writeFully(final FileChannel fileChannel, final ByteBuffer data, final long position)
+            throws IOException {
+        int size = data.remaining();
+        long writePosition = position;
+        while (data.hasRemaining()) {
+            writePosition += fileChannel.write(data, writePosition);
+        }
+
+        return size;
+    }
+
+    static class BlockKey {
+        private final long fileFromOffset;
+        private final int blockIndex;
+
+
+        BlockKey(final long fileFromOffset, final int blockIndex) {
+            this.fileFromOffset = fileFromOffset;
+            this.blockIndex = blockIndex;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return (int) (this.fileFromOffset ^ (this.fileFromOffset >>> 32)) * 31 + this.blockIndex;
+        }
+
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlockKey)) {
+                return false;
+            }
+
+            BlockKey other = (BlockKey) obj;
+            return this.fileFromOffset == other.fileFromOffset && this.blockIndex == other.blockIndex;
+        }
+    }
+
+    /**
+     * 一个冷存储文件，块索引常驻内存
+     */
+    static class ColdFile {
+        private final File file;
+        private final long fileFromOffset;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel fileChannel;
+        private final long[] blockOffsets;
+        private final int blockSize;
+        private final int rawSize;
+
+
+        ColdFile(final File file) throws IOException {
+            this.file = file;
+            this.fileFromOffset = Long.parseLong(file.getName());
+            this.randomAccessFile = new RandomAccessFile(file, "r");
+            this.fileChannel = this.randomAccessFile.getChannel();
+
+            try {
+                ByteBuffer footer = ByteBuffer.allocate(FooterSize);
+                this.readFully(footer, this.fileChannel.size() - FooterSize);
+                footer.flip();
+                long indexPosition = footer.getLong();
+                int blockNums = footer.getInt();
+                this.blockSize = footer.getInt();
+                this.rawSize = footer.getInt();
+                if (footer.getInt() != ColdFileMagicCode) {
+                    throw new IOException("illegal cold file magic code, " + file.getPath());
+                }
+
+                ByteBuffer index = ByteBuffer.allocate(8 * (blockNums + 1));
+                this.readFully(index, indexPosition);
+                index.flip();
+                this.blockOffsets = new long[blockNums + 1];
+                for (int i = 0; i < this.blockOffsets.length; i++) {
+                    this.blockOffsets[i] = index.getLong();
+                }
+            }
+            catch (IOException e) {
+                this.close();
+                throw e;
+            }
+        }
+
+
+        public byte[] readBlock(final int blockIndex) throws IOException, DataFormatException {
+            final int compressedSize =
+                    (int) (this.blockOffsets[blockIndex + 1] - this.blockOffsets[blockIndex]);
+            final int size = Math.min(this.blockSize, this.rawSize - blockIndex * this.blockSize);
+
+            ByteBuffer compressed = ByteBuffer.allocate(compressedSize);
+            this.readFully(compressed, this.blockOffsets[blockIndex]);
+
+            byte[] block = new byte[size];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed.array(), 0, compressedSize);
+                int length = 0;
+                while (length < size && !inflater.finished()) {
+                    int inflated = inflater.inflate(block, length, size - length);
+                    if (0 == inflated && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+
+                if (length != size) {
+                    throw new DataFormatException("cold file block size error, expect " + size + " actual "
+                            + length + ", " + this.file.getPath());
+                }
+            }
+            finally {
+                inflater.end();
+            }
+
+            return block;
+        }
+
+
+        private void readFully(final ByteBuffer byteBuffer, final long position) throws IOException {
+            long readPosition = position;
+            while (byteBuffer.hasRemaining()) {
+                int readSize = this.fileChannel.read(byteBuffer, readPosition);
+                if (readSize < 0) {
+                    throw new IOException("read cold file reach end, " + this.file.getPath());
+                }
+                readPosition += readSize;
+            }
+        }
+
+
+        public void close() {
+            try {
+                this.randomAccessFile.close();
+            }
+            catch (IOException e) {
+                log.error("close cold file exception, " + this.file.getPath(), e);
+            }
+        }
+
+
+        public File getFile() {
+            return file;
+        }
+
+
+        public long getFileFromOffset() {
+            return fileFromOffset;
+        }
+
+
+        public int getBlockNums() {
+            return this.blockOffsets.length - 1;
+        }
+
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+
+        public int getRawSize() {
+            return rawSize;
+        }
+    }
+}
@@ -15,19 +15,29 @@
  */
 package com.alibaba.rocketmq.store;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.message.MessageAccessor;
@@ -37,8 +47,11 @@ import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
 import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.config.FlushDiskType;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.PutMessageLockType;
 import com.alibaba.rocketmq.store.ha.HAService;
 import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
+import com.alibaba.rocketmq.store.schedule.TimerMessageService;
 
 
 /**
@@ -53,28 +66,72 @@ public class CommitLog {
     public final static int MessageMagicCode = 0xAABBCCDD ^ 1880681586 + 8;
     // 文件末尾空洞对应的MAGIC CODE cbd43194
     private final static int BlankMagicCode = 0xBBCCDDEE ^ 1880681586 + 8;
+    private final static Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+    // 每个CommitLog占用的物理Offset区间，独立CommitLog按编号错开，按Offset找到所属的CommitLog
+    public final static long OffsetSpan = 1L << 56;
     // 存储消息的队列
     private final MapedFileQueue mapedFileQueue;
     // 存储顶层对象
     private final DefaultMessageStore defaultMessageStore;
     // CommitLog刷盘服务
     private final FlushCommitLogService flushCommitLogService;
+    // 堆外写缓冲写回服务，未开启堆外写缓冲时为null
+    private final FlushCommitLogService writeBackCommitLogService;
     // 存储消息时的回调接口
     private final AppendMessageCallback appendMessageCallback;
-    // 用来保存每个ConsumeQueue的当前最大Offset信息
-    private HashMap<String/* topic-queueid */, Long/* offset */> topicQueueTable = new HashMap<String, Long>(
-        1024);
+    // 用来保存每个ConsumeQueue的当前最大Offset信息，按queueId下标存放，避免拼接key及装箱
+    private HashMap<String/* topic */, long[]/* offset */> topicQueueTable = new HashMap<String, long[]>(1024);
+    // topic名字编码后的字节
+    private final ConcurrentHashMap<String/* topic */, byte[]> topicBytesTable =
+            new ConcurrentHashMap<String, byte[]>(1024);
+    // 写CommitLog时使用的锁
+    private final PutMessageLock putMessageLock;
+    // 锁外序列化消息使用，每个发送线程一份
+    private final ThreadLocal<MessageExtEncoder> messageExtEncoderThreadLocal;
+    // 锁外序列化批量消息使用，每个发送线程一份
+    private final ThreadLocal<MessageExtBatchEncoder> messageExtBatchEncoderThreadLocal;
+    // 冷存储，未开启时为null
+    private final ColdFileStore coldFileStore;
+    // 起始物理Offset，主CommitLog为0，独立CommitLog不参与主备同步
+    private final long baseOffset;
 
 
     /**
      * 构造函数
      */
     public CommitLog(final DefaultMessageStore defaultMessageStore) {
+        this(defaultMessageStore, defaultMessageStore.getMessageStoreConfig().getStorePathCommitLog(), 0);
+    }
+
+
+    /**
+     * 独立CommitLog使用单独的目录、刷盘服务及锁
+     */
+    public CommitLog(final DefaultMessageStore defaultMessageStore, final String storePath,
+            final long baseOffset) {
         this.mapedFileQueue =
-                new MapedFileQueue(defaultMessageStore.getMessageStoreConfig().getStorePathCommitLog(),
-                    defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog(),
-                    defaultMessageStore.getAllocateMapedFileService());
+                new MapedFileQueue(storePath, defaultMessageStore.getMessageStoreConfig()
+                    .getMapedFileSizeCommitLog(), defaultMessageStore.getAllocateMapedFileService(),
+                    defaultMessageStore.getTransientStorePool());
         this.defaultMessageStore = defaultMessageStore;
+        this.baseOffset = baseOffset;
+        // 没有文件时，刷盘及写回都从起始Offset开始
+        this.mapedFileQueue.setCommittedWhere(baseOffset);
+        this.mapedFileQueue.setWriteBackWhere(baseOffset);
+
+        final MessageStoreConfig messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        if (messageStoreConfig.isColdStoreEnable() && !this.isIsolated()) {
+            this.coldFileStore =
+                    new ColdFileStore(messageStoreConfig.getStorePathColdCommitLog(),
+                        messageStoreConfig.getColdStoreBlockSize(),
+                        messageStoreConfig.getColdStoreCompressLevel(),
+                        messageStoreConfig.getColdStoreReadCacheBlocks(),
+                        messageStoreConfig.getColdStoreReadAheadBlocks());
+            this.mapedFileQueue.setColdFileStore(this.coldFileStore);
+        }
+        else {
+            this.coldFileStore = null;
+        }
 
         if (FlushDiskType.SYNC_FLUSH == defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
             this.flushCommitLogService = new GroupCommitService();
@@ -83,14 +140,46 @@ public class CommitLog {
             this.flushCommitLogService = new FlushRealTimeService();
         }
 
+        if (defaultMessageStore.getTransientStorePool() != null) {
+            this.writeBackCommitLogService = new WriteBackRealTimeService();
+        }
+        else {
+            this.writeBackCommitLogService = null;
+        }
+
         this.appendMessageCallback =
                 new DefaultAppendMessageCallback(defaultMessageStore.getMessageStoreConfig()
                     .getMaxMessageSize());
+
+        if (PutMessageLockType.SPIN_LOCK == defaultMessageStore.getMessageStoreConfig()
+            .getPutMessageLockType()) {
+            this.putMessageLock = new PutMessageSpinLock();
+        }
+        else {
+            this.putMessageLock = new PutMessageReentrantLock();
+        }
+
+        final int maxMessageSize = defaultMessageStore.getMessageStoreConfig().getMaxMessageSize();
+        this.messageExtEncoderThreadLocal = new ThreadLocal<MessageExtEncoder>() {
+            @Override
+            protected MessageExtEncoder initialValue() {
+                return new MessageExtEncoder(maxMessageSize);
+            }
+        };
+        this.messageExtBatchEncoderThreadLocal = new ThreadLocal<MessageExtBatchEncoder>() {
+            @Override
+            protected MessageExtBatchEncoder initialValue() {
+                return new MessageExtBatchEncoder(maxMessageSize);
+            }
+        };
     }
 
 
     public boolean load() {
         boolean result = this.mapedFileQueue.load();
+        if (this.coldFileStore != null) {
+            result = result && this.coldFileStore.load();
+        }
         log.info("load commit log " + (result ? "OK" : "Failed"));
         return result;
     }
@@ -98,15 +187,48 @@ public class CommitLog {
 
     public void start() {
         this.flushCommitLogService.start();
+
+        if (this.writeBackCommitLogService != null) {
+            this.writeBackCommitLogService.start();
+        }
     }
 
 
     public void shutdown() {
+        // 先全部写回，刷盘服务退出时才能保证全部落盘
+        if (this.writeBackCommitLogService != null) {
+            this.writeBackCommitLogService.shutdown();
+        }
+
         this.flushCommitLogService.shutdown();
+
+        if (this.coldFileStore != null) {
+            this.coldFileStore.shutdown();
+        }
+    }
+
+
+    /**
+     * 可以读取的最大物理Offset，开启堆外写缓冲时只能读到已经写回FileChannel的位置
+     */
+    public long getReadableMaxOffset() {
+        if (this.writeBackCommitLogService != null) {
+            return this.mapedFileQueue.getWriteBackWhere();
+        }
+
+        return this.getMaxOffset();
     }
 
 
     public long getMinOffset() {
+        // 冷存储中的数据都早于热存储
+        if (this.coldFileStore != null) {
+            long coldMinOffset = this.coldFileStore.getMinOffset();
+            if (coldMinOffset >= 0) {
+                return coldMinOffset;
+            }
+        }
+
         MapedFile mapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
         if (mapedFile != null) {
             if (mapedFile.isAvailable()) {
@@ -128,7 +250,21 @@ public class CommitLog {
 
 
     public long getMaxOffset() {
-        return this.mapedFileQueue.getMaxOffset();
+        // 没有文件时从起始Offset开始
+        return Math.max(this.mapedFileQueue.getMaxOffset(), this.baseOffset);
+    }
+
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+
+    /**
+     * 是否为独立CommitLog
+     */
+    public boolean isIsolated() {
+        return this.baseOffset > 0;
     }
 
 
@@ -143,6 +279,23 @@ public class CommitLog {
     }
 
 
+    /**
+     * 删除冷存储中的过期文件
+     */
+    public int deleteExpiredColdFile(final long expiredTime, final boolean cleanImmediately) {
+        if (null == this.coldFileStore) {
+            return 0;
+        }
+
+        return this.coldFileStore.deleteExpiredFile(expiredTime, cleanImmediately);
+    }
+
+
+    public ColdFileStore getColdFileStore() {
+        return coldFileStore;
+    }
+
+
     /**
      * 读取CommitLog数据，数据复制时使用
      */
@@ -176,6 +329,14 @@ public class CommitLog {
             if (index < 0)
                 index = 0;
 
+            if (this.defaultMessageStore.getMessageStoreConfig().isParallelRecoverEnable()) {
+                long processOffset = this.verifyMapedFilesInParallel(mapedFiles, index, checkCRCOnRecover);
+                this.mapedFileQueue.setCommittedWhere(processOffset);
+                this.mapedFileQueue.setWriteBackWhere(processOffset);
+                this.mapedFileQueue.truncateDirtyFiles(processOffset);
+                return;
+            }
+
             MapedFile mapedFile = mapedFiles.get(index);
             ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
             long processOffset = mapedFile.getFileFromOffset();
@@ -215,6 +376,7 @@ public class CommitLog {
 
             processOffset += mapedFileOffset;
             this.mapedFileQueue.setCommittedWhere(processOffset);
+            this.mapedFileQueue.setWriteBackWhere(processOffset);
             this.mapedFileQueue.truncateDirtyFiles(processOffset);
         }
     }
@@ -226,17 +388,25 @@ public class CommitLog {
 
 
     /**
-     * 服务端使用 检查消息并返回消息大小
+     * 服务端使用 检查消息并返回消息大小<br>
+     * 使用共享的缓冲区，只能在恢复线程及Reput线程中调用，其他线程使用自己的缓冲区
      * 
      * @return 0 表示走到文件末尾 >0 正常消息 -1 消息校验失败
      */
     public DispatchRequest checkMessageAndReturnSize(java.nio.ByteBuffer byteBuffer, final boolean checkCRC,
             final boolean readBody) {
-        try {
-            java.nio.ByteBuffer byteBufferMessage =
-                    ((DefaultAppendMessageCallback) this.appendMessageCallback).getMsgStoreItemMemory();
-            byte[] bytesContent = byteBufferMessage.array();
+        java.nio.ByteBuffer byteBufferMessage =
+                ((DefaultAppendMessageCallback) this.appendMessageCallback).getMsgStoreItemMemory();
+        return this.checkMessageAndReturnSize(byteBuffer, checkCRC, readBody, byteBufferMessage.array());
+    }
+
 
+    /**
+     * 多个线程同时校验时，每个线程使用自己的bytesContent，由newDecodeBuffer创建
+     */
+    public DispatchRequest checkMessageAndReturnSize(java.nio.ByteBuffer byteBuffer, final boolean checkCRC,
+            final boolean readBody, final byte[] bytesContent) {
+        try {
             // 1 TOTALSIZE
             int totalSize = byteBuffer.getInt();
 
@@ -317,13 +487,14 @@ public class CommitLog {
 
             long tagsCode = 0;
             String keys = "";
+            Map<String, String> propertiesMap = null;
 
             // 17 properties
             short propertiesLength = byteBuffer.getShort();
             if (propertiesLength > 0) {
                 byteBuffer.get(bytesContent, 0, propertiesLength);
                 String properties = new String(bytesContent, 0, propertiesLength);
-                Map<String, String> propertiesMap = MessageDecoder.string2messageProperties(properties);
+                propertiesMap = MessageDecoder.string2messageProperties(properties);
 
                 keys = propertiesMap.get(MessageConst.PROPERTY_KEYS);
                 String tags = propertiesMap.get(MessageConst.PROPERTY_TAGS);
@@ -351,6 +522,12 @@ public class CommitLog {
                                         .computeDeliverTimestamp(delayLevel, storeTimestamp);
                         }
                     }
+
+                    // 时间轮定时消息，投递时间在写入时已经计算好
+                    String deliverTime = propertiesMap.get(MessageConst.PROPERTY_DELIVER_TIME);
+                    if (TimerMessageService.TIMER_TOPIC.equals(topic) && deliverTime != null) {
+                        tagsCode = Long.parseLong(deliverTime);
+                    }
                 }
             }
 
@@ -364,7 +541,8 @@ public class CommitLog {
                 queueOffset,// 7
                 keys,// 8
                 sysFlag,// 9
-                preparedTransactionOffset// 10
+                preparedTransactionOffset,// 10
+                this.buildBitMap(propertiesMap)// 11
             );
         }
         catch (BufferUnderflowException e) {
@@ -378,6 +556,18 @@ public class CommitLog {
     }
 
 
+    /**
+     * 开启ConsumeQueue扩展存储时，计算消息属性位图
+     */
+    private byte[] buildBitMap(final Map<String, String> properties) {
+        if (this.defaultMessageStore.getMessageStoreConfig().isConsumeQueueExtEnable()) {
+            return ConsumeQueueExt.buildBitMap(properties);
+        }
+
+        return null;
+    }
+
+
     public void recoverAbnormally() {
         // 根据最小时间戳来恢复
         boolean checkCRCOnRecover = this.defaultMessageStore.getMessageStoreConfig().isCheckCRCOnRecover();
@@ -399,6 +589,19 @@ public class CommitLog {
                 mapedFile = mapedFiles.get(index);
             }
 
+            if (this.defaultMessageStore.getMessageStoreConfig().isParallelRecoverEnable()) {
+                long processOffset = this.verifyMapedFilesInParallel(mapedFiles, index, checkCRCOnRecover);
+                this.dispatchMapedFiles(mapedFiles, index, processOffset);
+                this.mapedFileQueue.setCommittedWhere(processOffset);
+                this.mapedFileQueue.setWriteBackWhere(processOffset);
+                this.mapedFileQueue.truncateDirtyFiles(processOffset);
+
+                // 清除ConsumeQueue的多余数据，分发线程写完之后才能截断
+                this.defaultMessageStore.waitDispatchOver();
+                this.defaultMessageStore.truncateDirtyLogicFiles(this, processOffset);
+                return;
+            }
+
             ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
             long processOffset = mapedFile.getFileFromOffset();
             long mapedFileOffset = 0;
@@ -437,15 +640,180 @@ public class CommitLog {
 
             processOffset += mapedFileOffset;
             this.mapedFileQueue.setCommittedWhere(processOffset);
+            this.mapedFileQueue.setWriteBackWhere(processOffset);
             this.mapedFileQueue.truncateDirtyFiles(processOffset);
 
-            // 清除ConsumeQueue的多余数据
-            this.defaultMessageStore.truncateDirtyLogicFiles(processOffset);
+            // 清除ConsumeQueue的多余数据，分发线程写完之后才能截断
+            this.defaultMessageStore.waitDispatchOver();
+            this.defaultMessageStore.truncateDirtyLogicFiles(this, processOffset);
         }
         // 物理文件都被删除情况下
         else {
-            this.mapedFileQueue.setCommittedWhere(0);
-            this.defaultMessageStore.destroyLogics();
+            this.mapedFileQueue.setCommittedWhere(this.baseOffset);
+            this.mapedFileQueue.setWriteBackWhere(this.baseOffset);
+            this.defaultMessageStore.destroyLogics(this);
+        }
+    }
+
+
+    /**
+     * 并行校验从fromIndex开始的文件，返回有效数据的结束位置<br>
+     * 每个文件都从消息边界开始，可以独立校验，再按顺序汇总，结果与逐个文件校验相同<br>
+     * 下一个文件的第一条消息在Checkpoint记录的刷盘时间点之前，说明当前文件已经完整刷盘，只检查消息结构，不再计算CRC
+     */
+    private long verifyMapedFilesInParallel(final List<MapedFile> mapedFiles, final int fromIndex,
+            final boolean checkCRC) {
+        // 与StoreCheckpoint.getMinTimestamp一样向前倒退3s，防止因为时间精度问题导致丢数据
+        // Checkpoint只记录主CommitLog的刷盘时间，独立CommitLog全部计算CRC
+        final long flushedTimestamp =
+                this.isIsolated() ? 0 : this.defaultMessageStore.getStoreCheckpoint().getPhysicMsgTimestamp()
+                        - 1000 * 3;
+        int threadNums = this.defaultMessageStore.getMessageStoreConfig().getRecoverThreadNums();
+        threadNums = Math.max(threadNums, 1);
+        ExecutorService executorService =
+                Executors.newFixedThreadPool(threadNums, new ThreadFactoryImpl("RecoverCommitLogThread_"));
+        try {
+            List<Future<MapedFileVerifyResult>> futures =
+                    new ArrayList<Future<MapedFileVerifyResult>>(mapedFiles.size() - fromIndex);
+            for (int i = fromIndex; i < mapedFiles.size(); i++) {
+                final MapedFile mapedFile = mapedFiles.get(i);
+                final boolean flushed =
+                        i + 1 < mapedFiles.size()
+                                && this.isMapedFileFlushedBefore(mapedFiles.get(i + 1), flushedTimestamp);
+                futures.add(executorService.submit(new Callable<MapedFileVerifyResult>() {
+                    @Override
+                    public MapedFileVerifyResult call() throws Exception {
+                        return CommitLog.this.verifyMapedFile(mapedFile, checkCRC && !flushed);
+                    }
+                }));
+            }
+
+            long processOffset = mapedFiles.get(fromIndex).getFileFromOffset();
+            for (int i = fromIndex; i < mapedFiles.size(); i++) {
+                MapedFile mapedFile = mapedFiles.get(i);
+                MapedFileVerifyResult result = futures.get(i - fromIndex).get();
+                processOffset = mapedFile.getFileFromOffset() + result.getValidSize();
+                // 文件中间读到错误，之后的文件都是脏数据
+                if (!result.isReachEnd()) {
+                    log.info("recover physics file end, " + mapedFile.getFileName());
+                    break;
+                }
+            }
+
+            return processOffset;
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("verify commit log in parallel interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("verify commit log in parallel failed", e);
+        }
+        finally {
+            executorService.shutdown();
+        }
+    }
+
+
+    /**
+     * 创建解析消息使用的缓冲区，供不能使用共享缓冲区的线程使用
+     */
+    public byte[] newDecodeBuffer() {
+        return new byte[this.defaultMessageStore.getMessageStoreConfig().getMaxMessageSize()
+                + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH];
+    }
+
+
+    private MapedFileVerifyResult verifyMapedFile(final MapedFile mapedFile, final boolean checkCRC) {
+        long beginTime = System.currentTimeMillis();
+        ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+        byte[] bytesContent = this.newDecodeBuffer();
+        int validSize = 0;
+        boolean reachEnd = false;
+        while (true) {
+            DispatchRequest dispatchRequest =
+                    this.checkMessageAndReturnSize(byteBuffer, checkCRC, checkCRC, bytesContent);
+            int size = dispatchRequest.getMsgSize();
+            // 正常数据
+            if (size > 0) {
+                validSize += size;
+            }
+            // 走到文件末尾
+            else if (size == 0) {
+                reachEnd = true;
+                break;
+            }
+            // 文件中间读到错误
+            else {
+                break;
+            }
+        }
+
+        log.info("verify physics file {} checkCRC {} valid size {} reach end {} eclipse time(ms) {}",
+            mapedFile.getFileName(), checkCRC, validSize, reachEnd, System.currentTimeMillis() - beginTime);
+        return new MapedFileVerifyResult(validSize, reachEnd);
+    }
+
+
+    /**
+     * 校验完成后，按顺序分发endOffset之前的消息，不再计算CRC
+     */
+    private void dispatchMapedFiles(final List<MapedFile> mapedFiles, final int fromIndex,
+            final long endOffset) {
+        for (int i = fromIndex; i < mapedFiles.size(); i++) {
+            MapedFile mapedFile = mapedFiles.get(i);
+            long offset = mapedFile.getFileFromOffset();
+            ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+            while (offset < endOffset) {
+                DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, false, false);
+                int size = dispatchRequest.getMsgSize();
+                if (size <= 0) {
+                    break;
+                }
+
+                this.defaultMessageStore.putDispatchRequest(dispatchRequest);
+                offset += size;
+            }
+
+            if (offset >= endOffset) {
+                break;
+            }
+        }
+    }
+
+
+    private boolean isMapedFileFlushedBefore(final MapedFile mapedFile, final long flushedTimestamp) {
+        ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+
+        int magicCode = byteBuffer.getInt(MessageDecoder.MessageMagicCodePostion);
+        if (magicCode != MessageMagicCode) {
+            return false;
+        }
+
+        long storeTimestamp = byteBuffer.getLong(MessageDecoder.MessageStoreTimestampPostion);
+        return storeTimestamp > 0 && storeTimestamp <= flushedTimestamp;
+    }
+
+
+    static class MapedFileVerifyResult {
+        // 文件开头连续有效数据的长度
+        private final int validSize;
+        // 是否读到了文件末尾的空洞
+        private final boolean reachEnd;
+
+
+        public MapedFileVerifyResult(int validSize, boolean reachEnd) {
+            this.validSize = validSize;
+            this.reachEnd = reachEnd;
+        }
+
+
+        public int getValidSize() {
+            return validSize;
+        }
+
+
+        public boolean isReachEnd() {
+            return reachEnd;
         }
     }
 
@@ -486,6 +854,221 @@ public class CommitLog {
 
 
     public PutMessageResult putMessage(final MessageExtBrokerInner msg) {
+        PutMessageResult putMessageResult = this.doAppendMessage(msg);
+        if (putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+            return putMessageResult;
+        }
+
+        this.handleDiskFlushAndHA(msg, putMessageResult);
+
+        // 向发送方返回结果
+        return putMessageResult;
+    }
+
+
+    /**
+     * 批量存储消息，所有消息在一次加锁内连续写入，刷盘及同步双写只等待一次
+     */
+    public PutMessageResult putMessages(final MessageExtBatch messageExtBatch) {
+        PutMessageResult putMessageResult = this.doAppendMessages(messageExtBatch);
+        if (putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+            return putMessageResult;
+        }
+
+        this.handleDiskFlushAndHA(messageExtBatch, putMessageResult);
+
+        // 向发送方返回结果
+        return putMessageResult;
+    }
+
+
+    /**
+     * 同步刷盘、同步双写时等待完成，结果写入putMessageResult
+     */
+    private void handleDiskFlushAndHA(final MessageExtBrokerInner msg,
+            final PutMessageResult putMessageResult) {
+        AppendMessageResult result = putMessageResult.getAppendMessageResult();
+        GroupCommitRequest request = null;
+
+        // 同步刷盘
+        if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
+            GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
+            if (msg.isWaitStoreMsgOK()) {
+                request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+                service.putRequest(request);
+                boolean flushOK =
+                        request.waitForFlush(this.defaultMessageStore.getMessageStoreConfig()
+                            .getSyncFlushTimeout());
+                if (!flushOK) {
+                    log.error("do groupcommit, wait for flush failed, topic: " + msg.getTopic() + " tags: "
+                            + msg.getTags() + " client address: " + msg.getBornHostString());
+                    putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
+                }
+            }
+            else {
+                service.wakeup();
+            }
+        }
+        // 异步刷盘
+        else {
+            this.wakeupAsyncFlush();
+        }
+
+        // 同步双写
+        if (BrokerRole.SYNC_MASTER == this.defaultMessageStore.getMessageStoreConfig().getBrokerRole()) {
+            HAService service = this.defaultMessageStore.getHaService();
+            if (msg.isWaitStoreMsgOK()) {
+                // 判断是否要等待
+                if (service.isSlaveOK(result.getWroteOffset() + result.getWroteBytes())) {
+                    if (null == request) {
+                        request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+                    }
+                    service.putRequest(request);
+
+                    service.getWaitNotifyObject().wakeupAll();
+
+                    boolean flushOK =
+                    // TODO 此处参数与刷盘公用是否合适
+                            request.waitForFlush(this.defaultMessageStore.getMessageStoreConfig()
+                                .getSyncFlushTimeout());
+                    if (!flushOK) {
+                        log.error("do sync transfer other node, wait return, but failed, topic: "
+                                + msg.getTopic() + " tags: " + msg.getTags() + " client address: "
+                                + msg.getBornHostString());
+                        putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
+                    }
+                }
+                // Slave异常
+                else {
+                    // 告诉发送方，Slave异常
+                    putMessageResult.setPutMessageStatus(PutMessageStatus.SLAVE_NOT_AVAILABLE);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 开启堆外写缓冲时先唤醒写回服务，写回后再由写回服务唤醒刷盘服务
+     */
+    private void wakeupAsyncFlush() {
+        if (this.writeBackCommitLogService != null) {
+            this.writeBackCommitLogService.wakeup();
+        }
+        else {
+            this.flushCommitLogService.wakeup();
+        }
+    }
+
+
+    /**
+     * 异步存储消息，同步刷盘、同步双写通过回调通知，不阻塞调用线程
+     */
+    public void asyncPutMessage(final MessageExtBrokerInner msg, final PutMessageCallback callback) {
+        PutMessageResult putMessageResult = this.doAppendMessage(msg);
+        if (putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+            callback.operationComplete(putMessageResult);
+            return;
+        }
+
+        this.asyncHandleDiskFlush(msg, putMessageResult, callback);
+    }
+
+
+    private void asyncHandleDiskFlush(final MessageExtBrokerInner msg, final PutMessageResult putMessageResult,
+            final PutMessageCallback callback) {
+        AppendMessageResult result = putMessageResult.getAppendMessageResult();
+        // 同步刷盘
+        if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
+            GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
+            if (msg.isWaitStoreMsgOK()) {
+                // 刷盘线程唤醒请求时进入同步双写阶段
+                GroupCommitRequest request =
+                        new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes()) {
+                            @Override
+                            public void wakeupCustomer(final boolean flushOK) {
+                                super.wakeupCustomer(flushOK);
+                                if (!flushOK) {
+                                    log.error("do groupcommit, wait for flush failed, topic: " + msg.getTopic()
+                                            + " tags: " + msg.getTags() + " client address: "
+                                            + msg.getBornHostString());
+                                    putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
+                                }
+                                CommitLog.this.asyncHandleHA(msg, putMessageResult, callback);
+                            }
+                        };
+                service.putRequest(request);
+                return;
+            }
+            else {
+                service.wakeup();
+            }
+        }
+        // 异步刷盘
+        else {
+            this.wakeupAsyncFlush();
+        }
+
+        this.asyncHandleHA(msg, putMessageResult, callback);
+    }
+
+
+    private void asyncHandleHA(final MessageExtBrokerInner msg, final PutMessageResult putMessageResult,
+            final PutMessageCallback callback) {
+        AppendMessageResult result = putMessageResult.getAppendMessageResult();
+        // 同步双写
+        if (BrokerRole.SYNC_MASTER == this.defaultMessageStore.getMessageStoreConfig().getBrokerRole()
+                && msg.isWaitStoreMsgOK()) {
+            HAService service = this.defaultMessageStore.getHaService();
+            if (service.isSlaveOK(result.getWroteOffset() + result.getWroteBytes())) {
+                // HA线程唤醒请求时回调发送方
+                GroupCommitRequest request =
+                        new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes()) {
+                            @Override
+                            public void wakeupCustomer(final boolean flushOK) {
+                                super.wakeupCustomer(flushOK);
+                                if (!flushOK) {
+                                    log.error("do sync transfer other node, wait return, but failed, topic: "
+                                            + msg.getTopic() + " tags: " + msg.getTags() + " client address: "
+                                            + msg.getBornHostString());
+                                    putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
+                                }
+                                CommitLog.this.invokePutMessageCallback(callback, putMessageResult);
+                            }
+                        };
+                service.putRequest(request);
+                service.getWaitNotifyObject().wakeupAll();
+                return;
+            }
+            // Slave异常
+            else {
+                // 告诉发送方，Slave异常
+                putMessageResult.setPutMessageStatus(PutMessageStatus.SLAVE_NOT_AVAILABLE);
+            }
+        }
+
+        this.invokePutMessageCallback(callback, putMessageResult);
+    }
+
+
+    /**
+     * 回调可能运行在刷盘或HA线程中，异常不能影响后续请求的唤醒
+     */
+    private void invokePutMessageCallback(final PutMessageCallback callback,
+            final PutMessageResult putMessageResult) {
+        try {
+            callback.operationComplete(putMessageResult);
+        }
+        catch (Throwable e) {
+            log.warn("execute putMessage callback exception", e);
+        }
+    }
+
+
+    /**
+     * 将消息追加到CommitLog并分发，不包括刷盘及同步双写
+     */
+    private PutMessageResult doAppendMessage(final MessageExtBrokerInner msg) {
         // 设置存储时间
         msg.setStoreTimestamp(System.currentTimeMillis());
         // 设置消息体BODY CRC（考虑在客户端设置最合适）
@@ -502,8 +1085,38 @@ public class CommitLog {
         final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
         if (tranType == MessageSysFlag.TransactionNotType//
                 || tranType == MessageSysFlag.TransactionCommitType) {
+            // 开启时间轮后，指定投递时间及延时级别的消息都由时间轮投递
+            if (this.defaultMessageStore.getTimerMessageService() != null
+                    && (msg.getDelayTimeLevel() > 0 || msg.getDeliverTime() > 0)) {
+                long deliverTime = msg.getDeliverTime();
+                if (msg.getDelayTimeLevel() > 0) {
+                    int delayLevel =
+                            Math.min(msg.getDelayTimeLevel(), this.defaultMessageStore
+                                .getScheduleMessageService().getMaxDelayLevel());
+                    deliverTime =
+                            this.defaultMessageStore.getScheduleMessageService().computeDeliverTimestamp(
+                                delayLevel, msg.getStoreTimestamp());
+                }
+
+                topic = TimerMessageService.TIMER_TOPIC;
+                queueId = TimerMessageService.TIMER_QUEUE_ID;
+                tagsCode = deliverTime;
+
+                /**
+                 * 备份真实的topic，queueId，投递时间
+                 */
+                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
+                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID,
+                    String.valueOf(msg.getQueueId()));
+                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_DELIVER_TIME,
+                    String.valueOf(deliverTime));
+                msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+
+                msg.setTopic(topic);
+                msg.setQueueId(queueId);
+            }
             // 延时投递
-            if (msg.getDelayTimeLevel() > 0) {
+            else if (msg.getDelayTimeLevel() > 0) {
                 if (msg.getDelayTimeLevel() > this.defaultMessageStore.getScheduleMessageService()
                     .getMaxDelayLevel()) {
                     msg.setDelayTimeLevel(this.defaultMessageStore.getScheduleMessageService()
@@ -529,15 +1142,29 @@ public class CommitLog {
             }
         }
 
+        // 锁外序列化消息，锁内只回填偏移量并拷贝
+        if (this.defaultMessageStore.getMessageStoreConfig().isEncodeMessageOutOfLock()) {
+            ByteBuffer encodedBuff = this.messageExtEncoderThreadLocal.get().encode(msg);
+            if (null == encodedBuff) {
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, new AppendMessageResult(
+                    AppendMessageStatus.MESSAGE_SIZE_EXCEEDED));
+            }
+            msg.setEncodedBuff(encodedBuff);
+        }
+
+        // 消息属性位图在锁外计算
+        final byte[] bitMap = this.buildBitMap(msg.getProperties());
+
         // 写文件要加锁
-        synchronized (this) {
+        this.putMessageLock.lock();
+        try {
             long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
 
             // 这里设置存储时间戳，才能保证全局有序
             msg.setStoreTimestamp(beginLockTimestamp);
 
             // 尝试写入
-            MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile();
+            MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(this.baseOffset);
             if (null == mapedFile) {
                 log.error("create maped file1 error, topic: " + msg.getTopic() + " clientAddr: "
                         + msg.getBornHostString());
@@ -550,8 +1177,9 @@ public class CommitLog {
                 break;
             // 走到文件末尾
             case END_OF_FILE:
+                long beginNewFileTime = System.nanoTime();
                 // 创建新文件，重新写消息
-                mapedFile = this.mapedFileQueue.getLastMapedFile();
+                mapedFile = this.mapedFileQueue.getLastMapedFile(this.baseOffset);
                 if (null == mapedFile) {
                     // XXX: warn and notify me
                     log.error("create maped file2 error, topic: " + msg.getTopic() + " clientAddr: "
@@ -559,6 +1187,7 @@ public class CommitLog {
                     return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result);
                 }
                 result = mapedFile.appendMessage(msg, this.appendMessageCallback);
+                storeStatsService.setPutMessageNewFileTimeMax((System.nanoTime() - beginNewFileTime) / 1000);
                 break;
             // 消息大小超限
             case MESSAGE_SIZE_EXCEEDED:
@@ -583,7 +1212,8 @@ public class CommitLog {
                  * 事务部分
                  */
                 msg.getSysFlag(),// 9
-                msg.getPreparedTransactionOffset());// 10
+                msg.getPreparedTransactionOffset(),// 10
+                bitMap);// 11
 
             this.defaultMessageStore.putDispatchRequest(dispatchRequest);
 
@@ -592,7 +1222,11 @@ public class CommitLog {
                 // XXX: warn and notify me
                 log.warn("putMessage in lock eclipse time(ms) " + eclipseTime);
             }
-        } // end of synchronized
+        }
+        finally {
+            this.putMessageLock.unlock();
+            msg.setEncodedBuff(null);
+        }
 
         // 返回结果
         PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
@@ -600,65 +1234,202 @@ public class CommitLog {
         // 统计消息SIZE
         storeStatsService.getSinglePutMessageTopicSizeTotal(topic).addAndGet(result.getWroteBytes());
 
-        GroupCommitRequest request = null;
+        return putMessageResult;
+    }
 
-        // 同步刷盘
-        if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
-            GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
-            if (msg.isWaitStoreMsgOK()) {
-                request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
-                service.putRequest(request);
-                boolean flushOK =
-                        request.waitForFlush(this.defaultMessageStore.getMessageStoreConfig()
-                            .getSyncFlushTimeout());
-                if (!flushOK) {
-                    log.error("do groupcommit, wait for flush failed, topic: " + msg.getTopic() + " tags: "
-                            + msg.getTags() + " client address: " + msg.getBornHostString());
-                    putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
+
+    /**
+     * 相同延时级别的批量消息整体转入定时队列，并备份真实的topic，queueId
+     *
+     * @return 投递时间需要在锁内计算时返回延时级别，否则返回0
+     */
+    private int prepareDelayMessages(final MessageExtBatch messageExtBatch, final int delayLevel) {
+        final ScheduleMessageService scheduleMessageService =
+                this.defaultMessageStore.getScheduleMessageService();
+        final int realDelayLevel = Math.min(delayLevel, scheduleMessageService.getMaxDelayLevel());
+        final boolean timerEnable = this.defaultMessageStore.getTimerMessageService() != null;
+
+        String topic = ScheduleMessageService.SCHEDULE_TOPIC;
+        int queueId = ScheduleMessageService.delayLevel2QueueId(realDelayLevel);
+        long deliverTime = 0;
+        if (timerEnable) {
+            topic = TimerMessageService.TIMER_TOPIC;
+            queueId = TimerMessageService.TIMER_QUEUE_ID;
+            deliverTime =
+                    scheduleMessageService.computeDeliverTimestamp(realDelayLevel,
+                        this.defaultMessageStore.getSystemClock().now());
+        }
+
+        for (MessageExtBrokerInner msgInner : messageExtBatch.getMessages()) {
+            if (timerEnable) {
+                msgInner.setTagsCode(deliverTime);
+                MessageAccessor.putProperty(msgInner, MessageConst.PROPERTY_DELIVER_TIME,
+                    String.valueOf(deliverTime));
+            }
+            else {
+                msgInner.setDelayTimeLevel(realDelayLevel);
+            }
+
+            MessageAccessor.putProperty(msgInner, MessageConst.PROPERTY_REAL_TOPIC, msgInner.getTopic());
+            MessageAccessor.putProperty(msgInner, MessageConst.PROPERTY_REAL_QUEUE_ID,
+                String.valueOf(msgInner.getQueueId()));
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+
+            // 序列化时使用每条消息自身的topic，queueId
+            msgInner.setTopic(topic);
+            msgInner.setQueueId(queueId);
+        }
+
+        messageExtBatch.setTopic(topic);
+        messageExtBatch.setQueueId(queueId);
+        return timerEnable ? 0 : realDelayLevel;
+    }
+
+
+    /**
+     * 批量消息在锁外序列化为一段连续数据，锁内回填偏移量后一次拷贝，并分发至Consume Queue
+     */
+    private PutMessageResult doAppendMessages(final MessageExtBatch messageExtBatch) {
+        // 返回结果
+        AppendMessageResult result = null;
+
+        StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+
+        // 批量消息不支持事务消息及指定投递时间，定时消息要求延时级别相同
+        final int tranType = MessageSysFlag.getTransactionValue(messageExtBatch.getSysFlag());
+        if (tranType != MessageSysFlag.TransactionNotType) {
+            log.warn("putMessages transaction message is not supported, topic: " + messageExtBatch.getTopic());
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+
+        int delayLevel = -1;
+        for (MessageExtBrokerInner msgInner : messageExtBatch.getMessages()) {
+            // 每条消息单独序列化及分发，也不能是事务消息，否则Consume Queue的逻辑Offset不连续
+            if (MessageSysFlag.getTransactionValue(msgInner.getSysFlag()) != MessageSysFlag.TransactionNotType) {
+                log.warn("putMessages transaction message is not supported, topic: "
+                        + messageExtBatch.getTopic());
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            }
+
+            if (msgInner.getDeliverTime() > 0
+                    || (delayLevel >= 0 && msgInner.getDelayTimeLevel() != delayLevel)) {
+                log.warn("putMessages delay message must have the same delay level, topic: "
+                        + messageExtBatch.getTopic());
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            }
+            delayLevel = msgInner.getDelayTimeLevel();
+            // 设置消息体BODY CRC
+            msgInner.setBodyCRC(UtilAll.crc32(msgInner.getBody()));
+        }
+
+        // 延时投递，时间轮未开启时，投递时间在锁内根据存储时间计算
+        int scheduleDelayLevel = 0;
+        if (delayLevel > 0) {
+            scheduleDelayLevel = this.prepareDelayMessages(messageExtBatch, delayLevel);
+        }
+
+        ByteBuffer encodedBuff = this.messageExtBatchEncoderThreadLocal.get().encode(messageExtBatch);
+        if (null == encodedBuff
+                || encodedBuff.limit() > this.defaultMessageStore.getMessageStoreConfig()
+                    .getMapedFileSizeCommitLog() - DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH) {
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, new AppendMessageResult(
+                AppendMessageStatus.MESSAGE_SIZE_EXCEEDED));
+        }
+        messageExtBatch.setEncodedBuff(encodedBuff);
+
+        // 消息属性位图在锁外计算
+        final byte[][] bitMaps = new byte[messageExtBatch.getMessages().size()][];
+        for (int i = 0; i < bitMaps.length; i++) {
+            bitMaps[i] = this.buildBitMap(messageExtBatch.getMessages().get(i).getProperties());
+        }
+
+        // 写文件要加锁
+        this.putMessageLock.lock();
+        try {
+            long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+
+            // 这里设置存储时间戳，才能保证全局有序
+            messageExtBatch.setStoreTimestamp(beginLockTimestamp);
+
+            // 尝试写入
+            MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(this.baseOffset);
+            if (null == mapedFile) {
+                log.error("create maped file1 error, topic: " + messageExtBatch.getTopic() + " clientAddr: "
+                        + messageExtBatch.getBornHostString());
+                return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+            }
+            result = mapedFile.appendMessage(messageExtBatch, this.appendMessageCallback);
+            switch (result.getStatus()) {
+            // 成功追加消息
+            case PUT_OK:
+                break;
+            // 走到文件末尾
+            case END_OF_FILE:
+                long beginNewFileTime = System.nanoTime();
+                // 创建新文件，重新写消息
+                mapedFile = this.mapedFileQueue.getLastMapedFile(this.baseOffset);
+                if (null == mapedFile) {
+                    log.error("create maped file2 error, topic: " + messageExtBatch.getTopic()
+                            + " clientAddr: " + messageExtBatch.getBornHostString());
+                    return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, result);
+                }
+                result = mapedFile.appendMessage(messageExtBatch, this.appendMessageCallback);
+                storeStatsService.setPutMessageNewFileTimeMax((System.nanoTime() - beginNewFileTime) / 1000);
+                break;
+            // 消息大小超限
+            case MESSAGE_SIZE_EXCEEDED:
+                return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, result);
+                // 未知错误
+            case UNKNOWN_ERROR:
+                return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
+            default:
+                return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, result);
+            }
+
+            // 每条消息对应一个Consume Queue条目
+            final long[] msgOffsets = result.getMsgOffsets();
+            final long endOffset = result.getWroteOffset() + result.getWroteBytes();
+            for (int i = 0; i < msgOffsets.length; i++) {
+                MessageExtBrokerInner msgInner = messageExtBatch.getMessages().get(i);
+                long nextOffset = (i + 1) < msgOffsets.length ? msgOffsets[i + 1] : endOffset;
+                if (scheduleDelayLevel > 0) {
+                    msgInner.setTagsCode(this.defaultMessageStore.getScheduleMessageService()
+                        .computeDeliverTimestamp(scheduleDelayLevel, messageExtBatch.getStoreTimestamp()));
                 }
+                DispatchRequest dispatchRequest = new DispatchRequest(//
+                    messageExtBatch.getTopic(),// 1
+                    messageExtBatch.getQueueId(),// 2
+                    msgOffsets[i],// 3
+                    (int) (nextOffset - msgOffsets[i]),// 4
+                    msgInner.getTagsCode(),// 5
+                    messageExtBatch.getStoreTimestamp(),// 6
+                    result.getLogicsOffset() + i,// 7
+                    msgInner.getKeys(),// 8
+                    msgInner.getSysFlag(),// 9
+                    msgInner.getPreparedTransactionOffset(),// 10
+                    bitMaps[i]);// 11
+
+                this.defaultMessageStore.putDispatchRequest(dispatchRequest);
             }
-            else {
-                service.wakeup();
+
+            long eclipseTime = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+            if (eclipseTime > 1000) {
+                log.warn("putMessages in lock eclipse time(ms) " + eclipseTime + " msgNum "
+                        + msgOffsets.length);
             }
         }
-        // 异步刷盘
-        else {
-            this.flushCommitLogService.wakeup();
+        finally {
+            this.putMessageLock.unlock();
+            messageExtBatch.setEncodedBuff(null);
         }
 
-        // 同步双写
-        if (BrokerRole.SYNC_MASTER == this.defaultMessageStore.getMessageStoreConfig().getBrokerRole()) {
-            HAService service = this.defaultMessageStore.getHaService();
-            if (msg.isWaitStoreMsgOK()) {
-                // 判断是否要等待
-                if (service.isSlaveOK(result.getWroteOffset() + result.getWroteBytes())) {
-                    if (null == request) {
-                        request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
-                    }
-                    service.putRequest(request);
-
-                    service.getWaitNotifyObject().wakeupAll();
+        // 返回结果
+        PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
 
-                    boolean flushOK =
-                    // TODO 此处参数与刷盘公用是否合适
-                            request.waitForFlush(this.defaultMessageStore.getMessageStoreConfig()
-                                .getSyncFlushTimeout());
-                    if (!flushOK) {
-                        log.error("do sync transfer other node, wait return, but failed, topic: "
-                                + msg.getTopic() + " tags: " + msg.getTags() + " client address: "
-                                + msg.getBornHostString());
-                        putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
-                    }
-                }
-                // Slave异常
-                else {
-                    // 告诉发送方，Slave异常
-                    putMessageResult.setPutMessageStatus(PutMessageStatus.SLAVE_NOT_AVAILABLE);
-                }
-            }
-        }
+        // 统计消息SIZE
+        storeStatsService.getSinglePutMessageTopicSizeTotal(messageExtBatch.getTopic()).addAndGet(
+            result.getWroteBytes());
 
-        // 向发送方返回结果
         return putMessageResult;
     }
 
@@ -685,11 +1456,20 @@ public class CommitLog {
      * 读取消息
      */
     public SelectMapedBufferResult getMessage(final long offset, final int size) {
+        // 热存储中已经删除的数据从冷存储读取
+        if (this.coldFileStore != null && offset < this.mapedFileQueue.getMinOffset()) {
+            return this.coldFileStore.getData(offset, size);
+        }
+
         int mapedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
         MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset, (0 == offset ? true : false));
         if (mapedFile != null) {
             int pos = (int) (offset % mapedFileSize);
             SelectMapedBufferResult result = mapedFile.selectMapedBuffer(pos, size);
+            // 文件正在删除，此时已经卸载到冷存储
+            if (null == result && this.coldFileStore != null && !mapedFile.isAvailable()) {
+                return this.coldFileStore.getData(offset, size);
+            }
             return result;
         }
 
@@ -697,24 +1477,47 @@ public class CommitLog {
     }
 
 
-    public HashMap<String, Long> getTopicQueueTable() {
+    public HashMap<String, long[]> getTopicQueueTable() {
         return topicQueueTable;
     }
 
 
-    public void setTopicQueueTable(HashMap<String, Long> topicQueueTable) {
+    public void setTopicQueueTable(HashMap<String, long[]> topicQueueTable) {
         this.topicQueueTable = topicQueueTable;
     }
 
 
     public void destroy() {
         this.mapedFileQueue.destroy();
+        if (this.coldFileStore != null) {
+            this.coldFileStore.destroy();
+        }
     }
 
 
     public boolean appendData(long startOffset, byte[] data) {
         // 写文件要加锁
-        synchronized (this) {
+        this.putMessageLock.lock();
+        try {
+            // 尝试写入
+            MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(startOffset);
+            if (null == mapedFile) {
+                log.error("appendData getLastMapedFile error  " + startOffset);
+                return false;
+            }
+
+            return mapedFile.appendMessage(data);
+        }
+        finally {
+            this.putMessageLock.unlock();
+        }
+    }
+
+
+    public boolean appendData(long startOffset, ByteBuffer data) {
+        // 写文件要加锁
+        this.putMessageLock.lock();
+        try {
             // 尝试写入
             MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(startOffset);
             if (null == mapedFile) {
@@ -724,6 +1527,9 @@ public class CommitLog {
 
             return mapedFile.appendMessage(data);
         }
+        finally {
+            this.putMessageLock.unlock();
+        }
     }
 
 
@@ -787,7 +1593,7 @@ public class CommitLog {
 
                     CommitLog.this.mapedFileQueue.commit(flushPhysicQueueLeastPages);
                     long storeTimestamp = CommitLog.this.mapedFileQueue.getStoreTimestamp();
-                    if (storeTimestamp > 0) {
+                    if (storeTimestamp > 0 && !CommitLog.this.isIsolated()) {
                         CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(
                             storeTimestamp);
                     }
@@ -868,6 +1674,68 @@ public class CommitLog {
         }
     }
 
+    /**
+     * 堆外写缓冲写回服务，将消息从DirectByteBuffer写回FileChannel
+     */
+    class WriteBackRealTimeService extends FlushCommitLogService {
+        private static final int RetryTimesOver = 10;
+        private long lastWriteBackTimestamp = 0;
+
+
+        public void run() {
+            CommitLog.log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                int interval =
+                        CommitLog.this.defaultMessageStore.getMessageStoreConfig()
+                            .getWriteBackIntervalCommitLog();
+                int writeBackLeastPages =
+                        CommitLog.this.defaultMessageStore.getMessageStoreConfig()
+                            .getWriteBackCommitLogLeastPages();
+                int writeBackThoroughInterval =
+                        CommitLog.this.defaultMessageStore.getMessageStoreConfig()
+                            .getWriteBackCommitLogThoroughInterval();
+
+                // 定时彻底写回
+                long currentTimeMillis = System.currentTimeMillis();
+                if (currentTimeMillis >= (this.lastWriteBackTimestamp + writeBackThoroughInterval)) {
+                    this.lastWriteBackTimestamp = currentTimeMillis;
+                    writeBackLeastPages = 0;
+                }
+
+                try {
+                    boolean result = CommitLog.this.mapedFileQueue.writeBack(writeBackLeastPages);
+                    // 有新数据写回，通知刷盘服务
+                    if (!result) {
+                        this.lastWriteBackTimestamp = currentTimeMillis;
+                        CommitLog.this.flushCommitLogService.wakeup();
+                    }
+
+                    this.waitForRunning(interval);
+                }
+                catch (Exception e) {
+                    CommitLog.log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            // 正常shutdown时，要保证全部写回才退出
+            boolean result = false;
+            for (int i = 0; i < RetryTimesOver && !result; i++) {
+                result = CommitLog.this.mapedFileQueue.writeBack(0);
+                CommitLog.log.info(this.getServiceName() + " service shutdown, retry " + (i + 1) + " times "
+                        + (result ? "OK" : "Not OK"));
+            }
+
+            CommitLog.log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return WriteBackRealTimeService.class.getSimpleName();
+        }
+    }
+
     /**
      * GroupCommit Service
      */
@@ -897,21 +1765,17 @@ public class CommitLog {
         private void doCommit() {
             if (!this.requestsRead.isEmpty()) {
                 for (GroupCommitRequest req : this.requestsRead) {
-                    // 消息有可能在下一个文件，所以最多刷盘2次
-                    boolean flushOK = false;
-                    for (int i = 0; (i < 2) && !flushOK; i++) {
+                    // 消息有可能在后面的文件，积压较多时可能跨越多个文件，刷到请求位置或者无法继续刷盘为止
+                    boolean flushOK = (CommitLog.this.mapedFileQueue.getCommittedWhere() >= req.getNextOffset());
+                    while (!flushOK && !CommitLog.this.mapedFileQueue.commit(0)) {
                         flushOK = (CommitLog.this.mapedFileQueue.getCommittedWhere() >= req.getNextOffset());
-
-                        if (!flushOK) {
-                            CommitLog.this.mapedFileQueue.commit(0);
-                        }
                     }
 
                     req.wakeupCustomer(flushOK);
                 }
 
                 long storeTimestamp = CommitLog.this.mapedFileQueue.getStoreTimestamp();
-                if (storeTimestamp > 0) {
+                if (storeTimestamp > 0 && !CommitLog.this.isIsolated()) {
                     CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(
                         storeTimestamp);
                 }
@@ -977,17 +1841,16 @@ public class CommitLog {
 
     class DefaultAppendMessageCallback implements AppendMessageCallback {
         // 文件末尾空洞最小定长
-        private static final int END_FILE_MIN_BLANK_LENGTH = 4 + 4;
-        // 存储消息ID
-        private final ByteBuffer msgIdMemory;
-        // 存储消息内容
+        static final int END_FILE_MIN_BLANK_LENGTH = 4 + 4;
+        // 锁内序列化消息使用
+        private final MessageSerializer messageSerializer = new MessageSerializer();
+        // 检查消息时读取消息内容使用
         private final ByteBuffer msgStoreItemMemory;
         // 消息的最大长度
         private final int maxMessageSize;
 
 
         DefaultAppendMessageCallback(final int size) {
-            this.msgIdMemory = ByteBuffer.allocate(MessageDecoder.MSG_ID_LENGTH);
             this.msgStoreItemMemory = ByteBuffer.allocate(size + END_FILE_MIN_BLANK_LENGTH);
             this.maxMessageSize = size;
         }
@@ -1000,25 +1863,24 @@ public class CommitLog {
 
         public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer,
                 final int maxBlank, final Object msg) {
+            if (msg instanceof MessageExtBatch) {
+                return this.doAppendBatch(fileFromOffset, byteBuffer, maxBlank, (MessageExtBatch) msg);
+            }
+
             /**
-             * 生成消息ID STORETIMESTAMP + STOREHOSTADDRESS + OFFSET <br>
+             * 消息ID STORETIMESTAMP + STOREHOSTADDRESS + OFFSET，在锁外按需生成 <br>
              */
             MessageExtBrokerInner msgInner = (MessageExtBrokerInner) msg;
             // PHY OFFSET
             long wroteOffset = fileFromOffset + byteBuffer.position();
-            String msgId =
-                    MessageDecoder.createMessageId(this.msgIdMemory, msgInner.getStoreHostBytes(),
-                        wroteOffset);
 
             /**
              * 记录ConsumeQueue信息
              */
-            String key = msgInner.getTopic() + "-" + msgInner.getQueueId();
-            Long queueOffset = CommitLog.this.topicQueueTable.get(key);
-            if (null == queueOffset) {
-                queueOffset = 0L;
-                CommitLog.this.topicQueueTable.put(key, queueOffset);
-            }
+            long[] queueOffsets = CommitLog.this.topicQueueTable.get(msgInner.getTopic());
+            long queueOffset =
+                    (queueOffsets != null && msgInner.getQueueId() < queueOffsets.length) ? queueOffsets[msgInner
+                        .getQueueId()] : 0L;
 
             /**
              * 事务消息需要特殊处理
@@ -1036,19 +1898,259 @@ public class CommitLog {
                 break;
             }
 
-            /**
-             * 序列化消息
-             */
-            final byte[] propertiesData =
-                    msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes();
-            final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+            // 锁外已经序列化好的消息，只需回填与位置相关的字段
+            final ByteBuffer encodedBuff = msgInner.getEncodedBuff();
+            final int msgLen;
+            if (encodedBuff != null) {
+                msgLen = encodedBuff.limit();
+                if ((msgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+                    return this.appendBlank(byteBuffer, maxBlank, wroteOffset, msgInner, queueOffset);
+                }
+
+                // 6 QUEUEOFFSET
+                encodedBuff.putLong(MessageDecoder.MessageQueueOffsetPostion, queueOffset);
+                // 7 PHYSICALOFFSET
+                encodedBuff.putLong(MessageDecoder.MessagePhysicOffsetPostion, wroteOffset);
+                // 11 STORETIMESTAMP
+                encodedBuff.putLong(MessageDecoder.MessageStoreTimestampPostion, msgInner.getStoreTimestamp());
+
+                // 向队列缓冲区写入消息
+                byteBuffer.put(encodedBuff.array(), 0, msgLen);
+            }
+            else {
+                msgLen = this.messageSerializer.prepare(msgInner);
+
+                // 消息超过设定的最大值
+                if (msgLen > this.maxMessageSize) {
+                    CommitLog.log.warn("message size exceeded, msg total size: " + msgLen
+                            + ", maxMessageSize: " + this.maxMessageSize);
+                    return new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED);
+                }
+
+                // 判断是否有足够空余空间
+                if ((msgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+                    return this.appendBlank(byteBuffer, maxBlank, wroteOffset, msgInner, queueOffset);
+                }
+
+                // 直接序列化到队列缓冲区，不经过中间内存
+                this.messageSerializer.write(byteBuffer, msgInner, msgLen, queueOffset, wroteOffset);
+            }
+
+            AppendMessageResult result =
+                    new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen,
+                        msgInner.getStoreHost(), msgInner.getStoreTimestamp(), queueOffset);
+
+            switch (tranType) {
+            case MessageSysFlag.TransactionPreparedType:
+            case MessageSysFlag.TransactionRollbackType:
+                break;
+            case MessageSysFlag.TransactionNotType:
+            case MessageSysFlag.TransactionCommitType:
+                // 更新下一次的ConsumeQueue信息
+                putTopicQueueOffset(CommitLog.this.topicQueueTable, msgInner.getTopic(),
+                    msgInner.getQueueId(), ++queueOffset);
+                break;
+            default:
+                break;
+            }
+
+            // 返回结果
+            return result;
+        }
+
+
+        /**
+         * 批量消息已在锁外序列化，逐条回填队列偏移量、物理偏移量及存储时间后一次写入
+         */
+        private AppendMessageResult doAppendBatch(final long fileFromOffset, final ByteBuffer byteBuffer,
+                final int maxBlank, final MessageExtBatch messageExtBatch) {
+            // PHY OFFSET
+            final long wroteOffset = fileFromOffset + byteBuffer.position();
+
+            long[] queueOffsets = CommitLog.this.topicQueueTable.get(messageExtBatch.getTopic());
+            final int queueId = messageExtBatch.getQueueId();
+            final long beginQueueOffset =
+                    (queueOffsets != null && queueId < queueOffsets.length) ? queueOffsets[queueId] : 0L;
+
+            final ByteBuffer encodedBuff = messageExtBatch.getEncodedBuff();
+            final int totalMsgLen = encodedBuff.limit();
+
+            // 整批消息必须写在同一个文件中
+            if ((totalMsgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+                return this.appendBlank(byteBuffer, maxBlank, wroteOffset, messageExtBatch, beginQueueOffset);
+            }
+
+            final long[] msgOffsets = new long[messageExtBatch.getMessages().size()];
+            long queueOffset = beginQueueOffset;
+            int msgPos = 0;
+            for (int i = 0; i < msgOffsets.length; i++) {
+                msgOffsets[i] = wroteOffset + msgPos;
+                // 6 QUEUEOFFSET
+                encodedBuff.putLong(msgPos + MessageDecoder.MessageQueueOffsetPostion, queueOffset++);
+                // 7 PHYSICALOFFSET
+                encodedBuff.putLong(msgPos + MessageDecoder.MessagePhysicOffsetPostion, msgOffsets[i]);
+                // 11 STORETIMESTAMP
+                encodedBuff.putLong(msgPos + MessageDecoder.MessageStoreTimestampPostion,
+                    messageExtBatch.getStoreTimestamp());
+                // 1 TOTALSIZE
+                msgPos += encodedBuff.getInt(msgPos);
+            }
+
+            // 向队列缓冲区写入所有消息
+            byteBuffer.put(encodedBuff.array(), 0, totalMsgLen);
+
+            AppendMessageResult result =
+                    new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalMsgLen,
+                        messageExtBatch.getStoreHost(), messageExtBatch.getStoreTimestamp(), beginQueueOffset);
+            result.setMsgNum(msgOffsets.length);
+            result.setMsgOffsets(msgOffsets);
+
+            // 更新下一次的ConsumeQueue信息
+            putTopicQueueOffset(CommitLog.this.topicQueueTable, messageExtBatch.getTopic(), queueId,
+                queueOffset);
+
+            return result;
+        }
+
+
+        /**
+         * 文件末尾空间不足，写入空洞标识，调用方需要切换到下一个文件重新写入
+         */
+        private AppendMessageResult appendBlank(final ByteBuffer byteBuffer, final int maxBlank,
+                final long wroteOffset, final MessageExtBrokerInner msgInner, final long queueOffset) {
+            // 1 TOTALSIZE
+            byteBuffer.putInt(maxBlank);
+            // 2 MAGICCODE
+            byteBuffer.putInt(CommitLog.BlankMagicCode);
+            // 3 剩余空间可能是任何值，不再写入
+            //
+
+            // 只写入了8字节的空洞标识，返回长度仍为maxBlank，使写位置移到文件末尾
+            return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank,
+                msgInner.getStoreHost(), msgInner.getStoreTimestamp(), queueOffset);
+        }
+    }
+
+    /**
+     * 在锁外序列化消息，QUEUEOFFSET、PHYSICALOFFSET、STORETIMESTAMP在锁内回填
+     */
+    class MessageExtEncoder {
+        // 存储消息内容
+        private final ByteBuffer msgStoreItemMemory;
+        // 发送线程私有，不需要同步
+        private final MessageSerializer messageSerializer = new MessageSerializer();
+        // 消息的最大长度
+        private final int maxMessageSize;
+
+
+        MessageExtEncoder(final int size) {
+            this.msgStoreItemMemory = ByteBuffer.allocate(size);
+            this.maxMessageSize = size;
+        }
+
+
+        /**
+         * @return 序列化后的消息，null表示消息大小超限
+         */
+        public ByteBuffer encode(final MessageExtBrokerInner msgInner) {
+            final int msgLen = this.messageSerializer.prepare(msgInner);
+            if (msgLen > this.maxMessageSize) {
+                CommitLog.log.warn("message size exceeded, msg total size: " + msgLen + ", maxMessageSize: "
+                        + this.maxMessageSize);
+                return null;
+            }
+
+            this.msgStoreItemMemory.clear();
+            this.msgStoreItemMemory.limit(msgLen);
+            this.messageSerializer.write(this.msgStoreItemMemory, msgInner, msgLen, 0, 0);
+            return this.msgStoreItemMemory;
+        }
+    }
+
+    /**
+     * 在锁外将批量消息序列化为连续的CommitLog记录，QUEUEOFFSET、PHYSICALOFFSET、STORETIMESTAMP在锁内回填
+     */
+    class MessageExtBatchEncoder {
+        // 发送线程私有，不需要同步
+        private final MessageSerializer messageSerializer = new MessageSerializer();
+        // 单条消息的最大长度
+        private final int maxMessageSize;
+        // 存储整批消息内容，按需扩容
+        private ByteBuffer msgBatchMemory;
+
 
-            final byte[] topicData = msgInner.getTopic().getBytes();
-            final int topicLength = topicData == null ? 0 : topicData.length;
+        MessageExtBatchEncoder(final int size) {
+            this.maxMessageSize = size;
+            this.msgBatchMemory = ByteBuffer.allocate(Math.min(size, 1024 * 64));
+        }
+
+
+        /**
+         * @return 序列化后的消息，null表示某条消息大小超限
+         */
+        public ByteBuffer encode(final MessageExtBatch messageExtBatch) {
+            this.msgBatchMemory.clear();
+            for (MessageExtBrokerInner msgInner : messageExtBatch.getMessages()) {
+                final int msgLen = this.messageSerializer.prepare(msgInner);
+                if (msgLen > this.maxMessageSize) {
+                    CommitLog.log.warn("message size exceeded, msg total size: " + msgLen
+                            + ", maxMessageSize: " + this.maxMessageSize);
+                    return null;
+                }
+
+                if (this.msgBatchMemory.remaining() < msgLen) {
+                    this.expand(msgLen);
+                }
+
+                this.messageSerializer.write(this.msgBatchMemory, msgInner, msgLen, 0, 0);
+            }
+
+            this.msgBatchMemory.flip();
+            return this.msgBatchMemory;
+        }
+
+
+        private void expand(final int needMore) {
+            int capacity = this.msgBatchMemory.capacity();
+            int required = this.msgBatchMemory.position() + needMore;
+            while (capacity < required) {
+                capacity *= 2;
+            }
+
+            ByteBuffer newMemory = ByteBuffer.allocate(capacity);
+            this.msgBatchMemory.flip();
+            newMemory.put(this.msgBatchMemory);
+            this.msgBatchMemory = newMemory;
+        }
+    }
+
+    /**
+     * 按照CommitLog存储格式序列化消息，稳定状态下不产生任何对象分配<br>
+     * 每个写入方持有一份，非线程安全，prepare与write必须成对调用
+     */
+    class MessageSerializer {
+        // 最近一次写入的主机地址，连续消息来自同一连接时不必重复转换
+        private final SocketAddressBytes bornHostBytes = new SocketAddressBytes();
+        private final SocketAddressBytes storeHostBytes = new SocketAddressBytes();
+        // 属性为ASCII时逐字符拷贝到这里，避免每条消息分配byte[]
+        private byte[] propertiesBuffer = new byte[256];
+        private byte[] topicData;
+        private byte[] propertiesData;
+        private int propertiesLength;
+
+
+        /**
+         * 准备序列化需要的topic、属性数据
+         * 
+         * @return 消息总长度
+         */
+        public int prepare(final MessageExtBrokerInner msgInner) {
+            this.topicData = CommitLog.this.getTopicBytes(msgInner.getTopic());
+            this.encodeProperties(msgInner.getPropertiesString());
 
             final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
 
-            final int msgLen = 4 // 1 TOTALSIZE
+            return 4 // 1 TOTALSIZE
                     + 4 // 2 MAGICCODE
                     + 4 // 3 BODYCRC
                     + 4 // 4 QUEUEID
@@ -1063,111 +2165,158 @@ public class CommitLog {
                     + 4 // 13 RECONSUMETIMES
                     + 8 // 14 Prepared Transaction Offset
                     + 4 + bodyLength // 14 BODY
-                    + 1 + topicLength // 15 TOPIC
-                    + 2 + propertiesLength // 16 propertiesLength
+                    + 1 + this.topicData.length // 15 TOPIC
+                    + 2 + this.propertiesLength // 16 propertiesLength
                     + 0;
+        }
 
-            // 消息超过设定的最大值
-            if (msgLen > this.maxMessageSize) {
-                CommitLog.log.warn("message size exceeded, msg total size: " + msgLen + ", msg body size: "
-                        + bodyLength + ", maxMessageSize: " + this.maxMessageSize);
-                return new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED);
+
+        private void encodeProperties(final String propertiesString) {
+            this.propertiesData = null;
+            if (null == propertiesString) {
+                this.propertiesLength = 0;
+                return;
             }
 
-            // 判断是否有足够空余空间
-            if ((msgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
-                this.resetMsgStoreItemMemory(maxBlank);
-                // 1 TOTALSIZE
-                this.msgStoreItemMemory.putInt(maxBlank);
-                // 2 MAGICCODE
-                this.msgStoreItemMemory.putInt(CommitLog.BlankMagicCode);
-                // 3 剩余空间可能是任何值
-                //
+            final int length = propertiesString.length();
+            if (length > this.propertiesBuffer.length) {
+                this.propertiesBuffer = new byte[Math.max(length, this.propertiesBuffer.length * 2)];
+            }
 
-                // 此处长度特意设置为maxBlank
-                byteBuffer.put(this.msgStoreItemMemory.array(), 0, maxBlank);
-                return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, msgId,
-                    msgInner.getStoreTimestamp(), queueOffset);
+            for (int i = 0; i < length; i++) {
+                char c = propertiesString.charAt(i);
+                // 非ASCII字符，按UTF-8编码，与MessageDecoder解码保持一致
+                if (c >= 0x80) {
+                    this.propertiesData = propertiesString.getBytes(CHARSET_UTF8);
+                    this.propertiesLength = this.propertiesData.length;
+                    return;
+                }
+                this.propertiesBuffer[i] = (byte) c;
             }
 
-            // 初始化存储空间
-            this.resetMsgStoreItemMemory(msgLen);
+            this.propertiesData = this.propertiesBuffer;
+            this.propertiesLength = length;
+        }
+
+
+        /**
+         * 按照CommitLog存储格式写入target
+         */
+        public void write(final ByteBuffer target, final MessageExtBrokerInner msgInner, final int msgLen,
+                final long queueOffset, final long physicOffset) {
+            final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+
             // 1 TOTALSIZE
-            this.msgStoreItemMemory.putInt(msgLen);
+            target.putInt(msgLen);
             // 2 MAGICCODE
-            this.msgStoreItemMemory.putInt(CommitLog.MessageMagicCode);
+            target.putInt(CommitLog.MessageMagicCode);
             // 3 BODYCRC
-            this.msgStoreItemMemory.putInt(msgInner.getBodyCRC());
+            target.putInt(msgInner.getBodyCRC());
             // 4 QUEUEID
-            this.msgStoreItemMemory.putInt(msgInner.getQueueId());
+            target.putInt(msgInner.getQueueId());
             // 5 FLAG
-            this.msgStoreItemMemory.putInt(msgInner.getFlag());
+            target.putInt(msgInner.getFlag());
             // 6 QUEUEOFFSET
-            this.msgStoreItemMemory.putLong(queueOffset);
+            target.putLong(queueOffset);
             // 7 PHYSICALOFFSET
-            this.msgStoreItemMemory.putLong(fileFromOffset + byteBuffer.position());
+            target.putLong(physicOffset);
             // 8 SYSFLAG
-            this.msgStoreItemMemory.putInt(msgInner.getSysFlag());
+            target.putInt(msgInner.getSysFlag());
             // 9 BORNTIMESTAMP
-            this.msgStoreItemMemory.putLong(msgInner.getBornTimestamp());
+            target.putLong(msgInner.getBornTimestamp());
             // 10 BORNHOST
-            this.msgStoreItemMemory.put(msgInner.getBornHostBytes());
+            this.bornHostBytes.write(target, msgInner.getBornHost());
             // 11 STORETIMESTAMP
-            this.msgStoreItemMemory.putLong(msgInner.getStoreTimestamp());
+            target.putLong(msgInner.getStoreTimestamp());
             // 12 STOREHOSTADDRESS
-            this.msgStoreItemMemory.put(msgInner.getStoreHostBytes());
+            this.storeHostBytes.write(target, msgInner.getStoreHost());
             // 13 RECONSUMETIMES
-            this.msgStoreItemMemory.putInt(msgInner.getReconsumeTimes());
+            target.putInt(msgInner.getReconsumeTimes());
             // 14 Prepared Transaction Offset
-            this.msgStoreItemMemory.putLong(msgInner.getPreparedTransactionOffset());
+            target.putLong(msgInner.getPreparedTransactionOffset());
             // 15 BODY
-            this.msgStoreItemMemory.putInt(bodyLength);
+            target.putInt(bodyLength);
             if (bodyLength > 0)
-                this.msgStoreItemMemory.put(msgInner.getBody());
+                target.put(msgInner.getBody());
             // 16 TOPIC
-            this.msgStoreItemMemory.put((byte) topicLength);
-            this.msgStoreItemMemory.put(topicData);
+            target.put((byte) this.topicData.length);
+            target.put(this.topicData);
             // 17 PROPERTIES
-            this.msgStoreItemMemory.putShort((short) propertiesLength);
-            if (propertiesLength > 0)
-                this.msgStoreItemMemory.put(propertiesData);
+            target.putShort((short) this.propertiesLength);
+            if (this.propertiesLength > 0)
+                target.put(this.propertiesData, 0, this.propertiesLength);
+        }
+    }
 
-            // 向队列缓冲区写入消息
-            byteBuffer.put(this.msgStoreItemMemory.array(), 0, msgLen);
+    /**
+     * 缓存SocketAddress的字节形式（IP + PORT），地址对象不变时直接复用
+     */
+    static class SocketAddressBytes {
+        private SocketAddress socketAddress;
+        private byte[] address;
+        private int port;
+
+
+        public void write(final ByteBuffer target, final SocketAddress socketAddress) {
+            if (socketAddress != this.socketAddress) {
+                InetSocketAddress inetSocketAddress = (InetSocketAddress) socketAddress;
+                this.address = inetSocketAddress.getAddress().getAddress();
+                this.port = inetSocketAddress.getPort();
+                this.socketAddress = socketAddress;
+            }
 
-            AppendMessageResult result =
-                    new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgId,
-                        msgInner.getStoreTimestamp(), queueOffset);
+            target.put(this.address);
+            target.putInt(this.port);
+        }
+    }
 
-            switch (tranType) {
-            case MessageSysFlag.TransactionPreparedType:
-            case MessageSysFlag.TransactionRollbackType:
-                break;
-            case MessageSysFlag.TransactionNotType:
-            case MessageSysFlag.TransactionCommitType:
-                // 更新下一次的ConsumeQueue信息
-                CommitLog.this.topicQueueTable.put(key, ++queueOffset);
-                break;
-            default:
-                break;
-            }
 
-            // 返回结果
-            return result;
+    /**
+     * topic名字的编码结果，topic数量有限，缓存后写消息时不再重复编码
+     */
+    private byte[] getTopicBytes(final String topic) {
+        byte[] topicData = this.topicBytesTable.get(topic);
+        if (null == topicData) {
+            topicData = topic.getBytes();
+            byte[] prev = this.topicBytesTable.putIfAbsent(topic, topicData);
+            if (prev != null) {
+                topicData = prev;
+            }
         }
 
+        return topicData;
+    }
+
 
-        private void resetMsgStoreItemMemory(final int length) {
-            this.msgStoreItemMemory.flip();
-            this.msgStoreItemMemory.limit(length);
+    /**
+     * 更新队列的下一个Offset，数组按queueId下标存放，不够时扩容
+     */
+    public static void putTopicQueueOffset(final HashMap<String, long[]> table, final String topic,
+            final int queueId, final long offset) {
+        long[] queueOffsets = table.get(topic);
+        if (null == queueOffsets || queueId >= queueOffsets.length) {
+            long[] newQueueOffsets = new long[Math.max(queueId + 1, 8)];
+            if (queueOffsets != null) {
+                System.arraycopy(queueOffsets, 0, newQueueOffsets, 0, queueOffsets.length);
+            }
+            queueOffsets = newQueueOffsets;
+            table.put(topic, queueOffsets);
         }
+
+        queueOffsets[queueId] = offset;
     }
 
 
     public void removeQueurFromTopicQueueTable(final String topic, final int queueId) {
-        String key = topic + "-" + queueId;
-        synchronized (this) {
-            this.topicQueueTable.remove(key);
+        this.putMessageLock.lock();
+        try {
+            long[] queueOffsets = this.topicQueueTable.get(topic);
+            if (queueOffsets != null && queueId < queueOffsets.length) {
+                queueOffsets[queueId] = 0L;
+            }
+        }
+        finally {
+            this.putMessageLock.unlock();
         }
 
         log.info("removeQueurFromTopicQueueTable OK Topic: {} QueueId: {}", topic, queueId);
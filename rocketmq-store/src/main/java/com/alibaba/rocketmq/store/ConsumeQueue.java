@@ -23,6 +23,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 
 
 /**
@@ -54,6 +56,10 @@ public class ConsumeQueue {
     // 逻辑队列的最小Offset，删除物理文件时，计算出来的最小Offset
     // 实际使用需要除以 StoreUnitSize
     private volatile long minLogicOffset = 0;
+    // 稀疏时间索引，按时间查询Offset时使用，未开启时为null
+    private final ConsumeQueueTimeIndex timeIndex;
+    // 扩展存储，记录消息存储时间及属性位图，未开启时为null
+    private final ConsumeQueueExt ext;
 
 
     public ConsumeQueue(//
@@ -76,12 +82,50 @@ public class ConsumeQueue {
         this.mapedFileQueue = new MapedFileQueue(queueDir, mapedFileSize, null);
 
         this.byteBufferIndex = ByteBuffer.allocate(CQStoreUnitSize);
+
+        if (defaultMessageStore != null
+                && defaultMessageStore.getMessageStoreConfig().isConsumeQueueTimeIndexEnable()) {
+            MessageStoreConfig messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+            int interval = Math.max(messageStoreConfig.getConsumeQueueTimeIndexInterval(), 1);
+            // 每个时间索引文件对应一个逻辑队列文件
+            int units = (mapedFileSize / CQStoreUnitSize + interval - 1) / interval;
+            this.timeIndex = new ConsumeQueueTimeIndex(//
+                topic,//
+                queueId,//
+                StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(messageStoreConfig
+                    .getStorePathRootDir()),//
+                units * ConsumeQueueTimeIndex.TimeIndexUnitSize,//
+                interval);
+        }
+        else {
+            this.timeIndex = null;
+        }
+
+        if (defaultMessageStore != null
+                && defaultMessageStore.getMessageStoreConfig().isConsumeQueueExtEnable()) {
+            // 扩展存储单元与逻辑队列存储单元一一对应
+            this.ext = new ConsumeQueueExt(//
+                topic,//
+                queueId,//
+                StorePathConfigHelper.getStorePathConsumeQueueExt(defaultMessageStore.getMessageStoreConfig()
+                    .getStorePathRootDir()),//
+                mapedFileSize / CQStoreUnitSize * ConsumeQueueExt.CQExtUnitSize);
+        }
+        else {
+            this.ext = null;
+        }
     }
 
 
     public boolean load() {
         boolean result = this.mapedFileQueue.load();
         log.info("load consume queue " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        if (result && this.timeIndex != null) {
+            result = this.timeIndex.load();
+        }
+        if (result && this.ext != null) {
+            result = this.ext.load();
+        }
         return result;
     }
 
@@ -145,13 +189,30 @@ public class ConsumeQueue {
             processOffset += mapedFileOffset;
             this.mapedFileQueue.truncateDirtyFiles(processOffset);
         }
+
+        if (this.timeIndex != null) {
+            this.timeIndex.recover(this.getMaxOffsetInQuque());
+        }
+        if (this.ext != null) {
+            this.ext.recover(this.getMaxOffsetInQuque());
+        }
     }
 
 
     /**
-     * 二分查找查找消息发送时间最接近timestamp逻辑队列的offset
+     * 二分查找查找消息发送时间最接近timestamp逻辑队列的offset<br>
+     * 开启时间索引时，优先在时间索引中查找，不读取CommitLog
      */
     public long getOffsetInQueueByTime(final long timestamp) {
+        if (this.timeIndex != null) {
+            long offset =
+                    this.timeIndex.getOffsetInQueueByTime(timestamp, this.getMinOffsetInQuque(),
+                        this.getMaxOffsetInQuque());
+            if (offset >= 0) {
+                return offset;
+            }
+        }
+
         MapedFile mapedFile = this.mapedFileQueue.getMapedFileByTime(timestamp);
         if (mapedFile != null) {
             long offset = 0;
@@ -181,7 +242,8 @@ public class ConsumeQueue {
 
                         // 比较时间, 折半
                         long storeTime =
-                                this.defaultMessageStore.getCommitLog().pickupStoretimestamp(phyOffset, size);
+                                this.pickupStoretimestamp((mapedFile.getFileFromOffset() + midOffset)
+                                        / CQStoreUnitSize, phyOffset, size);
                         if (storeTime < 0) {
                             // 没有从物理文件找到消息，此时直接返回0
                             return 0;
@@ -236,10 +298,37 @@ public class ConsumeQueue {
     }
 
 
+    /**
+     * 开启扩展存储时从扩展存储读取消息存储时间，否则读取CommitLog
+     */
+    private long pickupStoretimestamp(final long index, final long phyOffset, final int size) {
+        if (this.ext != null) {
+            long storeTimestamp = this.ext.getStoreTimestamp(index);
+            if (storeTimestamp > 0) {
+                return storeTimestamp;
+            }
+        }
+
+        return this.defaultMessageStore.getCommitLogByOffset(phyOffset).pickupStoretimestamp(phyOffset, size);
+    }
+
+
     /**
      * 根据物理Offset删除无效逻辑文件
      */
     public void truncateDirtyLogicFiles(long phyOffet) {
+        this.truncateDirtyConsumeQueueFiles(phyOffet);
+
+        if (this.timeIndex != null) {
+            this.timeIndex.truncateDirty(this.getMaxOffsetInQuque());
+        }
+        if (this.ext != null) {
+            this.ext.truncateDirty(this.getMaxOffsetInQuque());
+        }
+    }
+
+
+    private void truncateDirtyConsumeQueueFiles(long phyOffet) {
         // 逻辑队列每个文件大小
         int logicFileSize = this.mapedFileSize;
 
@@ -342,7 +431,14 @@ public class ConsumeQueue {
 
 
     public boolean commit(final int flushLeastPages) {
-        return this.mapedFileQueue.commit(flushLeastPages);
+        boolean result = this.mapedFileQueue.commit(flushLeastPages);
+        if (this.timeIndex != null) {
+            result = this.timeIndex.commit(flushLeastPages) && result;
+        }
+        if (this.ext != null) {
+            result = this.ext.commit(flushLeastPages) && result;
+        }
+        return result;
     }
 
 
@@ -351,6 +447,12 @@ public class ConsumeQueue {
         // 无论是否删除文件，都需要纠正下最小值，因为有可能物理文件删除了，
         // 但是逻辑文件一个也删除不了
         this.correctMinOffset(offset);
+        if (this.timeIndex != null) {
+            this.timeIndex.deleteExpiredFile(this.getMinOffsetInQuque());
+        }
+        if (this.ext != null) {
+            this.ext.deleteExpiredFile(this.getMinOffsetInQuque());
+        }
         return cnt;
     }
 
@@ -395,13 +497,20 @@ public class ConsumeQueue {
 
 
     public void putMessagePostionInfoWrapper(long offset, int size, long tagsCode, long storeTimestamp,
-            long logicOffset) {
+            long logicOffset, byte[] bitMap) {
         final int MaxRetries = 5;
         boolean canWrite = this.defaultMessageStore.getRunningFlags().isWriteable();
         for (int i = 0; i < MaxRetries && canWrite; i++) {
             boolean result = this.putMessagePostionInfo(offset, size, tagsCode, logicOffset);
+            // 多个线程并行写ConsumeQueue，存储时间点由DispatchMessageService统一更新
             if (result) {
-                this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(storeTimestamp);
+                if (this.timeIndex != null) {
+                    this.timeIndex.putTimestamp(logicOffset, storeTimestamp);
+                }
+                if (this.ext != null && !this.ext.put(logicOffset, storeTimestamp, bitMap)) {
+                    log.warn("put consume queue ext failed, " + this.topic + ":" + this.queueId + " "
+                            + logicOffset);
+                }
                 return;
             }
             // 只有一种情况会失败，创建新的MapedFile时报错或者超时
@@ -518,6 +627,21 @@ public class ConsumeQueue {
     }
 
 
+    /**
+     * 返回扩展存储Buffer，未开启扩展存储时返回null
+     * 
+     * @param startIndex
+     *            起始偏移量索引
+     */
+    public SelectMapedBufferResult getExtBuffer(final long startIndex) {
+        if (this.ext != null) {
+            return this.ext.getExtBuffer(startIndex);
+        }
+
+        return null;
+    }
+
+
     public long rollNextFile(final long index) {
         int mapedFileSize = this.mapedFileSize;
         int totalUnitsInFile = mapedFileSize / CQStoreUnitSize;
@@ -549,6 +673,12 @@ public class ConsumeQueue {
         this.maxPhysicOffset = -1;
         this.minLogicOffset = 0;
         this.mapedFileQueue.destroy();
+        if (this.timeIndex != null) {
+            this.timeIndex.destroy();
+        }
+        if (this.ext != null) {
+            this.ext.destroy();
+        }
     }
 
 
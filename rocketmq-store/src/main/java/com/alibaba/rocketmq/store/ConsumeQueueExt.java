@@ -0,0 +1,258 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.MessageConst;
+
+
+/**
+ * 消费队列的扩展存储，与ConsumeQueue的存储单元一一对应<br>
+ * 记录消息的存储时间及消息属性的位图（Bloom Filter），拉消息时按属性过滤不需要读取CommitLog<br>
+ * 存储单元格式：版本号(4) + 消息存储时间(8) + 属性位图(20)，版本号为0表示没有扩展信息
+ */
+public class ConsumeQueueExt {
+    // 存储单元大小
+    public static final int CQExtUnitSize = 32;
+    // 当前存储格式版本号
+    public static final int CurrentVersion = 1;
+    // 属性位图字节数
+    public static final int BitMapSize = 20;
+    // 每个属性在位图中置几位
+    private static final int BitMapHashNums = 3;
+    private static final int BitMapBits = BitMapSize * 8;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 存储扩展信息的队列
+    private final MapedFileQueue mapedFileQueue;
+    private final String topic;
+    private final int queueId;
+    // 写扩展信息时用到的ByteBuffer
+    private final ByteBuffer byteBufferExt;
+    // 填充空白单元
+    private final byte[] blankUnit = new byte[CQExtUnitSize];
+
+
+    public ConsumeQueueExt(//
+            final String topic,//
+            final int queueId,//
+            final String storePath,//
+            final int mapedFileSize) {
+        this.topic = topic;
+        this.queueId = queueId;
+
+        String queueDir = storePath//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        this.mapedFileQueue = new MapedFileQueue(queueDir, mapedFileSize, null);
+        this.byteBufferExt = ByteBuffer.allocate(CQExtUnitSize);
+    }
+
+
+    public boolean load() {
+        boolean result = this.mapedFileQueue.load();
+        log.info("load consume queue ext " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 存储单元与ConsumeQueue一一对应，按逻辑队列最大Offset截断即可
+     */
+    public void recover(final long maxOffsetInQueue) {
+        this.truncateDirty(maxOffsetInQueue);
+    }
+
+
+    public void truncateDirty(final long maxOffsetInQueue) {
+        if (!this.mapedFileQueue.getMapedFiles().isEmpty()) {
+            this.mapedFileQueue.truncateDirtyFiles(maxOffsetInQueue * CQExtUnitSize);
+            log.info("truncate consume queue ext " + this.topic + "-" + this.queueId + " to "
+                    + maxOffsetInQueue * CQExtUnitSize);
+        }
+    }
+
+
+    /**
+     * 写入一个存储单元，只有一个线程调用，所以不需要加锁
+     *
+     * @param bitMap
+     *            为null表示没有扩展信息，拉消息时不按属性过滤
+     * @return 是否成功
+     */
+    public boolean put(final long cqOffset, final long storeTimestamp, final byte[] bitMap) {
+        final long expectOffset = cqOffset * CQExtUnitSize;
+
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(expectOffset);
+        while (mapedFile != null) {
+            long currentOffset = mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
+            // 在数据恢复时会走到这个流程
+            if (currentOffset > expectOffset) {
+                return true;
+            }
+            else if (mapedFile.isFull()) {
+                mapedFile = this.mapedFileQueue.getLastMapedFile();
+            }
+            else if (currentOffset == expectOffset) {
+                break;
+            }
+            // 中间有未开启扩展存储时写入的消息，填充空白单元
+            else {
+                mapedFile.appendMessage(this.blankUnit);
+            }
+        }
+
+        if (null == mapedFile) {
+            return false;
+        }
+
+        this.byteBufferExt.flip();
+        this.byteBufferExt.limit(CQExtUnitSize);
+        if (bitMap != null) {
+            this.byteBufferExt.putInt(CurrentVersion);
+            this.byteBufferExt.putLong(storeTimestamp);
+            this.byteBufferExt.put(bitMap, 0, BitMapSize);
+        }
+        else {
+            this.byteBufferExt.put(this.blankUnit);
+        }
+
+        return mapedFile.appendMessage(this.byteBufferExt.array());
+    }
+
+
+    /**
+     * 返回从startIndex开始的扩展信息，与ConsumeQueue.getIndexBuffer对应
+     */
+    public SelectMapedBufferResult getExtBuffer(final long startIndex) {
+        long offset = startIndex * CQExtUnitSize;
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset);
+        if (mapedFile != null) {
+            return mapedFile.selectMapedBuffer((int) (offset % this.mapedFileQueue.getMapedFileSize()));
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 返回消息存储时间，没有扩展信息时返回-1
+     */
+    public long getStoreTimestamp(final long index) {
+        SelectMapedBufferResult result = this.getExtBuffer(index);
+        if (result != null) {
+            try {
+                if (result.getSize() >= CQExtUnitSize
+                        && result.getByteBuffer().getInt(0) == CurrentVersion) {
+                    return result.getByteBuffer().getLong(4);
+                }
+            }
+            finally {
+                result.release();
+            }
+        }
+
+        return -1;
+    }
+
+
+    public boolean commit(final int flushLeastPages) {
+        return this.mapedFileQueue.commit(flushLeastPages);
+    }
+
+
+    /**
+     * 删除所有存储单元都已经过期的文件
+     */
+    public int deleteExpiredFile(final long minOffsetInQueue) {
+        return this.mapedFileQueue.deleteExpiredFileByPosition(minOffsetInQueue * CQExtUnitSize);
+    }
+
+
+    public void destroy() {
+        this.mapedFileQueue.destroy();
+    }
+
+
+    /**
+     * 根据消息属性构造位图，系统属性不参与过滤
+     */
+    public static byte[] buildBitMap(final Map<String, String> properties) {
+        byte[] bitMap = new byte[BitMapSize];
+        if (properties != null) {
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                if (!MessageConst.systemKeySet.contains(entry.getKey())) {
+                    setBits(bitMap, entry.getKey() + "=" + entry.getValue());
+                }
+            }
+        }
+
+        return bitMap;
+    }
+
+
+    /**
+     * 位图中是否可能包含此属性，存在误判，不会漏判
+     */
+    public static boolean isHit(final byte[] bitMap, final String keyValue) {
+        final int hash1 = keyValue.hashCode();
+        final int hash2 = hash2(keyValue);
+        for (int i = 0; i < BitMapHashNums; i++) {
+            int bit = bitIndex(hash1, hash2, i);
+            if ((bitMap[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private static void setBits(final byte[] bitMap, final String keyValue) {
+        final int hash1 = keyValue.hashCode();
+        final int hash2 = hash2(keyValue);
+        for (int i = 0; i < BitMapHashNums; i++) {
+            int bit = bitIndex(hash1, hash2, i);
+            bitMap[bit >>> 3] |= (1 << (bit & 7));
+        }
+    }
+
+
+    private static int bitIndex(final int hash1, final int hash2, final int i) {
+        return ((hash1 + i * hash2) & Integer.MAX_VALUE) % BitMapBits;
+    }
+
+
+    /**
+     * FNV-1a，与String.hashCode相互独立
+     */
+    private static int hash2(final String keyValue) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < keyValue.length(); i++) {
+            hash ^= keyValue.charAt(i);
+            hash *= 0x01000193;
+        }
+
+        return hash;
+    }
+}
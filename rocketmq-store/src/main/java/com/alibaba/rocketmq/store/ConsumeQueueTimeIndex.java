@@ -0,0 +1,276 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+
+
+/**
+ * 消费队列的稀疏时间索引，每隔interval个存储单元记录一次消息的存储时间<br>
+ * 按时间查询逻辑队列Offset时只在索引中二分查找，不需要读取CommitLog<br>
+ * 存储单元格式：逻辑队列Offset(8) + 消息存储时间(8)
+ */
+public class ConsumeQueueTimeIndex {
+    // 存储单元大小
+    public static final int TimeIndexUnitSize = 16;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 存储索引的队列
+    private final MapedFileQueue mapedFileQueue;
+    private final String topic;
+    private final int queueId;
+    // 每隔多少个存储单元记录一次
+    private final int interval;
+    // 写索引时用到的ByteBuffer
+    private final ByteBuffer byteBufferIndex;
+    // 最后一个索引点对应的逻辑队列Offset
+    private long lastQueueOffset = -1;
+
+
+    public ConsumeQueueTimeIndex(//
+            final String topic,//
+            final int queueId,//
+            final String storePath,//
+            final int mapedFileSize,//
+            final int interval) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.interval = Math.max(interval, 1);
+
+        String queueDir = storePath//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        this.mapedFileQueue = new MapedFileQueue(queueDir, mapedFileSize, null);
+        this.byteBufferIndex = ByteBuffer.allocate(TimeIndexUnitSize);
+    }
+
+
+    public boolean load() {
+        boolean result = this.mapedFileQueue.load();
+        log.info("load consume queue time index " + this.topic + "-" + this.queueId + " "
+                + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 恢复索引，并删除超过逻辑队列最大Offset的索引点
+     */
+    public void recover(final long maxOffsetInQueue) {
+        final List<MapedFile> mapedFiles = this.mapedFileQueue.getMapedFiles();
+        if (!mapedFiles.isEmpty()) {
+            // 从倒数第三个文件开始恢复
+            int index = mapedFiles.size() - 3;
+            if (index < 0)
+                index = 0;
+
+            long processOffset = mapedFiles.get(index).getFileFromOffset();
+            for (; index < mapedFiles.size(); index++) {
+                MapedFile mapedFile = mapedFiles.get(index);
+                ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+                int mapedFileOffset = 0;
+                for (int i = 0; i < this.mapedFileQueue.getMapedFileSize(); i += TimeIndexUnitSize) {
+                    long queueOffset = byteBuffer.getLong();
+                    long storeTimestamp = byteBuffer.getLong();
+                    if (storeTimestamp <= 0 || queueOffset >= maxOffsetInQueue) {
+                        break;
+                    }
+
+                    mapedFileOffset = i + TimeIndexUnitSize;
+                    this.lastQueueOffset = queueOffset;
+                }
+
+                processOffset = mapedFile.getFileFromOffset() + mapedFileOffset;
+                if (mapedFileOffset < this.mapedFileQueue.getMapedFileSize()) {
+                    break;
+                }
+            }
+
+            this.mapedFileQueue.truncateDirtyFiles(processOffset);
+            log.info("recover consume queue time index " + this.topic + "-" + this.queueId + " over, "
+                    + processOffset);
+        }
+    }
+
+
+    /**
+     * 消息位置信息写入ConsumeQueue后调用，只有一个线程调用，所以不需要加锁
+     */
+    public void putTimestamp(final long queueOffset, final long storeTimestamp) {
+        if (queueOffset % this.interval != 0 || queueOffset <= this.lastQueueOffset) {
+            return;
+        }
+
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile();
+        if (mapedFile != null) {
+            this.byteBufferIndex.flip();
+            this.byteBufferIndex.limit(TimeIndexUnitSize);
+            this.byteBufferIndex.putLong(queueOffset);
+            this.byteBufferIndex.putLong(storeTimestamp);
+            if (mapedFile.appendMessage(this.byteBufferIndex.array())) {
+                this.lastQueueOffset = queueOffset;
+            }
+        }
+    }
+
+
+    /**
+     * 查找存储时间早于timestamp的最后一个索引点<br>
+     * 返回的逻辑队列Offset不会晚于第一条存储时间不早于timestamp的消息，最多提前interval条
+     *
+     * @return 索引不能覆盖查询时间返回-1，由调用方在ConsumeQueue中查找
+     */
+    public long getOffsetInQueueByTime(final long timestamp, final long minOffsetInQueue,
+            final long maxOffsetInQueue) {
+        final long minOffset = this.mapedFileQueue.getMinOffset();
+        if (minOffset < 0) {
+            return -1;
+        }
+
+        final long minIndex = minOffset / TimeIndexUnitSize;
+        final long maxIndex = this.mapedFileQueue.getMaxOffset() / TimeIndexUnitSize - 1;
+        if (maxIndex < minIndex) {
+            return -1;
+        }
+
+        long low = minIndex;
+        long high = maxIndex;
+        long found = -1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long storeTimestamp = this.readLong(mid, 8);
+            if (storeTimestamp < 0) {
+                return -1;
+            }
+            else if (storeTimestamp < timestamp) {
+                found = mid;
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+
+        long queueOffset;
+        if (found >= 0) {
+            queueOffset = this.readLong(found, 0);
+            if (queueOffset < 0) {
+                return -1;
+            }
+        }
+        else {
+            // 查询时间早于第一个索引点，只有第一个索引点之前的消息不足interval条时索引才能覆盖
+            long firstQueueOffset = this.readLong(minIndex, 0);
+            if (firstQueueOffset < 0 || firstQueueOffset - this.interval >= minOffsetInQueue) {
+                return -1;
+            }
+            queueOffset = minOffsetInQueue;
+        }
+
+        queueOffset = Math.max(queueOffset, minOffsetInQueue);
+        return Math.min(queueOffset, Math.max(maxOffsetInQueue - 1, minOffsetInQueue));
+    }
+
+
+    private long readLong(final long index, final int position) {
+        final long offset = index * TimeIndexUnitSize;
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset);
+        if (mapedFile != null) {
+            SelectMapedBufferResult result =
+                    mapedFile.selectMapedBuffer((int) (offset % this.mapedFileQueue.getMapedFileSize()));
+            if (result != null) {
+                try {
+                    if (result.getSize() >= TimeIndexUnitSize) {
+                        return result.getByteBuffer().getLong(position);
+                    }
+                }
+                finally {
+                    result.release();
+                }
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * ConsumeQueue截断后调用，删除超过逻辑队列最大Offset的索引点
+     */
+    public void truncateDirty(final long maxOffsetInQueue) {
+        if (this.lastQueueOffset < maxOffsetInQueue) {
+            return;
+        }
+
+        final long minOffset = this.mapedFileQueue.getMinOffset();
+        if (minOffset < 0) {
+            return;
+        }
+
+        // 索引点按逻辑队列Offset递增，二分查找第一个需要删除的索引点
+        long low = minOffset / TimeIndexUnitSize;
+        long high = this.mapedFileQueue.getMaxOffset() / TimeIndexUnitSize - 1;
+        long truncateIndex = high + 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long queueOffset = this.readLong(mid, 0);
+            if (queueOffset < 0 || queueOffset >= maxOffsetInQueue) {
+                truncateIndex = mid;
+                high = mid - 1;
+            }
+            else {
+                low = mid + 1;
+            }
+        }
+
+        this.lastQueueOffset =
+                truncateIndex > minOffset / TimeIndexUnitSize ? this.readLong(truncateIndex - 1, 0) : -1;
+        this.mapedFileQueue.truncateDirtyFiles(truncateIndex * TimeIndexUnitSize);
+        log.info("truncate consume queue time index " + this.topic + "-" + this.queueId + " to "
+                + truncateIndex * TimeIndexUnitSize);
+    }
+
+
+    public boolean commit(final int flushLeastPages) {
+        return this.mapedFileQueue.commit(flushLeastPages);
+    }
+
+
+    /**
+     * 删除所有索引点都已经过期的文件
+     */
+    public int deleteExpiredFile(final long minOffsetInQueue) {
+        return this.mapedFileQueue.deleteExpiredFileByOffset(minOffsetInQueue, TimeIndexUnitSize);
+    }
+
+
+    public void destroy() {
+        this.lastQueueOffset = -1;
+        this.mapedFileQueue.destroy();
+    }
+
+
+    public long getLastQueueOffset() {
+        return lastQueueOffset;
+    }
+}
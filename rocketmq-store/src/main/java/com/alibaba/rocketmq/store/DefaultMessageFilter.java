@@ -15,6 +15,8 @@
  */
 package com.alibaba.rocketmq.store;
 
+import java.util.Map;
+
 import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
 
 
@@ -39,7 +41,28 @@ public class DefaultMessageFilter implements MessageFilter {
             return true;
         }
 
+        // 按属性过滤，不过滤Tag
+        if (!subscriptionData.getPropertiesMap().isEmpty()) {
+            return true;
+        }
+
         return subscriptionData.getCodeSet().contains((int) tagsCode);
     }
 
+
+    @Override
+    public boolean isMessageMatched(SubscriptionData subscriptionData, byte[] bitMap) {
+        if (null == subscriptionData || null == bitMap) {
+            return true;
+        }
+
+        for (Map.Entry<String, String> entry : subscriptionData.getPropertiesMap().entrySet()) {
+            if (!ConsumeQueueExt.isHit(bitMap, entry.getKey() + "=" + entry.getValue())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
 }
@@ -28,7 +28,10 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -54,6 +57,7 @@ import com.alibaba.rocketmq.store.ha.HAService;
 import com.alibaba.rocketmq.store.index.IndexService;
 import com.alibaba.rocketmq.store.index.QueryOffsetResult;
 import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
+import com.alibaba.rocketmq.store.schedule.TimerMessageService;
 
 
 /**
@@ -70,6 +74,13 @@ public class DefaultMessageStore implements MessageStore {
     private final MessageStoreConfig messageStoreConfig;
     // CommitLog
     private final CommitLog commitLog;
+    // 所有CommitLog，下标为编号，0号为主CommitLog
+    private final CommitLog[] commitLogs;
+    // 使用独立CommitLog的Topic，构造后不再修改
+    private final HashMap<String/* topic */, CommitLog> isolatedCommitLogTable =
+            new HashMap<String, CommitLog>();
+    // 每个CommitLog占用的物理Offset区间大小
+    private final long commitLogOffsetSpan;
     // ConsumeQueue集合
     private final ConcurrentHashMap<String/* topic */, ConcurrentHashMap<Integer/* queueId */, ConsumeQueue>> consumeQueueTable;
     // 逻辑队列刷盘服务
@@ -84,14 +95,22 @@ public class DefaultMessageStore implements MessageStore {
     private final IndexService indexService;
     // 预分配MapedFile对象服务
     private final AllocateMapedFileService allocateMapedFileService;
+    // CommitLog堆外写缓冲池，未开启时为null
+    private final TransientStorePool transientStorePool;
     // 从物理队列解析消息重新发送到逻辑队列
     private final ReputMessageService reputMessageService;
     // HA服务
     private final HAService haService;
     // 定时服务
     private final ScheduleMessageService scheduleMessageService;
+    // 时间轮定时消息服务，未开启时为null
+    private final TimerMessageService timerMessageService;
     // 运行时数据统计
     private final StoreStatsService storeStatsService;
+    // 采样判断消息是否在PageCache，未开启时为null
+    private final PageCacheReadAheadService pageCacheReadAheadService;
+    // 消息分发到Consume Queue后的回调
+    private volatile MessageArrivingListener messageArrivingListener;
     // 运行过程标志位
     private final RunningFlags runningFlags = new RunningFlags();
     // 优化获取时间性能，精度1ms
@@ -109,8 +128,18 @@ public class DefaultMessageStore implements MessageStore {
 
     public DefaultMessageStore(final MessageStoreConfig messageStoreConfig) throws IOException {
         this.messageStoreConfig = messageStoreConfig;
-        this.allocateMapedFileService = new AllocateMapedFileService();
+        this.allocateMapedFileService = new AllocateMapedFileService(this);
+        if (messageStoreConfig.isTransientStorePoolEnable()) {
+            this.transientStorePool = new TransientStorePool(messageStoreConfig);
+            this.transientStorePool.init();
+        }
+        else {
+            this.transientStorePool = null;
+        }
         this.commitLog = new CommitLog(this);
+        this.commitLogOffsetSpan =
+                CommitLog.OffsetSpan - CommitLog.OffsetSpan % messageStoreConfig.getMapedFileSizeCommitLog();
+        this.commitLogs = this.createCommitLogs();
         this.consumeQueueTable =
                 new ConcurrentHashMap<String/* topic */, ConcurrentHashMap<Integer/* queueId */, ConsumeQueue>>(
                     32);
@@ -123,20 +152,26 @@ public class DefaultMessageStore implements MessageStore {
         this.storeStatsService = new StoreStatsService();
         this.indexService = new IndexService(this);
         this.haService = new HAService(this);
+        this.pageCacheReadAheadService =
+                this.messageStoreConfig.isPageCacheSampleEnable() ? new PageCacheReadAheadService(this) : null;
 
         switch (this.messageStoreConfig.getBrokerRole()) {
         case SLAVE:
             this.reputMessageService = new ReputMessageService();
             this.scheduleMessageService = null;
+            this.timerMessageService = null;
             break;
         case ASYNC_MASTER:
         case SYNC_MASTER:
             this.reputMessageService = null;
             this.scheduleMessageService = new ScheduleMessageService(this);
+            this.timerMessageService =
+                    this.messageStoreConfig.isTimerWheelEnable() ? new TimerMessageService(this) : null;
             break;
         default:
             this.reputMessageService = null;
             this.scheduleMessageService = null;
+            this.timerMessageService = null;
         }
 
         // load过程依赖此服务，所以提前启动
@@ -147,13 +182,133 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
-    public void truncateDirtyLogicFiles(long phyOffet) {
+    /**
+     * 按配置顺序创建独立CommitLog，独立CommitLog的起始Offset为编号乘以Offset区间大小
+     */
+    private CommitLog[] createCommitLogs() {
+        final int maxCommitLogNums = (int) (Long.MAX_VALUE / this.commitLogOffsetSpan);
+        List<CommitLog> commitLogList = new ArrayList<CommitLog>();
+        commitLogList.add(this.commitLog);
+        for (String topic : this.messageStoreConfig.getCommitLogIsolatedTopics().split(";")) {
+            topic = topic.trim();
+            if (topic.length() == 0 || this.isolatedCommitLogTable.containsKey(topic)) {
+                continue;
+            }
+
+            // 定时队列由所有Topic共用，只能存放主CommitLog的Offset
+            if (ScheduleMessageService.SCHEDULE_TOPIC.equals(topic)
+                    || TimerMessageService.TIMER_TOPIC.equals(topic)) {
+                log.warn("topic {} can not use isolated commit log", topic);
+                continue;
+            }
+
+            int index = commitLogList.size();
+            if (index >= maxCommitLogNums) {
+                log.warn("too many isolated commit log, topic {} use the main commit log", topic);
+                continue;
+            }
+
+            CommitLog isolated =
+                    new CommitLog(this, this.messageStoreConfig.getStorePathCommitLog() + "-" + index, index
+                            * this.commitLogOffsetSpan);
+            commitLogList.add(isolated);
+            this.isolatedCommitLogTable.put(topic, isolated);
+            log.info("topic {} use isolated commit log {}", topic, index);
+        }
+
+        return commitLogList.toArray(new CommitLog[commitLogList.size()]);
+    }
+
+
+    /**
+     * 是否有Topic使用独立CommitLog
+     */
+    public boolean hasIsolatedCommitLog() {
+        return !this.isolatedCommitLogTable.isEmpty();
+    }
+
+
+    /**
+     * 按Topic找到写入的CommitLog
+     */
+    public CommitLog getCommitLogByTopic(final String topic) {
+        if (this.isolatedCommitLogTable.isEmpty()) {
+            return this.commitLog;
+        }
+
+        CommitLog isolated = this.isolatedCommitLogTable.get(topic);
+        return isolated != null ? isolated : this.commitLog;
+    }
+
+
+    /**
+     * 按消息找到写入的CommitLog<br>
+     * 延时及定时消息写入时改写为共用的定时Topic，必须写入主CommitLog，到期投递时再按真实Topic写入
+     */
+    private CommitLog getCommitLogByMessage(final MessageExtBrokerInner msg) {
+        if (this.isolatedCommitLogTable.isEmpty()) {
+            return this.commitLog;
+        }
+
+        final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+        if (tranType == MessageSysFlag.TransactionNotType
+                || tranType == MessageSysFlag.TransactionCommitType) {
+            if (msg.getDelayTimeLevel() > 0
+                    || (this.timerMessageService != null && msg.getDeliverTime() > 0)) {
+                return this.commitLog;
+            }
+        }
+
+        return this.getCommitLogByTopic(msg.getTopic());
+    }
+
+
+    /**
+     * 批量消息要求延时级别相同，按第一条消息判断
+     */
+    private CommitLog getCommitLogByMessages(final MessageExtBatch messageExtBatch) {
+        if (!messageExtBatch.getMessages().isEmpty()
+                && messageExtBatch.getMessages().get(0).getDelayTimeLevel() > 0) {
+            return this.commitLog;
+        }
+
+        return this.getCommitLogByTopic(messageExtBatch.getTopic());
+    }
+
+
+    /**
+     * 按物理Offset找到所属的CommitLog
+     */
+    public CommitLog getCommitLogByOffset(final long offset) {
+        int index = (int) (offset / this.commitLogOffsetSpan);
+        if (index > 0 && index < this.commitLogs.length) {
+            return this.commitLogs[index];
+        }
+
+        return this.commitLog;
+    }
+
+
+    /**
+     * 是否为独立CommitLog中的物理Offset
+     */
+    public boolean isIsolatedCommitLogOffset(final long offset) {
+        return offset >= this.commitLogOffsetSpan;
+    }
+
+
+    /**
+     * 只截断写入指定CommitLog的队列
+     */
+    public void truncateDirtyLogicFiles(final CommitLog commitLog, long phyOffet) {
         ConcurrentHashMap<String, ConcurrentHashMap<Integer, ConsumeQueue>> tables =
                 DefaultMessageStore.this.consumeQueueTable;
 
         for (ConcurrentHashMap<Integer, ConsumeQueue> maps : tables.values()) {
             for (ConsumeQueue logic : maps.values()) {
-                logic.truncateDirtyLogicFiles(phyOffet);
+                if (this.getCommitLogByTopic(logic.getTopic()) == commitLog) {
+                    logic.truncateDirtyLogicFiles(phyOffet);
+                }
             }
         }
     }
@@ -167,6 +322,14 @@ public class DefaultMessageStore implements MessageStore {
     public boolean load() {
         boolean result = true;
 
+        // 独立CommitLog不参与主备同步，只允许没有Slave的异步Master使用，HA服务会拒绝Slave连接
+        if (this.hasIsolatedCommitLog()
+                && BrokerRole.ASYNC_MASTER != this.messageStoreConfig.getBrokerRole()) {
+            log.error("commitLogIsolatedTopics is only supported by ASYNC_MASTER without slave, broker role: "
+                    + this.messageStoreConfig.getBrokerRole());
+            return false;
+        }
+
         try {
             boolean lastExitOK = !this.isTempFileExist();
             log.info("last shutdown {}", (lastExitOK ? "normally" : "abnormally"));
@@ -177,8 +340,15 @@ public class DefaultMessageStore implements MessageStore {
                 result = result && this.scheduleMessageService.load();
             }
 
+            // load 时间轮
+            if (null != timerMessageService) {
+                result = result && this.timerMessageService.load();
+            }
+
             // load Commit Log
-            result = result && this.commitLog.load();
+            for (CommitLog cl : this.commitLogs) {
+                result = result && cl.load();
+            }
 
             // load Consume Queue
             result = result && this.loadConsumeQueue();
@@ -235,15 +405,16 @@ public class DefaultMessageStore implements MessageStore {
 
 
     public void cleanExpiredConsumerQueue() {
-        // CommitLog的最小Offset
-        long minCommitLogOffset = this.commitLog.getMinOffset();
-
         Iterator<Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>>> it =
                 this.consumeQueueTable.entrySet().iterator();
         while (it.hasNext()) {
             Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>> next = it.next();
             String topic = next.getKey();
-            if (!topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)) {
+            if (!topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)
+                    && !topic.equals(TimerMessageService.TIMER_TOPIC)) {
+                // CommitLog的最小Offset
+                final CommitLog topicCommitLog = this.getCommitLogByTopic(topic);
+                long minCommitLogOffset = topicCommitLog.getMinOffset();
                 ConcurrentHashMap<Integer, ConsumeQueue> queueTable = next.getValue();
                 Iterator<Entry<Integer, ConsumeQueue>> itQT = queueTable.entrySet().iterator();
                 while (itQT.hasNext()) {
@@ -267,8 +438,8 @@ public class DefaultMessageStore implements MessageStore {
                             minCommitLogOffset,//
                             maxCLOffsetInConsumeQueue);
 
-                        DefaultMessageStore.this.commitLog.removeQueurFromTopicQueueTable(nextQT.getValue()
-                            .getTopic(), nextQT.getValue().getQueueId());
+                        topicCommitLog.removeQueurFromTopicQueueTable(nextQT.getValue().getTopic(), nextQT
+                            .getValue().getQueueId());
 
                         nextQT.getValue().destroy();
                         itQT.remove();
@@ -295,13 +466,19 @@ public class DefaultMessageStore implements MessageStore {
         // 在构造函数已经start了。
         // this.dispatchMessageService.start();
         this.flushConsumeQueueService.start();
-        this.commitLog.start();
+        for (CommitLog cl : this.commitLogs) {
+            cl.start();
+        }
         this.storeStatsService.start();
 
         if (this.scheduleMessageService != null) {
             this.scheduleMessageService.start();
         }
 
+        if (this.timerMessageService != null) {
+            this.timerMessageService.start();
+        }
+
         if (this.reputMessageService != null) {
             this.reputMessageService.setReputFromOffset(this.commitLog.getMaxOffset());
             this.reputMessageService.start();
@@ -309,6 +486,10 @@ public class DefaultMessageStore implements MessageStore {
 
         this.haService.start();
 
+        if (this.pageCacheReadAheadService != null) {
+            this.pageCacheReadAheadService.start();
+        }
+
         this.createTempFile();
         this.addScheduleTask();
         this.shutdown = false;
@@ -336,14 +517,27 @@ public class DefaultMessageStore implements MessageStore {
                 this.scheduleMessageService.shutdown();
             }
 
+            if (this.timerMessageService != null) {
+                this.timerMessageService.shutdown();
+            }
+
             this.haService.shutdown();
 
+            if (this.pageCacheReadAheadService != null) {
+                this.pageCacheReadAheadService.shutdown();
+            }
+
             this.storeStatsService.shutdown();
             this.dispatchMessageService.shutdown();
             this.indexService.shutdown();
             this.flushConsumeQueueService.shutdown();
-            this.commitLog.shutdown();
+            for (CommitLog cl : this.commitLogs) {
+                cl.shutdown();
+            }
             this.allocateMapedFileService.shutdown();
+            if (this.transientStorePool != null) {
+                this.transientStorePool.destroy();
+            }
             if (this.reputMessageService != null) {
                 this.reputMessageService.shutdown();
             }
@@ -357,8 +551,13 @@ public class DefaultMessageStore implements MessageStore {
 
     public void destroy() {
         this.destroyLogics();
-        this.commitLog.destroy();
+        for (CommitLog cl : this.commitLogs) {
+            cl.destroy();
+        }
         this.indexService.destroy();
+        if (this.timerMessageService != null) {
+            this.timerMessageService.destroy();
+        }
         this.deleteFile(StorePathConfigHelper.getAbortFile(this.messageStoreConfig.getStorePathRootDir()));
         this.deleteFile(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig
             .getStorePathRootDir()));
@@ -374,7 +573,68 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    /**
+     * 只删除写入指定CommitLog的队列
+     */
+    public void destroyLogics(final CommitLog commitLog) {
+        for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+            for (ConsumeQueue logic : maps.values()) {
+                if (this.getCommitLogByTopic(logic.getTopic()) == commitLog) {
+                    logic.destroy();
+                }
+            }
+        }
+    }
+
+
     public PutMessageResult putMessage(MessageExtBrokerInner msg) {
+        PutMessageResult checkResult = this.checkBeforePutMessage(msg);
+        if (checkResult != null) {
+            return checkResult;
+        }
+
+        long beginTime = this.getSystemClock().now();
+        PutMessageResult result = this.getCommitLogByMessage(msg).putMessage(msg);
+        this.statPutMessage(msg, beginTime, result);
+        return result;
+    }
+
+
+    public PutMessageResult putMessages(final MessageExtBatch messageExtBatch) {
+        PutMessageResult checkResult = this.checkBeforePutMessage(messageExtBatch);
+        if (checkResult != null) {
+            return checkResult;
+        }
+
+        long beginTime = this.getSystemClock().now();
+        PutMessageResult result = this.getCommitLogByMessages(messageExtBatch).putMessages(messageExtBatch);
+        this.statPutMessage(messageExtBatch, beginTime, result);
+        return result;
+    }
+
+
+    public void asyncPutMessage(final MessageExtBrokerInner msg, final PutMessageCallback callback) {
+        PutMessageResult checkResult = this.checkBeforePutMessage(msg);
+        if (checkResult != null) {
+            callback.operationComplete(checkResult);
+            return;
+        }
+
+        final long beginTime = this.getSystemClock().now();
+        this.getCommitLogByMessage(msg).asyncPutMessage(msg, new PutMessageCallback() {
+            @Override
+            public void operationComplete(PutMessageResult result) {
+                DefaultMessageStore.this.statPutMessage(msg, beginTime, result);
+                callback.operationComplete(result);
+            }
+        });
+    }
+
+
+    /**
+     * 存储消息前的状态及消息校验，校验通过返回null
+     */
+    private PutMessageResult checkBeforePutMessage(MessageExtBrokerInner msg) {
         if (this.shutdown) {
             log.warn("message store has shutdown, so putMessage is forbidden");
             return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
@@ -414,21 +674,24 @@ public class DefaultMessageStore implements MessageStore {
             return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
         }
 
-        long beginTime = this.getSystemClock().now();
-        PutMessageResult result = this.commitLog.putMessage(msg);
+        return null;
+    }
+
+
+    private void statPutMessage(MessageExtBrokerInner msg, long beginTime, PutMessageResult result) {
         // 性能数据统计
         long eclipseTime = this.getSystemClock().now() - beginTime;
         if (eclipseTime > 1000) {
             log.warn("putMessage not in lock eclipse time(ms) " + eclipseTime);
         }
         this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
-        this.storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
+        // 批量消息按条数统计
+        int msgNum = msg instanceof MessageExtBatch ? ((MessageExtBatch) msg).getMessages().size() : 1;
+        this.storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).addAndGet(msgNum);
 
         if (null == result || !result.isOk()) {
             this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
         }
-
-        return result;
     }
 
 
@@ -492,12 +755,24 @@ public class DefaultMessageStore implements MessageStore {
             else {
                 SelectMapedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(offset);
                 if (bufferConsumeQueue != null) {
+                    // 按属性过滤时，先用扩展存储中的属性位图过滤，不读取CommitLog
+                    SelectMapedBufferResult bufferConsumeQueueExt = null;
+                    byte[] bitMap = null;
+                    if (subscriptionData != null && !subscriptionData.getPropertiesMap().isEmpty()) {
+                        bufferConsumeQueueExt = consumeQueue.getExtBuffer(offset);
+                        bitMap = new byte[ConsumeQueueExt.BitMapSize];
+                    }
+
                     try {
                         status = GetMessageStatus.NO_MATCHED_MESSAGE;
 
                         long nextPhyFileStartOffset = Long.MIN_VALUE;
                         long maxPhyOffsetPulling = 0;
 
+                        // 开启堆外写缓冲时，尚未写回FileChannel的消息暂时不可读
+                        final long maxReadableOffsetPy =
+                                this.getCommitLogByTopic(topic).getReadableMaxOffset();
+
                         int i = 0;
                         final int MaxFilterMessageCount = 16000;
                         for (; i < bufferConsumeQueue.getSize() && i < MaxFilterMessageCount; i +=
@@ -508,6 +783,10 @@ public class DefaultMessageStore implements MessageStore {
 
                             maxPhyOffsetPulling = offsetPy;
 
+                            if (offsetPy + sizePy > maxReadableOffsetPy) {
+                                break;
+                            }
+
                             // 说明物理文件正在被删除
                             if (nextPhyFileStartOffset != Long.MIN_VALUE) {
                                 if (offsetPy < nextPhyFileStartOffset)
@@ -521,9 +800,11 @@ public class DefaultMessageStore implements MessageStore {
                             }
 
                             // 消息过滤
-                            if (this.messageFilter.isMessageMatched(subscriptionData, tagsCode)) {
+                            if (this.messageFilter.isMessageMatched(subscriptionData, tagsCode)
+                                    && this.isMessageMatchedByExt(subscriptionData, bufferConsumeQueueExt, i
+                                            / ConsumeQueue.CQStoreUnitSize, bitMap)) {
                                 SelectMapedBufferResult selectResult =
-                                        this.commitLog.getMessage(offsetPy, sizePy);
+                                        this.getCommitLogByOffset(offsetPy).getMessage(offsetPy, sizePy);
                                 if (selectResult != null) {
                                     this.storeStatsService.getGetMessageTransferedMsgCount()
                                         .incrementAndGet();
@@ -554,16 +835,30 @@ public class DefaultMessageStore implements MessageStore {
 
                         nextBeginOffset = offset + (i / ConsumeQueue.CQStoreUnitSize);
 
-                        // TODO 是否会影响性能，需要测试
-                        long diff = this.getMaxPhyOffset() - maxPhyOffsetPulling;
-                        long memory =
-                                (long) (StoreUtil.TotalPhysicalMemorySize * (this.messageStoreConfig
-                                    .getAccessMessageInMemoryMaxRatio() / 100.0));
-                        getResult.setSuggestPullingFromSlave(diff > memory);
+                        // 独立CommitLog不参与主备同步，Slave没有这些消息
+                        if (this.isIsolatedCommitLogOffset(maxPhyOffsetPulling)) {
+                            getResult.setSuggestPullingFromSlave(false);
+                        }
+                        else if (this.pageCacheReadAheadService != null) {
+                            // 采样确认消息不在PageCache，建议从Slave拉取
+                            getResult.setSuggestPullingFromSlave(!this.pageCacheReadAheadService
+                                .isInPageCache(maxPhyOffsetPulling));
+                        }
+                        else {
+                            // TODO 是否会影响性能，需要测试
+                            long diff = this.getMaxPhyOffset() - maxPhyOffsetPulling;
+                            long memory =
+                                    (long) (StoreUtil.TotalPhysicalMemorySize * (this.messageStoreConfig
+                                        .getAccessMessageInMemoryMaxRatio() / 100.0));
+                            getResult.setSuggestPullingFromSlave(diff > memory);
+                        }
                     }
                     finally {
                         // 必须释放资源
                         bufferConsumeQueue.release();
+                        if (bufferConsumeQueueExt != null) {
+                            bufferConsumeQueueExt.release();
+                        }
                     }
                 }
                 else {
@@ -597,6 +892,34 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    /**
+     * 按扩展存储中的属性位图过滤，没有扩展信息时不过滤
+     */
+    private boolean isMessageMatchedByExt(final SubscriptionData subscriptionData,
+            final SelectMapedBufferResult bufferConsumeQueueExt, final int index, final byte[] bitMap) {
+        if (null == bufferConsumeQueueExt) {
+            return true;
+        }
+
+        final int position = index * ConsumeQueueExt.CQExtUnitSize;
+        if (position + ConsumeQueueExt.CQExtUnitSize > bufferConsumeQueueExt.getSize()) {
+            return true;
+        }
+
+        ByteBuffer byteBuffer = bufferConsumeQueueExt.getByteBuffer();
+        if (byteBuffer.getInt(position) != ConsumeQueueExt.CurrentVersion) {
+            return true;
+        }
+
+        // 跳过版本号及存储时间
+        for (int i = 0; i < bitMap.length; i++) {
+            bitMap[i] = byteBuffer.get(position + 12 + i);
+        }
+
+        return this.messageFilter.isMessageMatched(subscriptionData, bitMap);
+    }
+
+
     /**
      * 返回的是当前队列的最大Offset，这个Offset没有对应的消息
      */
@@ -635,7 +958,8 @@ public class DefaultMessageStore implements MessageStore {
 
 
     public MessageExt lookMessageByOffset(long commitLogOffset) {
-        SelectMapedBufferResult sbr = this.commitLog.getMessage(commitLogOffset, 4);
+        SelectMapedBufferResult sbr =
+                this.getCommitLogByOffset(commitLogOffset).getMessage(commitLogOffset, 4);
         if (null != sbr) {
             try {
                 // 1 TOTALSIZE
@@ -653,12 +977,13 @@ public class DefaultMessageStore implements MessageStore {
 
     @Override
     public SelectMapedBufferResult selectOneMessageByOffset(long commitLogOffset) {
-        SelectMapedBufferResult sbr = this.commitLog.getMessage(commitLogOffset, 4);
+        SelectMapedBufferResult sbr =
+                this.getCommitLogByOffset(commitLogOffset).getMessage(commitLogOffset, 4);
         if (null != sbr) {
             try {
                 // 1 TOTALSIZE
                 int size = sbr.getByteBuffer().getInt();
-                return this.commitLog.getMessage(commitLogOffset, size);
+                return this.getCommitLogByOffset(commitLogOffset).getMessage(commitLogOffset, size);
             }
             finally {
                 sbr.release();
@@ -671,7 +996,7 @@ public class DefaultMessageStore implements MessageStore {
 
     @Override
     public SelectMapedBufferResult selectOneMessageByOffset(long commitLogOffset, int msgSize) {
-        return this.commitLog.getMessage(commitLogOffset, msgSize);
+        return this.getCommitLogByOffset(commitLogOffset).getMessage(commitLogOffset, msgSize);
     }
 
 
@@ -706,12 +1031,31 @@ public class DefaultMessageStore implements MessageStore {
             if (this.scheduleMessageService != null) {
                 this.scheduleMessageService.buildRunningStats(result);
             }
+
+            if (this.timerMessageService != null) {
+                this.timerMessageService.buildRunningStats(result);
+            }
+        }
+
+        // 主从复制进度
+        this.haService.buildRunningStats(result);
+
+        if (this.pageCacheReadAheadService != null) {
+            this.pageCacheReadAheadService.buildRunningStats(result);
         }
 
         result.put(RunningStats.commitLogMinOffset.name(),
             String.valueOf(DefaultMessageStore.this.getMinPhyOffset()));
         result.put(RunningStats.commitLogMaxOffset.name(),
             String.valueOf(DefaultMessageStore.this.getMaxPhyOffset()));
+        result.put(RunningStats.dispatchBehindBytes.name(),
+            String.valueOf(DefaultMessageStore.this.dispatchBehindBytes()));
+        result.put(RunningStats.indexBehindBytes.name(),
+            String.valueOf(DefaultMessageStore.this.indexBehindBytes()));
+        for (Entry<String, CommitLog> entry : this.isolatedCommitLogTable.entrySet()) {
+            result.put("isolatedCommitLogMaxOffset_" + entry.getKey(),
+                String.valueOf(entry.getValue().getMaxOffset() - entry.getValue().getBaseOffset()));
+        }
 
         return result;
     }
@@ -735,7 +1079,8 @@ public class DefaultMessageStore implements MessageStore {
                 try {
                     final long phyOffset = result.getByteBuffer().getLong();
                     final int size = result.getByteBuffer().getInt();
-                    long storeTime = this.getCommitLog().pickupStoretimestamp(phyOffset, size);
+                    long storeTime =
+                            this.getCommitLogByOffset(phyOffset).pickupStoretimestamp(phyOffset, size);
                     return storeTime;
                 }
                 catch (Exception e) {
@@ -759,7 +1104,8 @@ public class DefaultMessageStore implements MessageStore {
                 try {
                     final long phyOffset = result.getByteBuffer().getLong();
                     final int size = result.getByteBuffer().getInt();
-                    long storeTime = this.getCommitLog().pickupStoretimestamp(phyOffset, size);
+                    long storeTime =
+                            this.getCommitLogByOffset(phyOffset).pickupStoretimestamp(phyOffset, size);
                     return storeTime;
                 }
                 catch (Exception e) {
@@ -815,6 +1161,26 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    @Override
+    public boolean appendToCommitLog(long startOffset, ByteBuffer data) {
+        if (this.shutdown) {
+            log.warn("message store has shutdown, so appendToPhyQueue is forbidden");
+            return false;
+        }
+
+        final int size = data.remaining();
+        boolean result = this.commitLog.appendData(startOffset, data);
+        if (result) {
+            this.reputMessageService.wakeup();
+        }
+        else {
+            log.error("appendToPhyQueue failed " + startOffset + " " + size);
+        }
+
+        return result;
+    }
+
+
     @Override
     public void excuteDeleteFilesManualy() {
         this.cleanCommitLogService.excuteDeleteFilesManualy();
@@ -845,8 +1211,15 @@ public class DefaultMessageStore implements MessageStore {
 
                 try {
                     // 在服务器检验Hash冲突
-                    boolean match = true;
+                    boolean match = false;
                     MessageExt msg = this.lookMessageByOffset(offset);
+                    // 消息已被删除，或者没有Key，都视为不匹配
+                    if (null == msg || null == msg.getKeys()) {
+                        log.warn("queryMessage message not found or has no keys, {} {} {}", topic, key,
+                            offset);
+                        continue;
+                    }
+
                     if (0 == m) {
                         lastQueryMsgTime = msg.getStoreTimestamp();
                     }
@@ -862,7 +1235,8 @@ public class DefaultMessageStore implements MessageStore {
                     }
 
                     if (match) {
-                        SelectMapedBufferResult result = this.commitLog.getData(offset, false);
+                        SelectMapedBufferResult result =
+                                this.getCommitLogByOffset(offset).getData(offset, false);
                         if (result != null) {
                             int size = result.getByteBuffer().getInt(0);
                             result.getByteBuffer().limit(size);
@@ -912,7 +1286,8 @@ public class DefaultMessageStore implements MessageStore {
 
 
     public MessageExt lookMessageByOffset(long commitLogOffset, int size) {
-        SelectMapedBufferResult sbr = this.commitLog.getMessage(commitLogOffset, size);
+        SelectMapedBufferResult sbr =
+                this.getCommitLogByOffset(commitLogOffset).getMessage(commitLogOffset, size);
         if (null != sbr) {
             try {
                 return MessageDecoder.decode(sbr.getByteBuffer(), true, false);
@@ -963,13 +1338,20 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
-    private boolean isTheBatchFull(long offsetPy, int sizePy, int maxMsgNums, int bufferTotal,
-            int messageTotal) {
-        long maxOffsetPy = this.commitLog.getMaxOffset();
+    /**
+     * 按距离最大Offset的内存比例估算消息是否在磁盘
+     */
+    boolean checkInDiskByCommitOffset(long offsetPy) {
+        long maxOffsetPy = this.getCommitLogByOffset(offsetPy).getMaxOffset();
         long memory =
                 (long) (StoreUtil.TotalPhysicalMemorySize * (this.messageStoreConfig
                     .getAccessMessageInMemoryMaxRatio() / 100.0));
+        return (maxOffsetPy - offsetPy) > memory;
+    }
 
+
+    private boolean isTheBatchFull(long offsetPy, int sizePy, int maxMsgNums, int bufferTotal,
+            int messageTotal) {
         // 第一条消息可以不做限制
         if (0 == bufferTotal || 0 == messageTotal) {
             return false;
@@ -979,8 +1361,13 @@ public class DefaultMessageStore implements MessageStore {
             return true;
         }
 
+        // 开启PageCache采样时按采样结果判断，否则按内存比例估算
+        boolean isInDisk =
+                this.pageCacheReadAheadService != null ? !this.pageCacheReadAheadService
+                    .isInPageCache(offsetPy) : this.checkInDiskByCommitOffset(offsetPy);
+
         // 消息在磁盘
-        if ((maxOffsetPy - offsetPy) > memory) {
+        if (isInDisk) {
             if ((bufferTotal + sizePy) > this.messageStoreConfig.getMaxTransferBytesOnMessageInDisk()) {
                 return true;
             }
@@ -1074,6 +1461,12 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    @Override
+    public void setMessageArrivingListener(final MessageArrivingListener messageArrivingListener) {
+        this.messageArrivingListener = messageArrivingListener;
+    }
+
+
     private void putConsumeQueue(final String topic, final int queueId, final ConsumeQueue consumeQueue) {
         ConcurrentHashMap<Integer/* queueId */, ConsumeQueue> map = this.consumeQueueTable.get(topic);
         if (null == map) {
@@ -1091,47 +1484,69 @@ public class DefaultMessageStore implements MessageStore {
         // 先按照正常流程恢复Consume Queue
         this.recoverConsumeQueue();
 
-        // 正常数据恢复
-        if (lastExitOK) {
-            this.commitLog.recoverNormally();
-        }
-        // 异常数据恢复，OS CRASH或者JVM CRASH或者机器掉电
-        else {
-            this.commitLog.recoverAbnormally();
+        for (CommitLog cl : this.commitLogs) {
+            // 正常数据恢复
+            if (lastExitOK) {
+                cl.recoverNormally();
+            }
+            // 异常数据恢复，OS CRASH或者JVM CRASH或者机器掉电
+            else {
+                cl.recoverAbnormally();
+            }
         }
 
         // 保证消息都能从DispatchService缓冲队列进入到真正的队列
+        this.waitDispatchOver();
+
+        this.recoverTopicQueueTable();
+    }
+
+
+    /**
+     * 等待DispatchService缓冲队列中的消息全部写入ConsumeQueue
+     */
+    public void waitDispatchOver() {
         while (this.dispatchMessageService.hasRemainMessage()) {
             try {
-                Thread.sleep(500);
+                Thread.sleep(100);
                 log.info("waiting dispatching message over");
             }
             catch (InterruptedException e) {
             }
         }
-
-        this.recoverTopicQueueTable();
     }
 
 
     private void recoverTopicQueueTable() {
-        HashMap<String/* topic-queueid */, Long/* offset */> table = new HashMap<String, Long>(1024);
-        long minPhyOffset = this.commitLog.getMinOffset();
-        for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
-            for (ConsumeQueue logic : maps.values()) {
-                // 恢复写入消息时，记录的队列offset
-                String key = logic.getTopic() + "-" + logic.getQueueId();
-                table.put(key, logic.getMaxOffsetInQuque());
-                // 恢复每个队列的最小offset
-                logic.correctMinOffset(minPhyOffset);
+        // 每个CommitLog只记录写入自己的队列
+        for (CommitLog cl : this.commitLogs) {
+            HashMap<String/* topic */, long[]/* offset */> table = new HashMap<String, long[]>(1024);
+            long minPhyOffset = cl.getMinOffset();
+            for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+                for (ConsumeQueue logic : maps.values()) {
+                    if (this.getCommitLogByTopic(logic.getTopic()) != cl) {
+                        continue;
+                    }
+
+                    // 恢复写入消息时，记录的队列offset
+                    CommitLog.putTopicQueueOffset(table, logic.getTopic(), logic.getQueueId(),
+                        logic.getMaxOffsetInQuque());
+                    // 恢复每个队列的最小offset
+                    logic.correctMinOffset(minPhyOffset);
+                }
             }
-        }
 
-        this.commitLog.setTopicQueueTable(table);
+            cl.setTopicQueueTable(table);
+        }
     }
 
 
     private void recoverConsumeQueue() {
+        if (this.messageStoreConfig.isParallelRecoverEnable()) {
+            this.recoverConsumeQueueInParallel();
+            return;
+        }
+
         for (ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
             for (ConsumeQueue logic : maps.values()) {
                 logic.recover();
@@ -1140,10 +1555,51 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    /**
+     * 各个Topic的ConsumeQueue互相独立，按Topic并行恢复
+     */
+    private void recoverConsumeQueueInParallel() {
+        int threadNums = Math.max(this.messageStoreConfig.getRecoverThreadNums(), 1);
+        ExecutorService executorService =
+                Executors.newFixedThreadPool(threadNums, new ThreadFactoryImpl("RecoverConsumeQueueThread_"));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(this.consumeQueueTable.size());
+            for (final ConcurrentHashMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
+                futures.add(executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (ConsumeQueue logic : maps.values()) {
+                            logic.recover();
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("recover consume queue in parallel interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("recover consume queue in parallel failed", e);
+        }
+        finally {
+            executorService.shutdown();
+        }
+    }
+
+
     public void putMessagePostionInfo(String topic, int queueId, long offset, int size, long tagsCode,
-            long storeTimestamp, long logicOffset) {
+            long storeTimestamp, long logicOffset, byte[] bitMap) {
         ConsumeQueue cq = this.findConsumeQueue(topic, queueId);
-        cq.putMessagePostionInfoWrapper(offset, size, tagsCode, storeTimestamp, logicOffset);
+        cq.putMessagePostionInfoWrapper(offset, size, tagsCode, storeTimestamp, logicOffset, bitMap);
+
+        MessageArrivingListener listener = this.messageArrivingListener;
+        if (listener != null) {
+            listener.arriving(topic, queueId, logicOffset + 1);
+        }
     }
 
 
@@ -1157,6 +1613,11 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public TransientStorePool getTransientStorePool() {
+        return transientStorePool;
+    }
+
+
     public AllocateMapedFileService getAllocateMapedFileService() {
         return allocateMapedFileService;
     }
@@ -1187,11 +1648,21 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    public PageCacheReadAheadService getPageCacheReadAheadService() {
+        return pageCacheReadAheadService;
+    }
+
+
     public ScheduleMessageService getScheduleMessageService() {
         return scheduleMessageService;
     }
 
 
+    public TimerMessageService getTimerMessageService() {
+        return timerMessageService;
+    }
+
+
     public RunningFlags getRunningFlags() {
         return runningFlags;
     }
@@ -1249,8 +1720,8 @@ public class DefaultMessageStore implements MessageStore {
                 int destroyMapedFileIntervalForcibly =
                         DefaultMessageStore.this.getMessageStoreConfig()
                             .getDestroyMapedFileIntervalForcibly();
-                if (DefaultMessageStore.this.commitLog.retryDeleteFirstFile(destroyMapedFileIntervalForcibly)) {
-                    // TODO
+                for (CommitLog cl : DefaultMessageStore.this.commitLogs) {
+                    cl.retryDeleteFirstFile(destroyMapedFileIntervalForcibly);
                 }
             }
         }
@@ -1290,9 +1761,11 @@ public class DefaultMessageStore implements MessageStore {
                 // 小时转化成毫秒
                 fileReservedTime *= 60 * 60 * 1000;
 
-                deleteCount =
-                        DefaultMessageStore.this.commitLog.deleteExpiredFile(fileReservedTime,
-                            deletePhysicFilesInterval, destroyMapedFileIntervalForcibly, cleanAtOnce);
+                for (CommitLog cl : DefaultMessageStore.this.commitLogs) {
+                    deleteCount +=
+                            cl.deleteExpiredFile(fileReservedTime, deletePhysicFilesInterval,
+                                destroyMapedFileIntervalForcibly, cleanAtOnce);
+                }
                 if (deleteCount > 0) {
                     // TODO
                 }
@@ -1302,6 +1775,32 @@ public class DefaultMessageStore implements MessageStore {
                     log.warn("disk space will be full soon, but delete file failed.");
                 }
             }
+
+            this.deleteExpiredColdFiles();
+        }
+
+
+        /**
+         * 冷存储按单独的保留时间过期，冷存储磁盘空间不足时删除最早的文件
+         */
+        private void deleteExpiredColdFiles() {
+            final ColdFileStore coldFileStore = DefaultMessageStore.this.commitLog.getColdFileStore();
+            if (null == coldFileStore) {
+                return;
+            }
+
+            // 小时转化成毫秒
+            long coldFileReservedTime = DefaultMessageStore.this.getMessageStoreConfig().getColdFileReservedTime();
+            coldFileReservedTime *= 60 * 60 * 1000;
+            double ratio =
+                    DefaultMessageStore.this.getMessageStoreConfig().getDiskMaxUsedSpaceRatio() / 100.0;
+            double coldRatio = UtilAll.getDiskPartitionSpaceUsedPercent(coldFileStore.getStorePath());
+            boolean cleanImmediately = coldRatio > ratio;
+            if (cleanImmediately) {
+                log.info("cold disk maybe full soon, so reclaim space, " + coldRatio);
+            }
+
+            DefaultMessageStore.this.commitLog.deleteExpiredColdFile(coldFileReservedTime, cleanImmediately);
         }
 
 
@@ -1413,16 +1912,25 @@ public class DefaultMessageStore implements MessageStore {
      * 清理逻辑文件服务
      */
     class CleanConsumeQueueService {
-        private long lastPhysicalMinOffset = 0;
+        // 每个CommitLog上次清理时的最小Offset
+        private final long[] lastPhysicalMinOffset = new long[DefaultMessageStore.this.commitLogs.length];
 
 
         private void deleteExpiredFiles() {
+            for (int i = 0; i < DefaultMessageStore.this.commitLogs.length; i++) {
+                this.deleteExpiredFiles(i);
+            }
+        }
+
+
+        private void deleteExpiredFiles(final int index) {
             int deleteLogicsFilesInterval =
                     DefaultMessageStore.this.getMessageStoreConfig().getDeleteConsumeQueueFilesInterval();
 
-            long minOffset = DefaultMessageStore.this.commitLog.getMinOffset();
-            if (minOffset > this.lastPhysicalMinOffset) {
-                this.lastPhysicalMinOffset = minOffset;
+            final CommitLog cl = DefaultMessageStore.this.commitLogs[index];
+            long minOffset = cl.getMinOffset();
+            if (minOffset > this.lastPhysicalMinOffset[index]) {
+                this.lastPhysicalMinOffset[index] = minOffset;
 
                 // 删除逻辑队列文件
                 ConcurrentHashMap<String, ConcurrentHashMap<Integer, ConsumeQueue>> tables =
@@ -1430,6 +1938,10 @@ public class DefaultMessageStore implements MessageStore {
 
                 for (ConcurrentHashMap<Integer, ConsumeQueue> maps : tables.values()) {
                     for (ConsumeQueue logic : maps.values()) {
+                        if (DefaultMessageStore.this.getCommitLogByTopic(logic.getTopic()) != cl) {
+                            continue;
+                        }
+
                         int deleteCount = logic.deleteExpiredFile(minOffset);
 
                         if (deleteCount > 0 && deleteLogicsFilesInterval > 0) {
@@ -1442,8 +1954,10 @@ public class DefaultMessageStore implements MessageStore {
                     }
                 }
 
-                // 删除索引
-                DefaultMessageStore.this.indexService.deleteExpiredFile(minOffset);
+                // 删除索引，索引文件按主CommitLog的Offset过期
+                if (!cl.isIsolated()) {
+                    DefaultMessageStore.this.indexService.deleteExpiredFile(minOffset);
+                }
             }
         }
 
@@ -1550,142 +2064,269 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     /**
-     * 分发消息索引服务
+     * 分发消息位置信息到ConsumeQueue及索引服务<br>
+     * ConsumeQueue按topic、queueId分片，由多个线程并行写入，同一个队列始终由同一个线程写入，保证顺序<br>
+     * 索引服务要求请求按CommitLog顺序到达，由单独一个线程汇总后提交
      */
-    class DispatchMessageService extends ServiceThread {
-        private volatile List<DispatchRequest> requestsWrite;
-        private volatile List<DispatchRequest> requestsRead;
+    class DispatchMessageService {
+        // 每个线程每次最多处理多少个请求
+        private static final int DispatchBatchMaxNums = 1024;
+        private final DispatchQueueService[] dispatchQueueServices;
+        private final DispatchIndexService dispatchIndexService;
+        // 最后一条放入的消息在CommitLog中的结束位置
+        private volatile long putOffset = -1;
+        // 最后一条放入ConsumeQueue分片的消息存储时间，多个CommitLog的写线程会同时更新，只增不减
+        private final AtomicLong putTimestamp = new AtomicLong(0);
 
 
         public DispatchMessageService(int putMsgIndexHightWater) {
-            putMsgIndexHightWater *= 1.5;
-            this.requestsWrite = new ArrayList<DispatchRequest>(putMsgIndexHightWater);
-            this.requestsRead = new ArrayList<DispatchRequest>(putMsgIndexHightWater);
+            int threadNums = DefaultMessageStore.this.getMessageStoreConfig().getDispatchMessageThreadNums();
+            threadNums = Math.max(threadNums, 1);
+            this.dispatchQueueServices = new DispatchQueueService[threadNums];
+            for (int i = 0; i < threadNums; i++) {
+                this.dispatchQueueServices[i] =
+                        new DispatchQueueService(i, Math.max(putMsgIndexHightWater / threadNums, 1));
+            }
+            this.dispatchIndexService = new DispatchIndexService(putMsgIndexHightWater);
         }
 
 
-        public boolean hasRemainMessage() {
-            List<DispatchRequest> reqs = this.requestsWrite;
-            if (reqs != null && !reqs.isEmpty()) {
-                return true;
+        public void start() {
+            for (DispatchQueueService service : this.dispatchQueueServices) {
+                service.start();
             }
+            this.dispatchIndexService.start();
+        }
 
-            reqs = this.requestsRead;
-            if (reqs != null && !reqs.isEmpty()) {
-                return true;
+
+        public void shutdown() {
+            for (DispatchQueueService service : this.dispatchQueueServices) {
+                service.shutdown();
             }
+            this.dispatchIndexService.shutdown();
+        }
 
-            return false;
+
+        public boolean hasRemainMessage() {
+            for (DispatchQueueService service : this.dispatchQueueServices) {
+                if (!service.getRingBuffer().isEmpty()) {
+                    return true;
+                }
+            }
+
+            return !this.dispatchIndexService.getRingBuffer().isEmpty();
         }
 
 
+        /**
+         * Master上在写CommitLog的锁内调用，Slave上为ReputMessageService线程<br>
+         * 开启独立CommitLog时，各CommitLog的写线程会同时调用
+         */
         public void putRequest(final DispatchRequest dispatchRequest) {
-            int requestsWriteSize = 0;
-            int putMsgIndexHightWater =
-                    DefaultMessageStore.this.getMessageStoreConfig().getPutMsgIndexHightWater();
-            synchronized (this) {
-                this.requestsWrite.add(dispatchRequest);
-                requestsWriteSize = this.requestsWrite.size();
-                if (!this.hasNotified) {
-                    this.hasNotified = true;
-                    this.notify();
-                }
+            int bufferSize = 0;
+            final int tranType = MessageSysFlag.getTransactionValue(dispatchRequest.getSysFlag());
+            switch (tranType) {
+            case MessageSysFlag.TransactionNotType:
+            case MessageSysFlag.TransactionCommitType:
+                int hash = dispatchRequest.getTopic().hashCode() * 31 + dispatchRequest.getQueueId();
+                int index = (hash & Integer.MAX_VALUE) % this.dispatchQueueServices.length;
+                DispatchQueueService service = this.dispatchQueueServices[index];
+                // 缓冲区满时在这里等待，防止CommitLog写入太快，导致消费队列被冲垮
+                bufferSize = service.getRingBuffer().put(dispatchRequest);
+                this.updatePutTimestamp(dispatchRequest.getStoreTimestamp());
+                break;
+            case MessageSysFlag.TransactionPreparedType:
+            case MessageSysFlag.TransactionRollbackType:
+                break;
             }
 
-            DefaultMessageStore.this.getStoreStatsService().setDispatchMaxBuffer(requestsWriteSize);
+            if (DefaultMessageStore.this.getMessageStoreConfig().isMessageIndexEnable()) {
+                bufferSize =
+                        Math.max(bufferSize, this.dispatchIndexService.getRingBuffer().put(dispatchRequest));
+            }
 
-            // 这里主动做流控，防止CommitLog写入太快，导致消费队列被冲垮
-            if (requestsWriteSize > putMsgIndexHightWater) {
-                try {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Message index buffer size " + requestsWriteSize + " > high water "
-                                + putMsgIndexHightWater);
-                    }
+            // 只记录主CommitLog的分发位置，独立CommitLog的Offset不连续
+            if (!DefaultMessageStore.this.isIsolatedCommitLogOffset(dispatchRequest.getCommitLogOffset())) {
+                this.putOffset = dispatchRequest.getCommitLogOffset() + dispatchRequest.getMsgSize();
+            }
 
-                    Thread.sleep(1);
+            DefaultMessageStore.this.getStoreStatsService().setDispatchMaxBuffer(bufferSize);
+        }
+
+
+        private void updatePutTimestamp(final long storeTimestamp) {
+            long prev;
+            do {
+                prev = this.putTimestamp.get();
+                if (storeTimestamp <= prev) {
+                    return;
                 }
-                catch (InterruptedException e) {
+            } while (!this.putTimestamp.compareAndSet(prev, storeTimestamp));
+        }
+
+
+        /**
+         * 已经分发完成的CommitLog位置，之前的消息都已写入ConsumeQueue及索引服务，没有分发过消息返回-1
+         */
+        public long getDispatchedOffset() {
+            long offset = this.putOffset;
+            for (DispatchQueueService service : this.dispatchQueueServices) {
+                DispatchRequest req = service.getRingBuffer().peek();
+                if (req != null
+                        && !DefaultMessageStore.this.isIsolatedCommitLogOffset(req.getCommitLogOffset())) {
+                    offset = Math.min(offset, req.getCommitLogOffset());
                 }
             }
+
+            DispatchRequest req = this.dispatchIndexService.getRingBuffer().peek();
+            if (req != null
+                    && !DefaultMessageStore.this.isIsolatedCommitLogOffset(req.getCommitLogOffset())) {
+                offset = Math.min(offset, req.getCommitLogOffset());
+            }
+
+            return offset;
         }
 
 
-        private void swapRequests() {
-            List<DispatchRequest> tmp = this.requestsWrite;
-            this.requestsWrite = this.requestsRead;
-            this.requestsRead = tmp;
+        /**
+         * 各分片并行写入，只有所有分片都写完的时间点才能作为ConsumeQueue的存储时间点
+         */
+        private long getDispatchedTimestamp() {
+            long timestamp = this.putTimestamp.get();
+            for (DispatchQueueService service : this.dispatchQueueServices) {
+                DispatchRequest req = service.getRingBuffer().peek();
+                if (req != null) {
+                    timestamp = Math.min(timestamp, req.getStoreTimestamp());
+                }
+            }
+
+            return timestamp;
         }
 
 
-        private void doDispatch() {
-            if (!this.requestsRead.isEmpty()) {
-                for (DispatchRequest req : this.requestsRead) {
+        abstract class AbstractDispatchService extends ServiceThread {
+            // 没有请求时，线程挂起的最长时间（单位毫秒）
+            private static final long WaitTimeMills = 100;
+            private final DispatchRingBuffer ringBuffer;
+            private final List<DispatchRequest> requests =
+                    new ArrayList<DispatchRequest>(DispatchBatchMaxNums);
 
-                    final int tranType = MessageSysFlag.getTransactionValue(req.getSysFlag());
-                    // 1、分发消息位置信息到ConsumeQueue
-                    switch (tranType) {
-                    case MessageSysFlag.TransactionNotType:
-                    case MessageSysFlag.TransactionCommitType:
-                        // 将请求发到具体的Consume Queue
-                        DefaultMessageStore.this.putMessagePostionInfo(req.getTopic(), req.getQueueId(),
-                            req.getCommitLogOffset(), req.getMsgSize(), req.getTagsCode(),
-                            req.getStoreTimestamp(), req.getConsumeQueueOffset());
-                        break;
-                    case MessageSysFlag.TransactionPreparedType:
-                    case MessageSysFlag.TransactionRollbackType:
-                        break;
-                    }
-                }
 
-                if (DefaultMessageStore.this.getMessageStoreConfig().isMessageIndexEnable()) {
-                    DefaultMessageStore.this.indexService.putRequest(this.requestsRead.toArray());
+            public AbstractDispatchService(final int capacity) {
+                this.ringBuffer = new DispatchRingBuffer(capacity);
+            }
+
+
+            protected abstract void dispatch(final List<DispatchRequest> requests);
+
+
+            private boolean doDispatch() {
+                int nums = this.ringBuffer.drainTo(this.requests, DispatchBatchMaxNums);
+                if (nums > 0) {
+                    try {
+                        this.dispatch(this.requests);
+                    }
+                    finally {
+                        this.requests.clear();
+                        this.ringBuffer.release(nums);
+                    }
                 }
 
-                this.requestsRead.clear();
+                return nums > 0;
             }
-        }
 
 
-        public void run() {
-            DefaultMessageStore.log.info(this.getServiceName() + " service started");
+            public void run() {
+                DefaultMessageStore.log.info(this.getServiceName() + " service started");
 
-            while (!this.isStoped()) {
+                while (!this.isStoped()) {
+                    try {
+                        if (!this.doDispatch()) {
+                            this.ringBuffer.await(WaitTimeMills);
+                        }
+                    }
+                    catch (Exception e) {
+                        DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
+                    }
+                }
+
+                // 在正常shutdown情况下，要保证所有消息都dispatch
                 try {
-                    this.waitForRunning(0);
-                    this.doDispatch();
+                    while (this.doDispatch()) {
+                    }
                 }
                 catch (Exception e) {
                     DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
                 }
+
+                DefaultMessageStore.log.info(this.getServiceName() + " service end");
             }
 
-            // 在正常shutdown情况下，要保证所有消息都dispatch
-            try {
-                Thread.sleep(5 * 1000);
+
+            @Override
+            public void shutdown() {
+                this.stoped = true;
+                this.ringBuffer.wakeup();
+                super.shutdown();
             }
-            catch (InterruptedException e) {
-                DefaultMessageStore.log.warn("DispatchMessageService Exception, ", e);
+
+
+            public DispatchRingBuffer getRingBuffer() {
+                return ringBuffer;
             }
+        }
+
+
+        class DispatchQueueService extends AbstractDispatchService {
+            private final int index;
+
 
-            synchronized (this) {
-                this.swapRequests();
+            public DispatchQueueService(final int index, final int capacity) {
+                super(capacity);
+                this.index = index;
+                this.thread.setName(this.getServiceName());
             }
 
-            this.doDispatch();
 
-            DefaultMessageStore.log.info(this.getServiceName() + " service end");
-        }
+            @Override
+            protected void dispatch(final List<DispatchRequest> requests) {
+                for (DispatchRequest req : requests) {
+                    // 将请求发到具体的Consume Queue
+                    DefaultMessageStore.this.putMessagePostionInfo(req.getTopic(), req.getQueueId(),
+                        req.getCommitLogOffset(), req.getMsgSize(), req.getTagsCode(),
+                        req.getStoreTimestamp(), req.getConsumeQueueOffset(), req.getBitMap());
+                }
 
+                long timestamp = DispatchMessageService.this.getDispatchedTimestamp();
+                if (timestamp > 0) {
+                    DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgTimestamp(timestamp);
+                }
+            }
 
-        @Override
-        protected void onWaitEnd() {
-            this.swapRequests();
+
+            @Override
+            public String getServiceName() {
+                return DispatchQueueService.class.getSimpleName() + "_" + this.index;
+            }
         }
 
 
-        @Override
-        public String getServiceName() {
-            return DispatchMessageService.class.getSimpleName();
+        class DispatchIndexService extends AbstractDispatchService {
+            public DispatchIndexService(final int capacity) {
+                super(capacity);
+            }
+
+
+            @Override
+            protected void dispatch(final List<DispatchRequest> requests) {
+                DefaultMessageStore.this.indexService.putRequest(requests.toArray());
+            }
+
+
+            @Override
+            public String getServiceName() {
+                return DispatchIndexService.class.getSimpleName();
+            }
         }
     }
 
@@ -1810,6 +2451,30 @@ public class DefaultMessageStore implements MessageStore {
     }
 
 
+    @Override
+    public long dispatchBehindBytes() {
+        long dispatchedOffset = this.dispatchMessageService.getDispatchedOffset();
+        // 启动后还没有分发过消息
+        if (dispatchedOffset < 0) {
+            return 0;
+        }
+
+        return Math.max(this.commitLog.getMaxOffset() - dispatchedOffset, 0);
+    }
+
+
+    @Override
+    public long indexBehindBytes() {
+        long indexedOffset = this.indexService.getIndexedOffset();
+        // 没有开启索引或者启动后还没有建过索引
+        if (!this.messageStoreConfig.isMessageIndexEnable() || indexedOffset < 0) {
+            return 0;
+        }
+
+        return Math.max(this.commitLog.getMaxOffset() - indexedOffset, 0);
+    }
+
+
     @Override
     public int cleanUnusedTopic(Set<String> topics) {
         Iterator<Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>>> it =
@@ -1818,7 +2483,8 @@ public class DefaultMessageStore implements MessageStore {
             Entry<String, ConcurrentHashMap<Integer, ConsumeQueue>> next = it.next();
             String topic = next.getKey();
             // Topic可以删除
-            if (!topics.contains(topic) && !topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)) {
+            if (!topics.contains(topic) && !topic.equals(ScheduleMessageService.SCHEDULE_TOPIC)
+                    && !topic.equals(TimerMessageService.TIMER_TOPIC)) {
                 ConcurrentHashMap<Integer, ConsumeQueue> queueTable = next.getValue();
                 for (ConsumeQueue cq : queueTable.values()) {
                     cq.destroy();
@@ -1827,7 +2493,8 @@ public class DefaultMessageStore implements MessageStore {
                         cq.getQueueId() //
                     );
 
-                    this.commitLog.removeQueurFromTopicQueueTable(cq.getTopic(), cq.getQueueId());
+                    this.getCommitLogByTopic(cq.getTopic()).removeQueurFromTopicQueueTable(cq.getTopic(),
+                        cq.getQueueId());
                 }
                 it.remove();
 
@@ -35,6 +35,8 @@ public class DispatchRequest {
      */
     private final int sysFlag;
     private final long preparedTransactionOffset;
+    // 消息属性位图，没有开启ConsumeQueue扩展存储时为null
+    private final byte[] bitMap;
 
 
     public DispatchRequest(//
@@ -51,6 +53,27 @@ public class DispatchRequest {
              */
             final int sysFlag,// 9
             final long preparedTransactionOffset// 10
+    ) {
+        this(topic, queueId, commitLogOffset, msgSize, tagsCode, storeTimestamp, consumeQueueOffset, keys,
+            sysFlag, preparedTransactionOffset, null);
+    }
+
+
+    public DispatchRequest(//
+            final String topic,// 1
+            final int queueId,// 2
+            final long commitLogOffset,// 3
+            final int msgSize,// 4
+            final long tagsCode,// 5
+            final long storeTimestamp,// 6
+            final long consumeQueueOffset,// 7
+            final String keys,// 8
+            /**
+             * 事务相关部分
+             */
+            final int sysFlag,// 9
+            final long preparedTransactionOffset,// 10
+            final byte[] bitMap// 11
     ) {
         this.topic = topic;
         this.queueId = queueId;
@@ -66,6 +89,7 @@ public class DispatchRequest {
          */
         this.sysFlag = sysFlag;
         this.preparedTransactionOffset = preparedTransactionOffset;
+        this.bitMap = bitMap;
     }
 
 
@@ -92,6 +116,7 @@ public class DispatchRequest {
          */
         this.sysFlag = 0;
         this.preparedTransactionOffset = 0;
+        this.bitMap = null;
     }
 
 
@@ -143,4 +168,9 @@ public class DispatchRequest {
     public long getPreparedTransactionOffset() {
         return preparedTransactionOffset;
     }
+
+
+    public byte[] getBitMap() {
+        return bitMap;
+    }
 }
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * 分发请求的环形缓冲区，多生产者、单消费者，无锁实现<br>
+ * 容量固定，写满后生产者等待消费者释放空间，对写CommitLog的线程形成反压<br>
+ * 消费者先取出请求，处理完成后再释放，处理中的请求仍然占用缓冲区
+ */
+public class DispatchRingBuffer {
+    // 缓冲区满时，生产者先自旋多少次，再挂起
+    private static final int SpinTimesWhenFull = 100;
+    // 缓冲区满时，生产者每次挂起的时间（单位纳秒）
+    private static final long ParkNanosWhenFull = 1000 * 10;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<DispatchRequest> buffer;
+    // 生产者已申请到的位置
+    private final AtomicLong putIndex = new AtomicLong(0);
+    // 消费者已释放的位置，只有消费线程修改
+    private volatile long takeIndex = 0;
+    // 挂起等待的消费线程
+    private volatile Thread waiter = null;
+
+
+    public DispatchRingBuffer(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<DispatchRequest>(size);
+    }
+
+
+    /**
+     * 放入一个请求，缓冲区满则等待
+     *
+     * @return 放入后缓冲区中的请求数
+     */
+    public int put(final DispatchRequest request) {
+        long index;
+        int spinTimes = 0;
+        for (;;) {
+            index = this.putIndex.get();
+            if (index - this.takeIndex >= this.capacity) {
+                if (spinTimes++ < SpinTimesWhenFull) {
+                    Thread.yield();
+                }
+                else {
+                    LockSupport.parkNanos(ParkNanosWhenFull);
+                }
+                continue;
+            }
+
+            if (this.putIndex.compareAndSet(index, index + 1)) {
+                break;
+            }
+        }
+
+        this.buffer.set(this.indexOf(index), request);
+
+        Thread thread = this.waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+
+        return (int) (index + 1 - this.takeIndex);
+    }
+
+
+    /**
+     * 按放入顺序取出请求，但不释放空间，只能由消费线程调用
+     *
+     * @return 取出的请求数
+     */
+    public int drainTo(final List<DispatchRequest> requests, final int maxNums) {
+        final long index = this.takeIndex;
+        final int max = Math.min(maxNums, this.capacity);
+        int nums = 0;
+        while (nums < max) {
+            DispatchRequest request = this.buffer.get(this.indexOf(index + nums));
+            if (null == request) {
+                break;
+            }
+
+            requests.add(request);
+            nums++;
+        }
+
+        return nums;
+    }
+
+
+    /**
+     * 释放已经处理完的请求，只能由消费线程调用
+     */
+    public void release(final int nums) {
+        final long index = this.takeIndex;
+        for (int i = 0; i < nums; i++) {
+            this.buffer.lazySet(this.indexOf(index + i), null);
+        }
+
+        this.takeIndex = index + nums;
+    }
+
+
+    /**
+     * 没有可取出的请求时，消费线程挂起等待，直到有新请求或者超时
+     */
+    public void await(final long timeoutMillis) {
+        this.waiter = Thread.currentThread();
+        try {
+            if (null == this.peek()) {
+                LockSupport.parkNanos(this, timeoutMillis * 1000 * 1000);
+            }
+        }
+        finally {
+            this.waiter = null;
+        }
+    }
+
+
+    /**
+     * 唤醒挂起的消费线程
+     */
+    public void wakeup() {
+        Thread thread = this.waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    /**
+     * 最早放入且尚未释放的请求
+     */
+    public DispatchRequest peek() {
+        return this.buffer.get(this.indexOf(this.takeIndex));
+    }
+
+
+    /**
+     * 尚未释放的请求数，包括已经取出、正在处理的请求
+     */
+    public int size() {
+        return (int) (this.putIndex.get() - this.takeIndex);
+    }
+
+
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    private int indexOf(final long index) {
+        return (int) (index & this.mask);
+    }
+}
@@ -34,6 +34,7 @@ import org.slf4j.LoggerFactory;
 
 import com.alibaba.rocketmq.common.UtilAll;
 import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.FlushDiskType;
 
 
 /**
@@ -59,6 +60,15 @@ public class MapedFile extends ReferenceResource {
     private final File file;
     // 映射的内存对象，position永远不变
     private final MappedByteBuffer mappedByteBuffer;
+    // 追加消息时复用的写缓冲区，只在CommitLog写锁内使用
+    private final ByteBuffer appendBuffer;
+    // 堆外写缓冲，不为null时消息先写入这里，再写回FileChannel
+    private volatile ByteBuffer writeBuffer = null;
+    private TransientStorePool transientStorePool = null;
+    // 写回线程与cleanup可能同时归还缓冲区，取出并置空writeBuffer时加锁，保证只归还一次
+    private final Object writeBufferLock = new Object();
+    // 写回FileChannel到什么位置
+    private final AtomicInteger writeBackPosition = new AtomicInteger(0);
     // 当前写到什么位置
     private final AtomicInteger wrotePostion = new AtomicInteger(0);
     // Flush到什么位置
@@ -82,6 +92,7 @@ public class MapedFile extends ReferenceResource {
         try {
             this.fileChannel = new RandomAccessFile(this.file, "rw").getChannel();
             this.mappedByteBuffer = this.fileChannel.map(MapMode.READ_WRITE, 0, fileSize);
+            this.appendBuffer = this.mappedByteBuffer.slice();
             TotalMapedVitualMemory.addAndGet(fileSize);
             TotalMapedFiles.incrementAndGet();
             ok = true;
@@ -217,7 +228,8 @@ public class MapedFile extends ReferenceResource {
 
         // 表示有空余空间
         if (currentPos < this.fileSize) {
-            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            final ByteBuffer buffer = this.writeBuffer;
+            ByteBuffer byteBuffer = buffer != null ? buffer : this.appendBuffer;
             byteBuffer.position(currentPos);
             AppendMessageResult result =
                     cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, msg);
@@ -262,6 +274,28 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 向存储层追加data中position到limit之间的数据，Slave使用堆外缓冲接收时直接拷贝到mmap
+     * 
+     * @return 是否写入成功
+     */
+    public boolean appendMessage(final ByteBuffer data) {
+        int currentPos = this.wrotePostion.get();
+        int size = data.remaining();
+
+        // 表示有空余空间
+        if ((currentPos + size) <= this.fileSize) {
+            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            byteBuffer.position(currentPos);
+            byteBuffer.put(data);
+            this.wrotePostion.addAndGet(size);
+            return true;
+        }
+
+        return false;
+    }
+
+
     /**
      * 消息刷盘
      * 
@@ -272,14 +306,14 @@ public class MapedFile extends ReferenceResource {
     public int commit(final int flushLeastPages) {
         if (this.isAbleToFlush(flushLeastPages)) {
             if (this.hold()) {
-                int value = this.wrotePostion.get();
+                int value = this.getReadPosition();
                 this.mappedByteBuffer.force();
                 this.committedPosition.set(value);
                 this.release();
             }
             else {
                 log.warn("in commit, hold failed, commit offset = " + this.committedPosition.get());
-                this.committedPosition.set(this.wrotePostion.get());
+                this.committedPosition.set(this.getReadPosition());
             }
         }
 
@@ -287,6 +321,109 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 使用堆外写缓冲，必须在写入任何数据之前调用，缓冲池已经用完时仍然直接写mmap
+     */
+    public void attachWriteBuffer(final TransientStorePool transientStorePool) {
+        this.transientStorePool = transientStorePool;
+        this.writeBuffer = transientStorePool.borrowBuffer();
+    }
+
+
+    /**
+     * 将堆外写缓冲中的数据写回FileChannel，写回后的数据才能通过mmap读取
+     * 
+     * @param writeBackLeastPages
+     *            至少写回几个page
+     * @return 写回到什么位置
+     */
+    public int writeBack(final int writeBackLeastPages) {
+        // 没有使用堆外写缓冲，写入即可见
+        if (null == this.writeBuffer) {
+            return this.wrotePostion.get();
+        }
+
+        if (this.isAbleToWriteBack(writeBackLeastPages)) {
+            if (this.hold()) {
+                this.writeBackData();
+                this.release();
+            }
+            else {
+                log.warn("in writeBack, hold failed, writeBack offset = " + this.writeBackPosition.get());
+            }
+        }
+
+        // 全部写回后归还缓冲区，之后的读取都直接使用mmap
+        if (this.writeBackPosition.get() == this.fileSize) {
+            this.returnWriteBuffer();
+        }
+
+        return this.writeBackPosition.get();
+    }
+
+
+    private void writeBackData() {
+        final ByteBuffer buffer = this.writeBuffer;
+        int lastWriteBack = this.writeBackPosition.get();
+        int write = this.wrotePostion.get();
+        if (buffer != null && write > lastWriteBack) {
+            try {
+                // 写线程会修改writeBuffer的position，这里使用独立的视图
+                ByteBuffer byteBuffer = buffer.duplicate();
+                byteBuffer.position(lastWriteBack);
+                byteBuffer.limit(write);
+                long position = lastWriteBack;
+                while (byteBuffer.hasRemaining()) {
+                    position += this.fileChannel.write(byteBuffer, position);
+                }
+                this.writeBackPosition.set(write);
+            }
+            catch (IOException e) {
+                log.error("write back data to FileChannel failed, " + this.fileName, e);
+            }
+        }
+    }
+
+
+    private void returnWriteBuffer() {
+        ByteBuffer byteBuffer = null;
+        synchronized (this.writeBufferLock) {
+            byteBuffer = this.writeBuffer;
+            this.writeBuffer = null;
+        }
+
+        if (byteBuffer != null) {
+            this.transientStorePool.returnBuffer(byteBuffer);
+        }
+    }
+
+
+    private boolean isAbleToWriteBack(final int writeBackLeastPages) {
+        int writeBack = this.writeBackPosition.get();
+        int write = this.wrotePostion.get();
+
+        // 如果当前文件已经写满，应该立刻写回
+        if (this.isFull()) {
+            return true;
+        }
+
+        // 只有未写回数据满足指定page数目才写回
+        if (writeBackLeastPages > 0) {
+            return ((write / OS_PAGE_SIZE) - (writeBack / OS_PAGE_SIZE)) >= writeBackLeastPages;
+        }
+
+        return write > writeBack;
+    }
+
+
+    /**
+     * 可以读取的位置，开启堆外写缓冲时只有写回FileChannel的数据才可读
+     */
+    public int getReadPosition() {
+        return this.writeBuffer == null ? this.wrotePostion.get() : this.writeBackPosition.get();
+    }
+
+
     public int getCommittedPosition() {
         return committedPosition.get();
     }
@@ -299,7 +436,7 @@ public class MapedFile extends ReferenceResource {
 
     private boolean isAbleToFlush(final int flushLeastPages) {
         int flush = this.committedPosition.get();
-        int write = this.wrotePostion.get();
+        int write = this.getReadPosition();
 
         // 如果当前文件已经写满，应该立刻刷盘
         if (this.isFull()) {
@@ -322,7 +459,7 @@ public class MapedFile extends ReferenceResource {
 
     public SelectMapedBufferResult selectMapedBuffer(int pos, int size) {
         // 有消息
-        if ((pos + size) <= this.wrotePostion.get()) {
+        if ((pos + size) <= this.getReadPosition()) {
             // 从MapedBuffer读
             if (this.hold()) {
                 ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
@@ -351,11 +488,12 @@ public class MapedFile extends ReferenceResource {
      * 读逻辑分区
      */
     public SelectMapedBufferResult selectMapedBuffer(int pos) {
-        if (pos < this.wrotePostion.get() && pos >= 0) {
+        int readPosition = this.getReadPosition();
+        if (pos < readPosition && pos >= 0) {
             if (this.hold()) {
                 ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
                 byteBuffer.position(pos);
-                int size = this.wrotePostion.get() - pos;
+                int size = readPosition - pos;
                 ByteBuffer byteBufferNew = byteBuffer.slice();
                 byteBufferNew.limit(size);
                 return new SelectMapedBufferResult(this.fileFromOffset + pos, byteBufferNew, size, this);
@@ -385,6 +523,8 @@ public class MapedFile extends ReferenceResource {
         }
 
         clean(this.mappedByteBuffer);
+        // 未写回完的文件被删除时，归还堆外写缓冲
+        this.returnWriteBuffer();
         TotalMapedVitualMemory.addAndGet(this.fileSize * (-1));
         TotalMapedFiles.decrementAndGet();
         log.info("unmap file[REF:" + currentRef + "] " + this.fileName + " OK");
@@ -450,6 +590,53 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 文件预热，逐个OS PAGE写入0，提前触发缺页中断，避免首次写入时在锁内发生缺页<br>
+     * 只能在文件交给写线程之前调用
+     *
+     * @param flushDiskType
+     *            同步刷盘时，每写入flushLeastPages个page强制刷盘一次，避免脏页集中回写
+     * @param flushLeastPages
+     *            同步刷盘时，预热过程中每次刷盘的page数
+     * @return 预热耗时（单位毫秒）
+     */
+    public long warmMappedFile(final FlushDiskType flushDiskType, final int flushLeastPages) {
+        long beginTime = System.currentTimeMillis();
+        ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+        int flush = 0;
+        for (int i = 0, j = 0; i < this.fileSize; i += OS_PAGE_SIZE, j++) {
+            byteBuffer.put(i, (byte) 0);
+            // 同步刷盘，分批强制刷盘
+            if (FlushDiskType.SYNC_FLUSH == flushDiskType && flushLeastPages > 0) {
+                if ((i / OS_PAGE_SIZE) - (flush / OS_PAGE_SIZE) >= flushLeastPages) {
+                    flush = i;
+                    this.mappedByteBuffer.force();
+                }
+            }
+
+            // 计数循环不会进入安全点，定期让出CPU，防止GC时其他线程长时间等待
+            if (j % 1000 == 0) {
+                try {
+                    Thread.sleep(0);
+                }
+                catch (InterruptedException e) {
+                    log.error("warm mapedFile interrupted", e);
+                }
+            }
+        }
+
+        if (FlushDiskType.SYNC_FLUSH == flushDiskType) {
+            this.mappedByteBuffer.force();
+        }
+
+        long eclipseTime = UtilAll.computeEclipseTimeMilliseconds(beginTime);
+        log.info("warm mapedFile OK, {} size: {} spent time(ms): {}", new Object[] { this.fileName,
+                                                                                      this.fileSize,
+                                                                                      eclipseTime });
+        return eclipseTime;
+    }
+
+
     public long getStoreTimestamp() {
         return storeTimestamp;
     }
@@ -52,17 +52,30 @@ public class MapedFileQueue {
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     // 预分配MapedFile对象服务
     private final AllocateMapedFileService allocateMapedFileService;
+    // 新文件借用的堆外写缓冲，为null表示直接写mmap
+    private final TransientStorePool transientStorePool;
     // 刷盘刷到哪里
     private long committedWhere = 0;
+    // 写回FileChannel写到哪里，之前的数据可读
+    private volatile long writeBackWhere = 0;
     // 最后一条消息存储时间
     private volatile long storeTimestamp = 0;
+    // 冷存储，不为null时过期文件先卸载到冷存储再删除
+    private ColdFileStore coldFileStore;
 
 
     public MapedFileQueue(final String storePath, int mapedFileSize,
             AllocateMapedFileService allocateMapedFileService) {
+        this(storePath, mapedFileSize, allocateMapedFileService, null);
+    }
+
+
+    public MapedFileQueue(final String storePath, int mapedFileSize,
+            AllocateMapedFileService allocateMapedFileService, TransientStorePool transientStorePool) {
         this.storePath = storePath;
         this.mapedFileSize = mapedFileSize;
         this.allocateMapedFileService = allocateMapedFileService;
+        this.transientStorePool = transientStorePool;
     }
 
 
@@ -258,6 +271,11 @@ public class MapedFileQueue {
             }
 
             if (mapedFile != null) {
+                // 新文件使用堆外写缓冲
+                if (this.transientStorePool != null) {
+                    mapedFile.attachWriteBuffer(this.transientStorePool);
+                }
+
                 this.readWriteLock.writeLock().lock();
                 if (this.mapedFiles.isEmpty()) {
                     mapedFile.setFirstCreateInQueue(true);
@@ -352,6 +370,12 @@ public class MapedFileQueue {
                 long liveMaxTimestamp = mapedFile.getLastModifiedTimestamp() + expiredTime;
                 if (System.currentTimeMillis() >= liveMaxTimestamp//
                         || cleanImmediately) {
+                    // 卸载完成后才能删除，磁盘空间不足或卸载失败时直接删除
+                    if (this.coldFileStore != null && !cleanImmediately
+                            && !this.coldFileStore.offloadAsync(mapedFile)) {
+                        break;
+                    }
+
                     if (mapedFile.destroy(intervalForcibly)) {
                         files.add(mapedFile);
                         deleteCount++;
@@ -432,6 +456,40 @@ public class MapedFileQueue {
     }
 
 
+    /**
+     * 删除整个文件都在offset之前的文件，用于与逻辑队列按位置对齐的扩展文件
+     * 
+     * @param offset
+     *            此位置之前的数据都已经过期
+     */
+    public int deleteExpiredFileByPosition(long offset) {
+        Object[] mfs = this.copyMapedFiles(0);
+
+        List<MapedFile> files = new ArrayList<MapedFile>();
+        int deleteCount = 0;
+        if (null != mfs) {
+            // 最后一个文件处于写状态，不能删除
+            int mfsLength = mfs.length - 1;
+
+            for (int i = 0; i < mfsLength; i++) {
+                MapedFile mapedFile = (MapedFile) mfs[i];
+                if (mapedFile.getFileFromOffset() + this.mapedFileSize <= offset
+                        && mapedFile.destroy(1000 * 60)) {
+                    files.add(mapedFile);
+                    deleteCount++;
+                }
+                else {
+                    break;
+                }
+            }
+        }
+
+        deleteExpiredFile(files);
+
+        return deleteCount;
+    }
+
+
     /**
      * 返回值表示是否全部刷盘完成
      * 
@@ -455,6 +513,30 @@ public class MapedFileQueue {
     }
 
 
+    /**
+     * 按顺序将各文件堆外写缓冲中的数据写回FileChannel
+     * 
+     * @return 没有数据写回时返回true
+     */
+    public boolean writeBack(final int writeBackLeastPages) {
+        // 已经全部写回，下一个文件可能还没有创建
+        if (this.writeBackWhere >= this.getMaxOffset()) {
+            return true;
+        }
+
+        boolean result = true;
+        MapedFile mapedFile = this.findMapedFileByOffset(this.writeBackWhere, false);
+        if (mapedFile != null) {
+            int offset = mapedFile.writeBack(writeBackLeastPages);
+            long where = mapedFile.getFileFromOffset() + offset;
+            result = (where == this.writeBackWhere);
+            this.writeBackWhere = where;
+        }
+
+        return result;
+    }
+
+
     public MapedFile findMapedFileByOffset(final long offset, final boolean returnFirstOnNotFound) {
         try {
             this.readWriteLock.readLock().lock();
@@ -610,6 +692,16 @@ public class MapedFileQueue {
     }
 
 
+    public long getWriteBackWhere() {
+        return writeBackWhere;
+    }
+
+
+    public void setWriteBackWhere(long writeBackWhere) {
+        this.writeBackWhere = writeBackWhere;
+    }
+
+
     public long getStoreTimestamp() {
         return storeTimestamp;
     }
@@ -620,6 +712,16 @@ public class MapedFileQueue {
     }
 
 
+    public ColdFileStore getColdFileStore() {
+        return coldFileStore;
+    }
+
+
+    public void setColdFileStore(ColdFileStore coldFileStore) {
+        this.coldFileStore = coldFileStore;
+    }
+
+
     public int getMapedFileSize() {
         return mapedFileSize;
     }
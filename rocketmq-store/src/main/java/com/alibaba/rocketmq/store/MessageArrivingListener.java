@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+/**
+ * 消息分发到Consume Queue后的回调接口
+ */
+public interface MessageArrivingListener {
+
+    /**
+     * 消息写入Consume Queue后回调，在分发线程中执行，不要做阻塞操作
+     *
+     * @param topic
+     * @param queueId
+     * @param maxOffset
+     *            队列当前的最大逻辑位置
+     */
+    public void arriving(final String topic, final int queueId, final long maxOffset);
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * 存储内部使用的批量消息，同一个Topic、同一个队列的多条消息在一次加锁内连续写入CommitLog<br>
+ * 自身的topic、queueId、sysFlag等字段为所有消息共享，每条消息的内容存放在messages中
+ */
+public class MessageExtBatch extends MessageExtBrokerInner {
+    private static final long serialVersionUID = -2353110995348498537L;
+    private final List<MessageExtBrokerInner> messages;
+
+
+    public MessageExtBatch() {
+        this(16);
+    }
+
+
+    public MessageExtBatch(final int initialCapacity) {
+        this.messages = new ArrayList<MessageExtBrokerInner>(initialCapacity);
+    }
+
+
+    public void addMessage(final MessageExtBrokerInner msgInner) {
+        this.messages.add(msgInner);
+    }
+
+
+    public List<MessageExtBrokerInner> getMessages() {
+        return messages;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.alibaba.rocketmq.store;
 
+import java.nio.ByteBuffer;
+
 import com.alibaba.rocketmq.common.TopicFilterType;
 import com.alibaba.rocketmq.common.message.MessageExt;
 
@@ -29,6 +31,8 @@ public class MessageExtBrokerInner extends MessageExt {
     private static final long serialVersionUID = 7256001576878700634L;
     private String propertiesString;
     private long tagsCode;
+    // 锁外预先序列化好的消息，为null表示在锁内序列化
+    private transient ByteBuffer encodedBuff;
 
 
     /**
@@ -60,4 +64,14 @@ public class MessageExtBrokerInner extends MessageExt {
     public void setTagsCode(long tagsCode) {
         this.tagsCode = tagsCode;
     }
+
+
+    public ByteBuffer getEncodedBuff() {
+        return encodedBuff;
+    }
+
+
+    public void setEncodedBuff(ByteBuffer encodedBuff) {
+        this.encodedBuff = encodedBuff;
+    }
 }
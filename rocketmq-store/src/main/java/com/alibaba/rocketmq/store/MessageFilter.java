@@ -26,4 +26,10 @@ import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
  */
 public interface MessageFilter {
     public boolean isMessageMatched(final SubscriptionData subscriptionData, final long tagsCode);
+
+
+    /**
+     * 按ConsumeQueue扩展存储中的属性位图过滤，位图存在误判，匹配的消息还需要由Consumer精确过滤
+     */
+    public boolean isMessageMatched(final SubscriptionData subscriptionData, final byte[] bitMap);
 }
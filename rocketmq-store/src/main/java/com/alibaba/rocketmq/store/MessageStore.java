@@ -16,6 +16,7 @@
 package com.alibaba.rocketmq.store;
 
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -62,6 +63,18 @@ public interface MessageStore {
     public PutMessageResult putMessage(final MessageExtBrokerInner msg);
 
 
+    /**
+     * 批量存储消息，同一Topic、同一队列的多条消息在一次加锁内连续写入
+     */
+    public PutMessageResult putMessages(final MessageExtBatch messageExtBatch);
+
+
+    /**
+     * 异步存储消息，同步刷盘、同步双写不阻塞调用线程，完成后回调
+     */
+    public void asyncPutMessage(final MessageExtBrokerInner msg, final PutMessageCallback callback);
+
+
     /**
      * 读取消息，如果types为null，则不做过滤
      */
@@ -157,6 +170,12 @@ public interface MessageStore {
     public boolean appendToCommitLog(final long startOffset, final byte[] data);
 
 
+    /**
+     * 数据复制使用：向CommitLog追加data中position到limit之间的数据，不需要先拷贝到byte[]
+     */
+    public boolean appendToCommitLog(final long startOffset, final ByteBuffer data);
+
+
     /**
      * 手动触发删除文件
      */
@@ -179,6 +198,18 @@ public interface MessageStore {
     public long slaveFallBehindMuch();
 
 
+    /**
+     * CommitLog中还有多少消息没有分发到ConsumeQueue及索引服务，单位字节
+     */
+    public long dispatchBehindBytes();
+
+
+    /**
+     * CommitLog中还有多少消息没有建索引，单位字节
+     */
+    public long indexBehindBytes();
+
+
     public long now();
 
 
@@ -196,4 +227,10 @@ public interface MessageStore {
      */
     public Map<String, Long> getMessageIds(final String topic, int queueId, long minOffset,
             final long maxOffset, SocketAddress storeHost);
+
+
+    /**
+     * 设置消息分发到Consume Queue后的回调，用于唤醒长轮询
+     */
+    public void setMessageArrivingListener(final MessageArrivingListener messageArrivingListener);
 }
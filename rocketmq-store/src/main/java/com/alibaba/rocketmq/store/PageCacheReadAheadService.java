@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * 通过采样读延迟判断CommitLog是否在PageCache，冷数据异步预读<br>
+ * 采样与预读都在后台线程进行，拉消息线程只查询采样结果
+ */
+public class PageCacheReadAheadService extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final DefaultMessageStore defaultMessageStore;
+    // 已确认在PageCache的区间，区间号 -> 有效截止时间
+    private final ConcurrentHashMap<Long/* region */, Long/* validTime */> hotRegionTable =
+            new ConcurrentHashMap<Long, Long>(1024);
+    // 无法预读的冷区间（例如已转移到冷存储），区间号 -> 有效截止时间
+    private final ConcurrentHashMap<Long/* region */, Long/* validTime */> coldRegionTable =
+            new ConcurrentHashMap<Long, Long>(1024);
+    // 等待采样的区间，防止重复采样，值表示判定为冷数据后是否继续预读下一个区间
+    private final ConcurrentHashMap<Long/* region */, Boolean/* readAheadNext */> samplePending =
+            new ConcurrentHashMap<Long, Boolean>();
+    private final LinkedBlockingQueue<Long> sampleQueue = new LinkedBlockingQueue<Long>();
+    // 采样次数
+    private final AtomicLong sampleTimes = new AtomicLong(0);
+    // 采样判定为冷数据的次数
+    private final AtomicLong coldSampleTimes = new AtomicLong(0);
+    // 预读的总字节数
+    private final AtomicLong readAheadBytes = new AtomicLong(0);
+    // 读取页面的结果，防止读操作被优化掉
+    private volatile int touchSink = 0;
+
+
+    public PageCacheReadAheadService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+
+    /**
+     * 判断指定物理位置的消息是否在PageCache中，只查询采样结果，不读取数据<br>
+     * 区间尚未采样时提交后台采样，采样结果出来之前按内存比例估算
+     */
+    public boolean isInPageCache(final long offsetPy) {
+        final int regionSize = this.defaultMessageStore.getMessageStoreConfig().getPageCacheReadAheadSize();
+
+        // 最近写入的数据一定在PageCache
+        if (this.defaultMessageStore.getCommitLogByOffset(offsetPy).getMaxOffset() - offsetPy <= regionSize) {
+            return true;
+        }
+
+        final long region = offsetPy / regionSize;
+        final long now = System.currentTimeMillis();
+        Long validTime = this.hotRegionTable.get(region);
+        if (validTime != null && validTime > now) {
+            return true;
+        }
+
+        validTime = this.coldRegionTable.get(region);
+        if (validTime != null && validTime > now) {
+            return false;
+        }
+
+        // 正在采样或预读
+        if (this.samplePending.containsKey(region)) {
+            return false;
+        }
+
+        this.putSampleRequest(region, true);
+        return !this.defaultMessageStore.checkInDiskByCommitOffset(offsetPy);
+    }
+
+
+    private void putSampleRequest(final long region, final boolean readAheadNext) {
+        if (null == this.samplePending.putIfAbsent(region, readAheadNext)) {
+            this.sampleQueue.offer(region);
+        }
+    }
+
+
+    /**
+     * 选取区间内的数据，不跨文件，不超过可读位置
+     */
+    private SelectMapedBufferResult selectRegion(final long region) {
+        final MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+        final int regionSize = config.getPageCacheReadAheadSize();
+        final int mapedFileSize = config.getMapedFileSizeCommitLog();
+
+        final long offset = region * regionSize;
+        final CommitLog commitLog = this.defaultMessageStore.getCommitLogByOffset(offset);
+        long size = Math.min(regionSize, mapedFileSize - offset % mapedFileSize);
+        size = Math.min(size, commitLog.getReadableMaxOffset() - offset);
+        if (size <= 0) {
+            return null;
+        }
+
+        SelectMapedBufferResult result = commitLog.getMessage(offset, (int) size);
+        if (result != null && null == result.getMapedFile()) {
+            // 冷存储中的数据由冷存储自己预读
+            result.release();
+            return null;
+        }
+
+        return result;
+    }
+
+
+    /**
+     * 在区间内均匀选取若干页，逐页读取一个字节并计时，返回最大延迟，单位微秒<br>
+     * 区间不可读或不在热存储时返回-1
+     */
+    private long sampleReadLatency(final SelectMapedBufferResult result) {
+        final int samplePages =
+                Math.max(1, this.defaultMessageStore.getMessageStoreConfig().getPageCacheSamplePages());
+        final ByteBuffer byteBuffer = result.getByteBuffer();
+        final int size = result.getSize();
+
+        long maxLatencyUs = 0;
+        int sink = 0;
+        int lastPos = -1;
+        for (int i = 0; i < samplePages; i++) {
+            int pos = (int) ((long) size * i / samplePages);
+            pos -= pos % MapedFile.OS_PAGE_SIZE;
+            if (pos == lastPos) {
+                continue;
+            }
+            lastPos = pos;
+
+            long beginTime = System.nanoTime();
+            sink += byteBuffer.get(pos);
+            maxLatencyUs = Math.max(maxLatencyUs, (System.nanoTime() - beginTime) / 1000);
+        }
+        this.touchSink += sink;
+
+        return maxLatencyUs;
+    }
+
+
+    /**
+     * 逐页读取一个区间，相当于madvise(WILLNEED)
+     */
+    private void readAhead(final SelectMapedBufferResult result) {
+        final ByteBuffer byteBuffer = result.getByteBuffer();
+        final int size = result.getSize();
+        int sink = 0;
+        for (int i = 0; i < size; i += MapedFile.OS_PAGE_SIZE) {
+            sink += byteBuffer.get(i);
+        }
+        this.touchSink += sink;
+        this.readAheadBytes.addAndGet(size);
+    }
+
+
+    /**
+     * 采样一个区间，采样页全部命中才认为区间在PageCache，否则预读该区间，必要时继续预读下一个区间
+     */
+    private void sampleAndReadAhead(final long region, final boolean readAheadNext) {
+        final MessageStoreConfig config = this.defaultMessageStore.getMessageStoreConfig();
+        final long validTime = System.currentTimeMillis() + config.getPageCacheSampleValidTime();
+        final SelectMapedBufferResult result = this.selectRegion(region);
+        if (null == result) {
+            this.coldRegionTable.put(region, validTime);
+            return;
+        }
+
+        try {
+            long latencyUs = this.sampleReadLatency(result);
+            this.sampleTimes.incrementAndGet();
+            if (latencyUs >= config.getPageCacheColdReadLatencyUs()) {
+                this.coldSampleTimes.incrementAndGet();
+                this.readAhead(result);
+                if (readAheadNext) {
+                    this.putSampleRequest(region + 1, false);
+                }
+            }
+
+            this.hotRegionTable.put(region, validTime);
+        }
+        finally {
+            result.release();
+        }
+    }
+
+
+    private void cleanExpiredRegion(final ConcurrentHashMap<Long, Long> regionTable) {
+        final long now = System.currentTimeMillis();
+        Iterator<Entry<Long, Long>> it = regionTable.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+
+    public void buildRunningStats(HashMap<String, String> result) {
+        result.put("pageCacheSampleTimes", String.valueOf(this.sampleTimes.get()));
+        result.put("pageCacheColdSampleTimes", String.valueOf(this.coldSampleTimes.get()));
+        result.put("pageCacheReadAheadBytes", String.valueOf(this.readAheadBytes.get()));
+    }
+
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStoped()) {
+            try {
+                Long region = this.sampleQueue.poll(1000, TimeUnit.MILLISECONDS);
+                if (region != null) {
+                    try {
+                        Boolean readAheadNext = this.samplePending.get(region);
+                        this.sampleAndReadAhead(region, Boolean.TRUE.equals(readAheadNext));
+                    }
+                    finally {
+                        this.samplePending.remove(region);
+                    }
+                }
+
+                this.cleanExpiredRegion(this.hotRegionTable);
+                this.cleanExpiredRegion(this.coldRegionTable);
+            }
+            catch (Exception e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    public long getColdSampleTimes() {
+        return coldSampleTimes.get();
+    }
+
+
+    public long getReadAheadBytes() {
+        return readAheadBytes.get();
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return PageCacheReadAheadService.class.getSimpleName();
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+/**
+ * 异步存储消息的回调接口
+ */
+public interface PutMessageCallback {
+
+    /**
+     * 消息写入完成（包括同步刷盘、同步双写）后回调，可能在刷盘线程或者HA线程中执行，不要做阻塞操作
+     * 
+     * @param putMessageResult
+     *            存储结果
+     */
+    public void operationComplete(final PutMessageResult putMessageResult);
+}
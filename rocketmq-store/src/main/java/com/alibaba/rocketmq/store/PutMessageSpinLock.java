@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * 自旋锁，锁内只做内存拷贝时使用，避免线程挂起、唤醒的开销<br>
+ * 注意：不可重入
+ */
+public class PutMessageSpinLock implements PutMessageLock {
+    // true表示锁空闲，false表示锁被占用
+    private final AtomicBoolean putMessageSpinLock = new AtomicBoolean(true);
+    // 连续自旋超过此次数后让出CPU，防止持锁线程被调度走时空耗一个核
+    private static final int SpinTimesBeforeYield = 64;
+
+
+    @Override
+    public void lock() {
+        int spinTimes = 0;
+        while (!this.putMessageSpinLock.compareAndSet(true, false)) {
+            if (++spinTimes >= SpinTimesBeforeYield) {
+                spinTimes = 0;
+                Thread.yield();
+            }
+        }
+    }
+
+
+    @Override
+    public void unlock() {
+        this.putMessageSpinLock.compareAndSet(false, true);
+    }
+}
@@ -76,6 +76,13 @@ public class StoreStatsService extends ServiceThread {
     private ReentrantLock lockGet = new ReentrantLock();
     // DispatchMessageService，缓冲区最大值
     private volatile long dispatchMaxBuffer = 0;
+    // 预热新CommitLog文件耗时最大值（单位毫秒）
+    private volatile long warmMapedFileTimeMax = 0;
+    // 切换到新CommitLog文件后第一次写入耗时最大值，含等待分配文件时间（单位微秒）
+    private volatile long putMessageNewFileTimeMax = 0;
+    // 每个延时级别最近一次投递的延迟（单位毫秒），即实际投递时间与应投递时间之差
+    private final ConcurrentHashMap<Integer /* level */, Long/* lag */> scheduleDeliverLagTable =
+            new ConcurrentHashMap<Integer, Long>(32);
     // 针对采样线程加锁
     private ReentrantLock lockSampling = new ReentrantLock();
     private long lastPrintTimestamp = System.currentTimeMillis();
@@ -157,6 +164,38 @@ public class StoreStatsService extends ServiceThread {
     }
 
 
+    public long getWarmMapedFileTimeMax() {
+        return warmMapedFileTimeMax;
+    }
+
+
+    public void setWarmMapedFileTimeMax(long value) {
+        this.warmMapedFileTimeMax = value > this.warmMapedFileTimeMax ? value : this.warmMapedFileTimeMax;
+    }
+
+
+    public long getPutMessageNewFileTimeMax() {
+        return putMessageNewFileTimeMax;
+    }
+
+
+    public void setPutMessageNewFileTimeMax(long value) {
+        this.putMessageNewFileTimeMax =
+                value > this.putMessageNewFileTimeMax ? value : this.putMessageNewFileTimeMax;
+    }
+
+
+    public long getScheduleDeliverLag(final int delayLevel) {
+        Long lag = this.scheduleDeliverLagTable.get(delayLevel);
+        return lag != null ? lag : 0;
+    }
+
+
+    public void setScheduleDeliverLag(final int delayLevel, final long lag) {
+        this.scheduleDeliverLagTable.put(delayLevel, lag);
+    }
+
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder(1024);
@@ -174,6 +213,8 @@ public class StoreStatsService extends ServiceThread {
         sb.append("\tputMessageAverageSize: " + (this.getPutMessageSizeTotal() / totalTimes.doubleValue())
                 + "\r\n");
         sb.append("\tdispatchMaxBuffer: " + this.dispatchMaxBuffer + "\r\n");
+        sb.append("\twarmMapedFileTimeMax: " + this.warmMapedFileTimeMax + "\r\n");
+        sb.append("\tputMessageNewFileTimeMax: " + this.putMessageNewFileTimeMax + "\r\n");
         sb.append("\tgetMessageEntireTimeMax: " + this.getMessageEntireTimeMax + "\r\n");
         sb.append("\tputTps: " + this.getPutTps() + "\r\n");
         sb.append("\tgetFoundTps: " + this.getGetFoundTps() + "\r\n");
@@ -450,12 +491,17 @@ public class StoreStatsService extends ServiceThread {
         result.put("putMessageAverageSize",
             String.valueOf((this.getPutMessageSizeTotal() / totalTimes.doubleValue())));
         result.put("dispatchMaxBuffer", String.valueOf(this.dispatchMaxBuffer));
+        result.put("warmMapedFileTimeMax", String.valueOf(this.warmMapedFileTimeMax));
+        result.put("putMessageNewFileTimeMax", String.valueOf(this.putMessageNewFileTimeMax));
         result.put("getMessageEntireTimeMax", String.valueOf(this.getMessageEntireTimeMax));
         result.put("putTps", String.valueOf(this.getPutTps()));
         result.put("getFoundTps", String.valueOf(this.getGetFoundTps()));
         result.put("getMissTps", String.valueOf(this.getGetMissTps()));
         result.put("getTotalTps", String.valueOf(this.getGetTotalTps()));
         result.put("getTransferedTps", String.valueOf(this.getGetTransferedTps()));
+        for (Map.Entry<Integer, Long> entry : this.scheduleDeliverLagTable.entrySet()) {
+            result.put("scheduleDeliverLag_" + entry.getKey(), String.valueOf(entry.getValue()));
+        }
 
         return result;
     }
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * 堆外写缓冲池，CommitLog新文件从这里借用DirectByteBuffer写消息，写回FileChannel后归还
+ */
+public class TransientStorePool {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 缓冲区个数
+    private final int poolSize;
+    // 每个缓冲区大小，与CommitLog文件大小相同
+    private final int fileSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> availableBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+
+    public TransientStorePool(final MessageStoreConfig messageStoreConfig) {
+        this.poolSize = messageStoreConfig.getTransientStorePoolSize();
+        this.fileSize = messageStoreConfig.getMapedFileSizeCommitLog();
+    }
+
+
+    /**
+     * 预分配缓冲区，并逐页写入，提前完成缺页，避免写消息时才分配物理内存
+     */
+    public void init() {
+        long beginTime = System.currentTimeMillis();
+        for (int i = 0; i < this.poolSize; i++) {
+            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(this.fileSize);
+            for (int pos = 0; pos < this.fileSize; pos += MapedFile.OS_PAGE_SIZE) {
+                byteBuffer.put(pos, (byte) 0);
+            }
+            this.availableBuffers.offer(byteBuffer);
+        }
+
+        log.info("init transient store pool OK, pool size: {} buffer size: {} spent time(ms): {}",
+            new Object[] { this.poolSize, this.fileSize, System.currentTimeMillis() - beginTime });
+    }
+
+
+    /**
+     * 只释放池中的缓冲区，借出未归还的缓冲区仍在被MapedFile使用
+     */
+    public void destroy() {
+        ByteBuffer byteBuffer = null;
+        while ((byteBuffer = this.availableBuffers.poll()) != null) {
+            MapedFile.clean(byteBuffer);
+        }
+    }
+
+
+    public void returnBuffer(final ByteBuffer byteBuffer) {
+        byteBuffer.position(0);
+        byteBuffer.limit(this.fileSize);
+        this.availableBuffers.offer(byteBuffer);
+    }
+
+
+    /**
+     * @return 缓冲区已经用完时返回null，调用方直接写mmap
+     */
+    public ByteBuffer borrowBuffer() {
+        ByteBuffer byteBuffer = this.availableBuffers.poll();
+        if (null == byteBuffer) {
+            log.warn("transient store pool is empty, write to maped file directly");
+        }
+        else if (this.availableBuffers.size() < this.poolSize * 0.4) {
+            log.warn("transient store pool only remain {} buffers", this.availableBuffers.size());
+        }
+
+        return byteBuffer;
+    }
+
+
+    public int remainBufferNumbs() {
+        return this.availableBuffers.size();
+    }
+}
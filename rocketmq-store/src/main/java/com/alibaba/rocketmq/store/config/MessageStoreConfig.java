@@ -19,6 +19,7 @@ import java.io.File;
 
 import com.alibaba.rocketmq.common.annotation.ImportantField;
 import com.alibaba.rocketmq.store.ConsumeQueue;
+import com.alibaba.rocketmq.store.schedule.TimerLog;
 
 
 /**
@@ -37,6 +38,15 @@ public class MessageStoreConfig {
     private String storePathCommitLog = System.getProperty("user.home") + File.separator + "store"
             + File.separator + "commitlog";
 
+    // 冷存储目录，开启冷存储后CommitLog文件过期时先压缩保存到这里再删除
+    private String storePathColdCommitLog = System.getProperty("user.home") + File.separator + "store"
+            + File.separator + "coldcommitlog";
+
+    // 使用独立CommitLog的Topic，以分号分隔，按配置顺序编号，只能在末尾追加
+    // 独立CommitLog存储在storePathCommitLog-编号目录下，有单独的刷盘服务及锁，不参与主备同步
+    @ImportantField
+    private String commitLogIsolatedTopics = "";
+
     // CommitLog每个文件大小 1G
     private int mapedFileSizeCommitLog = 1024 * 1024 * 1024;
     // ConsumeQueue每个文件大小 默认存储30W条消息
@@ -47,6 +57,12 @@ public class MessageStoreConfig {
     // 是否定时方式刷盘，默认是实时刷盘
     @ImportantField
     private boolean flushCommitLogTimed = false;
+    // 是否为ConsumeQueue建立稀疏时间索引，按时间查询Offset时不需要读取CommitLog
+    private boolean consumeQueueTimeIndexEnable = false;
+    // ConsumeQueue每隔多少条消息记录一次存储时间
+    private int consumeQueueTimeIndexInterval = 32;
+    // 是否为ConsumeQueue建立扩展存储，记录消息存储时间及属性位图，拉消息时按属性过滤
+    private boolean consumeQueueExtEnable = false;
     // ConsumeQueue刷盘间隔时间（单位毫秒）
     private int flushIntervalConsumeQueue = 1000;
     // 清理资源间隔时间（单位毫秒）
@@ -67,12 +83,20 @@ public class MessageStoreConfig {
     // 文件保留时间（单位小时）
     @ImportantField
     private int fileReservedTime = 72;
-    // 写消息索引到ConsumeQueue，缓冲区高水位，超过则开始流控
+    // 写消息索引到ConsumeQueue，缓冲区高水位，缓冲区写满后写CommitLog的线程等待
     private int putMsgIndexHightWater = 600000;
+    // 建索引请求队列长度，队列满时丢弃请求，建索引线程从CommitLog中追赶
+    private int indexRequestQueueSize = 300000;
+    // 写ConsumeQueue的线程数，按topic、queueId分片
+    private int dispatchMessageThreadNums = Math.min(Runtime.getRuntime().availableProcessors(), 4);
     // 最大消息大小，默认512K
     private int maxMessageSize = 1024 * 512;
     // 重启时，是否校验CRC
     private boolean checkCRCOnRecover = true;
+    // 重启时，是否并行校验CommitLog文件、并行恢复ConsumeQueue
+    private boolean parallelRecoverEnable = false;
+    // 并行恢复的线程数
+    private int recoverThreadNums = Runtime.getRuntime().availableProcessors();
     // 刷CommitLog，至少刷几个PAGE
     private int flushCommitLogLeastPages = 4;
     // 刷ConsumeQueue，至少刷几个PAGE
@@ -102,6 +126,8 @@ public class MessageStoreConfig {
     private int maxHashSlotNum = 5000000;
     private int maxIndexNum = 5000000 * 4;
     private int maxMsgsNumBatch = 64;
+    // 是否为每个索引文件建立Key过滤器（Bloom Filter + 指纹），按Key查询时跳过不包含此Key的索引文件
+    private boolean messageIndexKeyFilterEnable = false;
     // 是否使用安全的消息索引功能，即可靠模式。
     // 可靠模式下，异常宕机恢复慢
     // 非可靠模式下，异常宕机恢复快
@@ -112,11 +138,21 @@ public class MessageStoreConfig {
     private int haSendHeartbeatInterval = 1000 * 5;
     private int haHousekeepingInterval = 1000 * 20;
     private int haTransferBatchSize = 1024 * 32;
+    // 每次传输的最大字节数，大于haTransferBatchSize时按Slave落后情况在两者之间自适应调整
+    private int haTransferBatchSizeMax = 1024 * 32;
+    // 是否压缩主从复制数据，Slave可以同时识别压缩与未压缩的数据帧，需先升级Slave再开启
+    private boolean haTransferCompressEnable = false;
+    // Deflate压缩级别
+    private int haTransferCompressLevel = 1;
     // 如果不设置，则从NameServer获取Master HA服务地址
     @ImportantField
     private String haMasterAddress = null;
     // Slave落后Master超过此值，则认为存在异常
     private int haSlaveFallbehindMax = 1024 * 1024 * 256;
+    // 是否使用零拷贝复制，Master通过FileChannel.transferTo发送，Slave用堆外缓冲接收后直接写入mmap
+    private boolean haTransferZeroCopyEnable = false;
+    // 同步双写时至少几个Slave应答才认为写入成功，一主多从时可配置为k-of-n
+    private int haSyncSlaveAckNums = 1;
     @ImportantField
     private BrokerRole brokerRole = BrokerRole.ASYNC_MASTER;
     @ImportantField
@@ -126,9 +162,67 @@ public class MessageStoreConfig {
     // 定时消息相关
     private String messageDelayLevel = "1s 5s 10s 30s 1m 2m 3m 4m 5m 6m 7m 8m 9m 10m 20m 30m 1h 2h";
     private long flushDelayOffsetInterval = 1000 * 10;
+    // 每次批量投递到期延时消息的最大条数，1表示逐条投递
+    private int scheduleDeliverBatchNums = 32;
+    // 是否使用时间轮投递定时消息，开启后支持任意投递时间，新的延时级别消息也由时间轮投递
+    @ImportantField
+    private boolean timerWheelEnable = false;
+    // 时间轮精度（单位毫秒），即最底层时间轮每个槽的时间跨度
+    private int timerPrecisionMs = 100;
+    // 每层时间轮的槽数
+    private int timerWheelSlotNums = 3600;
+    // 时间轮层数，上一层每个槽的跨度等于下一层整个时间轮的跨度
+    private int timerWheelLevels = 3;
+    // 时间轮链表每个文件大小
+    private int mapedFileSizeTimerLog = 1024 * 1024 * TimerLog.UnitSize;
+    // 投递到期消息的线程数
+    private int timerDeliverThreadNums = 4;
+    // 是否开启冷存储，CommitLog文件删除前先卸载到冷存储，读取已删除的消息时从冷存储读
+    @ImportantField
+    private boolean coldStoreEnable = false;
+    // 冷存储文件保留时间（单位小时）
+    private int coldFileReservedTime = 72 * 10;
+    // 冷存储文件每块压缩前的大小，需要大于单条消息的最大长度
+    private int coldStoreBlockSize = 1024 * 1024;
+    // 冷存储Deflate压缩级别
+    private int coldStoreCompressLevel = 1;
+    // 冷存储读缓存最多缓存多少个解压后的块
+    private int coldStoreReadCacheBlocks = 64;
+    // 读取冷存储时，预读后续多少个块
+    private int coldStoreReadAheadBlocks = 2;
+    // 是否通过采样读延迟判断消息是否在PageCache，替代按内存比例估算
+    @ImportantField
+    private boolean pageCacheSampleEnable = false;
+    // 采样读延迟超过此值（单位微秒）认为消息不在PageCache
+    private int pageCacheColdReadLatencyUs = 50;
+    // 每个区间采样的页数，采样页全部命中才认为区间在PageCache
+    private int pageCacheSamplePages = 8;
+    // 采样结果的有效时间，单位毫秒
+    private int pageCacheSampleValidTime = 1000;
+    // 命中冷数据时，异步预读CommitLog的大小
+    private int pageCacheReadAheadSize = 1024 * 1024 * 4;
     // 磁盘空间超过90%警戒水位，自动开始删除文件
     @ImportantField
     private boolean cleanFileForciblyEnable = true;
+    // 写CommitLog使用的锁类型
+    private PutMessageLockType putMessageLockType = PutMessageLockType.REENTRANT_LOCK;
+    // 是否在锁外序列化消息，锁内只做偏移量回填与内存拷贝
+    private boolean encodeMessageOutOfLock = false;
+    // 是否开启堆外写缓冲，消息先写入预分配的DirectByteBuffer，再定时写回FileChannel
+    // 仅在异步刷盘的Master上生效
+    private boolean transientStorePoolEnable = false;
+    // 堆外写缓冲个数，每个大小与CommitLog文件相同
+    private int transientStorePoolSize = 5;
+    // CommitLog写回FileChannel间隔时间（单位毫秒）
+    private int writeBackIntervalCommitLog = 200;
+    // 写回CommitLog，至少写回几个PAGE
+    private int writeBackCommitLogLeastPages = 4;
+    // 写回CommitLog，彻底写回间隔时间
+    private int writeBackCommitLogThoroughInterval = 200;
+    // 是否预热新分配的CommitLog文件，逐页写入触发缺页中断后再交给写线程
+    private boolean warmMapedFileEnable = false;
+    // 同步刷盘时，预热文件每写入多少个page刷盘一次
+    private int flushLeastPagesWhenWarmMapedFile = 1024 / 4 * 16;
 
 
     public int getMapedFileSizeCommitLog() {
@@ -592,4 +686,435 @@ public class MessageStoreConfig {
     public void setStorePathRootDir(String storePathRootDir) {
         this.storePathRootDir = storePathRootDir;
     }
+
+
+    public PutMessageLockType getPutMessageLockType() {
+        return putMessageLockType;
+    }
+
+
+    public void setPutMessageLockType(PutMessageLockType putMessageLockType) {
+        this.putMessageLockType = putMessageLockType;
+    }
+
+
+    public void setPutMessageLockType(String putMessageLockType) {
+        this.putMessageLockType = PutMessageLockType.valueOf(putMessageLockType);
+    }
+
+
+    public boolean isEncodeMessageOutOfLock() {
+        return encodeMessageOutOfLock;
+    }
+
+
+    public void setEncodeMessageOutOfLock(boolean encodeMessageOutOfLock) {
+        this.encodeMessageOutOfLock = encodeMessageOutOfLock;
+    }
+
+
+    /**
+     * 同步刷盘需要等待数据落盘，Slave通过HA直接写文件，均不使用堆外写缓冲
+     */
+    public boolean isTransientStorePoolEnable() {
+        return transientStorePoolEnable && FlushDiskType.ASYNC_FLUSH == this.flushDiskType
+                && BrokerRole.SLAVE != this.brokerRole;
+    }
+
+
+    public void setTransientStorePoolEnable(boolean transientStorePoolEnable) {
+        this.transientStorePoolEnable = transientStorePoolEnable;
+    }
+
+
+    public int getTransientStorePoolSize() {
+        return transientStorePoolSize;
+    }
+
+
+    public void setTransientStorePoolSize(int transientStorePoolSize) {
+        this.transientStorePoolSize = transientStorePoolSize;
+    }
+
+
+    public int getWriteBackIntervalCommitLog() {
+        return writeBackIntervalCommitLog;
+    }
+
+
+    public void setWriteBackIntervalCommitLog(int writeBackIntervalCommitLog) {
+        this.writeBackIntervalCommitLog = writeBackIntervalCommitLog;
+    }
+
+
+    public int getWriteBackCommitLogLeastPages() {
+        return writeBackCommitLogLeastPages;
+    }
+
+
+    public void setWriteBackCommitLogLeastPages(int writeBackCommitLogLeastPages) {
+        this.writeBackCommitLogLeastPages = writeBackCommitLogLeastPages;
+    }
+
+
+    public int getWriteBackCommitLogThoroughInterval() {
+        return writeBackCommitLogThoroughInterval;
+    }
+
+
+    public void setWriteBackCommitLogThoroughInterval(int writeBackCommitLogThoroughInterval) {
+        this.writeBackCommitLogThoroughInterval = writeBackCommitLogThoroughInterval;
+    }
+
+
+    public boolean isWarmMapedFileEnable() {
+        return warmMapedFileEnable;
+    }
+
+
+    public void setWarmMapedFileEnable(boolean warmMapedFileEnable) {
+        this.warmMapedFileEnable = warmMapedFileEnable;
+    }
+
+
+    public int getFlushLeastPagesWhenWarmMapedFile() {
+        return flushLeastPagesWhenWarmMapedFile;
+    }
+
+
+    public void setFlushLeastPagesWhenWarmMapedFile(int flushLeastPagesWhenWarmMapedFile) {
+        this.flushLeastPagesWhenWarmMapedFile = flushLeastPagesWhenWarmMapedFile;
+    }
+
+
+    public int getDispatchMessageThreadNums() {
+        return dispatchMessageThreadNums;
+    }
+
+
+    public void setDispatchMessageThreadNums(int dispatchMessageThreadNums) {
+        this.dispatchMessageThreadNums = dispatchMessageThreadNums;
+    }
+
+
+    public boolean isParallelRecoverEnable() {
+        return parallelRecoverEnable;
+    }
+
+
+    public void setParallelRecoverEnable(boolean parallelRecoverEnable) {
+        this.parallelRecoverEnable = parallelRecoverEnable;
+    }
+
+
+    public int getRecoverThreadNums() {
+        return recoverThreadNums;
+    }
+
+
+    public void setRecoverThreadNums(int recoverThreadNums) {
+        this.recoverThreadNums = recoverThreadNums;
+    }
+
+
+    public boolean isConsumeQueueTimeIndexEnable() {
+        return consumeQueueTimeIndexEnable;
+    }
+
+
+    public void setConsumeQueueTimeIndexEnable(boolean consumeQueueTimeIndexEnable) {
+        this.consumeQueueTimeIndexEnable = consumeQueueTimeIndexEnable;
+    }
+
+
+    public int getConsumeQueueTimeIndexInterval() {
+        return consumeQueueTimeIndexInterval;
+    }
+
+
+    public void setConsumeQueueTimeIndexInterval(int consumeQueueTimeIndexInterval) {
+        this.consumeQueueTimeIndexInterval = consumeQueueTimeIndexInterval;
+    }
+
+
+    public boolean isConsumeQueueExtEnable() {
+        return consumeQueueExtEnable;
+    }
+
+
+    public void setConsumeQueueExtEnable(boolean consumeQueueExtEnable) {
+        this.consumeQueueExtEnable = consumeQueueExtEnable;
+    }
+
+
+    public int getIndexRequestQueueSize() {
+        return indexRequestQueueSize;
+    }
+
+
+    public void setIndexRequestQueueSize(int indexRequestQueueSize) {
+        this.indexRequestQueueSize = indexRequestQueueSize;
+    }
+
+
+    public boolean isMessageIndexKeyFilterEnable() {
+        return messageIndexKeyFilterEnable;
+    }
+
+
+    public void setMessageIndexKeyFilterEnable(boolean messageIndexKeyFilterEnable) {
+        this.messageIndexKeyFilterEnable = messageIndexKeyFilterEnable;
+    }
+
+
+    public boolean isTimerWheelEnable() {
+        return timerWheelEnable;
+    }
+
+
+    public void setTimerWheelEnable(boolean timerWheelEnable) {
+        this.timerWheelEnable = timerWheelEnable;
+    }
+
+
+    public int getTimerPrecisionMs() {
+        return timerPrecisionMs;
+    }
+
+
+    public void setTimerPrecisionMs(int timerPrecisionMs) {
+        this.timerPrecisionMs = timerPrecisionMs;
+    }
+
+
+    public int getTimerWheelSlotNums() {
+        return timerWheelSlotNums;
+    }
+
+
+    public void setTimerWheelSlotNums(int timerWheelSlotNums) {
+        this.timerWheelSlotNums = timerWheelSlotNums;
+    }
+
+
+    public int getTimerWheelLevels() {
+        return timerWheelLevels;
+    }
+
+
+    public void setTimerWheelLevels(int timerWheelLevels) {
+        this.timerWheelLevels = timerWheelLevels;
+    }
+
+
+    public int getMapedFileSizeTimerLog() {
+        // 此处需要向上取整，保证存储单元不跨文件
+        int factor = (int) Math.ceil(this.mapedFileSizeTimerLog / (TimerLog.UnitSize * 1.0));
+        return factor * TimerLog.UnitSize;
+    }
+
+
+    public void setMapedFileSizeTimerLog(int mapedFileSizeTimerLog) {
+        this.mapedFileSizeTimerLog = mapedFileSizeTimerLog;
+    }
+
+
+    public int getTimerDeliverThreadNums() {
+        return timerDeliverThreadNums;
+    }
+
+
+    public void setTimerDeliverThreadNums(int timerDeliverThreadNums) {
+        this.timerDeliverThreadNums = timerDeliverThreadNums;
+    }
+
+
+    public int getScheduleDeliverBatchNums() {
+        return scheduleDeliverBatchNums;
+    }
+
+
+    public void setScheduleDeliverBatchNums(int scheduleDeliverBatchNums) {
+        this.scheduleDeliverBatchNums = scheduleDeliverBatchNums;
+    }
+
+
+    public boolean isHaTransferZeroCopyEnable() {
+        return haTransferZeroCopyEnable;
+    }
+
+
+    public void setHaTransferZeroCopyEnable(boolean haTransferZeroCopyEnable) {
+        this.haTransferZeroCopyEnable = haTransferZeroCopyEnable;
+    }
+
+
+    public int getHaSyncSlaveAckNums() {
+        return haSyncSlaveAckNums;
+    }
+
+
+    public void setHaSyncSlaveAckNums(int haSyncSlaveAckNums) {
+        this.haSyncSlaveAckNums = haSyncSlaveAckNums;
+    }
+
+
+    public int getHaTransferBatchSizeMax() {
+        return haTransferBatchSizeMax;
+    }
+
+
+    public void setHaTransferBatchSizeMax(int haTransferBatchSizeMax) {
+        this.haTransferBatchSizeMax = haTransferBatchSizeMax;
+    }
+
+
+    public boolean isHaTransferCompressEnable() {
+        return haTransferCompressEnable;
+    }
+
+
+    public void setHaTransferCompressEnable(boolean haTransferCompressEnable) {
+        this.haTransferCompressEnable = haTransferCompressEnable;
+    }
+
+
+    public int getHaTransferCompressLevel() {
+        return haTransferCompressLevel;
+    }
+
+
+    public void setHaTransferCompressLevel(int haTransferCompressLevel) {
+        this.haTransferCompressLevel = haTransferCompressLevel;
+    }
+
+
+    public String getStorePathColdCommitLog() {
+        return storePathColdCommitLog;
+    }
+
+
+    public void setStorePathColdCommitLog(String storePathColdCommitLog) {
+        this.storePathColdCommitLog = storePathColdCommitLog;
+    }
+
+
+    public boolean isColdStoreEnable() {
+        return coldStoreEnable;
+    }
+
+
+    public void setColdStoreEnable(boolean coldStoreEnable) {
+        this.coldStoreEnable = coldStoreEnable;
+    }
+
+
+    public int getColdFileReservedTime() {
+        return coldFileReservedTime;
+    }
+
+
+    public void setColdFileReservedTime(int coldFileReservedTime) {
+        this.coldFileReservedTime = coldFileReservedTime;
+    }
+
+
+    public int getColdStoreBlockSize() {
+        return coldStoreBlockSize;
+    }
+
+
+    public void setColdStoreBlockSize(int coldStoreBlockSize) {
+        this.coldStoreBlockSize = coldStoreBlockSize;
+    }
+
+
+    public int getColdStoreCompressLevel() {
+        return coldStoreCompressLevel;
+    }
+
+
+    public void setColdStoreCompressLevel(int coldStoreCompressLevel) {
+        this.coldStoreCompressLevel = coldStoreCompressLevel;
+    }
+
+
+    public int getColdStoreReadCacheBlocks() {
+        return coldStoreReadCacheBlocks;
+    }
+
+
+    public void setColdStoreReadCacheBlocks(int coldStoreReadCacheBlocks) {
+        this.coldStoreReadCacheBlocks = coldStoreReadCacheBlocks;
+    }
+
+
+    public int getColdStoreReadAheadBlocks() {
+        return coldStoreReadAheadBlocks;
+    }
+
+
+    public void setColdStoreReadAheadBlocks(int coldStoreReadAheadBlocks) {
+        this.coldStoreReadAheadBlocks = coldStoreReadAheadBlocks;
+    }
+
+
+    public boolean isPageCacheSampleEnable() {
+        return pageCacheSampleEnable;
+    }
+
+
+    public void setPageCacheSampleEnable(boolean pageCacheSampleEnable) {
+        this.pageCacheSampleEnable = pageCacheSampleEnable;
+    }
+
+
+    public int getPageCacheColdReadLatencyUs() {
+        return pageCacheColdReadLatencyUs;
+    }
+
+
+    public void setPageCacheColdReadLatencyUs(int pageCacheColdReadLatencyUs) {
+        this.pageCacheColdReadLatencyUs = pageCacheColdReadLatencyUs;
+    }
+
+
+    public int getPageCacheSamplePages() {
+        return pageCacheSamplePages;
+    }
+
+
+    public void setPageCacheSamplePages(int pageCacheSamplePages) {
+        this.pageCacheSamplePages = pageCacheSamplePages;
+    }
+
+
+    public int getPageCacheSampleValidTime() {
+        return pageCacheSampleValidTime;
+    }
+
+
+    public void setPageCacheSampleValidTime(int pageCacheSampleValidTime) {
+        this.pageCacheSampleValidTime = pageCacheSampleValidTime;
+    }
+
+
+    public int getPageCacheReadAheadSize() {
+        return pageCacheReadAheadSize;
+    }
+
+
+    public void setPageCacheReadAheadSize(int pageCacheReadAheadSize) {
+        this.pageCacheReadAheadSize = pageCacheReadAheadSize;
+    }
+
+
+    public String getCommitLogIsolatedTopics() {
+        return commitLogIsolatedTopics;
+    }
+
+
+    public void setCommitLogIsolatedTopics(String commitLogIsolatedTopics) {
+        this.commitLogIsolatedTopics = commitLogIsolatedTopics;
+    }
 }
@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.config;
+
+/**
+ * 写CommitLog时使用的锁类型
+ */
+public enum PutMessageLockType {
+    /**
+     * 可重入锁，拿不到锁的线程挂起等待
+     */
+    REENTRANT_LOCK,
+    /**
+     * 自旋锁，适合锁内耗时很短的场景
+     */
+    SPIN_LOCK
+}
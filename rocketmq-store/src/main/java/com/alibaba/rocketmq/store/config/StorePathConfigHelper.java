@@ -25,11 +25,26 @@ public class StorePathConfigHelper {
     }
 
 
+    public static String getStorePathConsumeQueueTimeIndex(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_timeindex";
+    }
+
+
+    public static String getStorePathConsumeQueueExt(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_ext";
+    }
+
+
     public static String getStorePathIndex(final String rootDir) {
         return rootDir + File.separator + "index";
     }
 
 
+    public static String getStorePathIndexFilter(final String rootDir) {
+        return rootDir + File.separator + "indexfilter";
+    }
+
+
     public static String getStoreCheckpoint(final String rootDir) {
         return rootDir + File.separator + "checkpoint";
     }
@@ -45,6 +60,16 @@ public class StorePathConfigHelper {
     }
 
 
+    public static String getStorePathTimerLog(final String rootDir) {
+        return rootDir + File.separator + "timerlog";
+    }
+
+
+    public static String getStorePathTimerWheel(final String rootDir) {
+        return rootDir + File.separator + "timerwheel";
+    }
+
+
     public static String getTranStateTableStorePath(final String rootDir) {
         return rootDir + File.separator + "transaction" + File.separator + "statetable";
     }
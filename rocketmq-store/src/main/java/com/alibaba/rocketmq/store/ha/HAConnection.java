@@ -20,6 +20,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,7 +30,9 @@ import org.slf4j.LoggerFactory;
 import com.alibaba.rocketmq.common.ServiceThread;
 import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.remoting.common.RemotingUtil;
+import com.alibaba.rocketmq.store.MapedFile;
 import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 
 
 /**
@@ -38,6 +43,8 @@ import com.alibaba.rocketmq.store.SelectMapedBufferResult;
  */
 public class HAConnection {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 单次传输的上限，保证Slave接收缓冲可以容纳一个完整的数据帧
+    public static final int MaxTransferBatchSize = 1024 * 1024;
     private final HAService haService;
     private final SocketChannel socketChannel;
     private final String clientAddr;
@@ -47,6 +54,15 @@ public class HAConnection {
     private volatile long slaveRequestOffset = -1;
     // Slave收到数据后，应答Offset
     private volatile long slaveAckOffset = -1;
+    // 应答延迟采样：<传输到的Offset, 传输时间>，Slave应答超过此Offset后计算延迟，同一时间只有一个采样
+    private final AtomicReference<long[]> ackLatencySample = new AtomicReference<long[]>();
+    // 应答延迟分布（单位毫秒）
+    private final AtomicLong[] ackLatencyDistribute = new AtomicLong[7];
+    // 传输的原始字节数及实际写入网络的字节数，用于计算压缩比
+    private final AtomicLong transferRawBytes = new AtomicLong(0);
+    private final AtomicLong transferWireBytes = new AtomicLong(0);
+    // Slave应答Offset每秒推进的字节数，即追赶速度
+    private volatile long ackBytesPerSecond = 0;
 
 
     public HAConnection(final HAService haService, final SocketChannel socketChannel) throws IOException {
@@ -58,6 +74,9 @@ public class HAConnection {
         this.socketChannel.socket().setTcpNoDelay(true);
         this.socketChannel.socket().setReceiveBufferSize(1024 * 64);
         this.socketChannel.socket().setSendBufferSize(1024 * 64);
+        for (int i = 0; i < this.ackLatencyDistribute.length; i++) {
+            this.ackLatencyDistribute[i] = new AtomicLong(0);
+        }
         this.writeSocketService = new WriteSocketService(this.socketChannel);
         this.readSocketService = new ReadSocketService(this.socketChannel);
         this.haService.getConnectionCount().incrementAndGet();
@@ -66,6 +85,7 @@ public class HAConnection {
 
     /**
      * 向Slave传输数据协议 <Phy Offset> <Body Size> <Body Data><br>
+     * 压缩数据帧 <Phy Offset> <-Compressed Size> <Raw Size> <Compressed Data><br>
      * 从Slave接收数据协议 <Phy Offset>
      */
 
@@ -98,6 +118,98 @@ public class HAConnection {
         return socketChannel;
     }
 
+
+    public String getClientAddr() {
+        return clientAddr;
+    }
+
+
+    public long getSlaveAckOffset() {
+        return slaveAckOffset;
+    }
+
+
+    /**
+     * 没有进行中的采样时，记录本次传输的结束位置
+     */
+    private void sampleTransfer(final long transferEndOffset) {
+        if (null == this.ackLatencySample.get()) {
+            long[] sample = new long[] { transferEndOffset, System.currentTimeMillis() };
+            this.ackLatencySample.compareAndSet(null, sample);
+        }
+    }
+
+
+    private void sampleAck(final long ackOffset) {
+        long[] sample = this.ackLatencySample.get();
+        if (sample != null && ackOffset >= sample[0] && this.ackLatencySample.compareAndSet(sample, null)) {
+            long value = System.currentTimeMillis() - sample[1];
+            // 几毫秒以内
+            if (value <= 1) {
+                this.ackLatencyDistribute[0].incrementAndGet();
+            }
+            // 几毫秒
+            else if (value < 10) {
+                this.ackLatencyDistribute[1].incrementAndGet();
+            }
+            // 几十毫秒
+            else if (value < 100) {
+                this.ackLatencyDistribute[2].incrementAndGet();
+            }
+            // 几百毫秒（500毫秒以内）
+            else if (value < 500) {
+                this.ackLatencyDistribute[3].incrementAndGet();
+            }
+            // 几百毫秒（500毫秒以上）
+            else if (value < 1000) {
+                this.ackLatencyDistribute[4].incrementAndGet();
+            }
+            // 几秒
+            else if (value < 10000) {
+                this.ackLatencyDistribute[5].incrementAndGet();
+            }
+            // 大等于10秒
+            else {
+                this.ackLatencyDistribute[6].incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * 压缩比，即原始字节数与实际传输字节数之比
+     */
+    public double getCompressRatio() {
+        long wire = this.transferWireBytes.get();
+        return wire > 0 ? this.transferRawBytes.get() / (double) wire : 1;
+    }
+
+
+    public long getAckBytesPerSecond() {
+        return ackBytesPerSecond;
+    }
+
+
+    public int getTransferBatchSize() {
+        return this.writeSocketService.transferBatchSize;
+    }
+
+
+    /**
+     * 应答延迟分布，依次为[0,1] (1,10) [10,100) [100,500) [500,1000) [1000,10000) [10000,+∞)毫秒内的次数
+     */
+    public String getAckLatencyDistributeStringInfo() {
+        final StringBuilder sb = new StringBuilder(64);
+        for (AtomicLong i : this.ackLatencyDistribute) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(i.get());
+        }
+
+        return sb.toString();
+    }
+
     /**
      * 读取Slave请求，一般为push ack
      * 
@@ -110,6 +222,9 @@ public class HAConnection {
         private final ByteBuffer byteBufferRead = ByteBuffer.allocate(ReadMaxBufferSize);
         private int processPostion = 0;
         private volatile long lastReadTimestamp = System.currentTimeMillis();
+        // 上次计算追赶速度时的应答Offset及时间
+        private long lastAckRateOffset = -1;
+        private long lastAckRateTimestamp = 0;
 
 
         public ReadSocketService(final SocketChannel socketChannel) throws IOException {
@@ -199,6 +314,8 @@ public class HAConnection {
 
                             // 处理Slave的请求
                             HAConnection.this.slaveAckOffset = readOffset;
+                            HAConnection.this.sampleAck(readOffset);
+                            this.sampleAckRate(readOffset);
                             if (HAConnection.this.slaveRequestOffset < 0) {
                                 HAConnection.this.slaveRequestOffset = readOffset;
                                 log.info("slave[" + HAConnection.this.clientAddr + "] request offset "
@@ -229,6 +346,26 @@ public class HAConnection {
         }
 
 
+        /**
+         * 每隔一秒计算一次Slave应答Offset的推进速度
+         */
+        private void sampleAckRate(final long ackOffset) {
+            long now = System.currentTimeMillis();
+            if (this.lastAckRateOffset < 0) {
+                this.lastAckRateOffset = ackOffset;
+                this.lastAckRateTimestamp = now;
+                return;
+            }
+
+            long interval = now - this.lastAckRateTimestamp;
+            if (interval >= 1000) {
+                HAConnection.this.ackBytesPerSecond = (ackOffset - this.lastAckRateOffset) * 1000 / interval;
+                this.lastAckRateOffset = ackOffset;
+                this.lastAckRateTimestamp = now;
+            }
+        }
+
+
         @Override
         public String getServiceName() {
             return ReadSocketService.class.getSimpleName();
@@ -245,7 +382,18 @@ public class HAConnection {
         private final SocketChannel socketChannel;
         // 要传输的数据
         private final int HEADER_SIZE = 8 + 4;
-        private final ByteBuffer byteBufferHeader = ByteBuffer.allocate(HEADER_SIZE);
+        // 压缩数据帧的头部多4字节原始大小
+        private final ByteBuffer byteBufferHeader = ByteBuffer.allocate(HEADER_SIZE + 4);
+        // 是否直接从CommitLog文件transferTo到Socket
+        private final boolean transferZeroCopy;
+        // 压缩传输，开启后零拷贝不生效
+        private final Deflater deflater;
+        private byte[] compressInput;
+        private byte[] compressOutput;
+        // 压缩后待发送的数据
+        private ByteBuffer byteBufferCompressed;
+        // 当前批量大小，在haTransferBatchSize与haTransferBatchSizeMax之间调整
+        private volatile int transferBatchSize;
         private long nextTransferFromWhere = -1;
         private SelectMapedBufferResult selectMapedBufferResult;
         private boolean lastWriteOver = true;
@@ -256,6 +404,13 @@ public class HAConnection {
             this.selector = RemotingUtil.openSelector();
             this.socketChannel = socketChannel;
             this.socketChannel.register(this.selector, SelectionKey.OP_WRITE);
+            final MessageStoreConfig messageStoreConfig =
+                    HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig();
+            this.deflater =
+                    messageStoreConfig.isHaTransferCompressEnable() ? new Deflater(
+                        messageStoreConfig.getHaTransferCompressLevel()) : null;
+            this.transferZeroCopy = null == this.deflater && messageStoreConfig.isHaTransferZeroCopyEnable();
+            this.transferBatchSize = messageStoreConfig.getHaTransferBatchSize();
             this.thread.setDaemon(true);
         }
 
@@ -336,26 +491,37 @@ public class HAConnection {
                                 this.nextTransferFromWhere);
                     if (selectResult != null) {
                         int size = selectResult.getSize();
-                        if (size > HAConnection.this.haService.getDefaultMessageStore()
-                            .getMessageStoreConfig().getHaTransferBatchSize()) {
-                            size =
-                                    HAConnection.this.haService.getDefaultMessageStore()
-                                        .getMessageStoreConfig().getHaTransferBatchSize();
+                        int batchSize = this.adjustBatchSize(size);
+                        if (size > batchSize) {
+                            size = batchSize;
                         }
 
                         long thisOffset = this.nextTransferFromWhere;
                         this.nextTransferFromWhere += size;
 
                         selectResult.getByteBuffer().limit(size);
-                        this.selectMapedBufferResult = selectResult;
 
                         // Build Header
                         this.byteBufferHeader.position(0);
-                        this.byteBufferHeader.limit(HEADER_SIZE);
+                        this.byteBufferHeader.limit(HEADER_SIZE + 4);
                         this.byteBufferHeader.putLong(thisOffset);
-                        this.byteBufferHeader.putInt(size);
+                        if (this.deflater != null && this.compress(selectResult.getByteBuffer(), size)) {
+                            // 数据已经压缩到堆内缓冲，可以立即释放
+                            selectResult.release();
+                            final int compressedSize = this.byteBufferCompressed.remaining();
+                            this.byteBufferHeader.putInt(-compressedSize);
+                            this.byteBufferHeader.putInt(size);
+                            HAConnection.this.transferWireBytes.addAndGet(compressedSize);
+                        }
+                        else {
+                            this.selectMapedBufferResult = selectResult;
+                            this.byteBufferHeader.putInt(size);
+                            HAConnection.this.transferWireBytes.addAndGet(size);
+                        }
                         this.byteBufferHeader.flip();
+                        HAConnection.this.transferRawBytes.addAndGet(size);
 
+                        HAConnection.this.sampleTransfer(thisOffset + size);
                         this.lastWriteOver = this.transferData();
                     }
                     else {
@@ -375,6 +541,10 @@ public class HAConnection {
                 this.selectMapedBufferResult.release();
             }
 
+            if (this.deflater != null) {
+                this.deflater.end();
+            }
+
             this.makeStop();
 
             // 避免内存泄露
@@ -420,16 +590,22 @@ public class HAConnection {
                 }
             }
 
-            if (null == this.selectMapedBufferResult) {
+            if (null == this.selectMapedBufferResult && null == this.byteBufferCompressed) {
                 return !this.byteBufferHeader.hasRemaining();
             }
 
             writeSizeZeroTimes = 0;
 
+            final boolean compressed = this.byteBufferCompressed != null;
+            final ByteBuffer byteBufferBody =
+                    compressed ? this.byteBufferCompressed : this.selectMapedBufferResult.getByteBuffer();
+
             // Write Body
             if (!this.byteBufferHeader.hasRemaining()) {
-                while (this.selectMapedBufferResult.getByteBuffer().hasRemaining()) {
-                    int writeSize = this.socketChannel.write(this.selectMapedBufferResult.getByteBuffer());
+                while (byteBufferBody.hasRemaining()) {
+                    int writeSize =
+                            compressed ? this.socketChannel.write(byteBufferBody) : this
+                                .writeBody(this.selectMapedBufferResult);
                     if (writeSize > 0) {
                         writeSizeZeroTimes = 0;
                         this.lastWriteTimestamp =
@@ -446,19 +622,87 @@ public class HAConnection {
                 }
             }
 
-            boolean result =
-                    !this.byteBufferHeader.hasRemaining()
-                            && !this.selectMapedBufferResult.getByteBuffer().hasRemaining();
+            boolean result = !this.byteBufferHeader.hasRemaining() && !byteBufferBody.hasRemaining();
 
-            if (!this.selectMapedBufferResult.getByteBuffer().hasRemaining()) {
-                this.selectMapedBufferResult.release();
-                this.selectMapedBufferResult = null;
+            if (!byteBufferBody.hasRemaining()) {
+                if (this.selectMapedBufferResult != null) {
+                    this.selectMapedBufferResult.release();
+                    this.selectMapedBufferResult = null;
+                }
+                this.byteBufferCompressed = null;
             }
 
             return result;
         }
 
 
+        /**
+         * 可传输的数据超过当前批量大小说明Slave落后，批量翻倍；否则说明已经追上，批量减半
+         */
+        private int adjustBatchSize(final int available) {
+            final MessageStoreConfig messageStoreConfig =
+                    HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig();
+            final int min = messageStoreConfig.getHaTransferBatchSize();
+            final int max =
+                    Math.max(min,
+                        Math.min(messageStoreConfig.getHaTransferBatchSizeMax(), MaxTransferBatchSize));
+
+            int batchSize =
+                    available > this.transferBatchSize ? this.transferBatchSize * 2
+                            : this.transferBatchSize / 2;
+            this.transferBatchSize = Math.min(Math.max(batchSize, min), max);
+            return this.transferBatchSize;
+        }
+
+
+        /**
+         * 压缩后不比原始数据小时返回false，直接发送原始数据
+         */
+        private boolean compress(final ByteBuffer data, final int size) {
+            if (null == this.compressInput || this.compressInput.length < size) {
+                this.compressInput = new byte[size];
+                this.compressOutput = new byte[size];
+            }
+
+            data.duplicate().get(this.compressInput, 0, size);
+
+            this.deflater.reset();
+            this.deflater.setInput(this.compressInput, 0, size);
+            this.deflater.finish();
+
+            int length = 0;
+            while (!this.deflater.finished() && length < size) {
+                length += this.deflater.deflate(this.compressOutput, length, size - length);
+            }
+
+            if (!this.deflater.finished() || length >= size) {
+                return false;
+            }
+
+            this.byteBufferCompressed = ByteBuffer.wrap(this.compressOutput, 0, length);
+            return true;
+        }
+
+
+        /**
+         * 零拷贝模式下从CommitLog文件直接transferTo到Socket，ByteBuffer只用来记录传输进度
+         */
+        private int writeBody(final SelectMapedBufferResult result) throws IOException {
+            final ByteBuffer byteBuffer = result.getByteBuffer();
+            if (!this.transferZeroCopy) {
+                return this.socketChannel.write(byteBuffer);
+            }
+
+            final MapedFile mapedFile = result.getMapedFile();
+            long position = result.getStartOffset() - mapedFile.getFileFromOffset() + byteBuffer.position();
+            int writeSize =
+                    (int) mapedFile.getFileChannel().transferTo(position, byteBuffer.remaining(),
+                        this.socketChannel);
+            byteBuffer.position(byteBuffer.position() + writeSize);
+            return writeSize;
+        }
+
+
         @Override
         public String getServiceName() {
             return WriteSocketService.class.getSimpleName();
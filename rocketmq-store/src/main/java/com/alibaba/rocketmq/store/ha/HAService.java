@@ -25,12 +25,16 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,6 +66,8 @@ public class HAService {
     private final WaitNotifyObject waitNotifyObject = new WaitNotifyObject();
     // 写入到Slave的最大Offset
     private final AtomicLong push2SlaveMaxOffset = new AtomicLong(0);
+    // 至少haSyncSlaveAckNums个Slave都已应答的最大Offset，同步双写以此为准
+    private final AtomicLong push2SlaveQuorumOffset = new AtomicLong(0);
     // 主从复制通知服务
     private final GroupTransferService groupTransferService;
     // Slave订阅对象
@@ -95,10 +101,10 @@ public class HAService {
      * @return
      */
     public boolean isSlaveOK(final long masterPutWhere) {
-        boolean result = this.connectionCount.get() > 0;
+        boolean result = this.connectionCount.get() >= this.getSyncSlaveAckNums();
         result =
                 result
-                        && ((masterPutWhere - this.push2SlaveMaxOffset.get()) < this.defaultMessageStore
+                        && ((masterPutWhere - this.push2SlaveQuorumOffset.get()) < this.defaultMessageStore
                             .getMessageStoreConfig().getHaSlaveFallbehindMax());
         return result;
     }
@@ -111,13 +117,77 @@ public class HAService {
         for (long value = this.push2SlaveMaxOffset.get(); offset > value;) {
             boolean ok = this.push2SlaveMaxOffset.compareAndSet(value, offset);
             if (ok) {
-                this.groupTransferService.notifyTransferSome();
                 break;
             }
             else {
                 value = this.push2SlaveMaxOffset.get();
             }
         }
+
+        // 只要一个Slave应答即可时，Quorum Offset即最大Offset
+        final long quorumOffset =
+                this.getSyncSlaveAckNums() <= 1 ? this.push2SlaveMaxOffset.get() : this
+                    .computeQuorumOffset();
+        for (long value = this.push2SlaveQuorumOffset.get(); quorumOffset > value;) {
+            boolean ok = this.push2SlaveQuorumOffset.compareAndSet(value, quorumOffset);
+            if (ok) {
+                this.groupTransferService.notifyTransferSome();
+                break;
+            }
+            else {
+                value = this.push2SlaveQuorumOffset.get();
+            }
+        }
+    }
+
+
+    private int getSyncSlaveAckNums() {
+        return Math.max(this.defaultMessageStore.getMessageStoreConfig().getHaSyncSlaveAckNums(), 1);
+    }
+
+
+    /**
+     * 各Slave应答Offset中第k大的值，即至少k个Slave都已收到的位置，Slave不足k个时返回-1
+     */
+    private long computeQuorumOffset() {
+        final int ackNums = this.getSyncSlaveAckNums();
+        long[] ackOffsets;
+        synchronized (this.connectionList) {
+            if (this.connectionList.size() < ackNums) {
+                return -1;
+            }
+
+            ackOffsets = new long[this.connectionList.size()];
+            int i = 0;
+            for (HAConnection c : this.connectionList) {
+                ackOffsets[i++] = c.getSlaveAckOffset();
+            }
+        }
+
+        Arrays.sort(ackOffsets);
+        return ackOffsets[ackOffsets.length - ackNums];
+    }
+
+
+    /**
+     * 各Slave复制落后的字节数、应答延迟分布、追赶速度（字节/秒）、压缩比及当前批量大小
+     */
+    public void buildRunningStats(HashMap<String, String> stats) {
+        final long masterPutWhere = this.defaultMessageStore.getMaxPhyOffset();
+        stats.put("haQuorumFallBehind", String.valueOf(masterPutWhere - this.push2SlaveQuorumOffset.get()));
+        synchronized (this.connectionList) {
+            for (HAConnection c : this.connectionList) {
+                stats.put("haSlaveFallBehind_" + c.getClientAddr(),
+                    String.valueOf(masterPutWhere - c.getSlaveAckOffset()));
+                stats.put("haSlaveAckLatency_" + c.getClientAddr(), c.getAckLatencyDistributeStringInfo());
+                stats.put("haSlaveCatchUpRate_" + c.getClientAddr(),
+                    String.valueOf(c.getAckBytesPerSecond()));
+                stats.put("haSlaveCompressRatio_" + c.getClientAddr(),
+                    String.format("%.2f", c.getCompressRatio()));
+                stats.put("haSlaveTransferBatchSize_" + c.getClientAddr(),
+                    String.valueOf(c.getTransferBatchSize()));
+            }
+        }
     }
 
 
@@ -222,6 +292,14 @@ public class HAService {
                                     HAService.log.info("HAService receive new connection, "
                                             + sc.socket().getRemoteSocketAddress());
 
+                                    // 独立CommitLog不参与主备同步，拒绝Slave连接，防止切换后丢失数据
+                                    if (HAService.this.defaultMessageStore.hasIsolatedCommitLog()) {
+                                        log.error("isolated commit log can not be replicated, reject slave "
+                                                + sc.socket().getRemoteSocketAddress());
+                                        sc.close();
+                                        continue;
+                                    }
+
                                     try {
                                         HAConnection conn = new HAConnection(HAService.this, sc);
                                         conn.start();
@@ -297,10 +375,11 @@ public class HAService {
         private void doWaitTransfer() {
             if (!this.requestsRead.isEmpty()) {
                 for (GroupCommitRequest req : this.requestsRead) {
-                    boolean transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
-                    for (int i = 0; !transferOK && i < 5;) {
+                    boolean transferOK =
+                            HAService.this.push2SlaveQuorumOffset.get() >= req.getNextOffset();
+                    for (int i = 0; !transferOK && i < 5; i++) {
                         this.notifyTransferObject.waitForRunning(1000);
-                        transferOK = HAService.this.push2SlaveMaxOffset.get() >= req.getNextOffset();
+                        transferOK = HAService.this.push2SlaveQuorumOffset.get() >= req.getNextOffset();
                     }
 
                     if (!transferOK) {
@@ -356,13 +435,29 @@ public class HAService {
         // Slave向Master汇报Offset，汇报到哪里
         private long currentReportedOffset = 0;
         private int dispatchPostion = 0;
+        // 零拷贝模式下使用堆外缓冲接收，消息体直接从缓冲拷贝到mmap
+        private final boolean transferZeroCopy;
         // 从Master接收数据Buffer
-        private ByteBuffer byteBufferRead = ByteBuffer.allocate(ReadMaxBufferSize);
-        private ByteBuffer byteBufferBackup = ByteBuffer.allocate(ReadMaxBufferSize);
+        private ByteBuffer byteBufferRead;
+        private ByteBuffer byteBufferBackup;
+        // 解压Master发来的压缩数据帧，按需创建
+        private Inflater inflater;
+        private byte[] decompressInput;
+        private byte[] decompressOutput;
 
 
         public HAClient() throws IOException {
             this.selector = RemotingUtil.openSelector();
+            this.transferZeroCopy =
+                    HAService.this.defaultMessageStore.getMessageStoreConfig().isHaTransferZeroCopyEnable();
+            this.byteBufferRead = this.allocateReadBuffer();
+            this.byteBufferBackup = this.allocateReadBuffer();
+        }
+
+
+        private ByteBuffer allocateReadBuffer() {
+            return this.transferZeroCopy ? ByteBuffer.allocateDirect(ReadMaxBufferSize) : ByteBuffer
+                .allocate(ReadMaxBufferSize);
         }
 
 
@@ -500,17 +595,71 @@ public class HAService {
                         }
                     }
 
+                    // 压缩数据帧Body Size为负数，头部多4字节原始大小
+                    final boolean compressed = bodySize < 0;
+                    final int headerSize = compressed ? MSG_HEADER_SIZE + 4 : MSG_HEADER_SIZE;
+                    if (compressed) {
+                        bodySize = -bodySize;
+                    }
+
+                    // 读缓冲无法容纳的数据帧永远凑不够，说明数据已损坏
+                    if (bodySize < 0 || bodySize > this.byteBufferRead.capacity() - headerSize) {
+                        log.error("HAClient, illegal body size of frame, " + bodySize);
+                        return false;
+                    }
+
                     // 可以凑够一个请求
-                    if (diff >= (MSG_HEADER_SIZE + bodySize)) {
-                        byte[] bodyData = new byte[bodySize];
-                        this.byteBufferRead.position(this.dispatchPostion + MSG_HEADER_SIZE);
-                        this.byteBufferRead.get(bodyData);
+                    if (diff >= (headerSize + bodySize)) {
+                        boolean appendResult;
+                        if (compressed) {
+                            int rawSize = this.byteBufferRead.getInt(this.dispatchPostion + MSG_HEADER_SIZE);
+                            // Master只压缩不超过最大传输批量的数据，且压缩后必须变小
+                            if (rawSize <= 0 || rawSize > HAConnection.MaxTransferBatchSize
+                                    || bodySize >= rawSize) {
+                                log.error("HAClient, illegal compressed frame, bodySize: " + bodySize
+                                        + " rawSize: " + rawSize);
+                                return false;
+                            }
 
-                        // TODO 结果是否需要处理，暂时不处理
-                        HAService.this.defaultMessageStore.appendToCommitLog(masterPhyOffset, bodyData);
+                            ByteBuffer bodyData =
+                                    this.decompress(this.dispatchPostion + headerSize, bodySize, rawSize);
+                            if (null == bodyData) {
+                                return false;
+                            }
+
+                            appendResult =
+                                    HAService.this.defaultMessageStore.appendToCommitLog(masterPhyOffset,
+                                        bodyData);
+                        }
+                        else if (this.transferZeroCopy) {
+                            ByteBuffer bodyData = this.byteBufferRead.duplicate();
+                            bodyData.position(this.dispatchPostion + MSG_HEADER_SIZE);
+                            bodyData.limit(this.dispatchPostion + MSG_HEADER_SIZE + bodySize);
+
+                            appendResult =
+                                    HAService.this.defaultMessageStore.appendToCommitLog(masterPhyOffset,
+                                        bodyData);
+                        }
+                        else {
+                            byte[] bodyData = new byte[bodySize];
+                            this.byteBufferRead.position(this.dispatchPostion + MSG_HEADER_SIZE);
+                            this.byteBufferRead.get(bodyData);
+
+                            appendResult =
+                                    HAService.this.defaultMessageStore.appendToCommitLog(masterPhyOffset,
+                                        bodyData);
+                        }
 
                         this.byteBufferRead.position(readSocketPos);
-                        this.dispatchPostion += MSG_HEADER_SIZE + bodySize;
+
+                        // 写入失败时不能汇报进度，断开连接后从本地最大Offset重新拉取
+                        if (!appendResult) {
+                            log.error("HAClient, append data to commit log failed, masterPhyOffset: "
+                                    + masterPhyOffset + " bodySize: " + bodySize);
+                            return false;
+                        }
+
+                        this.dispatchPostion += headerSize + bodySize;
 
                         if (!reportSlaveMaxOffsetPlus()) {
                             return false;
@@ -531,6 +680,70 @@ public class HAService {
         }
 
 
+        /**
+         * 解压读缓冲中pos开始的size字节
+         * 
+         * @return 解压后的数据，数据损坏返回null
+         */
+        private ByteBuffer decompress(final int pos, final int size, final int rawSize) {
+            if (null == this.inflater) {
+                this.inflater = new Inflater();
+            }
+
+            byte[] input;
+            int inputOffset;
+            if (this.byteBufferRead.hasArray()) {
+                input = this.byteBufferRead.array();
+                inputOffset = this.byteBufferRead.arrayOffset() + pos;
+            }
+            else {
+                if (null == this.decompressInput || this.decompressInput.length < size) {
+                    this.decompressInput = new byte[size];
+                }
+                ByteBuffer byteBuffer = this.byteBufferRead.duplicate();
+                byteBuffer.position(pos);
+                byteBuffer.get(this.decompressInput, 0, size);
+                input = this.decompressInput;
+                inputOffset = 0;
+            }
+
+            if (null == this.decompressOutput || this.decompressOutput.length < rawSize) {
+                this.decompressOutput = new byte[rawSize];
+            }
+
+            this.inflater.reset();
+            this.inflater.setInput(input, inputOffset, size);
+            int length = 0;
+            try {
+                while (length < rawSize && !this.inflater.finished()) {
+                    int inflated = this.inflater.inflate(this.decompressOutput, length, rawSize - length);
+                    if (0 == inflated && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+            }
+            catch (DataFormatException e) {
+                log.error("HAClient, decompress data exception", e);
+                return null;
+            }
+
+            if (length != rawSize) {
+                log.error("HAClient, decompress data size error, expect " + rawSize + " actual " + length);
+                return null;
+            }
+
+            // 压缩数据必须恰好用完收到的字节
+            if (!this.inflater.finished() || this.inflater.getRemaining() != 0) {
+                log.error("HAClient, compressed data size error, received " + size + " remaining "
+                        + this.inflater.getRemaining());
+                return null;
+            }
+
+            return ByteBuffer.wrap(this.decompressOutput, 0, rawSize);
+        }
+
+
         private boolean reportSlaveMaxOffsetPlus() {
             boolean result = true;
             // 只要本地有更新，就汇报最大物理Offset
@@ -652,6 +865,10 @@ public class HAService {
                 }
             }
 
+            if (this.inflater != null) {
+                this.inflater.end();
+            }
+
             log.info(this.getServiceName() + " service end");
         }
 
@@ -690,4 +907,9 @@ public class HAService {
     public AtomicLong getPush2SlaveMaxOffset() {
         return push2SlaveMaxOffset;
     }
+
+
+    public AtomicLong getPush2SlaveQuorumOffset() {
+        return push2SlaveQuorumOffset;
+    }
 }
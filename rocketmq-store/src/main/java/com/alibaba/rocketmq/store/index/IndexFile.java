@@ -46,6 +46,8 @@ public class IndexFile {
     private final FileChannel fileChannel;
     private final MappedByteBuffer mappedByteBuffer;
     private final IndexHeader indexHeader;
+    // Key过滤器，为null表示未开启
+    private IndexKeyFilter keyFilter;
 
 
     public IndexFile(final String fileName, final int hashSlotNum, final int indexNum,
@@ -88,6 +90,9 @@ public class IndexFile {
         if (this.mapedFile.hold()) {
             this.indexHeader.updateByteBuffer();
             this.mappedByteBuffer.force();
+            if (this.keyFilter != null) {
+                this.keyFilter.flush();
+            }
             this.mapedFile.release();
             log.info("flush index file eclipse time(ms) " + (System.currentTimeMillis() - beginTime));
         }
@@ -102,8 +107,15 @@ public class IndexFile {
     }
 
 
+    /**
+     * 查询线程通过索引文件的引用访问过滤器，索引文件销毁成功后才能释放过滤器
+     */
     public boolean destroy(final long intervalForcibly) {
-        return this.mapedFile.destroy(intervalForcibly);
+        boolean result = this.mapedFile.destroy(intervalForcibly);
+        if (result && this.keyFilter != null) {
+            this.keyFilter.destroy(intervalForcibly);
+        }
+        return result;
     }
 
 
@@ -111,6 +123,16 @@ public class IndexFile {
      * 如果返回false，表示需要创建新的索引文件
      */
     public boolean putKey(final String key, final long phyOffset, final long storeTimestamp) {
+        return this.putKey(key, phyOffset, storeTimestamp, true);
+    }
+
+
+    /**
+     * @param updatePhyOffset
+     *            是否更新文件头中的物理Offset，独立CommitLog的消息不更新
+     */
+    public boolean putKey(final String key, final long phyOffset, final long storeTimestamp,
+            final boolean updatePhyOffset) {
         if (this.indexHeader.getIndexCount() < this.indexNum) {
             int keyHash = indexKeyHashMethod(key);
             int slotPos = keyHash % this.hashSlotNum;
@@ -144,6 +166,12 @@ public class IndexFile {
                         IndexHeader.INDEX_HEADER_SIZE + this.hashSlotNum * HASH_SLOT_SIZE
                                 + this.indexHeader.getIndexCount() * INDEX_SIZE;
 
+                // 先写Key过滤器，索引项可见时指纹一定已经写入
+                if (this.keyFilter != null) {
+                    this.keyFilter.putKey(key, IndexKeyFilter.fingerprint(key),
+                        this.indexHeader.getIndexCount());
+                }
+
                 // 写入真正索引
                 this.mappedByteBuffer.putInt(absIndexPos, keyHash);
                 this.mappedByteBuffer.putLong(absIndexPos + 4, phyOffset);
@@ -155,13 +183,17 @@ public class IndexFile {
 
                 // 第一次写入
                 if (this.indexHeader.getIndexCount() <= 1) {
-                    this.indexHeader.setBeginPhyOffset(phyOffset);
+                    if (updatePhyOffset) {
+                        this.indexHeader.setBeginPhyOffset(phyOffset);
+                    }
                     this.indexHeader.setBeginTimestamp(storeTimestamp);
                 }
 
                 this.indexHeader.incHashSlotCount();
                 this.indexHeader.incIndexCount();
-                this.indexHeader.setEndPhyOffset(phyOffset);
+                if (updatePhyOffset) {
+                    this.indexHeader.setEndPhyOffset(phyOffset);
+                }
                 this.indexHeader.setEndTimestamp(storeTimestamp);
 
                 return true;
@@ -239,7 +271,14 @@ public class IndexFile {
      */
     public void selectPhyOffset(final List<Long> phyOffsets, final String key, final int maxNum,
             final long begin, final long end, boolean lock) {
+        final int fingerprint = IndexKeyFilter.fingerprint(key);
         if (this.mapedFile.hold()) {
+            // 索引文件中一定不包含此Key，不需要遍历哈希链
+            if (this.keyFilter != null && !this.keyFilter.mightContain(key, fingerprint)) {
+                this.mapedFile.release();
+                return;
+            }
+
             int keyHash = indexKeyHashMethod(key);
             int slotPos = keyHash % this.hashSlotNum;
             int absSlotPos = IndexHeader.INDEX_HEADER_SIZE + slotPos * HASH_SLOT_SIZE;
@@ -286,7 +325,8 @@ public class IndexFile {
                         long timeRead = this.indexHeader.getBeginTimestamp() + timeDiff;
                         boolean timeMatched = (timeRead >= begin) && (timeRead <= end);
 
-                        if (keyHash == keyHashRead && timeMatched) {
+                        if (keyHash == keyHashRead && timeMatched
+                                && this.isFingerprintMatched(fingerprint, nextIndexToRead)) {
                             phyOffsets.add(phyOffsetRead);
                         }
 
@@ -317,4 +357,19 @@ public class IndexFile {
             }
         }
     }
+
+
+    private boolean isFingerprintMatched(final int fingerprint, final int index) {
+        return this.keyFilter == null || this.keyFilter.isFingerprintMatched(fingerprint, index);
+    }
+
+
+    public IndexKeyFilter getKeyFilter() {
+        return keyFilter;
+    }
+
+
+    public void setKeyFilter(IndexKeyFilter keyFilter) {
+        this.keyFilter = keyFilter;
+    }
 }
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.index;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.MapedFile;
+
+
+/**
+ * 索引文件的Key过滤器，与索引文件一一对应<br>
+ * 1. Bloom Filter，查询时不包含Key的索引文件整个跳过<br>
+ * 2. 每个索引项的指纹，与索引项中的Hash组成64位，精确匹配Key，避免读取Hash冲突的消息<br>
+ * 文件格式：Bloom Filter位图 + 指纹(4) * indexNum
+ */
+public class IndexKeyFilter {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    // 每个Key占用的位数，误判率约1%
+    private static final int BitsPerKey = 10;
+    // 每个Key在位图中置几位
+    private static final int HashNums = 7;
+    private static final int FINGERPRINT_SIZE = 4;
+    private final int bitNums;
+    private final int bitMapSize;
+    private final MapedFile mapedFile;
+    private final MappedByteBuffer mappedByteBuffer;
+
+
+    public IndexKeyFilter(final String fileName, final int indexNum) throws IOException {
+        this.bitMapSize = (int) (((long) indexNum * BitsPerKey + 7) / 8);
+        this.bitNums = this.bitMapSize * 8;
+        this.mapedFile = new MapedFile(fileName, this.bitMapSize + indexNum * FINGERPRINT_SIZE);
+        this.mappedByteBuffer = this.mapedFile.getMappedByteBuffer();
+    }
+
+
+    /**
+     * 与String.hashCode相互独立的32位Hash（FNV-1a）
+     */
+    public static int fingerprint(final String key) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x01000193;
+        }
+
+        return hash;
+    }
+
+
+    /**
+     * 建索引时调用，只有一个线程调用，所以不需要加锁
+     */
+    public void putKey(final String key, final int fingerprint, final int index) {
+        final int hash1 = key.hashCode();
+        for (int i = 0; i < HashNums; i++) {
+            int bit = this.bitIndex(hash1, fingerprint, i);
+            int pos = bit >>> 3;
+            this.mappedByteBuffer.put(pos, (byte) (this.mappedByteBuffer.get(pos) | (1 << (bit & 7))));
+        }
+
+        this.mappedByteBuffer.putInt(this.bitMapSize + index * FINGERPRINT_SIZE, fingerprint);
+    }
+
+
+    /**
+     * 索引文件中是否可能包含此Key，存在误判，不会漏判
+     */
+    public boolean mightContain(final String key, final int fingerprint) {
+        final int hash1 = key.hashCode();
+        for (int i = 0; i < HashNums; i++) {
+            int bit = this.bitIndex(hash1, fingerprint, i);
+            if ((this.mappedByteBuffer.get(bit >>> 3) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    public boolean isFingerprintMatched(final int fingerprint, final int index) {
+        return this.mappedByteBuffer.getInt(this.bitMapSize + index * FINGERPRINT_SIZE) == fingerprint;
+    }
+
+
+    private int bitIndex(final int hash1, final int hash2, final int i) {
+        return ((hash1 + i * hash2) & Integer.MAX_VALUE) % this.bitNums;
+    }
+
+
+    public void flush() {
+        if (this.mapedFile.hold()) {
+            this.mappedByteBuffer.force();
+            this.mapedFile.release();
+        }
+    }
+
+
+    public boolean destroy(final long intervalForcibly) {
+        boolean result = this.mapedFile.destroy(intervalForcibly);
+        if (!result) {
+            log.warn("destroy index key filter failed, " + this.mapedFile.getFileName());
+        }
+        return result;
+    }
+}
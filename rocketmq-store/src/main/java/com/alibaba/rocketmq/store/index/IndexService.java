@@ -22,6 +22,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -34,7 +35,9 @@ import com.alibaba.rocketmq.common.constant.LoggerName;
 import com.alibaba.rocketmq.common.message.MessageConst;
 import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
 import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.CommitLog;
 import com.alibaba.rocketmq.store.DispatchRequest;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 
 
@@ -51,11 +54,25 @@ public class IndexService extends ServiceThread {
     private final int hashSlotNum;
     private final int indexNum;
     private final String storePath;
+    // Key过滤器存储路径，文件名与索引文件相同
+    private final String filterStorePath;
     // 索引文件集合
     private final ArrayList<IndexFile> indexFileList = new ArrayList<IndexFile>();
     // 读写锁（针对indexFileList）
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private LinkedBlockingQueue<Object[]> requestQueue = new LinkedBlockingQueue<Object[]>(300000);
+    private final LinkedBlockingQueue<Object[]> requestQueue;
+    // 每次最多合并多少批请求一起建索引
+    private static final int BuildBatchMaxNums = 64;
+    // 追赶时等待CommitLog数据可读的最长时间（单位毫秒）
+    private static final long CatchUpWaitTimeMills = 1000 * 3;
+    // 已经建过索引的CommitLog位置，之前的消息都已经处理，只有建索引线程修改
+    private volatile long indexedOffset = -1;
+    // 队列满时丢弃的请求批数，丢弃的消息由建索引线程从CommitLog中重新读取
+    private final AtomicLong discardBatchNums = new AtomicLong(0);
+    // 有请求被丢弃，空闲时需要追赶
+    private volatile boolean hasDiscarded = false;
+    // 追赶时解析消息的缓冲区，与恢复线程、Reput线程并发，不能使用CommitLog的共享缓冲区
+    private byte[] catchUpDecodeBuffer;
 
 
     public IndexService(final DefaultMessageStore store) {
@@ -64,6 +81,12 @@ public class IndexService extends ServiceThread {
         this.indexNum = store.getMessageStoreConfig().getMaxIndexNum();
         this.storePath =
                 StorePathConfigHelper.getStorePathIndex(store.getMessageStoreConfig().getStorePathRootDir());
+        this.filterStorePath =
+                StorePathConfigHelper.getStorePathIndexFilter(store.getMessageStoreConfig()
+                    .getStorePathRootDir());
+        this.requestQueue =
+                new LinkedBlockingQueue<Object[]>(Math.max(store.getMessageStoreConfig()
+                    .getIndexRequestQueueSize(), 1));
     }
 
 
@@ -77,6 +100,8 @@ public class IndexService extends ServiceThread {
                 try {
                     IndexFile f = new IndexFile(file.getPath(), this.hashSlotNum, this.indexNum, 0, 0);
                     f.load();
+                    // 在异常恢复删除索引文件之前挂上过滤器，一起删除
+                    this.loadKeyFilter(f, file.getName());
 
                     if (!lastExitOK) {
                         if (f.getEndTimestamp() > this.defaultMessageStore.getStoreCheckpoint()
@@ -100,6 +125,27 @@ public class IndexService extends ServiceThread {
     }
 
 
+    /**
+     * 只加载与索引文件同时创建的过滤器，否则过滤器缺少部分Key，查询会漏掉消息<br>
+     * 关闭过滤器功能后，索引文件会继续写入，之前的过滤器已经不完整，直接删除
+     */
+    private void loadKeyFilter(final IndexFile f, final String name) throws IOException {
+        File filterFile = new File(this.filterStorePath, name);
+        if (!filterFile.exists()) {
+            return;
+        }
+
+        if (this.defaultMessageStore.getMessageStoreConfig().isMessageIndexKeyFilterEnable()) {
+            f.setKeyFilter(new IndexKeyFilter(filterFile.getPath(), this.indexNum));
+            log.info("load index key filter OK, " + filterFile.getPath());
+        }
+        else {
+            boolean result = filterFile.delete();
+            log.info("delete index key filter " + filterFile.getPath() + " " + (result ? "OK" : "Failed"));
+        }
+    }
+
+
     /**
      * 删除索引文件
      */
@@ -233,11 +279,13 @@ public class IndexService extends ServiceThread {
 
 
     /**
-     * 向队列中添加请求，队列满情况下，丢弃请求
+     * 向队列中添加请求，队列满情况下丢弃请求，由建索引线程从CommitLog中追赶，不会丢失索引
      */
     public void putRequest(final Object[] reqs) {
         boolean offer = this.requestQueue.offer(reqs);
         if (!offer) {
+            this.hasDiscarded = true;
+            this.discardBatchNums.incrementAndGet();
             if (log.isDebugEnabled()) {
                 log.debug("putRequest index failed, {}", reqs);
             }
@@ -249,15 +297,26 @@ public class IndexService extends ServiceThread {
     public void run() {
         log.info(this.getServiceName() + " service started");
 
+        final List<Object[]> batches = new ArrayList<Object[]>(BuildBatchMaxNums);
         while (!this.isStoped()) {
             try {
                 Object[] req = this.requestQueue.poll(3000, TimeUnit.MILLISECONDS);
 
                 if (req != null) {
-                    this.buildIndex(req);
+                    // 合并多批请求，一次取索引文件
+                    batches.add(req);
+                    this.requestQueue.drainTo(batches, BuildBatchMaxNums - 1);
+                    this.buildIndexInOrder(batches);
+                    batches.clear();
+                }
+                // 空闲时追赶被丢弃的请求
+                else if (this.hasDiscarded) {
+                    this.hasDiscarded = false;
+                    this.catchUp(this.defaultMessageStore.getCommitLog().getReadableMaxOffset(), false);
                 }
             }
             catch (Exception e) {
+                batches.clear();
                 log.warn(this.getServiceName() + " service has exception. ", e);
             }
         }
@@ -266,7 +325,137 @@ public class IndexService extends ServiceThread {
     }
 
 
+    /**
+     * 请求按CommitLog顺序到达，发现不连续说明中间的请求被丢弃，先从CommitLog中追赶
+     */
+    private void buildIndexInOrder(final List<Object[]> batches) {
+        List<Object> requests = new ArrayList<Object>();
+        for (Object[] batch : batches) {
+            for (Object o : batch) {
+                DispatchRequest msg = (DispatchRequest) o;
+                // 独立CommitLog的消息与主CommitLog的Offset不连续，不参与追赶
+                if (this.defaultMessageStore.isIsolatedCommitLogOffset(msg.getCommitLogOffset())) {
+                    requests.add(msg);
+                    continue;
+                }
+
+                long nextOffset = msg.getCommitLogOffset() + msg.getMsgSize();
+                // 追赶时已经处理过
+                if (nextOffset <= this.indexedOffset) {
+                    continue;
+                }
+
+                if (this.indexedOffset >= 0 && msg.getCommitLogOffset() > this.indexedOffset) {
+                    this.buildIndex(requests.toArray());
+                    requests.clear();
+                    this.catchUp(msg.getCommitLogOffset(), true);
+                }
+
+                requests.add(msg);
+                this.indexedOffset = nextOffset;
+            }
+        }
+
+        this.buildIndex(requests.toArray());
+    }
+
+
+    /**
+     * 从CommitLog中读取indexedOffset至toOffset之间的消息并建索引<br>
+     * 文件末尾的空白也会造成不连续，这时只会切换到下一个文件
+     *
+     * @param waitUntilDone
+     *            开启堆外写缓冲时，已分发的消息可能还不可读，是否等待
+     */
+    private void catchUp(final long toOffset, final boolean waitUntilDone) {
+        if (this.indexedOffset < 0) {
+            return;
+        }
+
+        final CommitLog commitLog = this.defaultMessageStore.getCommitLog();
+        if (null == this.catchUpDecodeBuffer) {
+            this.catchUpDecodeBuffer = commitLog.newDecodeBuffer();
+        }
+
+        final long beginOffset = this.indexedOffset;
+        final long beginTime = System.currentTimeMillis();
+        int catchUpNums = 0;
+        while (this.indexedOffset < toOffset) {
+            // 文件已经过期删除
+            long minOffset = commitLog.getMinOffset();
+            if (this.indexedOffset < minOffset) {
+                this.indexedOffset = minOffset;
+                continue;
+            }
+
+            List<Object> requests = new ArrayList<Object>();
+            SelectMapedBufferResult result = commitLog.getData(this.indexedOffset);
+            if (result != null) {
+                try {
+                    for (int readSize = 0; readSize < result.getSize() && this.indexedOffset < toOffset;) {
+                        DispatchRequest msg =
+                                commitLog.checkMessageAndReturnSize(result.getByteBuffer(), false, false,
+                                    this.catchUpDecodeBuffer);
+                        int size = msg.getMsgSize();
+                        // 正常数据
+                        if (size > 0) {
+                            requests.add(msg);
+                            this.indexedOffset += size;
+                            readSize += size;
+                        }
+                        // 走到文件末尾，切换至下一个文件
+                        else if (size == 0) {
+                            this.indexedOffset = commitLog.rollNextFile(this.indexedOffset);
+                            readSize = result.getSize();
+                        }
+                        // 数据还没有写完整
+                        else {
+                            break;
+                        }
+                    }
+                }
+                finally {
+                    result.release();
+                }
+            }
+
+            if (!requests.isEmpty()) {
+                catchUpNums += requests.size();
+                this.buildIndex(requests.toArray());
+            }
+            else if (this.indexedOffset < toOffset) {
+                if (!waitUntilDone) {
+                    break;
+                }
+
+                // 等待超时，放弃追赶，避免阻塞后续索引
+                if (System.currentTimeMillis() - beginTime > CatchUpWaitTimeMills || this.isStoped()) {
+                    log.error("catch up index timeout, skip from {} to {}", this.indexedOffset, toOffset);
+                    this.indexedOffset = toOffset;
+                    break;
+                }
+
+                try {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException e) {
+                    log.warn("catch up index interrupted", e);
+                }
+            }
+        }
+
+        if (catchUpNums > 0) {
+            log.warn("catch up index from commitlog, {} messages, from {} to {}, discard batch nums {}",
+                catchUpNums, beginOffset, this.indexedOffset, this.discardBatchNums.get());
+        }
+    }
+
+
     public void buildIndex(Object[] req) {
+        if (0 == req.length) {
+            return;
+        }
+
         boolean breakdown = false;
         IndexFile indexFile = retryGetAndCreateIndexFile();
         if (indexFile != null) {
@@ -275,7 +464,10 @@ public class IndexService extends ServiceThread {
                 DispatchRequest msg = (DispatchRequest) o;
                 String topic = msg.getTopic();
                 String keys = msg.getKeys();
-                if (msg.getCommitLogOffset() < endPhyOffset) {
+                // 索引文件只记录主CommitLog的Offset
+                final boolean isolated =
+                        this.defaultMessageStore.isIsolatedCommitLogOffset(msg.getCommitLogOffset());
+                if (!isolated && msg.getCommitLogOffset() < endPhyOffset) {
                     continue;
                 }
 
@@ -296,7 +488,7 @@ public class IndexService extends ServiceThread {
                         if (key.length() > 0) {
                             for (boolean ok =
                                     indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
-                                        msg.getStoreTimestamp()); !ok;) {
+                                        msg.getStoreTimestamp(), !isolated); !ok;) {
                                 log.warn("index file full, so create another one, " + indexFile.getFileName());
                                 indexFile = retryGetAndCreateIndexFile();
                                 if (null == indexFile) {
@@ -306,7 +498,7 @@ public class IndexService extends ServiceThread {
 
                                 ok =
                                         indexFile.putKey(buildKey(topic, key), msg.getCommitLogOffset(),
-                                            msg.getStoreTimestamp());
+                                            msg.getStoreTimestamp(), !isolated);
                             }
                         }
                     }
@@ -382,12 +574,15 @@ public class IndexService extends ServiceThread {
         // 如果没找到，使用写锁创建文件
         if (indexFile == null) {
             try {
-                String fileName =
-                        this.storePath + File.separator
-                                + UtilAll.timeMillisToHumanString(System.currentTimeMillis());
+                String name = UtilAll.timeMillisToHumanString(System.currentTimeMillis());
+                String fileName = this.storePath + File.separator + name;
                 indexFile =
                         new IndexFile(fileName, this.hashSlotNum, this.indexNum, lastUpdateEndPhyOffset,
                             lastUpdateIndexTimestamp);
+                if (this.defaultMessageStore.getMessageStoreConfig().isMessageIndexKeyFilterEnable()) {
+                    indexFile.setKeyFilter(new IndexKeyFilter(this.filterStorePath + File.separator + name,
+                        this.indexNum));
+                }
                 this.readWriteLock.writeLock().lock();
                 this.indexFileList.add(indexFile);
             }
@@ -436,6 +631,19 @@ public class IndexService extends ServiceThread {
     }
 
 
+    /**
+     * 已经建过索引的CommitLog位置，还没有建过索引返回-1
+     */
+    public long getIndexedOffset() {
+        return indexedOffset;
+    }
+
+
+    public long getDiscardBatchNums() {
+        return discardBatchNums.get();
+    }
+
+
     @Override
     public String getServiceName() {
         return IndexService.class.getSimpleName();
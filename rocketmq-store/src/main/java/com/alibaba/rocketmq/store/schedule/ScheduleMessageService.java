@@ -15,8 +15,10 @@
  */
 package com.alibaba.rocketmq.store.schedule;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -33,12 +35,15 @@ import com.alibaba.rocketmq.common.message.MessageConst;
 import com.alibaba.rocketmq.common.message.MessageDecoder;
 import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.common.running.RunningStats;
+import com.alibaba.rocketmq.common.sysflag.MessageSysFlag;
 import com.alibaba.rocketmq.store.ConsumeQueue;
 import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBatch;
 import com.alibaba.rocketmq.store.MessageExtBrokerInner;
 import com.alibaba.rocketmq.store.PutMessageResult;
 import com.alibaba.rocketmq.store.PutMessageStatus;
 import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
 import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
 
 
@@ -147,6 +152,18 @@ public class ScheduleMessageService extends ConfigManager {
     }
 
 
+    /**
+     * 单批字节数不超过单条消息上限，并保证整批能写入一个CommitLog文件
+     */
+    private DeliverBatch createDeliverBatch() {
+        MessageStoreConfig messageStoreConfig = this.defaultMessageStore.getMessageStoreConfig();
+        int maxBytes =
+                Math.min(messageStoreConfig.getMaxMessageSize(),
+                    messageStoreConfig.getMapedFileSizeCommitLog() / 4);
+        return new DeliverBatch(Math.max(messageStoreConfig.getScheduleDeliverBatchNums(), 1), maxBytes);
+    }
+
+
     public int getMaxDelayLevel() {
         return maxDelayLevel;
     }
@@ -277,6 +294,8 @@ public class ScheduleMessageService extends ConfigManager {
                 SelectMapedBufferResult bufferCQ = cq.getIndexBuffer(this.offset);
                 if (bufferCQ != null) {
                     try {
+                        // 到期的消息先攒批，再按真实队列批量写入
+                        DeliverBatch deliverBatch = ScheduleMessageService.this.createDeliverBatch();
                         long nextOffset = offset;
                         int i = 0;
                         for (; i < bufferCQ.getSize(); i += ConsumeQueue.CQStoreUnitSize) {
@@ -293,6 +312,11 @@ public class ScheduleMessageService extends ConfigManager {
                             long countdown = deliverTimestamp - now;
                             // 时间到了，该投递
                             if (countdown <= 0) {
+                                // 批次已满，先投递
+                                if (deliverBatch.isFull(sizePy) && !this.deliver(deliverBatch)) {
+                                    return;
+                                }
+
                                 MessageExt msgExt =
                                         ScheduleMessageService.this.defaultMessageStore.lookMessageByOffset(
                                             offsetPy, sizePy);
@@ -300,27 +324,7 @@ public class ScheduleMessageService extends ConfigManager {
                                 if (msgExt != null) {
                                     try {
                                         MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
-                                        PutMessageResult putMessageResult =
-                                                ScheduleMessageService.this.defaultMessageStore
-                                                    .putMessage(msgInner);
-                                        // 成功
-                                        if (putMessageResult != null
-                                                && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
-                                            continue;
-                                        }
-                                        // 失败
-                                        else {
-                                            // XXX: warn and notify me
-                                            log.error(
-                                                "ScheduleMessageService, a message time up, but reput it failed, topic: {} msgId {}",
-                                                msgExt.getTopic(), msgExt.getMsgId());
-                                            ScheduleMessageService.this.timer.schedule(
-                                                new DeliverDelayedMessageTimerTask(this.delayLevel,
-                                                    nextOffset), DELAY_FOR_A_PERIOD);
-                                            ScheduleMessageService.this.updateOffset(this.delayLevel,
-                                                nextOffset);
-                                            return;
-                                        }
+                                        deliverBatch.add(nextOffset, msgInner, sizePy, deliverTimestamp);
                                     }
                                     catch (Exception e) {
                                         /*
@@ -338,18 +342,22 @@ public class ScheduleMessageService extends ConfigManager {
                             }
                             // 时候未到，继续定时
                             else {
-                                ScheduleMessageService.this.timer.schedule(
-                                    new DeliverDelayedMessageTimerTask(this.delayLevel, nextOffset),
-                                    countdown);
-                                ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
+                                if (this.deliver(deliverBatch)) {
+                                    ScheduleMessageService.this.timer.schedule(
+                                        new DeliverDelayedMessageTimerTask(this.delayLevel, nextOffset),
+                                        countdown);
+                                    ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
+                                }
                                 return;
                             }
                         } // end of for
 
                         nextOffset = offset + (i / ConsumeQueue.CQStoreUnitSize);
-                        ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(
-                            this.delayLevel, nextOffset), DELAY_FOR_A_WHILE);
-                        ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
+                        if (this.deliver(deliverBatch)) {
+                            ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(
+                                this.delayLevel, nextOffset), DELAY_FOR_A_WHILE);
+                            ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
+                        }
                         return;
                     }
                     finally {
@@ -376,6 +384,51 @@ public class ScheduleMessageService extends ConfigManager {
         }
 
 
+        /**
+         * 按真实队列分组写入，每组只加一次锁、等待一次刷盘<br>
+         * 某组写入失败时，从该组第一条消息重新定时，之前分组中Offset更大的消息会重复投递
+         *
+         * @return 全部投递成功返回true
+         */
+        private boolean deliver(final DeliverBatch deliverBatch) {
+            if (deliverBatch.isEmpty()) {
+                return true;
+            }
+
+            final DefaultMessageStore defaultMessageStore = ScheduleMessageService.this.defaultMessageStore;
+            for (DeliverGroup group : deliverBatch.getGroups()) {
+                final MessageExtBatch messageExtBatch = group.getMessageExtBatch();
+                PutMessageResult putMessageResult = null;
+                if (messageExtBatch.getMessages().size() == 1) {
+                    putMessageResult = defaultMessageStore.putMessage(messageExtBatch.getMessages().get(0));
+                }
+                else {
+                    putMessageResult = defaultMessageStore.putMessages(messageExtBatch);
+                }
+
+                // 失败
+                if (null == putMessageResult
+                        || putMessageResult.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+                    // XXX: warn and notify me
+                    log.error("ScheduleMessageService, messages time up, but reput them failed, topic: {} "
+                            + "queueId: {} nums: {} offset: {}", new Object[] { messageExtBatch.getTopic(),
+                            messageExtBatch.getQueueId(), messageExtBatch.getMessages().size(),
+                            group.getFirstOffset() });
+                    ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(
+                        this.delayLevel, group.getFirstOffset()), DELAY_FOR_A_PERIOD);
+                    ScheduleMessageService.this.updateOffset(this.delayLevel, group.getFirstOffset());
+                    return false;
+                }
+            }
+
+            // 记录这一批中最早到期消息的投递延迟
+            defaultMessageStore.getStoreStatsService().setScheduleDeliverLag(this.delayLevel,
+                System.currentTimeMillis() - deliverBatch.getMinDeliverTimestamp());
+            deliverBatch.clear();
+            return true;
+        }
+
+
         private MessageExtBrokerInner messageTimeup(MessageExt msgExt) {
             MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
             msgInner.setBody(msgExt.getBody());
@@ -408,4 +461,108 @@ public class ScheduleMessageService extends ConfigManager {
             return msgInner;
         }
     }
+
+    /**
+     * 一次投递的到期消息，按真实Topic、队列分组，分组按第一条消息的Offset有序
+     */
+    static class DeliverBatch {
+        private final LinkedHashMap<String, DeliverGroup> groupTable =
+                new LinkedHashMap<String, DeliverGroup>();
+        private final int maxNums;
+        private final int maxBytes;
+        private int nums = 0;
+        private int bytes = 0;
+        private long minDeliverTimestamp = Long.MAX_VALUE;
+
+
+        public DeliverBatch(final int maxNums, final int maxBytes) {
+            this.maxNums = maxNums;
+            this.maxBytes = maxBytes;
+        }
+
+
+        /**
+         * 再加入一条消息是否会超过批量限制
+         */
+        public boolean isFull(final int size) {
+            return this.nums >= this.maxNums || (this.nums > 0 && this.bytes + size > this.maxBytes);
+        }
+
+
+        public void add(final long offset, final MessageExtBrokerInner msgInner, final int size,
+                final long deliverTimestamp) {
+            // 事务消息不支持批量写入，单独成组
+            String key = msgInner.getTopic() + "@" + msgInner.getQueueId();
+            final int tranType = MessageSysFlag.getTransactionValue(msgInner.getSysFlag());
+            if (tranType != MessageSysFlag.TransactionNotType) {
+                key = key + "@" + offset;
+            }
+
+            DeliverGroup group = this.groupTable.get(key);
+            if (null == group) {
+                group = new DeliverGroup(offset, msgInner);
+                this.groupTable.put(key, group);
+            }
+            group.getMessageExtBatch().addMessage(msgInner);
+
+            this.nums++;
+            this.bytes += size;
+            this.minDeliverTimestamp = Math.min(this.minDeliverTimestamp, deliverTimestamp);
+        }
+
+
+        public boolean isEmpty() {
+            return 0 == this.nums;
+        }
+
+
+        public void clear() {
+            this.groupTable.clear();
+            this.nums = 0;
+            this.bytes = 0;
+            this.minDeliverTimestamp = Long.MAX_VALUE;
+        }
+
+
+        public Collection<DeliverGroup> getGroups() {
+            return this.groupTable.values();
+        }
+
+
+        public long getMinDeliverTimestamp() {
+            return minDeliverTimestamp;
+        }
+    }
+
+    /**
+     * 投递到同一个队列的一组消息
+     */
+    static class DeliverGroup {
+        // 组内第一条消息在定时队列中的Offset
+        private final long firstOffset;
+        private final MessageExtBatch messageExtBatch;
+
+
+        public DeliverGroup(final long firstOffset, final MessageExtBrokerInner firstMsg) {
+            this.firstOffset = firstOffset;
+            this.messageExtBatch = new MessageExtBatch();
+            this.messageExtBatch.setTopic(firstMsg.getTopic());
+            this.messageExtBatch.setQueueId(firstMsg.getQueueId());
+            this.messageExtBatch.setSysFlag(firstMsg.getSysFlag());
+            this.messageExtBatch.setBornTimestamp(firstMsg.getBornTimestamp());
+            this.messageExtBatch.setBornHost(firstMsg.getBornHost());
+            this.messageExtBatch.setStoreHost(firstMsg.getStoreHost());
+            this.messageExtBatch.setWaitStoreMsgOK(false);
+        }
+
+
+        public long getFirstOffset() {
+            return firstOffset;
+        }
+
+
+        public MessageExtBatch getMessageExtBatch() {
+            return messageExtBatch;
+        }
+    }
 }
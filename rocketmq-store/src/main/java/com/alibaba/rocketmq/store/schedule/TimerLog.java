@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.schedule;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.MapedFile;
+import com.alibaba.rocketmq.store.MapedFileQueue;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+
+
+/**
+ * 时间轮链表，每个槽的定时消息按写入顺序反向链接<br>
+ * 存储单元格式：同一个槽的前一个存储单元位置(8) + CommitLog Offset(8) + 消息大小(4) + 投递时间(8)
+ */
+public class TimerLog {
+    // 存储单元大小
+    public static final int UnitSize = 28;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final MapedFileQueue mapedFileQueue;
+    // 写存储单元时用到的ByteBuffer
+    private final ByteBuffer byteBufferUnit;
+
+
+    public TimerLog(final String storePath, final int mapedFileSize) {
+        this.mapedFileQueue = new MapedFileQueue(storePath, mapedFileSize, null);
+        this.byteBufferUnit = ByteBuffer.allocate(UnitSize);
+    }
+
+
+    public boolean load() {
+        boolean result = this.mapedFileQueue.load();
+        log.info("load timer log " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 投递时间为0表示未写入的空间，从倒数第三个文件开始找到写入位置
+     */
+    public void recover() {
+        final List<MapedFile> mapedFiles = this.mapedFileQueue.getMapedFiles();
+        if (!mapedFiles.isEmpty()) {
+            int index = mapedFiles.size() - 3;
+            if (index < 0)
+                index = 0;
+
+            long processOffset = mapedFiles.get(index).getFileFromOffset();
+            for (; index < mapedFiles.size(); index++) {
+                MapedFile mapedFile = mapedFiles.get(index);
+                ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+                int mapedFileOffset = 0;
+                for (int i = 0; i + UnitSize <= this.mapedFileQueue.getMapedFileSize(); i += UnitSize) {
+                    if (byteBuffer.getLong(i + 20) <= 0) {
+                        break;
+                    }
+                    mapedFileOffset = i + UnitSize;
+                }
+
+                processOffset = mapedFile.getFileFromOffset() + mapedFileOffset;
+                if (mapedFileOffset < this.mapedFileQueue.getMapedFileSize()) {
+                    break;
+                }
+            }
+
+            this.mapedFileQueue.truncateDirtyFiles(processOffset);
+            this.mapedFileQueue.setCommittedWhere(processOffset);
+            log.info("recover timer log over, " + processOffset);
+        }
+    }
+
+
+    /**
+     * 截断到时间轮检查点记录的位置，之后的存储单元没有被检查点中的槽引用
+     */
+    public void truncate(final long offset) {
+        final long maxOffset = this.getMaxOffset();
+        if (offset < maxOffset) {
+            this.mapedFileQueue.truncateDirtyFiles(offset);
+            this.mapedFileQueue.setCommittedWhere(offset);
+            log.info("truncate timer log to checkpoint, " + maxOffset + " -> " + offset);
+        }
+        else if (offset > maxOffset) {
+            log.warn("timer log is shorter than checkpoint, " + maxOffset + " < " + offset);
+        }
+    }
+
+
+    /**
+     * 只有时间轮线程调用，所以不需要加锁
+     *
+     * @return 存储单元的位置，失败返回-1
+     */
+    public long append(final long prevPos, final long offsetPy, final int sizePy,
+            final long deliverTimestamp) {
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile();
+        if (null == mapedFile) {
+            log.error("create timer log file failed");
+            return -1;
+        }
+
+        this.byteBufferUnit.flip();
+        this.byteBufferUnit.limit(UnitSize);
+        this.byteBufferUnit.putLong(prevPos);
+        this.byteBufferUnit.putLong(offsetPy);
+        this.byteBufferUnit.putInt(sizePy);
+        this.byteBufferUnit.putLong(deliverTimestamp);
+
+        long pos = mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
+        if (mapedFile.appendMessage(this.byteBufferUnit.array())) {
+            return pos;
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * 读取一个存储单元，调用方负责释放
+     */
+    public SelectMapedBufferResult selectUnit(final long pos) {
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(pos);
+        if (mapedFile != null) {
+            int position = (int) (pos % this.mapedFileQueue.getMapedFileSize());
+            return mapedFile.selectMapedBuffer(position, UnitSize);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 刷盘所有已写入的存储单元，可能跨多个文件
+     *
+     * @return 已刷盘的位置
+     */
+    public long flush() {
+        final long maxOffset = this.getMaxOffset();
+        while (this.mapedFileQueue.getCommittedWhere() < maxOffset) {
+            // 没有进展时返回true
+            if (this.mapedFileQueue.commit(0)) {
+                break;
+            }
+        }
+
+        return this.mapedFileQueue.getCommittedWhere();
+    }
+
+
+    /**
+     * 删除所有存储单元都已经不被时间轮引用的文件
+     */
+    public int deleteExpiredFile(final long minReferencedPos) {
+        return this.mapedFileQueue.deleteExpiredFileByPosition(minReferencedPos);
+    }
+
+
+    public long getMaxOffset() {
+        return this.mapedFileQueue.getMaxOffset();
+    }
+
+
+    public void destroy() {
+        this.mapedFileQueue.destroy();
+    }
+}
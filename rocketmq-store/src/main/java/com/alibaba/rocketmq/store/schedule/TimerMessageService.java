@@ -0,0 +1,590 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.schedule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.ServiceThread;
+import com.alibaba.rocketmq.common.ThreadFactoryImpl;
+import com.alibaba.rocketmq.common.TopicFilterType;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.common.message.MessageAccessor;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.common.running.RunningStats;
+import com.alibaba.rocketmq.store.ConsumeQueue;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.PutMessageResult;
+import com.alibaba.rocketmq.store.PutMessageStatus;
+import com.alibaba.rocketmq.store.SelectMapedBufferResult;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+
+
+/**
+ * 基于分层时间轮的定时消息服务，支持任意投递时间<br>
+ * 1. 定时消息先写入TIMER_TOPIC，时间轮线程按投递时间把消息放入时间轮的槽<br>
+ * 2. 时间轮线程每个精度处理一个到期的槽，高层的槽降级到低层，第0层的槽交给投递线程池批量投递<br>
+ * 3. 槽、链表及进度都存储在文件中，定期刷盘，异常重启后从进度处恢复，可能重复投递，不会丢失
+ */
+public class TimerMessageService {
+    public static final String TIMER_TOPIC = "TIMER_TOPIC_XXXX";
+    public static final int TIMER_QUEUE_ID = 0;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private static final long DELAY_FOR_A_WHILE = 100L;
+    // 每次最多从定时消息队列放入时间轮的消息数
+    private static final int EnqueueBatchNums = 1024 * 8;
+    // 追赶时每处理多少个槽检查一次新消息
+    private static final int CatchUpTickNums = 1000;
+    // 存储顶层对象
+    private final DefaultMessageStore defaultMessageStore;
+    private final TimerLog timerLog;
+    private TimerWheel timerWheel;
+    // 投递到期消息的线程池
+    private final ExecutorService deliverExecutor;
+    private final int deliverThreadNums;
+    private final TimerWheelService timerWheelService = new TimerWheelService();
+    // 定时消息队列已经放入时间轮的位置，只有时间轮线程修改
+    private volatile long enqueueOffset = 0;
+    // 时间轮处理到的时间点，只有时间轮线程修改
+    private volatile long currReadTimeMs = 0;
+
+
+    public TimerMessageService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        MessageStoreConfig messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        this.timerLog =
+                new TimerLog(
+                    StorePathConfigHelper.getStorePathTimerLog(messageStoreConfig.getStorePathRootDir()),
+                    messageStoreConfig.getMapedFileSizeTimerLog());
+        this.deliverThreadNums = Math.max(messageStoreConfig.getTimerDeliverThreadNums(), 1);
+        this.deliverExecutor =
+                Executors.newFixedThreadPool(this.deliverThreadNums, new ThreadFactoryImpl(
+                    "TimerDeliverThread_"));
+    }
+
+
+    public boolean load() {
+        boolean result = this.timerLog.load();
+        if (result) {
+            this.timerLog.recover();
+
+            MessageStoreConfig messageStoreConfig = this.defaultMessageStore.getMessageStoreConfig();
+            try {
+                this.timerWheel =
+                        new TimerWheel(StorePathConfigHelper.getStorePathTimerWheel(messageStoreConfig
+                            .getStorePathRootDir()), messageStoreConfig.getTimerWheelLevels(),
+                            messageStoreConfig.getTimerWheelSlotNums(),
+                            messageStoreConfig.getTimerPrecisionMs());
+                // 检查点之后写入的存储单元可能被覆盖，文件中的槽不一定完整落盘
+                long checkpointOffset = this.timerWheel.recoverFromCheckpoint();
+                if (checkpointOffset >= 0) {
+                    this.timerLog.truncate(checkpointOffset);
+                }
+            }
+            catch (IOException e) {
+                log.error("load timer wheel exception", e);
+                return false;
+            }
+
+            this.enqueueOffset = this.timerWheel.getEnqueueOffset();
+            this.currReadTimeMs = this.timerWheel.getCurrReadTimeMs();
+            log.info("load timer wheel OK, enqueueOffset: " + this.enqueueOffset + " currReadTimeMs: "
+                    + this.currReadTimeMs);
+        }
+
+        return result;
+    }
+
+
+    public void start() {
+        final long precision = this.timerWheel.getTick(0);
+        if (this.currReadTimeMs <= 0) {
+            this.currReadTimeMs = System.currentTimeMillis();
+        }
+        this.currReadTimeMs = this.currReadTimeMs / precision * precision;
+
+        this.timerWheelService.start();
+    }
+
+
+    public void shutdown() {
+        this.timerWheelService.shutdown();
+        this.deliverExecutor.shutdown();
+    }
+
+
+    public void destroy() {
+        this.timerLog.destroy();
+        if (this.timerWheel != null) {
+            this.timerWheel.destroy();
+        }
+    }
+
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        long maxOffset = this.defaultMessageStore.getMaxOffsetInQuque(TIMER_TOPIC, TIMER_QUEUE_ID);
+        stats.put(RunningStats.timerMessageOffset.name(),
+            String.format("%d,%d", this.enqueueOffset, maxOffset));
+        stats.put(RunningStats.timerDeliverLag.name(), String.valueOf(this.getDeliverLag()));
+    }
+
+
+    /**
+     * 时间轮落后当前时间多少毫秒
+     */
+    public long getDeliverLag() {
+        return Math.max(System.currentTimeMillis() - this.currReadTimeMs, 0);
+    }
+
+
+    /**
+     * 从定时消息队列读取消息放入时间轮
+     *
+     * @return 是否读满一批，读满表示还有积压
+     */
+    private boolean enqueue() {
+        ConsumeQueue cq = this.defaultMessageStore.findConsumeQueue(TIMER_TOPIC, TIMER_QUEUE_ID);
+        if (null == cq) {
+            return false;
+        }
+
+        SelectMapedBufferResult bufferCQ = cq.getIndexBuffer(this.enqueueOffset);
+        if (null == bufferCQ) {
+            // 索引文件被删除，纠正为当前队列的最小值
+            long cqMinOffset = cq.getMinOffsetInQuque();
+            if (this.enqueueOffset < cqMinOffset) {
+                log.error("timer CQ offset invalid. offset=" + this.enqueueOffset + ", cqMinOffset="
+                        + cqMinOffset);
+                this.enqueueOffset = cqMinOffset;
+            }
+            return false;
+        }
+
+        int nums = 0;
+        try {
+            for (int i = 0; i < bufferCQ.getSize(); i += ConsumeQueue.CQStoreUnitSize) {
+                if (nums >= EnqueueBatchNums) {
+                    break;
+                }
+
+                long offsetPy = bufferCQ.getByteBuffer().getLong();
+                int sizePy = bufferCQ.getByteBuffer().getInt();
+                // 队列里存储的tagsCode实际是投递时间
+                long tagsCode = bufferCQ.getByteBuffer().getLong();
+
+                if (!this.putToWheel(offsetPy, sizePy, tagsCode)) {
+                    break;
+                }
+                this.enqueueOffset++;
+                nums++;
+            }
+        }
+        finally {
+            bufferCQ.release();
+        }
+
+        return nums >= EnqueueBatchNums;
+    }
+
+
+    /**
+     * 放入投递时间所在的槽，已经到期的放入当前槽
+     */
+    private boolean putToWheel(final long offsetPy, final int sizePy, final long deliverTimestamp) {
+        final int level = this.timerWheel.computeLevel(deliverTimestamp, this.currReadTimeMs);
+        final long slotTime = this.timerWheel.computeSlotTime(level, deliverTimestamp, this.currReadTimeMs);
+        TimerWheel.Slot slot = this.timerWheel.getSlot(level, slotTime);
+
+        if (slot.getNum() <= 0) {
+            long pos = this.timerLog.append(-1, offsetPy, sizePy, deliverTimestamp);
+            if (pos < 0) {
+                return false;
+            }
+            this.timerWheel.putSlot(level, slotTime, pos, pos, 1);
+        }
+        else {
+            long pos = this.timerLog.append(slot.getLastPos(), offsetPy, sizePy, deliverTimestamp);
+            if (pos < 0) {
+                return false;
+            }
+            this.timerWheel.putSlot(level, Math.min(slot.getTimeMs(), slotTime), slot.getFirstPos(), pos,
+                slot.getNum() + 1);
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 取出槽中的所有消息，槽不属于timeMs时返回null
+     */
+    private List<TimerRequest> pollSlot(final int level, final long timeMs) {
+        TimerWheel.Slot slot = this.timerWheel.getSlot(level, timeMs);
+        if (slot.getNum() <= 0 || slot.getTimeMs() > timeMs) {
+            return null;
+        }
+
+        List<TimerRequest> requests = new ArrayList<TimerRequest>(slot.getNum());
+        long pos = slot.getLastPos();
+        for (int i = 0; i < slot.getNum() && pos >= 0; i++) {
+            SelectMapedBufferResult result = this.timerLog.selectUnit(pos);
+            if (null == result) {
+                log.error("timer log unit not found, pos: " + pos + " level: " + level + " time: " + timeMs);
+                break;
+            }
+
+            try {
+                pos = result.getByteBuffer().getLong(0);
+                requests.add(new TimerRequest(result.getByteBuffer().getLong(8), result.getByteBuffer()
+                    .getInt(16), result.getByteBuffer().getLong(20)));
+            }
+            finally {
+                result.release();
+            }
+        }
+
+        // 链表是反向的，按写入顺序投递
+        Collections.reverse(requests);
+        return requests;
+    }
+
+
+    /**
+     * 处理到期的槽
+     *
+     * @return 距离下一个槽到期的时间，0表示需要立刻继续处理
+     */
+    private long processDueSlots() {
+        final long precision = this.timerWheel.getTick(0);
+        long now = System.currentTimeMillis();
+        int ticks = 0;
+        while (this.currReadTimeMs + precision <= now) {
+            if (this.timerWheelService.isStoped()) {
+                return 0;
+            }
+
+            if (!this.processTick(this.currReadTimeMs)) {
+                return DELAY_FOR_A_WHILE;
+            }
+
+            this.currReadTimeMs += precision;
+            if (++ticks >= CatchUpTickNums) {
+                return 0;
+            }
+        }
+
+        return this.currReadTimeMs + precision - now;
+    }
+
+
+    /**
+     * 先把高层到期的槽降级到低层，再投递第0层到期的槽
+     *
+     * @return 是否全部处理成功，失败时不清除槽，稍后重试
+     */
+    private boolean processTick(final long timeMs) {
+        for (int level = this.timerWheel.getLevels() - 1; level > 0; level--) {
+            if (timeMs % this.timerWheel.getTick(level) != 0) {
+                continue;
+            }
+
+            List<TimerRequest> requests = this.pollSlot(level, timeMs);
+            if (requests != null) {
+                for (TimerRequest request : requests) {
+                    if (!this.putToWheel(request.getOffsetPy(), request.getSizePy(),
+                        request.getDeliverTimestamp())) {
+                        return false;
+                    }
+                }
+                this.timerWheel.clearSlot(level, timeMs);
+            }
+        }
+
+        List<TimerRequest> requests = this.pollSlot(0, timeMs);
+        if (requests != null) {
+            final long nextTimeMs = timeMs + this.timerWheel.getTick(0);
+            List<TimerRequest> deliverRequests = new ArrayList<TimerRequest>(requests.size());
+            for (TimerRequest request : requests) {
+                // 超过最高层跨度的消息，重新放入时间轮
+                if (request.getDeliverTimestamp() >= nextTimeMs) {
+                    if (!this.putToWheel(request.getOffsetPy(), request.getSizePy(),
+                        request.getDeliverTimestamp())) {
+                        return false;
+                    }
+                }
+                else {
+                    deliverRequests.add(request);
+                }
+            }
+
+            if (!this.deliver(deliverRequests)) {
+                return false;
+            }
+            this.timerWheel.clearSlot(0, timeMs);
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 分批交给投递线程池，全部投递完成后返回
+     */
+    private boolean deliver(final List<TimerRequest> requests) {
+        if (requests.isEmpty()) {
+            return true;
+        }
+
+        final int batchSize = (requests.size() + this.deliverThreadNums - 1) / this.deliverThreadNums;
+        final int batchNums = (requests.size() + batchSize - 1) / batchSize;
+        final CountDownLatch countDownLatch = new CountDownLatch(batchNums);
+        final AtomicBoolean allDelivered = new AtomicBoolean(true);
+        for (int i = 0; i < batchNums; i++) {
+            final List<TimerRequest> batch =
+                    requests.subList(i * batchSize, Math.min((i + 1) * batchSize, requests.size()));
+            this.deliverExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (TimerRequest request : batch) {
+                            if (!TimerMessageService.this.deliverMessage(request)) {
+                                allDelivered.set(false);
+                                break;
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        allDelivered.set(false);
+                        log.error("deliver timer message exception", e);
+                    }
+                    finally {
+                        countDownLatch.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            countDownLatch.await();
+        }
+        catch (InterruptedException e) {
+            log.error("deliver timer message interrupted", e);
+            return false;
+        }
+
+        return allDelivered.get();
+    }
+
+
+    /**
+     * 投递失败时重试，直到成功或者服务停止
+     */
+    private boolean deliverMessage(final TimerRequest request) {
+        MessageExt msgExt =
+                this.defaultMessageStore.lookMessageByOffset(request.getOffsetPy(), request.getSizePy());
+        if (null == msgExt) {
+            log.error("timer message not found in commitlog, drop it. offsetPy=" + request.getOffsetPy()
+                    + ", sizePy=" + request.getSizePy());
+            return true;
+        }
+
+        MessageExtBrokerInner msgInner = null;
+        try {
+            msgInner = this.messageTimeup(msgExt);
+        }
+        catch (Exception e) {
+            // msgExt里面的内容不完整，如没有REAL_QID,REAL_TOPIC之类的，直接跳过该条消息
+            log.error("TimerMessageService, messageTimeup execute error, drop it. msgExt=" + msgExt
+                    + ", offsetPy=" + request.getOffsetPy() + ", sizePy=" + request.getSizePy(), e);
+            return true;
+        }
+
+        while (!this.timerWheelService.isStoped()) {
+            PutMessageResult putMessageResult = this.defaultMessageStore.putMessage(msgInner);
+            if (putMessageResult != null
+                    && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+                return true;
+            }
+
+            log.error("TimerMessageService, a message time up, but reput it failed, topic: {} msgId {}",
+                msgExt.getTopic(), msgExt.getMsgId());
+            try {
+                Thread.sleep(DELAY_FOR_A_WHILE);
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+
+    private MessageExtBrokerInner messageTimeup(MessageExt msgExt) {
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setBody(msgExt.getBody());
+        msgInner.setFlag(msgExt.getFlag());
+        MessageAccessor.setProperties(msgInner, msgExt.getProperties());
+
+        TopicFilterType topicFilterType = MessageExt.parseTopicFilterType(msgInner.getSysFlag());
+        long tagsCodeValue = MessageExtBrokerInner.tagsString2tagsCode(topicFilterType, msgInner.getTags());
+        msgInner.setTagsCode(tagsCodeValue);
+
+        msgInner.setSysFlag(msgExt.getSysFlag());
+        msgInner.setBornTimestamp(msgExt.getBornTimestamp());
+        msgInner.setBornHost(msgExt.getBornHost());
+        msgInner.setStoreHost(msgExt.getStoreHost());
+        msgInner.setReconsumeTimes(msgExt.getReconsumeTimes());
+
+        msgInner.setWaitStoreMsgOK(false);
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_DELAY_TIME_LEVEL);
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_DELIVER_TIME);
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+
+        // 恢复Topic
+        msgInner.setTopic(msgInner.getProperty(MessageConst.PROPERTY_REAL_TOPIC));
+
+        // 恢复QueueId
+        String queueIdStr = msgInner.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID);
+        int queueId = Integer.parseInt(queueIdStr);
+        msgInner.setQueueId(queueId);
+
+        return msgInner;
+    }
+
+
+    /**
+     * 先刷链表，再写时间轮检查点，最后按检查点中的槽删除不再引用的链表文件<br>
+     * 异常恢复时以检查点为准，之后放入时间轮的消息从进度处重新放入，已投递的可能重复投递
+     */
+    private void flush() {
+        final long timerLogOffset = this.timerLog.flush();
+        this.timerWheel.putProgress(this.enqueueOffset, this.currReadTimeMs);
+        try {
+            this.timerWheel.checkpoint(timerLogOffset);
+        }
+        catch (IOException e) {
+            log.error("write timer wheel checkpoint exception", e);
+            return;
+        }
+
+        this.timerLog.deleteExpiredFile(this.timerWheel.getMinReferencedPos());
+    }
+
+
+    public long getEnqueueOffset() {
+        return enqueueOffset;
+    }
+
+
+    public long getCurrReadTimeMs() {
+        return currReadTimeMs;
+    }
+
+
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    /**
+     * 时间轮线程，放入时间轮、降级、投递都在这个线程里调度，槽不需要加锁
+     */
+    class TimerWheelService extends ServiceThread {
+        @Override
+        public void run() {
+            TimerMessageService.log.info(this.getServiceName() + " service started");
+
+            long lastFlushTimestamp = System.currentTimeMillis();
+            while (!this.isStoped()) {
+                try {
+                    boolean busy = TimerMessageService.this.enqueue();
+                    long waitTime = TimerMessageService.this.processDueSlots();
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastFlushTimestamp >= TimerMessageService.this.defaultMessageStore
+                        .getMessageStoreConfig().getFlushDelayOffsetInterval()) {
+                        TimerMessageService.this.flush();
+                        lastFlushTimestamp = now;
+                    }
+
+                    if (!busy && waitTime > 0) {
+                        this.waitForRunning(waitTime);
+                    }
+                }
+                catch (Exception e) {
+                    TimerMessageService.log.warn(this.getServiceName() + " service has exception. ", e);
+                    this.waitForRunning(DELAY_FOR_A_WHILE);
+                }
+            }
+
+            // 正常关闭，记录进度并刷盘
+            TimerMessageService.this.flush();
+
+            TimerMessageService.log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return TimerWheelService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 时间轮中的一条定时消息
+     */
+    static class TimerRequest {
+        private final long offsetPy;
+        private final int sizePy;
+        private final long deliverTimestamp;
+
+
+        public TimerRequest(long offsetPy, int sizePy, long deliverTimestamp) {
+            this.offsetPy = offsetPy;
+            this.sizePy = sizePy;
+            this.deliverTimestamp = deliverTimestamp;
+        }
+
+
+        public long getOffsetPy() {
+            return offsetPy;
+        }
+
+
+        public int getSizePy() {
+            return sizePy;
+        }
+
+
+        public long getDeliverTimestamp() {
+            return deliverTimestamp;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.schedule;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.constant.LoggerName;
+import com.alibaba.rocketmq.store.MapedFile;
+
+
+/**
+ * 分层时间轮，所有层的槽存储在目录下的一个文件中<br>
+ * 第0层每个槽跨度为精度，第n层每个槽的跨度等于第n-1层整个时间轮的跨度<br>
+ * 槽格式：槽起始时间(8) + 链表头位置(8) + 链表尾位置(8) + 消息数(4)，链表存储在TimerLog中<br>
+ * 所有槽之后记录处理进度：定时消息队列已放入时间轮的位置(8) + 时间轮处理到的时间点(8)<br>
+ * 文件中的槽随时可能被操作系统部分落盘，刷盘时另写一份完整的检查点，异常恢复时以检查点为准
+ */
+public class TimerWheel {
+    // 槽大小
+    public static final int SlotSize = 28;
+    // 进度大小
+    public static final int ProgressSize = 16;
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.StoreLoggerName);
+    private final int levels;
+    private final int slotNums;
+    // 每层一个槽的时间跨度
+    private final long[] ticks;
+    // 进度在文件中的位置
+    private final int progressPosition;
+    private final MapedFile mapedFile;
+    private final MappedByteBuffer mappedByteBuffer;
+    // 检查点文件：所有槽 + 进度 + TimerLog已刷盘的位置(8)
+    private final String checkpointFileName;
+    // 写检查点时复用，只有时间轮线程使用
+    private ByteBuffer checkpointBuffer;
+
+
+    public TimerWheel(final String storePath, final int levels, final int slotNums, final long precisionMs)
+            throws IOException {
+        this.levels = Math.max(levels, 1);
+        this.slotNums = Math.max(slotNums, 2);
+        this.ticks = new long[this.levels];
+        this.ticks[0] = Math.max(precisionMs, 1);
+        for (int i = 1; i < this.levels; i++) {
+            this.ticks[i] = this.ticks[i - 1] * this.slotNums;
+        }
+
+        this.progressPosition = this.levels * this.slotNums * SlotSize;
+        this.mapedFile =
+                new MapedFile(storePath + File.separator + UtilAll.offset2FileName(0), this.progressPosition
+                        + ProgressSize);
+        this.mappedByteBuffer = this.mapedFile.getMappedByteBuffer();
+        this.checkpointFileName = storePath + File.separator + "checkpoint";
+    }
+
+
+    /**
+     * 选择能容纳投递时间的最低一层，currTimeMs之前的槽已经处理过<br>
+     * 超过最高层跨度的放在最高层最远的槽，到期后重新计算
+     */
+    public int computeLevel(final long deliverTimestamp, final long currTimeMs) {
+        // 已经到期的放在当前槽
+        if (deliverTimestamp < currTimeMs + this.ticks[0]) {
+            return 0;
+        }
+
+        for (int i = 0; i < this.levels; i++) {
+            long firstTick = (currTimeMs + this.ticks[i] - 1) / this.ticks[i];
+            long tick = deliverTimestamp / this.ticks[i];
+            if (tick >= firstTick && tick - firstTick < this.slotNums) {
+                return i;
+            }
+        }
+
+        return this.levels - 1;
+    }
+
+
+    /**
+     * 投递时间所在槽的起始时间
+     */
+    public long computeSlotTime(final int level, final long deliverTimestamp, final long currTimeMs) {
+        final long firstTick = (currTimeMs + this.ticks[level] - 1) / this.ticks[level];
+        long tick = deliverTimestamp / this.ticks[level];
+        tick = Math.min(tick, firstTick + this.slotNums - 1);
+        tick = Math.max(tick, firstTick);
+        return tick * this.ticks[level];
+    }
+
+
+    private int slotPosition(final int level, final long slotTime) {
+        int index = (int) ((slotTime / this.ticks[level]) % this.slotNums);
+        return (level * this.slotNums + index) * SlotSize;
+    }
+
+
+    public Slot getSlot(final int level, final long slotTime) {
+        final int pos = this.slotPosition(level, slotTime);
+        Slot slot = new Slot();
+        slot.setTimeMs(this.mappedByteBuffer.getLong(pos));
+        slot.setFirstPos(this.mappedByteBuffer.getLong(pos + 8));
+        slot.setLastPos(this.mappedByteBuffer.getLong(pos + 16));
+        slot.setNum(this.mappedByteBuffer.getInt(pos + 24));
+        return slot;
+    }
+
+
+    public void putSlot(final int level, final long slotTime, final long firstPos, final long lastPos,
+            final int num) {
+        final int pos = this.slotPosition(level, slotTime);
+        this.mappedByteBuffer.putLong(pos, slotTime);
+        this.mappedByteBuffer.putLong(pos + 8, firstPos);
+        this.mappedByteBuffer.putLong(pos + 16, lastPos);
+        this.mappedByteBuffer.putInt(pos + 24, num);
+    }
+
+
+    public void clearSlot(final int level, final long slotTime) {
+        this.putSlot(level, slotTime, -1, -1, 0);
+    }
+
+
+    /**
+     * 所有未处理的槽中最早写入的存储单元位置，之前的TimerLog文件可以删除
+     *
+     * @return 没有未处理的槽时返回Long.MAX_VALUE
+     */
+    public long getMinReferencedPos() {
+        long minPos = Long.MAX_VALUE;
+        for (int pos = 0; pos < this.progressPosition; pos += SlotSize) {
+            if (this.mappedByteBuffer.getInt(pos + 24) > 0) {
+                minPos = Math.min(minPos, this.mappedByteBuffer.getLong(pos + 8));
+            }
+        }
+
+        return minPos;
+    }
+
+
+    /**
+     * 各层未处理的消息数
+     */
+    public long[] countPendingMessages() {
+        long[] counts = new long[this.levels];
+        for (int i = 0; i < this.levels; i++) {
+            for (int j = 0; j < this.slotNums; j++) {
+                counts[i] += this.mappedByteBuffer.getInt((i * this.slotNums + j) * SlotSize + 24);
+            }
+        }
+
+        return counts;
+    }
+
+
+    /**
+     * 记录处理进度，下次刷盘时与槽一起落盘
+     */
+    public void putProgress(final long enqueueOffset, final long currReadTimeMs) {
+        this.mappedByteBuffer.putLong(this.progressPosition, enqueueOffset);
+        this.mappedByteBuffer.putLong(this.progressPosition + 8, currReadTimeMs);
+    }
+
+
+    public long getEnqueueOffset() {
+        return this.mappedByteBuffer.getLong(this.progressPosition);
+    }
+
+
+    public long getCurrReadTimeMs() {
+        return this.mappedByteBuffer.getLong(this.progressPosition + 8);
+    }
+
+
+    /**
+     * 写入检查点，先写临时文件并刷盘，再重命名，保证检查点是同一时刻完整的槽及进度
+     *
+     * @param timerLogOffset
+     *            TimerLog已刷盘的位置，槽引用的存储单元都在此之前
+     */
+    public void checkpoint(final long timerLogOffset) throws IOException {
+        final int wheelSize = this.progressPosition + ProgressSize;
+        if (null == this.checkpointBuffer) {
+            this.checkpointBuffer = ByteBuffer.allocate(wheelSize + 8);
+        }
+
+        ByteBuffer wheel = this.mappedByteBuffer.duplicate();
+        wheel.position(0);
+        wheel.limit(wheelSize);
+        this.checkpointBuffer.clear();
+        this.checkpointBuffer.put(wheel);
+        this.checkpointBuffer.putLong(timerLogOffset);
+        this.checkpointBuffer.flip();
+
+        File tmpFile = new File(this.checkpointFileName + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            FileChannel channel = out.getChannel();
+            while (this.checkpointBuffer.hasRemaining()) {
+                channel.write(this.checkpointBuffer);
+            }
+            channel.force(true);
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tmpFile.renameTo(new File(this.checkpointFileName))) {
+            throw new IOException("rename timer wheel checkpoint failed, " + tmpFile);
+        }
+    }
+
+
+    /**
+     * 用检查点覆盖文件中的槽及进度
+     *
+     * @return 检查点记录的TimerLog位置，没有可用的检查点时返回-1
+     */
+    public long recoverFromCheckpoint() throws IOException {
+        final File file = new File(this.checkpointFileName);
+        if (!file.exists()) {
+            return -1;
+        }
+
+        final int wheelSize = this.progressPosition + ProgressSize;
+        if (file.length() != wheelSize + 8) {
+            log.warn("timer wheel checkpoint size not matched, ignore it, " + file.length());
+            return -1;
+        }
+
+        byte[] data = new byte[wheelSize + 8];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.readFully(data);
+        }
+        finally {
+            randomAccessFile.close();
+        }
+
+        ByteBuffer wheel = this.mappedByteBuffer.duplicate();
+        wheel.position(0);
+        wheel.put(data, 0, wheelSize);
+        this.mappedByteBuffer.force();
+        return ByteBuffer.wrap(data).getLong(wheelSize);
+    }
+
+
+    public void destroy() {
+        if (!this.mapedFile.destroy(1000 * 3)) {
+            log.warn("destroy timer wheel failed, " + this.mapedFile.getFileName());
+        }
+
+        new File(this.checkpointFileName).delete();
+    }
+
+
+    public int getLevels() {
+        return levels;
+    }
+
+
+    public int getSlotNums() {
+        return slotNums;
+    }
+
+
+    public long getTick(final int level) {
+        return this.ticks[level];
+    }
+
+    /**
+     * 时间轮的一个槽
+     */
+    public static class Slot {
+        private long timeMs;
+        private long firstPos;
+        private long lastPos;
+        private int num;
+
+
+        public long getTimeMs() {
+            return timeMs;
+        }
+
+
+        public void setTimeMs(long timeMs) {
+            this.timeMs = timeMs;
+        }
+
+
+        public long getFirstPos() {
+            return firstPos;
+        }
+
+
+        public void setFirstPos(long firstPos) {
+            this.firstPos = firstPos;
+        }
+
+
+        public long getLastPos() {
+            return lastPos;
+        }
+
+
+        public void setLastPos(long lastPos) {
+            this.lastPos = lastPos;
+        }
+
+
+        public int getNum() {
+            return num;
+        }
+
+
+        public void setNum(int num) {
+            this.num = num;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+
+public class ColdFileStoreTest {
+    private static final String StoreMessage = "Once, there was a chance for me!";
+
+
+    @Test
+    public void test_offload_and_read() throws IOException {
+        final String coldPath = "./unit_test_store/ColdFileStoreTest/cold";
+        final int messages = 100;
+
+        MapedFile mapedFile =
+                new MapedFile("./unit_test_store/ColdFileStoreTest/hot/00000000000000065536", 1024 * 64);
+        for (int i = 0; i < messages; i++) {
+            assertTrue(mapedFile.appendMessage(StoreMessage.getBytes()));
+        }
+
+        // 每块1K，消息会跨块
+        ColdFileStore coldFileStore = new ColdFileStore(coldPath, 1024, 1, 4, 1);
+        assertTrue(coldFileStore.load());
+        assertTrue(coldFileStore.offload(mapedFile));
+        assertEquals(65536, coldFileStore.getMinOffset());
+
+        mapedFile.shutdown(1000);
+        assertTrue(mapedFile.destroy(1000));
+
+        for (int i = 0; i < messages; i++) {
+            SelectMapedBufferResult result =
+                    coldFileStore.getData(65536 + i * StoreMessage.length(), StoreMessage.length());
+            assertNotNull(result);
+            byte[] data = new byte[StoreMessage.length()];
+            result.getByteBuffer().get(data);
+            result.release();
+            assertEquals(StoreMessage, new String(data));
+        }
+
+        // 超过已写入的范围
+        assertNull(coldFileStore.getData(65536 + messages * StoreMessage.length(), 1));
+        coldFileStore.shutdown();
+
+        // 重启后仍可读取
+        coldFileStore = new ColdFileStore(coldPath, 1024, 1, 4, 1);
+        assertTrue(coldFileStore.load());
+        SelectMapedBufferResult result = coldFileStore.getData(65536, StoreMessage.length());
+        assertNotNull(result);
+        assertEquals(StoreMessage.length(), result.getSize());
+
+        assertEquals(1, coldFileStore.deleteExpiredFile(0, false));
+        assertEquals(-1, coldFileStore.getMinOffset());
+        coldFileStore.shutdown();
+        coldFileStore.destroy();
+    }
+
+
+    @Test
+    public void test_offload_async() throws Exception {
+        final String coldPath = "./unit_test_store/ColdFileStoreTest/cold_async";
+        MapedFile.ensureDirOK(coldPath);
+        // 目录中的其他文件不影响加载
+        File strayFile = new File(coldPath, "stray.txt");
+        assertTrue(strayFile.createNewFile() || strayFile.exists());
+
+        MapedFile mapedFile =
+                new MapedFile("./unit_test_store/ColdFileStoreTest/hot_async/00000000000000000000", 1024 * 64);
+        assertTrue(mapedFile.appendMessage(StoreMessage.getBytes()));
+
+        ColdFileStore coldFileStore = new ColdFileStore(coldPath, 1024, 1, 4, 1);
+        assertTrue(coldFileStore.load());
+        assertEquals(-1, coldFileStore.getMinOffset());
+
+        // 在卸载线程中压缩，完成前不能删除原文件
+        assertFalse(coldFileStore.offloadAsync(mapedFile));
+        boolean offloaded = false;
+        for (int i = 0; i < 100 && !offloaded; i++) {
+            Thread.sleep(10);
+            offloaded = coldFileStore.offloadAsync(mapedFile);
+        }
+        assertTrue(offloaded);
+        assertEquals(0, coldFileStore.getMinOffset());
+
+        mapedFile.shutdown(1000);
+        assertTrue(mapedFile.destroy(1000));
+        coldFileStore.shutdown();
+        strayFile.delete();
+        coldFileStore.destroy();
+    }
+}
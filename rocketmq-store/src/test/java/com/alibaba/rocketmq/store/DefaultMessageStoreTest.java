@@ -1,18 +1,35 @@
 package com.alibaba.rocketmq.store;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.alibaba.rocketmq.common.UtilAll;
+import com.alibaba.rocketmq.common.filter.FilterAPI;
+import com.alibaba.rocketmq.common.message.MessageAccessor;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import com.alibaba.rocketmq.store.config.BrokerRole;
 import com.alibaba.rocketmq.store.config.FlushDiskType;
 import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+import com.alibaba.rocketmq.store.config.PutMessageLockType;
+import com.alibaba.rocketmq.store.config.StorePathConfigHelper;
+import com.alibaba.rocketmq.store.schedule.ScheduleMessageService;
 
 
 /**
@@ -171,4 +188,883 @@ public class DefaultMessageStoreTest {
         master.destroy();
         System.out.println("================================================================");
     }
+
+
+    @Test
+    public void test_spin_lock_encode_out_of_lock() throws Exception {
+        long totalMsgs = 1000;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        // 文件较小，保证会跨文件写入
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 8);
+        messageStoreConfig.setPutMessageLockType(PutMessageLockType.SPIN_LOCK);
+        messageStoreConfig.setEncodeMessageOutOfLock(true);
+
+        MessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (long i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            // 非事务消息才会递增队列Offset
+            msgInner.setSysFlag(0);
+            PutMessageResult result = master.putMessage(msgInner);
+            assertTrue(result.isOk());
+            assertEquals(i, result.getAppendMessageResult().getLogicsOffset());
+
+            // 锁内回填的字段必须正确
+            MessageExt msg = master.lookMessageByOffset(result.getAppendMessageResult().getWroteOffset());
+            assertEquals(result.getAppendMessageResult().getWroteOffset(), msg.getCommitLogOffset());
+            assertEquals(i, msg.getQueueOffset());
+            assertEquals(result.getAppendMessageResult().getStoreTimestamp(), msg.getStoreTimestamp());
+            assertEquals(StoreMessage, new String(msg.getBody()));
+        }
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_async_put_message_group_commit() throws Exception {
+        final int totalMsgs = 1000;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 8);
+        // 同步刷盘，回调由刷盘线程触发
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+
+        MessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        final CountDownLatch countDownLatch = new CountDownLatch(totalMsgs);
+        final AtomicInteger okNums = new AtomicInteger(0);
+        for (int i = 0; i < totalMsgs; i++) {
+            master.asyncPutMessage(buildMessage(), new PutMessageCallback() {
+                @Override
+                public void operationComplete(PutMessageResult putMessageResult) {
+                    if (putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+                        okNums.incrementAndGet();
+                    }
+                    countDownLatch.countDown();
+                }
+            });
+        }
+
+        assertTrue(countDownLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(totalMsgs, okNums.get());
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_serialize_properties_and_msg_id() throws Exception {
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 8);
+
+        MessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        // ASCII属性直接拷贝，非ASCII属性按UTF-8编码
+        String[] values = new String[] { "Hello", "\u4f60\u597d" };
+        for (String value : values) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            MessageAccessor.putProperty(msgInner, "TestKey", value);
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+            PutMessageResult result = master.putMessage(msgInner);
+            assertTrue(result.isOk());
+
+            MessageExt msg = master.lookMessageByOffset(result.getAppendMessageResult().getWroteOffset());
+            assertEquals(value, msg.getProperty("TestKey"));
+            assertEquals(msg.getMsgId(), result.getAppendMessageResult().getMsgId());
+        }
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_transient_store_pool() throws Exception {
+        final int totalMsgs = 1000;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        // 文件较小，缓冲池会被用完，验证借用、归还以及直接写mmap
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 8);
+        messageStoreConfig.setTransientStorePoolEnable(true);
+        messageStoreConfig.setTransientStorePoolSize(2);
+
+        MessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            msgInner.setSysFlag(0);
+            assertTrue(master.putMessage(msgInner).isOk());
+        }
+
+        // 写回FileChannel后消息才可读
+        for (long i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = null;
+            for (int k = 0; k < 100; k++) {
+                result = master.getMessage("AAA", 0, i, 1, null);
+                if (result.getStatus() == GetMessageStatus.FOUND) {
+                    break;
+                }
+                result.release();
+                Thread.sleep(50);
+            }
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            result.release();
+        }
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_put_messages_batch() throws Exception {
+        final int batchNum = 10;
+        final int batchTotal = 30;
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        // 文件较小，批量消息会跨越多个文件
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 8);
+
+        MessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < batchTotal; i++) {
+            MessageExtBatch messageExtBatch = new MessageExtBatch();
+            messageExtBatch.setTopic("BBB");
+            messageExtBatch.setQueueId(0);
+            messageExtBatch.setBornTimestamp(System.currentTimeMillis());
+            messageExtBatch.setStoreHost(StoreHost);
+            messageExtBatch.setBornHost(BornHost);
+            for (int k = 0; k < batchNum; k++) {
+                MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+                msgInner.setTopic("BBB");
+                msgInner.setTags("TAG" + k);
+                msgInner.setBody((StoreMessage + (i * batchNum + k)).getBytes());
+                msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+                msgInner.setQueueId(0);
+                msgInner.setBornTimestamp(messageExtBatch.getBornTimestamp());
+                msgInner.setStoreHost(StoreHost);
+                msgInner.setBornHost(BornHost);
+                messageExtBatch.addMessage(msgInner);
+            }
+
+            PutMessageResult result = master.putMessages(messageExtBatch);
+            assertTrue(result.isOk());
+            assertEquals(batchNum, result.getAppendMessageResult().getMsgNum());
+            assertEquals(i * batchNum, result.getAppendMessageResult().getLogicsOffset());
+
+            // 每条消息都可以通过消息ID中的物理偏移量查到
+            String[] msgIds = result.getAppendMessageResult().getMsgId().split(",");
+            assertEquals(batchNum, msgIds.length);
+            for (int k = 0; k < batchNum; k++) {
+                long offset = MessageDecoder.decodeMessageId(msgIds[k]).getOffset();
+                MessageExt msg = master.lookMessageByOffset(offset);
+                assertEquals(msgIds[k], msg.getMsgId());
+                assertEquals(i * batchNum + k, msg.getQueueOffset());
+                assertEquals(StoreMessage + (i * batchNum + k), new String(msg.getBody()));
+            }
+        }
+
+        // 每条消息对应一个消费队列条目
+        for (long i = 0; i < batchNum * batchTotal; i++) {
+            GetMessageResult result = null;
+            for (int k = 0; k < 100; k++) {
+                result = master.getMessage("BBB", 0, i, 1, null);
+                if (result.getStatus() == GetMessageStatus.FOUND) {
+                    break;
+                }
+                result.release();
+                Thread.sleep(50);
+            }
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            result.release();
+        }
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_put_messages_batch_delay() throws Exception {
+        final int batchNum = 5;
+        final int delayLevel = 3;
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        MessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        MessageExtBatch messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic("CCC");
+        messageExtBatch.setQueueId(1);
+        messageExtBatch.setBornTimestamp(System.currentTimeMillis());
+        messageExtBatch.setStoreHost(StoreHost);
+        messageExtBatch.setBornHost(BornHost);
+        for (int k = 0; k < batchNum; k++) {
+            MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+            msgInner.setTopic("CCC");
+            msgInner.setDelayTimeLevel(delayLevel);
+            msgInner.setBody((StoreMessage + k).getBytes());
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+            msgInner.setQueueId(1);
+            msgInner.setBornTimestamp(messageExtBatch.getBornTimestamp());
+            msgInner.setStoreHost(StoreHost);
+            msgInner.setBornHost(BornHost);
+            messageExtBatch.addMessage(msgInner);
+        }
+
+        PutMessageResult result = master.putMessages(messageExtBatch);
+        assertTrue(result.isOk());
+
+        // 整批消息转入定时队列，并保留真实的topic，queueId
+        String[] msgIds = result.getAppendMessageResult().getMsgId().split(",");
+        assertEquals(batchNum, msgIds.length);
+        for (int k = 0; k < batchNum; k++) {
+            long offset = MessageDecoder.decodeMessageId(msgIds[k]).getOffset();
+            MessageExt msg = master.lookMessageByOffset(offset);
+            assertEquals(ScheduleMessageService.SCHEDULE_TOPIC, msg.getTopic());
+            assertEquals("CCC", msg.getProperty(MessageConst.PROPERTY_REAL_TOPIC));
+            assertEquals("1", msg.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID));
+            assertEquals(StoreMessage + k, new String(msg.getBody()));
+        }
+
+        final int queueId = ScheduleMessageService.delayLevel2QueueId(delayLevel);
+        for (int i = 0; i < 100 && master.getMaxOffsetInQuque(ScheduleMessageService.SCHEDULE_TOPIC,
+            queueId) < batchNum; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(batchNum, master.getMaxOffsetInQuque(ScheduleMessageService.SCHEDULE_TOPIC, queueId));
+
+        // 延时级别不同的消息不能一起写入
+        messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic("CCC");
+        messageExtBatch.setStoreHost(StoreHost);
+        messageExtBatch.setBornHost(BornHost);
+        for (int k = 0; k < 2; k++) {
+            MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+            msgInner.setTopic("CCC");
+            msgInner.setDelayTimeLevel(k);
+            msgInner.setBody(StoreMessage.getBytes());
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+            msgInner.setStoreHost(StoreHost);
+            msgInner.setBornHost(BornHost);
+            messageExtBatch.addMessage(msgInner);
+        }
+        assertEquals(PutMessageStatus.MESSAGE_ILLEGAL, master.putMessages(messageExtBatch)
+            .getPutMessageStatus());
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    private static void deleteFile(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteFile(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    @Test
+    public void test_recover_in_parallel() throws Exception {
+        final int totalMsgs = 1000;
+        QUEUE_TOTAL = 4;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        // 文件较小，恢复时并行校验多个文件
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 8);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMessageIndexEnable(false);
+        messageStoreConfig.setParallelRecoverEnable(true);
+        messageStoreConfig.setRecoverThreadNums(4);
+        final String storePathRootDir = messageStoreConfig.getStorePathRootDir();
+
+        MessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        long lastWroteOffset = 0;
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            msgInner.setSysFlag(0);
+            PutMessageResult result = master.putMessage(msgInner);
+            assertTrue(result.isOk());
+            lastWroteOffset = result.getAppendMessageResult().getWroteOffset();
+        }
+        long maxPhyOffset = master.getMaxPhyOffset();
+        master.shutdown();
+
+        // 模拟异常关闭，删除ConsumeQueue及Checkpoint，重启后校验所有文件并重建ConsumeQueue
+        deleteFile(new File(StorePathConfigHelper.getStorePathConsumeQueue(storePathRootDir)));
+        deleteFile(new File(StorePathConfigHelper.getStoreCheckpoint(storePathRootDir)));
+        assertTrue(new File(StorePathConfigHelper.getAbortFile(storePathRootDir)).createNewFile());
+
+        master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+        assertEquals(maxPhyOffset, master.getMaxPhyOffset());
+
+        long readCnt = 0;
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            for (long offset = 0;; offset++) {
+                GetMessageResult result = master.getMessage("AAA", queueId, offset, 1, null);
+                if (result.getStatus() != GetMessageStatus.FOUND) {
+                    break;
+                }
+                readCnt++;
+                result.release();
+            }
+        }
+        assertEquals(totalMsgs, readCnt);
+        master.shutdown();
+
+        // 破坏最后一条消息的消息体，正常重启后CRC校验失败，从这条消息开始截断
+        int fileSize = messageStoreConfig.getMapedFileSizeCommitLog();
+        String lastFile =
+                messageStoreConfig.getStorePathCommitLog() + File.separator
+                        + UtilAll.offset2FileName(lastWroteOffset - lastWroteOffset % fileSize);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(lastFile, "rw");
+        try {
+            // 消息体之前的固定长度字段共88字节
+            randomAccessFile.seek(lastWroteOffset % fileSize + 88);
+            randomAccessFile.write(~MessageBody[0]);
+        }
+        finally {
+            randomAccessFile.close();
+        }
+
+        master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+        assertEquals(lastWroteOffset, master.getMaxPhyOffset());
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_consume_queue_time_index() throws Exception {
+        final int totalMsgs = 2000;
+        final int interval = 8;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMessageIndexEnable(false);
+        messageStoreConfig.setConsumeQueueTimeIndexEnable(true);
+        messageStoreConfig.setConsumeQueueTimeIndexInterval(interval);
+
+        MessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        long[] storeTimestamps = new long[totalMsgs];
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            msgInner.setSysFlag(0);
+            PutMessageResult result = master.putMessage(msgInner);
+            assertTrue(result.isOk());
+            storeTimestamps[i] = result.getAppendMessageResult().getStoreTimestamp();
+            // 让存储时间分布在多个毫秒上
+            if (i % 50 == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        while (master.getMaxOffsetInQuque("AAA", 0) < totalMsgs) {
+            Thread.sleep(10);
+        }
+
+        this.checkOffsetInQueueByTime(master, storeTimestamps, interval);
+        master.shutdown();
+        assertTrue(new File(StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(messageStoreConfig
+            .getStorePathRootDir()) + File.separator + "AAA" + File.separator + "0").list().length > 0);
+
+        // 重启后从文件恢复时间索引
+        master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+        this.checkOffsetInQueueByTime(master, storeTimestamps, interval);
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    private void checkOffsetInQueueByTime(final MessageStore master, final long[] storeTimestamps,
+            final int interval) {
+        for (int i = 0; i < storeTimestamps.length; i += 7) {
+            // 第一条存储时间不早于查询时间的消息
+            int expect = i;
+            while (expect > 0 && storeTimestamps[expect - 1] >= storeTimestamps[i]) {
+                expect--;
+            }
+
+            long offset = master.getOffsetInQueueByTime("AAA", 0, storeTimestamps[i]);
+            assertTrue(offset <= expect);
+            assertTrue(offset >= expect - interval);
+        }
+
+        // 查询时间晚于所有消息
+        long lastTimestamp = storeTimestamps[storeTimestamps.length - 1];
+        long offset = master.getOffsetInQueueByTime("AAA", 0, lastTimestamp + 1000 * 60);
+        assertTrue(offset <= storeTimestamps.length - 1);
+        assertTrue(offset >= storeTimestamps.length - 1 - interval);
+    }
+
+
+    @Test
+    public void test_consume_queue_ext_filter() throws Exception {
+        final int totalMsgs = 300;
+        final String[] colors = new String[] { "red", "green", "blue" };
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMessageIndexEnable(false);
+        messageStoreConfig.setConsumeQueueExtEnable(true);
+
+        MessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            msgInner.setSysFlag(0);
+            MessageAccessor.putProperty(msgInner, "color", colors[i % colors.length]);
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+            assertTrue(master.putMessage(msgInner).isOk());
+        }
+
+        while (master.getMaxOffsetInQuque("AAA", 0) < totalMsgs) {
+            Thread.sleep(10);
+        }
+
+        SubscriptionData subscriptionData = FilterAPI.buildSubscriptionData("CG", "AAA", "color=red");
+        assertEquals(totalMsgs / colors.length, this.countMatchedMessages(master, subscriptionData, totalMsgs));
+        master.shutdown();
+
+        // 重启后从文件恢复扩展存储
+        master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+        assertEquals(totalMsgs / colors.length, this.countMatchedMessages(master, subscriptionData, totalMsgs));
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    /**
+     * 拉取队列中所有消息，位图过滤存在误判，返回的消息个数不少于精确匹配的个数
+     */
+    private int countMatchedMessages(final MessageStore master, final SubscriptionData subscriptionData,
+            final int totalMsgs) {
+        int pulledCnt = 0;
+        int matchedCnt = 0;
+        long offset = 0;
+        while (offset < totalMsgs) {
+            GetMessageResult result = master.getMessage("AAA", 0, offset, 32, subscriptionData);
+            for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                MessageExt msg = MessageDecoder.decode(byteBuffer);
+                pulledCnt++;
+                if (subscriptionData.getPropertiesMap().get("color").equals(msg.getProperty("color"))) {
+                    matchedCnt++;
+                }
+            }
+            result.release();
+            offset = result.getNextBeginOffset();
+        }
+
+        // 大部分不匹配的消息在服务端被过滤
+        assertTrue(pulledCnt < totalMsgs / 2);
+        return matchedCnt;
+    }
+
+
+    @Test
+    public void test_index_catch_up_after_discard() throws Exception {
+        final int totalMsgs = 2000;
+        QUEUE_TOTAL = 4;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        // 建索引请求队列很短，大部分请求被丢弃
+        messageStoreConfig.setIndexRequestQueueSize(1);
+
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            msgInner.setSysFlag(0);
+            msgInner.setKeys("IndexKey" + i);
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+            assertTrue(master.putMessage(msgInner).isOk());
+        }
+
+        for (int i = 0; i < 500 && master.indexBehindBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, master.indexBehindBytes());
+
+        // 所有消息都能按Key查到
+        for (int i = 0; i < totalMsgs; i++) {
+            QueryMessageResult result = master.queryMessage("AAA", "IndexKey" + i, 1, 0, Long.MAX_VALUE);
+            assertEquals(1, result.getMessageBufferList().size());
+            result.release();
+        }
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_index_key_filter() throws Exception {
+        final int totalMsgs = 2000;
+        QUEUE_TOTAL = 4;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        // 索引文件很小，Key分布在多个索引文件中
+        messageStoreConfig.setMaxHashSlotNum(64);
+        messageStoreConfig.setMaxIndexNum(500);
+        messageStoreConfig.setMessageIndexKeyFilterEnable(true);
+
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            msgInner.setSysFlag(0);
+            msgInner.setKeys("FilterKey" + i);
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+            assertTrue(master.putMessage(msgInner).isOk());
+        }
+
+        for (int i = 0; i < 500 && master.indexBehindBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, master.indexBehindBytes());
+
+        String rootDir = messageStoreConfig.getStorePathRootDir();
+        String[] indexFiles = new File(StorePathConfigHelper.getStorePathIndex(rootDir)).list();
+        String[] filterFiles = new File(StorePathConfigHelper.getStorePathIndexFilter(rootDir)).list();
+        assertTrue(indexFiles.length > 1);
+        assertEquals(indexFiles.length, filterFiles.length);
+
+        checkIndexKeyFilter(master, totalMsgs);
+        master.shutdown();
+
+        // 重启后过滤器随索引文件一起加载
+        master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+        checkIndexKeyFilter(master, totalMsgs);
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_page_cache_sample_read_ahead() throws Exception {
+        final int totalMsgs = 1000;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setPageCacheSampleEnable(true);
+        messageStoreConfig.setPageCacheReadAheadSize(1024 * 4);
+        // 阈值为0，所有采样都判定为冷数据
+        messageStoreConfig.setPageCacheColdReadLatencyUs(0);
+
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            msgInner.setSysFlag(0);
+            assertTrue(master.putMessage(msgInner).isOk());
+        }
+
+        for (int i = 0; i < 500 && master.dispatchBehindBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        // 拉消息线程不读取数据，只提交采样，采样结果出来之前按内存比例估算
+        GetMessageResult result = master.getMessage("AAA", 0, 0, 32, null);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        result.release();
+
+        // 后台线程采样判定为冷数据并预读，之后区间被标记为在PageCache
+        for (int i = 0; i < 500; i++) {
+            result = master.getMessage("AAA", 0, 0, 32, null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            result.release();
+            if (!result.isSuggestPullingFromSlave()
+                    && master.getPageCacheReadAheadService().getReadAheadBytes() > 0) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertTrue(!result.isSuggestPullingFromSlave());
+        assertTrue(master.getPageCacheReadAheadService().getColdSampleTimes() > 0);
+        assertTrue(master.getPageCacheReadAheadService().getReadAheadBytes() > 0);
+
+        // 最新写入的消息不需要采样
+        result = master.getMessage("AAA", 0, totalMsgs - 1, 32, null);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        assertTrue(!result.isSuggestPullingFromSlave());
+        result.release();
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_isolated_commit_log() throws Exception {
+        final int totalMsgs = 200;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 8);
+        messageStoreConfig.setCommitLogIsolatedTopics("BBB");
+
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msgInner = buildMessage();
+            msgInner.setSysFlag(0);
+            assertTrue(master.putMessage(msgInner).isOk());
+
+            msgInner = buildMessage();
+            msgInner.setTopic("BBB");
+            msgInner.setSysFlag(0);
+            msgInner.setKeys("IsolatedKey" + i);
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+            assertTrue(master.putMessage(msgInner).isOk());
+        }
+
+        for (int i = 0; i < 500 && master.getMaxOffsetInQuque("BBB", 0) < totalMsgs; i++) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 500; i++) {
+            QueryMessageResult result =
+                    master.queryMessage("BBB", "IsolatedKey" + (totalMsgs - 1), 32, 0, Long.MAX_VALUE);
+            result.release();
+            if (!result.getMessageBufferList().isEmpty()) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+
+        // 主CommitLog只包含AAA的消息
+        assertTrue(master.getMaxPhyOffset() < CommitLog.OffsetSpan);
+        assertTrue(new File(messageStoreConfig.getStorePathCommitLog() + "-1").list().length > 0);
+
+        checkIsolatedCommitLog(master, totalMsgs);
+        master.shutdown();
+
+        // 重启后按Topic恢复各自的CommitLog
+        master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+        checkIsolatedCommitLog(master, totalMsgs);
+
+        // 重启后继续写入独立CommitLog
+        MessageExtBrokerInner msgInner = buildMessage();
+        msgInner.setTopic("BBB");
+        msgInner.setSysFlag(0);
+        PutMessageResult result = master.putMessage(msgInner);
+        assertTrue(result.isOk());
+        assertEquals(totalMsgs, result.getAppendMessageResult().getLogicsOffset());
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_isolated_commit_log_delay_message() throws Exception {
+        final int totalMsgs = 10;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 8);
+        messageStoreConfig.setCommitLogIsolatedTopics("BBB");
+
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        // 独立Topic的延时消息写入主CommitLog的定时队列
+        MessageExtBrokerInner msgInner = buildMessage();
+        msgInner.setTopic("BBB");
+        msgInner.setSysFlag(0);
+        msgInner.setDelayTimeLevel(1);
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+        PutMessageResult result = master.putMessage(msgInner);
+        assertTrue(result.isOk());
+        assertTrue(result.getAppendMessageResult().getWroteOffset() < CommitLog.OffsetSpan);
+
+        // 之后写入主CommitLog的消息不受影响
+        for (int i = 0; i < totalMsgs; i++) {
+            msgInner = buildMessage();
+            msgInner.setSysFlag(0);
+            assertTrue(master.putMessage(msgInner).isOk());
+        }
+
+        master.shutdown();
+
+        // 重启后延时消息按真实Topic投递到独立CommitLog
+        master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < 500 && master.getMaxOffsetInQuque("BBB", 0) < 1; i++) {
+            Thread.sleep(10);
+        }
+
+        GetMessageResult getResult = master.getMessage("BBB", 0, 0, 1, null);
+        assertEquals(GetMessageStatus.FOUND, getResult.getStatus());
+        MessageExt msg = MessageDecoder.decode(getResult.getMessageBufferList().get(0), true, false);
+        assertEquals("BBB", msg.getTopic());
+        assertTrue(msg.getCommitLogOffset() >= CommitLog.OffsetSpan);
+        getResult.release();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            getResult = master.getMessage("AAA", 0, i, 1, null);
+            assertEquals(GetMessageStatus.FOUND, getResult.getStatus());
+            getResult.release();
+        }
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_isolated_commit_log_reject_sync_master() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setCommitLogIsolatedTopics("BBB");
+        messageStoreConfig.setBrokerRole(BrokerRole.SYNC_MASTER);
+
+        // 独立CommitLog不参与主备同步，同步双写Master拒绝加载
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(!master.load());
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    private void checkIsolatedCommitLog(final DefaultMessageStore master, final int totalMsgs) {
+        for (int i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = master.getMessage("AAA", 0, i, 1, null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            result.release();
+
+            result = master.getMessage("BBB", 0, i, 1, null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            MessageExt msg = MessageDecoder.decode(result.getMessageBufferList().get(0), true, false);
+            assertEquals("BBB", msg.getTopic());
+            assertTrue(msg.getCommitLogOffset() >= CommitLog.OffsetSpan);
+            result.release();
+        }
+
+        // 独立CommitLog中的消息同样可以按Key查询
+        for (int i = 0; i < totalMsgs; i++) {
+            QueryMessageResult result = master.queryMessage("BBB", "IsolatedKey" + i, 32, 0, Long.MAX_VALUE);
+            assertEquals(1, result.getMessageBufferList().size());
+            result.release();
+        }
+    }
+
+
+    private void checkIndexKeyFilter(final DefaultMessageStore master, final int totalMsgs) {
+        // 每个Key只查到自己的消息，Hash冲突的消息被指纹过滤
+        for (int i = 0; i < totalMsgs; i++) {
+            QueryMessageResult result = master.queryMessage("AAA", "FilterKey" + i, 32, 0, Long.MAX_VALUE);
+            assertEquals(1, result.getMessageBufferList().size());
+            result.release();
+        }
+
+        // 不存在的Key
+        for (int i = totalMsgs; i < totalMsgs * 2; i++) {
+            QueryMessageResult result = master.queryMessage("AAA", "FilterKey" + i, 32, 0, Long.MAX_VALUE);
+            assertEquals(0, result.getMessageBufferList().size());
+            result.release();
+        }
+    }
 }
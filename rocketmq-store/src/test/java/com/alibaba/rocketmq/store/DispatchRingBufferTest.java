@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+/**
+ * 分发环形缓冲区测试
+ */
+public class DispatchRingBufferTest {
+    private static DispatchRequest buildRequest(final int queueId, final long offset) {
+        return new DispatchRequest("DispatchRingBufferTest", queueId, offset, 1, 0, 0, offset, null, 0, 0);
+    }
+
+
+    @Test
+    public void test_put_drain_release() {
+        DispatchRingBuffer ringBuffer = new DispatchRingBuffer(5);
+        assertEquals(8, ringBuffer.getCapacity());
+        assertTrue(ringBuffer.isEmpty());
+        assertNull(ringBuffer.peek());
+
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i + 1, ringBuffer.put(buildRequest(0, i)));
+        }
+
+        List<DispatchRequest> requests = new ArrayList<DispatchRequest>();
+        assertEquals(4, ringBuffer.drainTo(requests, 4));
+        // 取出但未释放，仍然占用缓冲区
+        assertEquals(6, ringBuffer.size());
+        assertEquals(0, ringBuffer.peek().getCommitLogOffset());
+
+        ringBuffer.release(4);
+        assertEquals(2, ringBuffer.size());
+        assertEquals(4, ringBuffer.peek().getCommitLogOffset());
+
+        // 环形写入，跨过数组末尾
+        for (int i = 6; i < 12; i++) {
+            ringBuffer.put(buildRequest(0, i));
+        }
+
+        requests.clear();
+        assertEquals(8, ringBuffer.drainTo(requests, 100));
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(i + 4, requests.get(i).getCommitLogOffset());
+        }
+        ringBuffer.release(8);
+        assertTrue(ringBuffer.isEmpty());
+        assertNull(ringBuffer.peek());
+    }
+
+
+    @Test
+    public void test_put_blocked_when_full() throws Exception {
+        final DispatchRingBuffer ringBuffer = new DispatchRingBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            ringBuffer.put(buildRequest(0, i));
+        }
+
+        final CountDownLatch putOK = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ringBuffer.put(buildRequest(0, 4));
+                putOK.countDown();
+            }
+        });
+        producer.start();
+
+        // 缓冲区已满，生产者等待
+        assertFalse(putOK.await(200, TimeUnit.MILLISECONDS));
+
+        List<DispatchRequest> requests = new ArrayList<DispatchRequest>();
+        assertEquals(1, ringBuffer.drainTo(requests, 1));
+        ringBuffer.release(1);
+
+        assertTrue(putOK.await(3, TimeUnit.SECONDS));
+        assertEquals(4, ringBuffer.size());
+        producer.join();
+    }
+
+
+    @Test
+    public void test_multi_producer() throws Exception {
+        final int producerNums = 4;
+        final int requestNums = 100000;
+        final DispatchRingBuffer ringBuffer = new DispatchRingBuffer(1024);
+
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int i = 0; i < producerNums; i++) {
+            final int queueId = i;
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int k = 0; k < requestNums; k++) {
+                        ringBuffer.put(buildRequest(queueId, k));
+                    }
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+
+        // 每个生产者放入的请求，取出时保持顺序
+        long[] nextOffsets = new long[producerNums];
+        int total = 0;
+        List<DispatchRequest> requests = new ArrayList<DispatchRequest>();
+        while (total < producerNums * requestNums) {
+            int nums = ringBuffer.drainTo(requests, 128);
+            if (0 == nums) {
+                ringBuffer.await(10);
+                continue;
+            }
+
+            for (DispatchRequest request : requests) {
+                assertEquals(nextOffsets[request.getQueueId()]++, request.getCommitLogOffset());
+            }
+            requests.clear();
+            ringBuffer.release(nums);
+            total += nums;
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertTrue(ringBuffer.isEmpty());
+    }
+}
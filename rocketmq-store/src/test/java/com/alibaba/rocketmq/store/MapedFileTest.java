@@ -6,12 +6,15 @@ package com.alibaba.rocketmq.store;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.alibaba.rocketmq.store.config.FlushDiskType;
+
 
 public class MapedFileTest {
 
@@ -66,6 +69,48 @@ public class MapedFileTest {
     }
 
 
+    @Test
+    public void test_warm_mapped_file() throws IOException {
+        MapedFile mapedFile = new MapedFile("./unit_test_store/MapedFileTest/20000", 1024 * 64);
+        // 预热不改变写位置，预热后仍可正常写入读出
+        assertTrue(mapedFile.warmMappedFile(FlushDiskType.SYNC_FLUSH, 4) >= 0);
+        assertTrue(mapedFile.getWrotePostion() == 0);
+        assertTrue(mapedFile.appendMessage(StoreMessage.getBytes()));
+
+        SelectMapedBufferResult selectMapedBufferResult = mapedFile.selectMapedBuffer(0);
+        byte[] data = new byte[StoreMessage.length()];
+        selectMapedBufferResult.getByteBuffer().get(data);
+        selectMapedBufferResult.release();
+        assertTrue(new String(data).equals(StoreMessage));
+
+        mapedFile.shutdown(1000);
+        assertTrue(mapedFile.destroy(1000));
+    }
+
+
+    @Test
+    public void test_append_direct_buffer() throws IOException {
+        MapedFile mapedFile = new MapedFile("./unit_test_store/MapedFileTest/30000", 1024 * 64);
+        // 只写入position到limit之间的数据
+        ByteBuffer direct = ByteBuffer.allocateDirect(1024);
+        direct.putLong(-1);
+        direct.put(StoreMessage.getBytes());
+        direct.flip();
+        direct.position(8);
+        assertTrue(mapedFile.appendMessage(direct));
+        assertTrue(mapedFile.getWrotePostion() == StoreMessage.length());
+
+        SelectMapedBufferResult selectMapedBufferResult = mapedFile.selectMapedBuffer(0);
+        byte[] data = new byte[StoreMessage.length()];
+        selectMapedBufferResult.getByteBuffer().get(data);
+        selectMapedBufferResult.release();
+        assertTrue(new String(data).equals(StoreMessage));
+
+        mapedFile.shutdown(1000);
+        assertTrue(mapedFile.destroy(1000));
+    }
+
+
     /**
      * 当前测试用例由于对mmap操作错误，会导致JVM CRASHED
      */
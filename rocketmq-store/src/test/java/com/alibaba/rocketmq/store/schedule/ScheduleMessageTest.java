@@ -3,17 +3,21 @@
  */
 package com.alibaba.rocketmq.store.schedule;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
 import com.alibaba.rocketmq.store.DefaultMessageStore;
 import com.alibaba.rocketmq.store.GetMessageResult;
 import com.alibaba.rocketmq.store.MessageExtBrokerInner;
@@ -126,4 +130,70 @@ public class ScheduleMessageTest {
         master.destroy();
         System.out.println("================================================================");
     }
+
+
+    @Test
+    public void test_delay_message_batch_deliver() throws Exception {
+        final String topic = "BatchDeliverTopic";
+        final int queueNums = 4;
+        final int totalMsgs = 2000;
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 16);
+        messageStoreConfig.setMessageIndexEnable(false);
+        messageStoreConfig.setMessageDelayLevel("1s 2s");
+        messageStoreConfig.setScheduleDeliverBatchNums(64);
+
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic(topic);
+            msg.setTags("TAG1");
+            msg.setBody(StoreMessage.getBytes());
+            msg.setQueueId(i % queueNums);
+            msg.setSysFlag(0);
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setStoreHost(StoreHost);
+            msg.setBornHost(BornHost);
+            msg.setDelayTimeLevel(1 + i % 2);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            assertTrue(master.putMessage(msg).isOk());
+        }
+
+        // 等待全部投递到真实队列
+        long delivered = 0;
+        for (int i = 0; i < 100 && delivered < totalMsgs; i++) {
+            Thread.sleep(100);
+            delivered = 0;
+            for (int queueId = 0; queueId < queueNums; queueId++) {
+                delivered += master.getMaxOffsetInQuque(topic, queueId);
+            }
+        }
+        assertEquals(totalMsgs, delivered);
+
+        for (int queueId = 0; queueId < queueNums; queueId++) {
+            assertEquals(totalMsgs / queueNums, master.getMaxOffsetInQuque(topic, queueId));
+            for (long offset = 0; offset < totalMsgs / queueNums;) {
+                GetMessageResult result = master.getMessage(topic, queueId, offset, 1024, null);
+                assertTrue(result.getMessageCount() > 0);
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    MessageExt msgExt = MessageDecoder.decode(byteBuffer);
+                    assertEquals(queueId, msgExt.getQueueId());
+                    assertEquals(topic, msgExt.getTopic());
+                    offset++;
+                }
+                result.release();
+            }
+        }
+
+        assertTrue(master.getStoreStatsService().getRuntimeInfo().containsKey("scheduleDeliverLag_1"));
+        assertTrue(master.getStoreStatsService().getRuntimeInfo().containsKey("scheduleDeliverLag_2"));
+
+        master.shutdown();
+        master.destroy();
+    }
 }
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2010-2013 Alibaba Group Holding Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alibaba.rocketmq.store.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.alibaba.rocketmq.common.message.MessageAccessor;
+import com.alibaba.rocketmq.common.message.MessageConst;
+import com.alibaba.rocketmq.common.message.MessageDecoder;
+import com.alibaba.rocketmq.common.message.MessageExt;
+import com.alibaba.rocketmq.store.DefaultMessageStore;
+import com.alibaba.rocketmq.store.GetMessageResult;
+import com.alibaba.rocketmq.store.MessageExtBrokerInner;
+import com.alibaba.rocketmq.store.config.MessageStoreConfig;
+
+
+/**
+ * 时间轮定时消息测试
+ */
+public class TimerMessageTest {
+    private static final String Topic = "TimerTopic";
+    // 期望的投递时间，投递后DELIVER_TIME属性会被清除
+    private static final String ExpectDeliverTime = "EXPECT_DELIVER_TIME";
+    // 发送主机地址
+    private static SocketAddress BornHost;
+    // 存储主机地址
+    private static SocketAddress StoreHost;
+
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        BornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+    }
+
+
+    private MessageStoreConfig buildMessageStoreConfig() {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 16);
+        messageStoreConfig.setMessageIndexEnable(false);
+        messageStoreConfig.setTimerWheelEnable(true);
+        // 时间轮很小，超过1.6秒的消息需要从上层降级
+        messageStoreConfig.setTimerPrecisionMs(100);
+        messageStoreConfig.setTimerWheelSlotNums(16);
+        messageStoreConfig.setTimerWheelLevels(2);
+        messageStoreConfig.setMapedFileSizeTimerLog(TimerLog.UnitSize * 64);
+        return messageStoreConfig;
+    }
+
+
+    private MessageExtBrokerInner buildMessage(final long deliverTime) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(Topic);
+        msg.setQueueId(0);
+        msg.setTags("TAG1");
+        msg.setBody("Once, there was a chance for me!".getBytes());
+        msg.setDeliverTime(deliverTime);
+        msg.putUserProperty(ExpectDeliverTime, String.valueOf(deliverTime));
+        msg.setSysFlag(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(StoreHost);
+        msg.setBornHost(BornHost);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+
+
+    private void waitForDelivered(final DefaultMessageStore master, final long totalMsgs) throws Exception {
+        for (int i = 0; i < 300 && master.getMaxOffsetInQuque(Topic, 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(totalMsgs, master.getMaxOffsetInQuque(Topic, 0));
+    }
+
+
+    /**
+     * 检查所有消息都在投递时间之后投递
+     */
+    private void checkDeliverTime(final DefaultMessageStore master, final long totalMsgs) {
+        long maxLag = 0;
+        for (long offset = 0; offset < totalMsgs;) {
+            GetMessageResult result = master.getMessage(Topic, 0, offset, 1024, null);
+            assertTrue(result != null && result.getMessageCount() > 0);
+            for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                MessageExt msg = MessageDecoder.decode(byteBuffer);
+                long expectDeliverTime = Long.parseLong(msg.getProperty(ExpectDeliverTime));
+                assertEquals(0, msg.getDeliverTime());
+                assertTrue(msg.getStoreTimestamp() >= expectDeliverTime);
+                maxLag = Math.max(maxLag, msg.getStoreTimestamp() - expectDeliverTime);
+                offset++;
+            }
+            result.release();
+        }
+
+        System.out.println("max deliver lag(ms): " + maxLag);
+    }
+
+
+    @Test
+    public void test_timer_message() throws Exception {
+        final int totalMsgs = 500;
+        DefaultMessageStore master = new DefaultMessageStore(this.buildMessageStoreConfig());
+        assertTrue(master.load());
+        master.start();
+
+        // 投递时间在6秒内随机分布，包括已经到期的消息
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < totalMsgs; i++) {
+            long deliverTime = now + ((i * 7919L) % 6000) - 500;
+            assertTrue(master.putMessage(this.buildMessage(deliverTime)).isOk());
+        }
+
+        this.waitForDelivered(master, totalMsgs);
+        this.checkDeliverTime(master, totalMsgs);
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_timer_message_after_restart() throws Exception {
+        final int totalMsgs = 200;
+        MessageStoreConfig messageStoreConfig = this.buildMessageStoreConfig();
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < totalMsgs; i++) {
+            assertTrue(master.putMessage(this.buildMessage(now + 5000 + i * 10)).isOk());
+        }
+
+        // 全部放入时间轮后重启
+        for (int i = 0; i < 100 && master.getTimerMessageService().getEnqueueOffset() < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(totalMsgs, master.getTimerMessageService().getEnqueueOffset());
+        master.shutdown();
+        assertEquals(0, master.getMaxOffsetInQuque(Topic, 0));
+
+        master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        this.waitForDelivered(master, totalMsgs);
+        this.checkDeliverTime(master, totalMsgs);
+        // 不重复投递
+        Thread.sleep(1000);
+        assertEquals(totalMsgs, master.getMaxOffsetInQuque(Topic, 0));
+
+        master.shutdown();
+        master.destroy();
+    }
+
+
+    @Test
+    public void test_timer_wheel_compute_slot() throws Exception {
+        String storePath =
+                System.getProperty("user.home") + File.separator + "store" + File.separator
+                        + "timerwheel_test";
+        TimerWheel timerWheel = new TimerWheel(storePath, 3, 10, 100);
+
+        final long curr = 1000 * 1000;
+        // 已经到期的放在当前槽
+        assertEquals(0, timerWheel.computeLevel(curr - 5000, curr));
+        assertEquals(curr, timerWheel.computeSlotTime(0, curr - 5000, curr));
+        // 第0层跨度1秒
+        assertEquals(0, timerWheel.computeLevel(curr + 999, curr));
+        assertEquals(curr + 900, timerWheel.computeSlotTime(0, curr + 999, curr));
+        // 第1层跨度10秒
+        assertEquals(1, timerWheel.computeLevel(curr + 1000, curr));
+        assertEquals(curr + 1000, timerWheel.computeSlotTime(1, curr + 1500, curr));
+        // 第2层跨度100秒
+        assertEquals(2, timerWheel.computeLevel(curr + 10000, curr));
+        // 超过最高层跨度放在最远的槽
+        assertEquals(2, timerWheel.computeLevel(curr + 1000 * 1000, curr));
+        assertEquals(curr + 90 * 1000, timerWheel.computeSlotTime(2, curr + 1000 * 1000, curr));
+
+        timerWheel.putSlot(1, curr + 1000, 28, 56, 2);
+        assertEquals(28, timerWheel.getMinReferencedPos());
+        assertEquals(2, timerWheel.countPendingMessages()[1]);
+        timerWheel.clearSlot(1, curr + 1000);
+        assertEquals(Long.MAX_VALUE, timerWheel.getMinReferencedPos());
+
+        timerWheel.destroy();
+    }
+
+
+    @Test
+    public void test_timer_wheel_checkpoint() throws Exception {
+        String storePath =
+                System.getProperty("user.home") + File.separator + "store" + File.separator
+                        + "timerwheel_checkpoint_test";
+        TimerWheel timerWheel = new TimerWheel(storePath, 2, 10, 100);
+        final long curr = 1000 * 1000;
+        assertEquals(-1, timerWheel.recoverFromCheckpoint());
+
+        timerWheel.putSlot(0, curr, 0, 28, 2);
+        timerWheel.putProgress(10, curr);
+        timerWheel.checkpoint(56);
+
+        // 检查点之后的修改在恢复时丢弃
+        timerWheel.putSlot(0, curr, 0, 56, 3);
+        timerWheel.putSlot(1, curr + 1000, 84, 84, 1);
+        timerWheel.putProgress(20, curr + 100);
+        assertEquals(56, timerWheel.recoverFromCheckpoint());
+        assertEquals(28, timerWheel.getSlot(0, curr).getLastPos());
+        assertEquals(2, timerWheel.getSlot(0, curr).getNum());
+        assertEquals(0, timerWheel.getSlot(1, curr + 1000).getNum());
+        assertEquals(10, timerWheel.getEnqueueOffset());
+        assertEquals(curr, timerWheel.getCurrReadTimeMs());
+
+        timerWheel.destroy();
+    }
+
+
+    @Test
+    public void test_illegal_deliver_time() throws Exception {
+        MessageStoreConfig messageStoreConfig = this.buildMessageStoreConfig();
+        DefaultMessageStore master = new DefaultMessageStore(messageStoreConfig);
+        assertTrue(master.load());
+        master.start();
+
+        // 投递时间不合法时按普通消息存储
+        MessageExtBrokerInner msg = this.buildMessage(System.currentTimeMillis() + 5000);
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_DELIVER_TIME, "illegal");
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        assertTrue(master.putMessage(msg).isOk());
+        this.waitForDelivered(master, 1);
+        assertEquals(1, master.getMaxOffsetInQuque(Topic, 0));
+
+        master.shutdown();
+        master.destroy();
+    }
+}